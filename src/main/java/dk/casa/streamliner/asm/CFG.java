@@ -5,30 +5,89 @@ import org.objectweb.asm.tree.AbstractInsnNode;
 import org.objectweb.asm.tree.MethodNode;
 
 import java.util.Arrays;
-import java.util.HashSet;
-import java.util.function.IntFunction;
 
+/** Control flow graph between the instructions of a method.
+ *  The edges are collected while the graph is built and are stored in compressed sparse rows when it is queried:
+ *  the successors of instruction i are succ[succStart[i]] to succ[succStart[i + 1] - 1], and similarly for the predecessors.
+ */
 public class CFG implements Dotable {
-	public final HashSet<Integer>[] pred;
-	public final HashSet<Integer>[] succ;
 	public final AbstractInsnNode[] insns;
 	private final MethodNode mn;
+	private final int size;
 
-	@SuppressWarnings("unchecked")
-	public CFG(int size, MethodNode mn) {
-		pred = new HashSet[size];
-		succ = new HashSet[size];
-		IntFunction<HashSet<Integer>> mkHashSet = i -> new HashSet<>();
-		Arrays.setAll(pred, mkHashSet);
-		Arrays.setAll(succ, mkHashSet);
+	// Edges that are added (possibly several times) while the graph is built, packed as from << 32 | to
+	private long[] edges = new long[16];
+	private int edgeCount = 0;
+
+	private int[] succStart, succ, predStart, pred;
 
+	public CFG(int size, MethodNode mn) {
+		this.size = size;
 		this.mn = mn;
 		insns = mn.instructions.toArray();
 	}
 
 	public void addEdge(int a, int b) {
-		succ[a].add(b);
-		pred[b].add(a);
+		if(edgeCount == edges.length) edges = Arrays.copyOf(edges, edgeCount * 2);
+		edges[edgeCount++] = (long) a << 32 | b;
+		succStart = null;
+	}
+
+	private void build() {
+		if(succStart != null) return;
+
+		// Sorting by source and target removes duplicate edges
+		Arrays.sort(edges, 0, edgeCount);
+		int unique = 0;
+		for(int i = 0; i < edgeCount; i++)
+			if(unique == 0 || edges[i] != edges[unique - 1]) edges[unique++] = edges[i];
+		edgeCount = unique;
+
+		int[] sStart = new int[size + 1], pStart = new int[size + 1];
+		succ = new int[edgeCount];
+		pred = new int[edgeCount];
+		for(int i = 0; i < edgeCount; i++) {
+			sStart[(int) (edges[i] >>> 32) + 1]++;
+			pStart[(int) edges[i] + 1]++;
+		}
+		for(int i = 0; i < size; i++) {
+			sStart[i + 1] += sStart[i];
+			pStart[i + 1] += pStart[i];
+		}
+
+		int[] pNext = Arrays.copyOf(pStart, size);
+		for(int i = 0; i < edgeCount; i++) {
+			int from = (int) (edges[i] >>> 32), to = (int) edges[i];
+			succ[i] = to;
+			pred[pNext[to]++] = from;
+		}
+
+		predStart = pStart;
+		succStart = sStart;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public int getSuccessorCount(int i) {
+		build();
+		return succStart[i + 1] - succStart[i];
+	}
+
+	public int getSuccessor(int i, int k) {
+		build();
+		return succ[succStart[i] + k];
+	}
+
+	public int getPredecessorCount(int i) {
+		build();
+		return predStart[i + 1] - predStart[i];
+	}
+
+	public int getPredecessor(int i, int k) {
+		build();
+		return pred[predStart[i] + k];
 	}
 
 	@Override
@@ -38,10 +97,10 @@ public class CFG implements Dotable {
 
 		builder.append(String.format("label=\"%s\";\n\n", label));
 
-		for(int i = 0; i < succ.length; i++) {
+		for(int i = 0; i < size; i++) {
 			builder.append(i).append(String.format(" [label=\"%s\n%s\"]\n", i, Utils.toString(insns[i]).replace("\"", "\\\"")));
-			for(int j : pred[i]) builder.append(i).append(" -> ").append(j).append(" [style=dashed]\n");
-			for(int j : succ[i]) builder.append(i).append(" -> ").append(j).append("\n");
+			for(int k = 0; k < getPredecessorCount(i); k++) builder.append(i).append(" -> ").append(getPredecessor(i, k)).append(" [style=dashed]\n");
+			for(int k = 0; k < getSuccessorCount(i); k++) builder.append(i).append(" -> ").append(getSuccessor(i, k)).append("\n");
 		}
 
 		builder.append("}\n");
@@ -0,0 +1,259 @@
+package dk.casa.streamliner.asm;
+
+import dk.casa.streamliner.asm.analysis.inter.AnalysisSession;
+import dk.casa.streamliner.utils.IntSet;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.FieldNode;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.objectweb.asm.Opcodes.ACC_ABSTRACT;
+
+/** Index of the class hierarchy in the ClassNodeCache.
+ *  Types are assigned dense ids and the ancestors of each type are stored as a bit set of ids,
+ *  such that subtype tests do not walk the hierarchy. The index also memoises the resolution of
+ *  methods and fields, which walks the same hierarchy.
+ *
+ *  Entries are shared between sessions unless they depend on a class that is only visible in the
+ *  current session, such as a lambda model, in which case they are kept in the session.
+ *  The shared entries are dropped when a class that they depend on is replaced.
+ */
+public final class ClassHierarchy {
+	private static final Map<Type, Integer> ids = new ConcurrentHashMap<>();
+	private static final List<Type> types = new ArrayList<>();
+	private static final Map<Type, Node> sharedNodes = new ConcurrentHashMap<>();
+
+	private static final List<Type> arrayAncestors = Arrays.asList(Type.getObjectType("java/io/Serializable"),
+			Type.getObjectType("java/lang/Cloneable"), Type.getObjectType("java/lang/Object"));
+
+	private ClassHierarchy() {}
+
+	/** Entries of the index that are private to a session */
+	public static final class SessionState {
+		private final Map<Type, Node> nodes = new HashMap<>();
+		// Ids of the types whose classes have been added to the requested classes of the session
+		private final IntSet reported = new IntSet();
+		// Set when a class of the shared entries is replaced in the session, after which they are not used
+		private boolean isolated;
+
+		public void clearReported() {
+			reported.clear();
+		}
+	}
+
+	private static final class Node {
+		final int id;
+		final IntSet ancestors;
+		// The classes that the ancestors are computed from
+		final String[] classes;
+		final boolean local;
+		final Set<Type> ancestorTypes;
+
+		// Memoised resolutions: name + descriptor -> owner of the member
+		final Map<String, Optional<String>> methods = new ConcurrentHashMap<>();
+		final Map<String, Optional<String>> implementations = new ConcurrentHashMap<>();
+		final Map<String, Optional<String>> fields = new ConcurrentHashMap<>();
+
+		Node(int id, IntSet ancestors, Collection<String> classes, boolean local) {
+			this.id = id;
+			this.ancestors = ancestors;
+			this.classes = classes.toArray(new String[0]);
+			this.local = local;
+			this.ancestorTypes = new TypeSet(ancestors);
+		}
+	}
+
+	/** Read-only view of a set of type ids */
+	private static final class TypeSet extends AbstractSet<Type> {
+		private final IntSet ids;
+		private final int size;
+
+		TypeSet(IntSet ids) {
+			this.ids = ids;
+			this.size = ids.size();
+		}
+
+		@Override
+		public boolean contains(Object o) {
+			if(!(o instanceof Type)) return false;
+			Integer id = ClassHierarchy.ids.get(o);
+			return id != null && ids.contains((int) id);
+		}
+
+		@Override
+		public Iterator<Type> iterator() {
+			Iterator<Integer> it = ids.iterator();
+			return new Iterator<Type>() {
+				@Override
+				public boolean hasNext() {
+					return it.hasNext();
+				}
+
+				@Override
+				public Type next() {
+					return getType(it.next());
+				}
+			};
+		}
+
+		@Override
+		public int size() {
+			return size;
+		}
+	}
+
+	private static int getId(Type type) {
+		Integer id = ids.get(type);
+		if(id != null) return id;
+
+		synchronized (types) {
+			return ids.computeIfAbsent(type, k -> {
+				types.add(k);
+				return types.size() - 1;
+			});
+		}
+	}
+
+	private static Type getType(int id) {
+		synchronized (types) {
+			return types.get(id);
+		}
+	}
+
+	private static Node getNode(Type type) {
+		AnalysisSession session = AnalysisSession.current();
+		SessionState state = session.hierarchy;
+
+		Node node = state.nodes.get(type);
+		if(node == null && !state.isolated) node = sharedNodes.get(type);
+		if(node == null) {
+			node = computeNode(type);
+			if(node.local || state.isolated) state.nodes.put(type, node);
+			else {
+				Node prev = sharedNodes.putIfAbsent(type, node);
+				if(prev != null) node = prev;
+			}
+		}
+
+		// The classes are dependencies of the session even if they are not read again
+		if(state.reported.add(node.id)) Collections.addAll(session.requestedClasses, node.classes);
+		return node;
+	}
+
+	private static Node computeNode(Type type) {
+		int id = getId(type);
+		IntSet ancestors = new IntSet();
+		ancestors.add(id);
+		Set<String> classes = new LinkedHashSet<>();
+		boolean local = false;
+
+		List<Node> parents = new ArrayList<>();
+		switch(type.getSort()) {
+			case Type.OBJECT:
+				String name = type.getInternalName();
+				ClassNode cn = ClassNodeCache.get(name);
+				classes.add(name);
+				local = ClassNodeCache.hasLocalHierarchy(name);
+
+				if(cn.superName != null) parents.add(getNode(Type.getObjectType(cn.superName)));
+				for(String superName : cn.interfaces) parents.add(getNode(Type.getObjectType(superName)));
+				break;
+
+			case Type.ARRAY:
+				for(Type t : arrayAncestors) parents.add(getNode(t));
+
+				for(Type t : getNode(type.getElementType()).ancestorTypes) {
+					Type array = Type.getType("[" + t.getDescriptor());
+					if(!array.equals(type)) parents.add(getNode(array));
+				}
+				break;
+		}
+
+		for(Node parent : parents) {
+			ancestors.addAll(parent.ancestors);
+			Collections.addAll(classes, parent.classes);
+			local |= parent.local;
+		}
+
+		return new Node(id, ancestors, classes, local);
+	}
+
+	/** Returns the type and all of its super types. The set may not be modified. */
+	public static Set<Type> getAncestors(Type type) {
+		return getNode(type).ancestorTypes;
+	}
+
+	/** Returns true if ancestor is the type or one of its super types */
+	public static boolean hasAncestor(Type type, Type ancestor) {
+		Node node = getNode(type);
+		Integer id = ids.get(ancestor);
+		return id != null && node.ancestors.contains((int) id);
+	}
+
+	/** Returns the class that declares the method found by Utils.findMethod.
+	 *  If implementation is true, abstract methods are skipped. */
+	public static Optional<String> findMethodOwner(String fromClass, String name, String descriptor, boolean implementation) {
+		Node node = getNode(Type.getObjectType(fromClass));
+		Map<String, Optional<String>> cache = implementation ? node.implementations : node.methods;
+
+		Optional<String> owner = cache.get(name + descriptor);
+		if(owner == null) {
+			owner = Utils.findMethod(fromClass, mn -> mn.name.equals(name) && mn.desc.equals(descriptor)
+					&& (!implementation || (mn.access & ACC_ABSTRACT) == 0)).map(pr -> pr.getFirst());
+			cache.put(name + descriptor, owner);
+		}
+		return owner;
+	}
+
+	/** Returns the class that declares the field found by Utils.resolveField */
+	public static Optional<String> resolveFieldOwner(String owner, String name, String descriptor) {
+		Node node = getNode(Type.getObjectType(owner));
+		Optional<String> res = node.fields.get(name + descriptor);
+		if(res == null) {
+			res = Optional.ofNullable(findFieldOwner(owner, name, descriptor));
+			node.fields.put(name + descriptor, res);
+		}
+		return res;
+	}
+
+	/** Roughly follows this: https://docs.oracle.com/javase/specs/jvms/se11/html/jvms-5.html#jvms-5.4.3.2 */
+	private static String findFieldOwner(String owner, String name, String descriptor) {
+		ClassNode cls = ClassNodeCache.get(owner);
+		for(FieldNode fn : cls.fields)
+			if(fn.name.equals(name) && fn.desc.equals(descriptor)) return owner;
+
+		for(String interfaceName : cls.interfaces) {
+			String res = findFieldOwner(interfaceName, name, descriptor);
+			if(res != null) return res;
+		}
+
+		if(cls.superName != null)
+			return findFieldOwner(cls.superName, name, descriptor);
+
+		return null;
+	}
+
+	/** Called when a class is put in the ClassNodeCache */
+	static void classPut(String name, ClassNode cn, ClassNode shared, boolean inSession) {
+		Type type = Type.getObjectType(name);
+		if(!sharedNodes.containsKey(type)) return;
+
+		if(!inSession) sharedNodes.clear();
+		else if(shared == null || !sameHierarchy(cn, shared))
+			AnalysisSession.current().hierarchy.isolated = true;
+	}
+
+	static boolean sameHierarchy(ClassNode cn, ClassNode other) {
+		return Objects.equals(cn.superName, other.superName) && cn.interfaces.equals(other.interfaces);
+	}
+
+	/** Drops all entries, which is needed when classes are removed from the ClassNodeCache */
+	static void clear() {
+		sharedNodes.clear();
+		SessionState state = AnalysisSession.current().hierarchy;
+		state.nodes.clear();
+		state.isolated = false;
+	}
+}
@@ -1,38 +1,102 @@
 package dk.casa.streamliner.asm;
 
+import dk.casa.streamliner.asm.analysis.inter.AnalysisSession;
 import org.objectweb.asm.ClassReader;
 import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.MethodNode;
 
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 public final class ClassNodeCache {
     private final static ClassLoader classLoader = ClassNodeCache.class.getClassLoader();
-    private final static HashMap<String, ClassNode> cache = new HashMap<>();
 
-    /* Quick and dirty way to implement a hierarchy between caches.
-       Allows us to keep some classes between analysis runs but trash the rest.
-       Does not keep a class if it is present in multiple levels!
+    /* Classes are kept in two shared tiers: classes loaded from the class path and classes
+       added with put. The added classes take precedence and can be dropped with clearAdded
+       without losing the (expensive to parse) JDK and library classes.
+
+       The shared classes must not be modified inside an AnalysisSession since they are read
+       concurrently. Instead, getMutableMethod copies the method into the session's overlay,
+       which also holds the classes that are put during the session. The overlay is discarded
+       when the session is closed.
     */
-    private final static Deque<Set<String>> stack = new ArrayDeque<>();
-    static { stack.add(new HashSet<>()); }
+    private final static Map<String, ClassNode> loaded = new ConcurrentHashMap<>();
+    private final static Map<String, ClassNode> added = new ConcurrentHashMap<>();
+    // Classes of jar files that are parsed into the added classes when they are first requested
+    private static volatile JarClassIndex libraries;
 
     public static ClassNode get(String name) {
-        return cache.computeIfAbsent(name, k -> {
-            ClassNode cn = new ClassNode();
-
-            try(InputStream is = classLoader.getResourceAsStream(name + ".class")) {
-                if(is == null) throw new IOException("Class not found");
-                ClassReader cr = new ClassReader(Objects.requireNonNull(is));
-                cr.accept(cn, ClassReader.EXPAND_FRAMES);
-            } catch (IOException e) {
+        AnalysisSession session = AnalysisSession.current();
+        session.requestedClasses.add(name);
+
+        Map<String, ClassNode> local = session.getClasses();
+        if(local != null) {
+            ClassNode cn = local.get(name);
+            if(cn != null) return cn;
+        }
+
+        return getShared(name);
+    }
+
+    private static ClassNode getShared(String name) {
+        ClassNode cn = added.get(name);
+        if(cn != null) return cn;
+
+        JarClassIndex index = libraries;
+        if(index != null && index.contains(name)) {
+            try {
+                cn = index.load(name);
+            } catch(IOException e) {
                 throw new RuntimeException(name, e);
             }
 
-            stack.getFirst().add(name);
-            return cn;
-        });
+            ClassNode prev = added.putIfAbsent(name, cn);
+            return prev != null ? prev : cn;
+        }
+
+        cn = loaded.get(name);
+        if(cn != null) return cn;
+
+        // Another thread may load the same class concurrently, in which case the first one wins
+        ClassNode prev = loaded.putIfAbsent(name, cn = load(name));
+        return prev != null ? prev : cn;
+    }
+
+    private static ClassNode load(String name) {
+        ClassNode cn = new ClassNode();
+
+        try(InputStream is = classLoader.getResourceAsStream(name + ".class")) {
+            if(is == null) throw new IOException("Class not found");
+            ClassReader cr = new ClassReader(Objects.requireNonNull(is));
+            cr.accept(cn, ClassReader.EXPAND_FRAMES);
+        } catch (IOException e) {
+            throw new RuntimeException(name, e);
+        }
+
+        return cn;
+    }
+
+    /** Returns the version of the class that is shared between sessions or null if it does not exist */
+    public static ClassNode tryGetShared(String name) {
+        try {
+            return getShared(name);
+        } catch(RuntimeException exc) {
+            if(!(exc.getCause() instanceof IOException)) throw exc;
+            return null;
+        }
+    }
+
+    /** Returns the class that was put in the current session or else the shared version, or null if it does not exist.
+     *  Unlike get, the copies that getMutableMethod makes of shared classes are skipped, since they are modified. */
+    public static ClassNode tryGetUnmodified(String name) {
+        ClassNode shared = tryGetShared(name);
+        Map<String, ClassNode> local = AnalysisSession.current().getClasses();
+        ClassNode cn = local == null ? null : local.get(name);
+        // The copies share everything but the list of methods with the shared class
+        if(cn != null && (shared == null || cn.fields != shared.fields)) return cn;
+        return shared;
     }
 
     public static ClassNode tryGet(String name) throws ClassNotFoundException {
@@ -45,33 +109,100 @@ public final class ClassNodeCache {
         }
     }
 
+    /** Returns a version of the method mn of class owner that may be modified in place.
+     *  Inside a session, shared methods are copied into the session's version of the class. */
+    public static MethodNode getMutableMethod(String owner, MethodNode mn) {
+        Map<String, ClassNode> local = AnalysisSession.current().getClasses();
+        if(local == null) return mn;
+
+        ClassNode shared = added.getOrDefault(owner, loaded.get(owner));
+        if(shared == null || !shared.methods.contains(mn)) return mn;
+
+        ClassNode cn = local.computeIfAbsent(owner, k -> shallowCopy(shared));
+        int index = cn.methods.indexOf(mn);
+        if(index == -1) throw new IllegalArgumentException(owner + "." + mn.name + " is not a method of the class");
+
+        MethodNode copy = Utils.copyMethod(mn);
+        cn.methods.set(index, copy);
+        return copy;
+    }
+
+    /** Copies the class but shares everything except the list of methods */
+    private static ClassNode shallowCopy(ClassNode cn) {
+        ClassNode res = new ClassNode();
+        res.version = cn.version;
+        res.access = cn.access;
+        res.name = cn.name;
+        res.signature = cn.signature;
+        res.superName = cn.superName;
+        res.interfaces = cn.interfaces;
+        res.sourceFile = cn.sourceFile;
+        res.sourceDebug = cn.sourceDebug;
+        res.module = cn.module;
+        res.outerClass = cn.outerClass;
+        res.outerMethod = cn.outerMethod;
+        res.outerMethodDesc = cn.outerMethodDesc;
+        res.visibleAnnotations = cn.visibleAnnotations;
+        res.invisibleAnnotations = cn.invisibleAnnotations;
+        res.visibleTypeAnnotations = cn.visibleTypeAnnotations;
+        res.invisibleTypeAnnotations = cn.invisibleTypeAnnotations;
+        res.attrs = cn.attrs;
+        res.innerClasses = cn.innerClasses;
+        res.nestHostClass = cn.nestHostClass;
+        res.nestMembers = cn.nestMembers;
+        res.recordComponents = cn.recordComponents;
+        res.fields = cn.fields;
+        res.methods = new ArrayList<>(cn.methods);
+        return res;
+    }
+
+    /** Adds the classes of the index as if they were put outside of a session, but parses them when they are requested.
+     *  Replaces the classes of a previously added index. */
+    public static void putLibraries(JarClassIndex index) {
+        libraries = index;
+        ClassHierarchy.clear();
+    }
+
     /** Returns true if there was no mapping for name prior to the call */
     public static boolean put(String name, ClassNode cn) {
-    	boolean added = cache.put(name, cn) == null;
-    	if(added) stack.getFirst().add(name);
-        return added;
+        Map<String, ClassNode> local = AnalysisSession.current().getClasses();
+        ClassHierarchy.classPut(name, cn, added.getOrDefault(name, loaded.get(name)), local != null);
+        if(local == null) return added.put(name, cn) == null;
+        return local.put(name, cn) == null && !added.containsKey(name);
     }
 
-    public static void putBack(String name, ClassNode cn) {
-        boolean added = cache.put(name, cn) == null;
-        if(added) stack.getLast().add(name);
+    /** Returns true if the super types of the class are only known in the current session */
+    static boolean hasLocalHierarchy(String name) {
+        Map<String, ClassNode> local = AnalysisSession.current().getClasses();
+        if(local == null) return false;
+
+        ClassNode cn = local.get(name);
+        if(cn == null) return false;
+
+        // Copies of shared classes made by getMutableMethod have the same hierarchy
+        ClassNode shared = added.getOrDefault(name, loaded.get(name));
+        return shared == null || !ClassHierarchy.sameHierarchy(cn, shared);
     }
 
 	public static void clear() {
-        cache.clear();
+        clearAdded();
+        loaded.clear();
 	}
 
-	public static void remove(String owner) {
-	    cache.remove(owner);
-    }
-
-    public static void push() {
-        stack.addFirst(new HashSet<>());
+    /** Removes the classes that have been put, but keeps the classes loaded from the class path */
+    public static void clearAdded() {
+        added.clear();
+        libraries = null;
+        ClassHierarchy.clear();
+        Map<String, ClassNode> local = AnalysisSession.current().getClasses();
+        if(local != null) local.clear();
     }
 
-    public static void pop() {
-        Set<String> s = stack.removeFirst();
-        System.err.println("Reclaiming " + s.size() + " classes");
-        s.forEach(ClassNodeCache::remove);
+	public static void remove(String owner) {
+	    added.remove(owner);
+	    loaded.remove(owner);
+	    ClassHierarchy.clear();
+        Map<String, ClassNode> local = AnalysisSession.current().getClasses();
+        if(local != null) local.remove(owner);
     }
 }
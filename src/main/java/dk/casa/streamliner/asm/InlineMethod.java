@@ -8,9 +8,23 @@ public class InlineMethod {
 
     public InlineMethod(MethodNode mth, String owner) {
         // Necessary when inlining the same function multiple times
-        this.mth = new MethodNode(mth.access, mth.name, mth.desc, mth.signature, mth.exceptions.toArray(new String[0]));
-        mth.accept(this.mth);
+        this.mth = Utils.copyMethod(mth);
 
         this.owner = owner;
     }
+
+    private InlineMethod(String owner, MethodNode mth) {
+        this.mth = mth;
+        this.owner = owner;
+    }
+
+    /** Refers to the method without copying it, so the method may not be modified */
+    public static InlineMethod shared(MethodNode mth, String owner) {
+        return new InlineMethod(owner, mth);
+    }
+
+    /** Returns a version of the method that may be modified, such as when it is inlined */
+    public InlineMethod copy() {
+        return new InlineMethod(mth, owner);
+    }
 }
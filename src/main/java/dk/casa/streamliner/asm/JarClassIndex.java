@@ -0,0 +1,284 @@
+package dk.casa.streamliner.asm;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.tree.ClassNode;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/** Index of the classes in a set of jar files, which are only parsed when they are requested.
+ *
+ *  The jar files are memory-mapped and the index is built from their central directories.
+ *  Only the header of each class (name, super class, interfaces, access and version) is kept,
+ *  which is enough for a class hierarchy analysis. Only the bytes up to the end of the header are
+ *  inflated when the index is built, so the size of the methods does not matter. When several jar files contain a class with
+ *  the same name, the class of the last jar file is used.
+ *  Jar files that cannot be mapped (larger than 2GB or ZIP64) are read into memory instead.
+ */
+public final class JarClassIndex {
+	private static final int LOCAL_HEADER = 0x04034b50, CENTRAL_HEADER = 0x02014b50, END_OF_CENTRAL_DIRECTORY = 0x06054b50;
+
+	private static final class Entry {
+		final ClassNode header;
+		final ByteBuffer jar;
+		final int localHeaderOffset, method, compressedSize, size;
+		final long crc;
+
+		Entry(ClassNode header, ByteBuffer jar, int localHeaderOffset, int method, int compressedSize, int size, long crc) {
+			this.header = header;
+			this.jar = jar;
+			this.localHeaderOffset = localHeaderOffset;
+			this.method = method;
+			this.compressedSize = compressedSize;
+			this.size = size;
+			this.crc = crc;
+		}
+	}
+
+	private final Map<String, Entry> entries = new HashMap<>();
+	private final Map<String, byte[]> unmapped = new HashMap<>();
+
+	public JarClassIndex(Collection<File> jarFiles) throws IOException {
+		for(File file : jarFiles) {
+			ByteBuffer jar = map(file);
+			if(jar == null || !indexMapped(jar)) indexUnmapped(file);
+		}
+	}
+
+	private static ByteBuffer map(File file) throws IOException {
+		try(FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			if(channel.size() > Integer.MAX_VALUE) return null;
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			// The mapping stays valid after the channel is closed
+			return buffer.order(ByteOrder.LITTLE_ENDIAN);
+		}
+	}
+
+	/** Indexes the classes of the jar from its central directory. Returns false if the format is not supported. */
+	private boolean indexMapped(ByteBuffer jar) throws IOException {
+		// The end of central directory record is followed by a comment of at most 65535 bytes
+		int end = -1;
+		for(int i = jar.limit() - 22; i >= Math.max(0, jar.limit() - 22 - 0xFFFF); i--)
+			if(jar.getInt(i) == END_OF_CENTRAL_DIRECTORY) {
+				end = i;
+				break;
+			}
+		if(end < 0) throw new IOException("Not a jar file");
+
+		int count = jar.getShort(end + 10) & 0xFFFF;
+		long offset = jar.getInt(end + 16) & 0xFFFFFFFFL;
+		if(count == 0xFFFF || offset == 0xFFFFFFFFL) return false; // ZIP64
+
+		Map<String, Entry> jarEntries = new HashMap<>();
+		int pos = (int) offset;
+		for(int i = 0; i < count; i++) {
+			if(jar.getInt(pos) != CENTRAL_HEADER) throw new IOException("Invalid central directory");
+
+			int method = jar.getShort(pos + 10) & 0xFFFF;
+			long crc = jar.getInt(pos + 16) & 0xFFFFFFFFL;
+			long compressedSize = jar.getInt(pos + 20) & 0xFFFFFFFFL, size = jar.getInt(pos + 24) & 0xFFFFFFFFL;
+			int nameLength = jar.getShort(pos + 28) & 0xFFFF, extraLength = jar.getShort(pos + 30) & 0xFFFF,
+					commentLength = jar.getShort(pos + 32) & 0xFFFF;
+			long localHeaderOffset = jar.getInt(pos + 42) & 0xFFFFFFFFL;
+			if(compressedSize == 0xFFFFFFFFL || size == 0xFFFFFFFFL || localHeaderOffset == 0xFFFFFFFFL) return false;
+
+			byte[] name = new byte[nameLength];
+			ByteBuffer view = jar.duplicate();
+			view.position(pos + 46);
+			view.get(name);
+			String entryName = new String(name, "UTF-8");
+
+			if(entryName.endsWith(".class") && (method == 0 || method == 8)) {
+				ClassNode header;
+				try(InputStream in = open(jar, (int) localHeaderOffset, method, (int) compressedSize)) {
+					header = readHeader(in);
+				}
+				jarEntries.put(header.name, new Entry(header, jar, (int) localHeaderOffset, method, (int) compressedSize, (int) size, crc));
+			}
+
+			pos += 46 + nameLength + extraLength + commentLength;
+		}
+
+		for(Entry entry : jarEntries.values()) {
+			entries.put(entry.header.name, entry);
+			unmapped.remove(entry.header.name);
+		}
+		return true;
+	}
+
+	private void indexUnmapped(File file) throws IOException {
+		try(JarFile jarFile = new JarFile(file, true)) {
+			Enumeration<JarEntry> jarEntries = jarFile.entries();
+			while(jarEntries.hasMoreElements()) {
+				JarEntry jarEntry = jarEntries.nextElement();
+				if(!jarEntry.getName().endsWith(".class")) continue;
+
+				byte[] bytes;
+				try(InputStream is = jarFile.getInputStream(jarEntry)) {
+					ByteArrayOutputStream out = new ByteArrayOutputStream();
+					byte[] buffer = new byte[8192];
+					for(int n; (n = is.read(buffer)) > 0; ) out.write(buffer, 0, n);
+					bytes = out.toByteArray();
+				}
+
+				ClassNode header = readHeader(new ByteArrayInputStream(bytes));
+				entries.put(header.name, new Entry(header, null, 0, 0, 0, bytes.length, jarEntry.getCrc()));
+				unmapped.put(header.name, bytes);
+			}
+		}
+	}
+
+	/** Reads the class file up to the end of the interfaces, which follow the constant pool */
+	private static ClassNode readHeader(InputStream stream) throws IOException {
+		DataInputStream in = new DataInputStream(stream);
+		if(in.readInt() != 0xCAFEBABE) throw new IOException("Not a class file");
+		// The version is the minor version followed by the major version, as in ClassNode.version
+		int version = in.readInt();
+
+		int count = in.readUnsignedShort();
+		String[] utf8 = new String[count];
+		int[] classes = new int[count];
+		for(int i = 1; i < count; i++) {
+			int tag = in.readUnsignedByte();
+			switch(tag) {
+				case 1: utf8[i] = in.readUTF(); break;
+				case 7: classes[i] = in.readUnsignedShort(); break;
+				case 8: case 16: case 19: case 20: skip(in, 2); break;
+				case 15: skip(in, 3); break;
+				case 3: case 4: case 9: case 10: case 11: case 12: case 17: case 18: skip(in, 4); break;
+				case 5: case 6: skip(in, 8); i++; break;  // Takes two entries
+				default: throw new IOException("Invalid constant pool tag " + tag);
+			}
+		}
+
+		int access = in.readUnsignedShort();
+		String name = utf8[classes[in.readUnsignedShort()]];
+		int superIndex = in.readUnsignedShort();
+		String superName = superIndex == 0 ? null : utf8[classes[superIndex]];
+		String[] interfaces = new String[in.readUnsignedShort()];
+		for(int i = 0; i < interfaces.length; i++) interfaces[i] = utf8[classes[in.readUnsignedShort()]];
+
+		ClassNode cn = new ClassNode();
+		cn.visit(version, access, name, null, superName, interfaces);
+		return cn;
+	}
+
+	private static void skip(DataInputStream in, int n) throws IOException {
+		if(in.skipBytes(n) != n) throw new EOFException();
+	}
+
+	private static int dataOffset(ByteBuffer jar, int localHeaderOffset) throws IOException {
+		if(jar.getInt(localHeaderOffset) != LOCAL_HEADER) throw new IOException("Invalid local header");
+		return localHeaderOffset + 30 + (jar.getShort(localHeaderOffset + 26) & 0xFFFF)
+				+ (jar.getShort(localHeaderOffset + 28) & 0xFFFF);
+	}
+
+	/** Returns a stream of the contents of the entry that only inflates the bytes that are read */
+	private static InputStream open(ByteBuffer mapped, int localHeaderOffset, int method, int compressedSize) throws IOException {
+		ByteBuffer jar = mapped.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+		int data = dataOffset(jar, localHeaderOffset);
+		jar.position(data).limit(data + compressedSize);
+
+		InputStream compressed = new InputStream() {
+			@Override
+			public int read() {
+				return jar.hasRemaining() ? jar.get() & 0xFF : -1;
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) {
+				if(len == 0) return 0;
+				if(!jar.hasRemaining()) return -1;
+				len = Math.min(len, jar.remaining());
+				jar.get(b, off, len);
+				return len;
+			}
+		};
+
+		if(method == 0) return compressed;
+		Inflater inflater = new Inflater(true);
+		return new InflaterInputStream(compressed, inflater, 512) {
+			@Override
+			public void close() throws IOException {
+				super.close();
+				// An inflater that is passed to the stream is not ended by it
+				inflater.end();
+			}
+		};
+	}
+
+	private static byte[] read(ByteBuffer mapped, int localHeaderOffset, int method, int compressedSize, int size) throws IOException {
+		ByteBuffer jar = mapped.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+		byte[] compressed = new byte[compressedSize];
+		jar.position(dataOffset(jar, localHeaderOffset));
+		jar.get(compressed);
+		if(method == 0) return compressed;
+
+		Inflater inflater = new Inflater(true);
+		try {
+			inflater.setInput(compressed);
+			byte[] res = new byte[size];
+			int n = 0;
+			while(n < res.length && !inflater.finished()) {
+				int read = inflater.inflate(res, n, res.length - n);
+				if(read == 0 && (inflater.needsInput() || inflater.needsDictionary())) break;
+				n += read;
+			}
+			if(n != res.length) throw new IOException("Truncated entry");
+			return res;
+		} catch(DataFormatException exc) {
+			throw new IOException(exc);
+		} finally {
+			inflater.end();
+		}
+	}
+
+	public boolean contains(String name) {
+		return entries.containsKey(name);
+	}
+
+	public int size() {
+		return entries.size();
+	}
+
+	/** Returns the headers of the classes, which only contain the name, super class, interfaces, access and version */
+	public List<ClassNode> getHeaders() {
+		List<ClassNode> res = new ArrayList<>();
+		for(Entry entry : entries.values()) res.add(entry.header);
+		return res;
+	}
+
+	/** Returns true if the class node is the header of a class in the index */
+	public boolean isHeader(ClassNode cn) {
+		Entry entry = entries.get(cn.name);
+		return entry != null && entry.header == cn;
+	}
+
+	/** Returns a checksum of the contents of the class, or -1 if it is not in the index */
+	public long getChecksum(String name) {
+		Entry entry = entries.get(name);
+		return entry == null ? -1 : entry.crc;
+	}
+
+	/** Parses the class or returns null if it is not in the index */
+	public ClassNode load(String name) throws IOException {
+		Entry entry = entries.get(name);
+		if(entry == null) return null;
+
+		byte[] bytes = entry.jar == null ? unmapped.get(name)
+				: read(entry.jar, entry.localHeaderOffset, entry.method, entry.compressedSize, entry.size);
+		ClassNode cn = new ClassNode();
+		new ClassReader(bytes).accept(cn, ClassReader.EXPAND_FRAMES);
+		return cn;
+	}
+}
@@ -0,0 +1,237 @@
+package dk.casa.streamliner.asm;
+
+import org.objectweb.asm.tree.MethodNode;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ *  Timers, counters, peaks and histograms of the phases of the optimisation of a method.
+ *
+ *  Metrics are enabled by setting the system property streamliner.metrics to a file. The metrics of each
+ *  optimised method are appended to the file as a line of JSON when the method is done, and the metrics
+ *  of the whole run are appended when the JVM exits. Metrics are recorded for the method that is being
+ *  optimised on the current thread (see begin and end), and recording does nothing when they are disabled.
+ */
+public final class Metrics {
+	public enum Phase { PREPROCESSING, ANALYSIS, PRE_TRANSFORM_ANALYSIS, INLINING, CLEANUP, JUMP_THREADING, PEEPHOLE }
+
+	private static final String file = System.getProperty("streamliner.metrics");
+	public static final boolean enabled = file != null;
+
+	private static final ThreadLocal<Metrics> current = new ThreadLocal<>();
+	private static final Metrics run = new Metrics(null);
+	private static Writer writer;
+
+	static {
+		if(enabled) Runtime.getRuntime().addShutdownHook(new Thread(Metrics::finish));
+	}
+
+	/** Histogram of values in buckets of powers of two */
+	private static final class Histogram {
+		long count, sum, max;
+		final long[] buckets = new long[64];
+
+		void add(long value) {
+			count++;
+			sum += value;
+			max = Math.max(max, value);
+			buckets[64 - Long.numberOfLeadingZeros(Math.max(value, 0))]++;
+		}
+
+		void add(Histogram other) {
+			count += other.count;
+			sum += other.sum;
+			max = Math.max(max, other.max);
+			for(int i = 0; i < buckets.length; i++) buckets[i] += other.buckets[i];
+		}
+	}
+
+	private final String method;
+	private final long[] nanos = new long[Phase.values().length];
+	private final long[] instructionsBefore = new long[Phase.values().length], instructionsAfter = new long[Phase.values().length];
+	private final boolean[] entered = new boolean[Phase.values().length];
+	private final Map<String, Long> counters = new TreeMap<>(), peaks = new TreeMap<>();
+	private final Map<String, Histogram> histograms = new TreeMap<>();
+	private String outcome;
+	private int methods;
+
+	private Metrics(String method) {
+		this.method = method;
+	}
+
+	/** Measures the time of a phase and the size of the method before and after it */
+	public static final class Timer implements AutoCloseable {
+		private static final Timer NONE = new Timer(null, null, null);
+
+		private final Metrics metrics;
+		private final Phase phase;
+		private final MethodNode mn;
+		private final long start;
+
+		private Timer(Metrics metrics, Phase phase, MethodNode mn) {
+			this.metrics = metrics;
+			this.phase = phase;
+			this.mn = mn;
+			this.start = metrics == null ? 0 : System.nanoTime();
+		}
+
+		@Override
+		public void close() {
+			if(metrics == null) return;
+			int i = phase.ordinal();
+			metrics.nanos[i] += System.nanoTime() - start;
+			metrics.instructionsAfter[i] = mn.instructions.size();
+		}
+	}
+
+	/** Starts recording the metrics of a method on the current thread */
+	public static void begin(String owner, MethodNode mn) {
+		if(enabled) current.set(new Metrics(owner + "." + mn.name + mn.desc));
+	}
+
+	/** Stops recording the metrics of the method and writes them. The outcome is either "optimised" or the reason of the failure. */
+	public static void end(String outcome) {
+		if(!enabled) return;
+		Metrics metrics = current.get();
+		if(metrics == null) return;
+		current.remove();
+
+		metrics.outcome = outcome;
+		synchronized(run) {
+			run.add(metrics);
+			write(metrics.toJSON());
+		}
+	}
+
+	/** Times a phase of the current method. If the phase is repeated, the time is summed and the instructions
+	 *  are counted before the first and after the last run. */
+	public static Timer time(Phase phase, MethodNode mn) {
+		Metrics metrics = enabled ? current.get() : null;
+		if(metrics == null) return Timer.NONE;
+
+		int i = phase.ordinal();
+		if(!metrics.entered[i]) {
+			metrics.entered[i] = true;
+			metrics.instructionsBefore[i] = mn.instructions.size();
+		}
+		return new Timer(metrics, phase, mn);
+	}
+
+	public static void count(String key, long value) {
+		Metrics metrics = enabled ? current.get() : null;
+		if(metrics != null) metrics.counters.merge(key, value, Long::sum);
+	}
+
+	/** Records the largest value */
+	public static void peak(String key, long value) {
+		Metrics metrics = enabled ? current.get() : null;
+		if(metrics != null) metrics.peaks.merge(key, value, Math::max);
+	}
+
+	public static void sample(String key, long value) {
+		Metrics metrics = enabled ? current.get() : null;
+		if(metrics != null) metrics.histograms.computeIfAbsent(key, k -> new Histogram()).add(value);
+	}
+
+	/** Returns the time to pass to sampleSince, or 0 if metrics are disabled */
+	public static long start() {
+		return enabled ? System.nanoTime() : 0;
+	}
+
+	/** Samples the microseconds since start */
+	public static void sampleSince(String key, long start) {
+		if(enabled) sample(key, (System.nanoTime() - start) / 1000);
+	}
+
+	private void add(Metrics other) {
+		methods++;
+		counters.merge("methods." + other.outcome, 1L, Long::sum);
+		for(int i = 0; i < nanos.length; i++) {
+			nanos[i] += other.nanos[i];
+			instructionsBefore[i] += other.instructionsBefore[i];
+			instructionsAfter[i] += other.instructionsAfter[i];
+			entered[i] |= other.entered[i];
+		}
+		other.counters.forEach((key, value) -> counters.merge(key, value, Long::sum));
+		other.peaks.forEach((key, value) -> peaks.merge(key, value, Math::max));
+		other.histograms.forEach((key, value) -> histograms.computeIfAbsent(key, k -> new Histogram()).add(value));
+	}
+
+	private static String quote(String s) {
+		StringBuilder sb = new StringBuilder("\"");
+		for(char c : s.toCharArray()) {
+			if(c == '"' || c == '\\') sb.append('\\').append(c);
+			else if(c < 0x20) sb.append(String.format("\\u%04x", (int) c));
+			else sb.append(c);
+		}
+		return sb.append('"').toString();
+	}
+
+	private static void appendMap(StringBuilder sb, String name, Map<String, Long> map) {
+		sb.append(",").append(quote(name)).append(":{");
+		StringJoiner sj = new StringJoiner(",");
+		map.forEach((key, value) -> sj.add(quote(key) + ":" + value));
+		sb.append(sj).append("}");
+	}
+
+	String toJSON() {
+		StringBuilder sb = new StringBuilder("{");
+		if(method != null) sb.append("\"method\":").append(quote(method)).append(",\"outcome\":").append(quote(outcome));
+		else sb.append("\"methods\":").append(methods);
+
+		sb.append(",\"phases\":{");
+		StringJoiner phases = new StringJoiner(",");
+		for(Phase phase : Phase.values()) {
+			int i = phase.ordinal();
+			if(!entered[i]) continue;
+			phases.add(String.format("%s:{\"nanos\":%d,\"instructionsBefore\":%d,\"instructionsAfter\":%d}",
+					quote(phase.name().toLowerCase()), nanos[i], instructionsBefore[i], instructionsAfter[i]));
+		}
+		sb.append(phases).append("}");
+
+		appendMap(sb, "counters", counters);
+		appendMap(sb, "peaks", peaks);
+
+		sb.append(",\"histograms\":{");
+		StringJoiner histogramsJ = new StringJoiner(",");
+		histograms.forEach((key, histogram) -> {
+			// Bucket i contains the values in [2^(i-1), 2^i)
+			StringJoiner buckets = new StringJoiner(",");
+			for(int i = 0; i < histogram.buckets.length; i++)
+				if(histogram.buckets[i] != 0) buckets.add("\"" + (i == 0 ? 0 : 1L << (i - 1)) + "\":" + histogram.buckets[i]);
+			histogramsJ.add(String.format("%s:{\"count\":%d,\"sum\":%d,\"max\":%d,\"buckets\":{%s}}",
+					quote(key), histogram.count, histogram.sum, histogram.max, buckets));
+		});
+		sb.append(histogramsJ).append("}");
+
+		return sb.append("}").toString();
+	}
+
+	private static void write(String line) {
+		try {
+			if(writer == null)
+				writer = new BufferedWriter(new OutputStreamWriter(Files.newOutputStream(Paths.get(file),
+						StandardOpenOption.CREATE, StandardOpenOption.APPEND), StandardCharsets.UTF_8));
+			writer.write(line);
+			writer.write('\n');
+			writer.flush();
+		} catch(IOException exc) {
+			System.err.println("Unable to write metrics to " + file + ": " + exc);
+		}
+	}
+
+	private static void finish() {
+		synchronized(run) {
+			if(run.methods == 0) return;
+			write(run.toJSON());
+			// The writer is not created when the metrics file cannot be opened
+			if(writer == null) return;
+			try {
+				writer.close();
+			} catch(IOException ignored) {}
+		}
+	}
+}
@@ -0,0 +1,288 @@
+package dk.casa.streamliner.asm;
+
+import dk.casa.streamliner.asm.RQ2.CHA;
+import dk.casa.streamliner.asm.RQ2.Experiment;
+import dk.casa.streamliner.asm.analysis.inter.AnalysisSession;
+import dk.casa.streamliner.asm.analysis.inter.oracles.Oracle;
+import dk.casa.streamliner.asm.transform.CodeSize;
+import dk.casa.streamliner.asm.transform.InlineAndAllocateTransformer;
+import dk.casa.streamliner.asm.transform.JumpThreading;
+import dk.casa.streamliner.asm.transform.LambdaPreprocessor;
+import dk.casa.streamliner.asm.transform.LocalVariableCleanup;
+import dk.casa.streamliner.asm.transform.SlidingWindowOptimizer;
+import dk.casa.streamliner.utils.Counter;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.math3.util.Pair;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.tree.*;
+import org.objectweb.asm.tree.analysis.AnalyzerException;
+import org.objectweb.asm.util.CheckMethodAdapter;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+import static org.objectweb.asm.Opcodes.*;
+
+/** Optimises the stream pipelines of all methods in a jar file or a directory of class files
+ *  and writes the result to a jar file, which may be the input jar file itself.
+ *
+ *  Type queries are answered with a class hierarchy analysis of the input and the classpath,
+ *  so the optimised program is only correct if no other classes are loaded at runtime.
+ *  Methods that cannot be optimised, or become too large for the JIT (see CodeSize), are left unchanged.
+ */
+public class OptimizeJar {
+	// Number of methods that are optimised in parallel
+	private static final int parallelism = Integer.getInteger("streamliner.threads", Runtime.getRuntime().availableProcessors());
+
+	public static void main(String[] args) throws IOException {
+		if(args.length < 2) {
+			System.out.println("Usage: java OptimizeJar <input jar or directory> <output jar> [classpath]");
+			System.exit(1);
+		}
+
+		List<Path> classPath = args.length > 2 ?
+				Stream.of(args[2].split(File.pathSeparator)).filter(s -> !s.isEmpty()).map(Paths::get).collect(Collectors.toList()) :
+				Collections.emptyList();
+
+		System.out.println(run(Paths.get(args[0]), Paths.get(args[1]), classPath));
+	}
+
+	public static Counter<String> run(Path input, Path output, List<Path> classPath) throws IOException {
+		List<ClassNode> hierarchy = new ArrayList<>();
+		for(Path path : classPath) hierarchy.addAll(loadClasses(path));
+
+		List<ClassNode> classes = loadClasses(input);
+		hierarchy.addAll(classes);
+		// Classes of the input take precedence over classes on the classpath with the same name
+		for(ClassNode cn : hierarchy) ClassNodeCache.put(cn.name, cn);
+		System.out.format("Loaded %d classes and %d classes from the classpath\n", classes.size(), hierarchy.size() - classes.size());
+
+		Oracle oracle = new Experiment.RQ2Oracle(null, new CHA(hierarchy));
+		hierarchy.clear();
+
+		Counter<String> stats = new Counter<>(Arrays.asList("methodsWithPipelines", "methodsOptimised",
+				"parallelSkip", "failed", "tooLarge", "exceedsInlineLimit", "classesChanged"));
+		Set<String> changed = optimise(classes, oracle, stats);
+		write(input, output, changed);
+		return stats;
+	}
+
+	private static List<ClassNode> loadClasses(Path path) throws IOException {
+		if(!Files.isDirectory(path)) return Utils.loadJarFile(path.toFile());
+
+		List<ClassNode> classes = new ArrayList<>();
+		try(Stream<Path> files = Files.walk(path)) {
+			for(Path file : files.filter(p -> p.toString().endsWith(".class")).collect(Collectors.toList()))
+				classes.add(Utils.loadClassFile(file.toFile()));
+		}
+		return classes;
+	}
+
+	/** Optimises the methods with stream pipelines in parallel and returns the names of the classes that changed */
+	private static Set<String> optimise(List<ClassNode> classes, Oracle oracle, Counter<String> stats) {
+		List<Pair<ClassNode, MethodNode>> methodsWithPipelines = classes.stream()
+				.flatMap(cn -> cn.methods.stream().map(mn -> new Pair<>(cn, mn)))
+				.filter(pr -> hasPipeline(pr.getSecond()))
+				.collect(Collectors.toList());
+
+		stats.put("methodsWithPipelines", methodsWithPipelines.size());
+		System.out.println("" + methodsWithPipelines.size() + " methods with pipelines.");
+
+		List<MethodNode> optimised;
+		ForkJoinPool pool = new ForkJoinPool(parallelism);
+		try {
+			optimised = pool.submit(() -> methodsWithPipelines.parallelStream()
+					.map(pr -> optimise(pr.getFirst().name, pr.getSecond(), oracle, stats))
+					.collect(Collectors.toList())).get();
+		} catch(InterruptedException exc) {
+			throw new RuntimeException(exc);
+		} catch(ExecutionException exc) {
+			if(exc.getCause() instanceof RuntimeException) throw (RuntimeException) exc.getCause();
+			throw new RuntimeException(exc.getCause());
+		} finally {
+			pool.shutdown();
+		}
+
+		// The classes are only modified once all methods have been optimised, since they are read during the analysis
+		Set<String> changed = new HashSet<>();
+		for(int i = 0; i < optimised.size(); i++) {
+			MethodNode mn = optimised.get(i);
+			if(mn == null) continue;
+
+			ClassNode cn = methodsWithPipelines.get(i).getFirst();
+			cn.methods.set(cn.methods.indexOf(methodsWithPipelines.get(i).getSecond()), mn);
+			changed.add(cn.name);
+		}
+
+		stats.put("classesChanged", changed.size());
+		return changed;
+	}
+
+	static boolean hasPipeline(MethodNode mn) {
+		return Utils.instructionStream(mn).anyMatch(Experiment::isStreamConstructor)
+				&& Utils.instructionStream(mn).anyMatch(Experiment::isStreamConsumer);
+	}
+
+	/** Returns the optimised copy of the method or null if it could not be optimised */
+	static MethodNode optimise(String owner, MethodNode orig, Oracle oracle, Counter<String> stats) {
+		return optimise(owner, orig, null, oracle, stats);
+	}
+
+	/** Like optimise, but the class of the method is only put in the session of the optimisation if it is not null */
+	static MethodNode optimise(String owner, MethodNode orig, ClassNode cls, Oracle oracle, Counter<String> stats) {
+		if(Utils.instructionStream(orig).anyMatch(Experiment::isParallel)) {
+			inc(stats, "parallelSkip");
+			return null;
+		}
+
+		MethodNode mn = Utils.copyMethod(orig);
+		Metrics.begin(owner, mn);
+		try(AnalysisSession ignored = AnalysisSession.open()) {
+			if(cls != null) ClassNodeCache.put(owner, cls);
+			try(Metrics.Timer t = Metrics.time(Metrics.Phase.PREPROCESSING, mn)) {
+				new LambdaPreprocessor(mn).preprocess();
+			}
+			new InlineAndAllocateTransformer(owner, mn, oracle, false).transform();
+			try(Metrics.Timer t = Metrics.time(Metrics.Phase.CLEANUP, mn)) {
+				new LocalVariableCleanup(owner, mn).run();
+			}
+			try(Metrics.Timer t = Metrics.time(Metrics.Phase.JUMP_THREADING, mn)) {
+				new JumpThreading(owner, mn).run();
+			}
+			try(Metrics.Timer t = Metrics.time(Metrics.Phase.PEEPHOLE, mn)) {
+				SlidingWindowOptimizer.run(mn);
+			}
+			try(Metrics.Timer t = Metrics.time(Metrics.Phase.PREPROCESSING, mn)) {
+				new LambdaPreprocessor(mn).postprocess();
+			}
+			verify(mn);
+			if(CodeSize.check(orig, mn)) inc(stats, "exceedsInlineLimit");
+		} catch(AnalyzerException | RuntimeException exc) {
+			System.err.format("Unable to optimise %s.%s%s: %s\n", owner, mn.name, mn.desc, exc.getMessage());
+			inc(stats, exc instanceof CodeSize.TooLargeException ? "tooLarge" : "failed");
+			Metrics.end(exc.getClass().getSimpleName());
+			return null;
+		}
+
+		inc(stats, "methodsOptimised");
+		Metrics.end("optimised");
+		return mn;
+	}
+
+	private static void inc(Counter<String> stats, String key) {
+		synchronized (stats) {
+			stats.add(key);
+		}
+	}
+
+	private static boolean isLambdaModel(String name) {
+		return name.contains("LambdaModel$");
+	}
+
+	/** Checks the optimised method. The lambda models are not written to the output, so they must not be referenced. */
+	private static void verify(MethodNode mn) {
+		CheckMethodAdapter cma = new CheckMethodAdapter(mn.access, mn.name, mn.desc, null, new HashMap<>());
+		cma.version = V1_8;
+		mn.accept(cma);
+
+		for(AbstractInsnNode insn : mn.instructions) {
+			boolean model = insn instanceof TypeInsnNode && isLambdaModel(((TypeInsnNode) insn).desc)
+					|| insn instanceof MethodInsnNode && isLambdaModel(((MethodInsnNode) insn).owner)
+					|| insn instanceof FieldInsnNode && isLambdaModel(((FieldInsnNode) insn).owner);
+			if(model) throw new RuntimeException("Optimised method references a lambda model: " + Utils.toString(insn));
+		}
+
+		// The debug information of inlined lambda bodies may still mention the models
+		if(mn.localVariables != null)
+			mn.localVariables.removeIf(lv -> isLambdaModel(lv.desc));
+	}
+
+	/** Copies the input to the output jar while replacing the changed classes. */
+	private static void write(Path input, Path output, Set<String> changed) throws IOException {
+		Path parent = output.toAbsolutePath().getParent();
+		Files.createDirectories(parent);
+		// The output is written to a temporary file first such that the input can be replaced
+		Path tmp = Files.createTempFile(parent, output.getFileName().toString(), ".tmp");
+		try {
+			try(ZipOutputStream out = new ZipOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+				if(Files.isDirectory(input)) {
+					try(Stream<Path> files = Files.walk(input)) {
+						List<Path> inputFiles = files.filter(Files::isRegularFile)
+								.filter(file -> !isSameFile(file, tmp) && !isSameFile(file, output))
+								.sorted().collect(Collectors.toList());
+						for(Path file : inputFiles) {
+							String name = input.relativize(file).toString().replace(File.separatorChar, '/');
+							try(InputStream is = Files.newInputStream(file)) {
+								writeEntry(out, name, is, changed);
+							}
+						}
+					}
+				} else {
+					try(ZipInputStream in = new ZipInputStream(new BufferedInputStream(Files.newInputStream(input)))) {
+						for(ZipEntry entry = in.getNextEntry(); entry != null; entry = in.getNextEntry())
+							if(!entry.isDirectory()) writeEntry(out, entry.getName(), in, changed);
+					}
+				}
+			}
+
+			Files.move(tmp, output, StandardCopyOption.REPLACE_EXISTING);
+		} finally {
+			Files.deleteIfExists(tmp);
+		}
+	}
+
+	private static boolean isSameFile(Path a, Path b) {
+		return a.toAbsolutePath().normalize().equals(b.toAbsolutePath().normalize());
+	}
+
+	private static void writeEntry(ZipOutputStream out, String name, InputStream is, Set<String> changed) throws IOException {
+		out.putNextEntry(new ZipEntry(name));
+		String className = name.endsWith(".class") ? name.substring(0, name.length() - ".class".length()) : null;
+		byte[] bytes = className != null && changed.contains(className) ? writeClass(ClassNodeCache.get(className)) : null;
+		if(bytes != null) out.write(bytes);
+		else IOUtils.copy(is, out);
+		out.closeEntry();
+	}
+
+	/** Returns the bytes of the class or null if it could not be written */
+	private static byte[] writeClass(ClassNode cn) {
+		try {
+			ClassWriter cw = new CacheClassWriter();
+			cn.accept(cw);
+			return cw.toByteArray();
+		} catch(RuntimeException exc) {
+			System.err.format("Unable to write %s, the original is kept: %s\n", cn.name, exc);
+			return null;
+		}
+	}
+
+	/** Computes frames with the classes in the ClassNodeCache, since the input is not on the classpath */
+	static class CacheClassWriter extends ClassWriter {
+		CacheClassWriter() {
+			super(COMPUTE_FRAMES);
+		}
+
+		@Override
+		protected String getCommonSuperClass(String type1, String type2) {
+			if((ClassNodeCache.get(type1).access & ACC_INTERFACE) != 0 || (ClassNodeCache.get(type2).access & ACC_INTERFACE) != 0)
+				return "java/lang/Object";
+
+			Set<String> ancestors = new HashSet<>();
+			for(String type = type1; type != null; type = ClassNodeCache.get(type).superName)
+				ancestors.add(type);
+
+			for(String type = type2; type != null; type = ClassNodeCache.get(type).superName)
+				if(ancestors.contains(type)) return type;
+
+			return "java/lang/Object";
+		}
+	}
+}
@@ -5,6 +5,7 @@ import dk.casa.streamliner.asm.analysis.inter.InterValue;
 import dk.casa.streamliner.asm.analysis.inter.oracles.Oracle;
 import dk.casa.streamliner.asm.analysis.inter.oracles.StreamLibraryOracle;
 import dk.casa.streamliner.asm.transform.InlineAndAllocateTransformer;
+import dk.casa.streamliner.asm.transform.JumpThreading;
 import dk.casa.streamliner.asm.transform.LambdaPreprocessor;
 import dk.casa.streamliner.asm.transform.LocalVariableCleanup;
 import dk.casa.streamliner.asm.transform.SlidingWindowOptimizer;
@@ -86,7 +87,7 @@ public class OptimizeSkeleton {
 				public Optional<Type> queryType(Context context, MethodInsnNode minsn, InterValue receiver) {
 					/* If we know that the method only creates streams from ArrayLists, we can use the following implementation: */
 					if(minsn.name.equals("stream") &&
-							Utils.getAncestors(Type.getObjectType(minsn.owner)).contains(Type.getObjectType("java/util/Collection")))
+							Utils.hasAncestor(Type.getObjectType(minsn.owner), Type.getObjectType("java/util/Collection")))
 						return Optional.of(Type.getObjectType("java/util/ArrayList"));
 
 					return Optional.empty();
@@ -101,6 +102,7 @@ public class OptimizeSkeleton {
 
 			/* Perform some clean-up of the resulting bytecode. Corresponds to phase 4 in the paper */
 			new LocalVariableCleanup(cn.name, mn).run();
+			new JumpThreading(cn.name, mn).run();
 			SlidingWindowOptimizer.run(mn);
 
 			lambdaPreprocessor.postprocess();
@@ -0,0 +1,178 @@
+package dk.casa.streamliner.asm.RQ2;
+
+import dk.casa.streamliner.asm.RQ2.Experiment.Result;
+import dk.casa.streamliner.utils.Counter;
+import org.apache.commons.io.FileUtils;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.*;
+import java.util.*;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+/**
+ *  Runs the experiment in several worker JVMs, since the pre-analyses and the optimiser use global state
+ *  that prevents projects from being processed in parallel in the same JVM.
+ *
+ *  The workers share a directory. A worker claims a project by atomically creating a claim file for it,
+ *  so projects are distributed dynamically, and writes the result of the project and the query stats
+ *  of its pre-analysis to a result file. The coordinator merges the result files in the order of the projects.
+ *  The directory is deleted afterwards, unless a worker failed, in which case its log is kept there.
+ */
+final class Coordinator {
+	/** Set for the worker JVMs to the shared directory */
+	static final String WORKER_PROPERTY = "streamliner.worker";
+
+	private Coordinator() {}
+
+	private static String getName(Path repo) {
+		return repo.getFileName().toString();
+	}
+
+	/** Processes the projects that are not claimed by other workers */
+	static void work(Path dir, List<Path> repos, Function<Path, Result> process, Counter<String> queryStats) throws IOException {
+		for(Path repo : repos) {
+			try {
+				Files.createFile(dir.resolve(getName(repo) + ".claim"));
+			} catch(FileAlreadyExistsException exc) {
+				continue;
+			}
+
+			// The query stats are reported for each project
+			queryStats.clear();
+			Result result = process.apply(repo);
+			System.out.println(result);
+
+			Path tmp = Files.createTempFile(dir, getName(repo), ".tmp");
+			try(ObjectOutputStream out = new ObjectOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+				out.writeObject(new HashMap<>(result));
+				out.writeObject(new HashMap<>(queryStats));
+			}
+			Files.move(tmp, dir.resolve(getName(repo) + ".result"), StandardCopyOption.ATOMIC_MOVE);
+		}
+	}
+
+	/** Processes the projects in the given number of worker JVMs and merges their results */
+	static Result run(List<Path> repos, int workers, String[] args, Counter<String> queryStats) throws IOException {
+		Path dir = Files.createTempDirectory("streamliner-workers");
+		System.out.println("Running " + workers + " workers in " + dir);
+
+		List<Process> processes = new ArrayList<>();
+		for(int i = 0; i < workers; i++) {
+			ProcessBuilder builder = new ProcessBuilder(getCommand(dir, i, workers, args));
+			builder.redirectErrorStream(true);
+			builder.redirectOutput(dir.resolve("worker" + i + ".log").toFile());
+			processes.add(builder.start());
+		}
+
+		try {
+			int done = 0;
+			while(processes.stream().anyMatch(Process::isAlive)) {
+				Thread.sleep(1000);
+				int results = countResults(dir);
+				if(results != done) System.out.format("Progress: %d/%d\n", done = results, repos.size());
+			}
+		} catch(InterruptedException exc) {
+			processes.forEach(Process::destroy);
+			throw new RuntimeException(exc);
+		}
+
+		boolean failed = false;
+		for(int i = 0; i < processes.size(); i++)
+			if(processes.get(i).exitValue() != 0) {
+				failed = true;
+				System.err.println("Worker " + i + " failed with exit code " + processes.get(i).exitValue()
+						+ ", see " + dir.resolve("worker" + i + ".log"));
+			}
+
+		Result res = new Result();
+		for(Path repo : repos) {
+			Path file = dir.resolve(getName(repo) + ".result");
+			if(!Files.exists(file)) {
+				System.err.println("Missing result for " + repo);
+				failed = true;
+				continue;
+			}
+
+			try(ObjectInputStream in = new ObjectInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+				Result result = new Result();
+				result.putAll(readCounts(in));
+				System.out.println(repo + ": " + result);
+				res.add(result);
+				res.inc("progress", 1);
+
+				Counter<String> stats = new Counter<>();
+				stats.putAll(readCounts(in));
+				queryStats.add(stats);
+			} catch(ClassNotFoundException exc) {
+				throw new IOException(exc);
+			}
+		}
+
+		if(!failed) FileUtils.deleteDirectory(dir.toFile());
+		return res;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static Map<String, Integer> readCounts(ObjectInputStream in) throws IOException, ClassNotFoundException {
+		return (Map<String, Integer>) in.readObject();
+	}
+
+	private static int countResults(Path dir) throws IOException {
+		try(DirectoryStream<Path> files = Files.newDirectoryStream(dir, "*.result")) {
+			int res = 0;
+			for(Path ignored : files) res++;
+			return res;
+		}
+	}
+
+	/** Starts the experiment with the same JVM options, class path and streamliner properties as this JVM */
+	private static List<String> getCommand(Path dir, int worker, int workers, String[] args) {
+		List<String> command = new ArrayList<>();
+		command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+
+		// Debugger agents would listen on the same port
+		ManagementFactory.getRuntimeMXBean().getInputArguments().stream()
+				.filter(arg -> !arg.startsWith("-Dstreamliner.") && !arg.contains("jdwp"))
+				.forEach(command::add);
+
+		// Properties can also be set after startup, for instance by Maven
+		Properties properties = System.getProperties();
+		for(String key : properties.stringPropertyNames())
+			if(key.startsWith("streamliner.") && !key.equals("streamliner.workers") && !key.equals("streamliner.threads"))
+				command.add("-D" + key + "=" + properties.getProperty(key)
+						// Each worker writes its own metrics
+						+ (key.equals("streamliner.metrics") ? ".worker" + worker : ""));
+
+		// The workers share the processors unless the number of threads is given
+		int threads = Integer.getInteger("streamliner.threads", Math.max(1, Runtime.getRuntime().availableProcessors() / workers));
+		command.add("-Dstreamliner.threads=" + threads);
+		command.add("-D" + WORKER_PROPERTY + "=" + dir);
+
+		command.add("-cp");
+		command.add(getClassPath());
+		command.add(Experiment.class.getName());
+		command.addAll(Arrays.asList(args));
+		return command;
+	}
+
+	private static String getClassPath() {
+		// Maven's exec:java loads the project with its own class loader
+		ClassLoader loader = Experiment.class.getClassLoader();
+		if(!(loader instanceof URLClassLoader)) return System.getProperty("java.class.path");
+
+		return Arrays.stream(((URLClassLoader) loader).getURLs()).map(Coordinator::toPath).collect(Collectors.joining(File.pathSeparator));
+	}
+
+	private static String toPath(URL url) {
+		try {
+			return Paths.get(url.toURI()).toString();
+		} catch(URISyntaxException exc) {
+			throw new RuntimeException(exc);
+		}
+	}
+}
@@ -2,19 +2,28 @@ package dk.casa.streamliner.asm.RQ2;
 
 import dk.casa.streamliner.asm.ClassNodeCache;
 import dk.casa.streamliner.asm.Decompile;
+import dk.casa.streamliner.asm.JarClassIndex;
+import dk.casa.streamliner.asm.Metrics;
 import dk.casa.streamliner.asm.Utils;
 import dk.casa.streamliner.asm.analysis.MethodIdentifier;
+import dk.casa.streamliner.asm.analysis.inter.AnalysisBudgetException;
+import dk.casa.streamliner.asm.analysis.inter.AnalysisSession;
 import dk.casa.streamliner.asm.analysis.inter.Context;
 import dk.casa.streamliner.asm.analysis.inter.InterValue;
 import dk.casa.streamliner.asm.analysis.inter.oracles.SPARKOracle;
 import dk.casa.streamliner.asm.analysis.inter.oracles.MockTypeOracle;
+import dk.casa.streamliner.asm.analysis.inter.oracles.RTAOracle;
 import dk.casa.streamliner.asm.analysis.inter.oracles.StreamLibraryOracle;
+import dk.casa.streamliner.asm.analysis.inter.oracles.TypeQueryIndex;
 import dk.casa.streamliner.asm.analysis.inter.oracles.TypeQueryOracle;
 import dk.casa.streamliner.asm.analysis.inter.oracles.WALAOracle;
+import dk.casa.streamliner.asm.transform.CodeSize;
 import dk.casa.streamliner.asm.transform.InlineAndAllocateTransformer;
+import dk.casa.streamliner.asm.transform.JumpThreading;
 import dk.casa.streamliner.asm.transform.LambdaPreprocessor;
 import dk.casa.streamliner.asm.transform.LocalVariableCleanup;
 import dk.casa.streamliner.asm.transform.SlidingWindowOptimizer;
+import dk.casa.streamliner.asm.transform.TransformCache;
 import dk.casa.streamliner.utils.Counter;
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.filefilter.FileFilterUtils;
@@ -35,6 +44,9 @@ import java.nio.file.Paths;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.BiFunction;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
@@ -52,14 +64,14 @@ public class Experiment {
 
 	private static boolean isStreamType(Type type) {
 		try {
-			return Utils.getAncestors(type).contains(streamT);
+			return Utils.hasAncestor(type, streamT);
 		} catch(RuntimeException exc) {
 			if(!isClassNotFound(exc)) throw exc;
 			return false;
 		}
 	}
 
-	private static boolean isStreamConstructor(AbstractInsnNode insn) {
+	public static boolean isStreamConstructor(AbstractInsnNode insn) {
 		if(!(insn instanceof MethodInsnNode)) return false;
 		MethodInsnNode minsn = (MethodInsnNode) insn;
 		Type returnType = Type.getReturnType(minsn.desc);
@@ -70,7 +82,7 @@ public class Experiment {
 		return !isStreamType(Type.getObjectType(minsn.owner));
 	}
 
-	private static boolean isStreamConsumer(AbstractInsnNode insn) {
+	public static boolean isStreamConsumer(AbstractInsnNode insn) {
 		if(!(insn instanceof MethodInsnNode)) return false;
 		MethodInsnNode minsn = (MethodInsnNode) insn;
 		Type objType = Type.getObjectType(minsn.owner);
@@ -86,7 +98,7 @@ public class Experiment {
 							 Utils.instructionStream(mn).filter(Experiment::isStreamConsumer).count());
 	}
 
-	private static boolean isParallel(AbstractInsnNode insn) {
+	public static boolean isParallel(AbstractInsnNode insn) {
 		if(!(insn instanceof MethodInsnNode)) return false;
 		MethodInsnNode minsn = (MethodInsnNode) insn;
 		return (minsn.name.equals("parallel") && isStreamType(Type.getObjectType(minsn.owner)))
@@ -97,16 +109,17 @@ public class Experiment {
 		return access & ~(ACC_PUBLIC | ACC_PRIVATE | ACC_PROTECTED);
 	}
 
-	private static int freshCounter = 0;
+	private static final AtomicInteger freshCounter = new AtomicInteger();
 	private static ClassNode freshArrayList() {
 		ClassNode splitCopy = new ClassNode();
 		ClassNodeCache.get("java/util/ArrayList$ArrayListSpliterator").accept(splitCopy);
-		splitCopy.name = String.format("ArrayListCopy%d$Spliterator", freshCounter);
+		int fresh = freshCounter.getAndIncrement();
+		splitCopy.name = String.format("ArrayListCopy%d$Spliterator", fresh);
 		splitCopy.access |= ACC_FINAL;
 
 		ClassNode copy = new ClassNode();
 		ClassNodeCache.get("java/util/ArrayList").accept(copy);
-		copy.name = String.format("ArrayListCopy%d", freshCounter++); // Discard java.util package name
+		copy.name = String.format("ArrayListCopy%d", fresh); // Discard java.util package name
 		copy.access |= ACC_FINAL;  // Make class final
 
 		// Make all ArrayList fields public
@@ -163,7 +176,7 @@ public class Experiment {
 			MethodInsnNode minsn = (MethodInsnNode) insn;
 			if(!isStreamConstructor(minsn)
 					|| minsn.getOpcode() == INVOKESTATIC
-					|| !Utils.getAncestors(Type.getObjectType(minsn.owner)).contains(Type.getObjectType("java/util/Collection"))) continue;
+					|| !Utils.hasAncestor(Type.getObjectType(minsn.owner), Type.getObjectType("java/util/Collection"))) continue;
 
 			if(copy == null) copy = freshArrayList();
 			mn.instructions.insertBefore(minsn, new TypeInsnNode(CHECKCAST, copy.name));
@@ -195,21 +208,22 @@ public class Experiment {
 		}), FileFilterUtils.trueFileFilter());
 	}
 
-	private static List<ClassNode> addLibraries(Collection<File> jarFiles) {
+	/** Indexes the classes of the jar files, which are parsed into the ClassNodeCache when they are requested */
+	private static JarClassIndex addLibraries(Collection<File> jarFiles) {
 	 	Set<String> seen = new HashSet<>();
-	 	List<ClassNode> addedClasses = new ArrayList<>();
-		for(File file : jarFiles) if(seen.add(hashFile(file))) {
-			try {
-				for (ClassNode cn : Utils.loadJarFile(file))
-					if(ClassNodeCache.put(cn.name, cn))
-						addedClasses.add(cn);
+	 	List<File> uniqueFiles = new ArrayList<>();
+		for(File file : jarFiles) if(seen.add(hashFile(file))) uniqueFiles.add(file);
 
-			} catch(IOException e) {
-				throw new RuntimeException(e);
-			}
+		JarClassIndex libraries;
+		try {
+			libraries = new JarClassIndex(uniqueFiles);
+		} catch(IOException e) {
+			throw new RuntimeException(e);
 		}
-	 	System.out.format("Added %d classes from %d jar files.\n", addedClasses.size(), jarFiles.size());
-	 	return addedClasses;
+
+		ClassNodeCache.putLibraries(libraries);
+	 	System.out.format("Added %d classes from %d jar files.\n", libraries.size(), jarFiles.size());
+	 	return libraries;
 	}
 
 	@FunctionalInterface
@@ -222,8 +236,8 @@ public class Experiment {
 		public static final List<String> keys = Arrays.asList("methodsWithPipelines", "methodsOptimised",
 				"parallelSkip", "pipelines", "pipelinesOptimised", "missingClasses",
 				"failFlatMap", "failToArray", "failConcat", "failPhase0", "failResolveCall", "failEscape",
-				"failLongStream", "failInfiniteRecursion", "failBranching", "failSorted",
-				"failOverapproximate", "projects", "progress");
+				"failLongStream", "failInfiniteRecursion", "failBudget", "failBranching", "failSorted",
+				"failOverapproximate", "failMethodSize", "exceedsInlineLimit", "projects", "progress");
 
 		public Result() { super(keys); }
 	}
@@ -231,7 +245,7 @@ public class Experiment {
 	/** An Oracle that answers type queries with CHA.
 	 *  Delegates to provided TypeQueryOracle if CHA is insufficient.
 	 */
-	private static class RQ2Oracle extends StreamLibraryOracle {
+	public static class RQ2Oracle extends StreamLibraryOracle {
 		private final TypeQueryOracle delegate;
 	 	private final CHA cha;
 
@@ -244,21 +258,165 @@ public class Experiment {
 		public Optional<Type> queryType(Context context, MethodInsnNode minsn, InterValue receiver) {
 			Type ownerT = Type.getObjectType(minsn.owner);
 			Type receiverT = receiver.type.getType();
-			if(receiverT.equals(ownerT) || Utils.getAncestors(receiverT).contains(ownerT))
+			if(receiverT.equals(ownerT) || Utils.hasAncestor(receiverT, ownerT))
 				ownerT = receiverT;
 
 			Set<String> subclasses = cha.getSubclasses(ownerT.getInternalName());
 			if(subclasses != null && subclasses.size() == 1)
 				return Optional.of(subclasses.iterator().next()).map(Type::getObjectType);
 
-			return delegate != null? delegate.queryType(context, minsn, receiver): Optional.empty();
+			if(delegate == null) return Optional.empty();
+
+			// The delegate oracles are not thread safe
+			synchronized (delegate) {
+				return delegate.queryType(context, minsn, receiver);
+			}
 		}
 	}
 
+	// Number of methods that are optimised in parallel
+	private static final int parallelism = Integer.getInteger("streamliner.threads", Runtime.getRuntime().availableProcessors());
+
+	// Decompiles the methods before they are optimised
+	private static final boolean decompile = Boolean.getBoolean("streamliner.decompile");
+
 	private static final Counter<String> resolveStat = new Counter<>(),
 										 queryStats = new Counter<>();
 
-	private static Result process(Path repo, OracleFactory oracleFactory) {
+	private static Result optimise(ClassNode cn, MethodNode orig, RQ2Oracle oracle, TransformCache cache) {
+		Result result = new Result();
+		String owner = cn.name;
+
+		// Copy to prevent modified methods in old cache from retaining objects
+		MethodNode mn = Utils.copyMethod(orig);
+
+		PipelineFeatures features = PipelineFeatures.of(mn);
+		if(features.getParallel() > 0) {
+			result.inc("parallelSkip", features.getParallel());
+			return result;
+		}
+
+		int pipelines = features.getPipelines();
+		result.inc("pipelines", pipelines);
+
+		System.out.format("Analyse %s.%s\n", owner, mn.name);
+		if(decompile) System.out.println(Decompile.run(mn));
+		Metrics.begin(owner, mn);
+		String outcome = "failed";
+		try(AnalysisSession ignored = AnalysisSession.open()) {  // Classes modified during optimisation are kept in the session
+			//preprocessStreamConstructors(mn);
+			try(Metrics.Timer t = Metrics.time(Metrics.Phase.PREPROCESSING, mn)) {
+				new LambdaPreprocessor(mn).preprocess();
+			}
+			if(cache != null) cache.transform(owner, mn, oracle, false);
+			else new InlineAndAllocateTransformer(owner, mn, oracle, false).transform();
+			try(Metrics.Timer t = Metrics.time(Metrics.Phase.CLEANUP, mn)) {
+				new LocalVariableCleanup(owner, mn).run();
+			}
+			try(Metrics.Timer t = Metrics.time(Metrics.Phase.JUMP_THREADING, mn)) {
+				new JumpThreading(owner, mn).run();
+			}
+			try(Metrics.Timer t = Metrics.time(Metrics.Phase.PEEPHOLE, mn)) {
+				SlidingWindowOptimizer.run(mn);
+			}
+			try(Metrics.Timer t = Metrics.time(Metrics.Phase.PREPROCESSING, mn)) {
+				new LambdaPreprocessor(mn).postprocess();
+			}
+
+			CheckMethodAdapter cma = new CheckMethodAdapter(mn.access, mn.name, mn.desc, null, new HashMap<>());
+			cma.version = V1_8;
+			mn.accept(cma);
+
+			// Methods that are too large to be compiled by the JIT fail the check and are counted as failMethodSize,
+			// methods that only exceed the inlining limit are still counted as optimised
+			if(CodeSize.check(orig, mn)) result.inc("exceedsInlineLimit", 1);
+
+			result.inc("methodsOptimised", 1);
+			outcome = "optimised";
+
+			int opt = pipelines - Integer.min(countPipelines(mn), pipelines);
+			result.inc("pipelinesOptimised", opt);
+
+			if(opt < pipelines) {
+				int concat = features.getCalls("concat");
+				result.inc("failConcat", Integer.min(pipelines - opt, concat));
+				result.inc("failSorted", Integer.min(pipelines - opt - concat, features.getCalls("sorted")));
+			}
+
+			//String afterOptimisation = Decompile.run(mn);
+			//System.out.println("Optimised: " + beforeOptimisation.equals(afterOptimisation));
+			//System.out.println(afterOptimisation);
+
+		} catch(Exception exc) {
+			outcome = exc.getClass().getSimpleName();
+			System.err.println("Analysis failed! " + features);
+			String message = exc.getMessage();
+			if(exc instanceof CodeSize.TooLargeException) {
+				result.inc("failMethodSize", pipelines);
+				System.err.println(message);
+			} else if(isClassNotFound(exc)) {
+				result.inc("missingClasses", pipelines);
+				System.err.println(message);
+			} else {
+				Optional<AnalysisBudgetException> budgetExc = AnalysisBudgetException.find(exc);
+				if(budgetExc.isPresent()) {
+					if(budgetExc.get().kind == AnalysisBudgetException.Kind.DEPTH)
+						result.inc(features.hasSource("LongStream.range") || features.hasSource("LongStream.rangeClosed") ? "failLongStream" : "failInfiniteRecursion", pipelines);
+					else
+						result.inc("failBudget", pipelines);
+				} else if(message.contains("Value in invalid state for pointsTo lookup")) result.inc("failBranching", pipelines);
+				else if(message.contains("values escape") || message.contains("We lost?")) result.inc("failEscape", pipelines);
+				else if(message.contains("Unable to resolve call") || message.contains("Overapproximation of call with reachable cells")) {
+				    if(!(exc instanceof AnalyzerException)) throw new IllegalArgumentException();
+
+					AnalyzerException aexc = (AnalyzerException) exc;
+					if (isStreamConstructor(aexc.node)) result.inc("failPhase0", pipelines);
+					else if(!(aexc.node instanceof MethodInsnNode))
+						throw new IllegalArgumentException();
+					else {
+						MethodInsnNode minsn = (MethodInsnNode) aexc.node;
+						Set<Type> ancestors = Utils.getAncestors(minsn.owner);
+						if(ancestors.contains(Type.getObjectType("java/util/stream/Sink")) && features.uses("toArray"))
+							result.inc("failToArray", pipelines);
+						else if(features.uses("concat"))
+							result.inc("failConcat", pipelines);
+						else if(ancestors.contains(Type.getObjectType("java/util/Spliterator")))
+							result.inc(features.uses("flatMap")? "failFlatMap" : "failBranching", pipelines);
+						else if(minsn.owner.equals("java/util/stream/Stream") && minsn.name.equals("close") && features.uses("flatMap"))
+							result.inc("failFlatMap", pipelines);
+						else {
+							result.inc(message.contains("Overapproximation")? "failOverapproximate" : "failResolveCall", pipelines);
+							synchronized (resolveStat) {
+								resolveStat.add(minsn.owner + "." + minsn.name);
+							}
+						}
+					}
+				} else
+					exc.printStackTrace();
+			}
+		} finally {
+			Metrics.end(outcome);
+		}
+
+		return result;
+	}
+
+	/** Describes the parts of the project that the oracle depends on, such that cached transformations
+	 *  are invalidated when they change. CHA depends on the class hierarchy while the delegate oracles
+	 *  analyse the whole program. Library classes are only indexed, so their checksums in the jar files are used. */
+	private static String describeProject(Collection<ClassNode> projectClasses, JarClassIndex libraries, TypeQueryOracle delegateOracle) {
+		boolean wholeProgram = delegateOracle instanceof WALAOracle || delegateOracle instanceof SPARKOracle
+				|| delegateOracle instanceof RTAOracle;
+		return TransformCache.hash(projectClasses.stream()
+				.sorted(Comparator.comparing(cn -> cn.name))
+				.map(cn -> wholeProgram ? (libraries.isHeader(cn) ? cn.name + " " + libraries.getChecksum(cn.name)
+						: TransformCache.hashClass(cn)) :
+						String.join(" ", cn.name, String.valueOf(cn.superName), String.join(",", cn.interfaces),
+								String.valueOf(cn.access & ACC_ABSTRACT)))
+				.collect(Collectors.joining("\n")));
+	}
+
+	private static Result process(Path repo, OracleFactory oracleFactory, String configuration) {
 	 	Result result = new Result();
 		System.out.println("\n" + repo);
 		if(!repo.resolve(".built").toFile().exists() || !repo.resolve(".libs").toFile().exists()) {
@@ -274,10 +432,12 @@ public class Experiment {
 		}
 
 		result.inc("projects", 1);
-		ClassNodeCache.clear();
+		ClassNodeCache.clearAdded();
 
 		Collection<File> jarFiles = getLibraries(repo);
-		List<ClassNode> projectClasses = addLibraries(jarFiles);
+		JarClassIndex libraries = addLibraries(jarFiles);
+		// The library classes are only represented by their headers, which is enough for the class hierarchy
+		List<ClassNode> projectClasses = libraries.getHeaders();
 
 		List<ClassNode> classes = new ArrayList<>();
 		List<MethodIdentifier> entryPoints = new ArrayList<>();
@@ -316,7 +476,12 @@ public class Experiment {
 
 		projectClasses.addAll(classes);
 		TypeQueryOracle delegateOracle = oracleFactory.create(jarFiles, classPathFolders, entryPoints, projectClasses);
-		RQ2Oracle oracle = new RQ2Oracle(delegateOracle, new CHA(projectClasses));
+		// Describing the project hashes the classes, so it is only done if the results are persisted
+		String description = System.getProperty("streamliner.cache") == null && System.getProperty("streamliner.typeindex") == null ? null
+				: configuration + "\n" + describeProject(projectClasses, libraries, delegateOracle);
+		TypeQueryOracle queryOracle = description == null ? delegateOracle : TypeQueryIndex.fromProperty(description, delegateOracle);
+		RQ2Oracle oracle = new RQ2Oracle(queryOracle, new CHA(projectClasses));
+		TransformCache cache = description == null ? null : TransformCache.fromProperty(description);
 		projectClasses.clear();
 
 		List<Pair<ClassNode, MethodNode>> methodsWithPipelines = classes.stream()
@@ -330,115 +495,38 @@ public class Experiment {
 
 		result.put("methodsWithPipelines", methodsWithPipelines.size());
 		System.out.println("" + methodsWithPipelines.size() + " methods with pipelines.");
-		methodsWithPipelines.forEach(pr -> {
-			ClassNode cn = pr.getFirst();
-			String owner = cn.name;
-
-			// Copy to prevent modified methods in old cache from retaining objects
-			MethodNode orig = pr.getSecond();
-			MethodNode mn = new MethodNode(orig.access, orig.name, orig.desc, orig.signature, orig.exceptions.toArray(new String[0]));
-			orig.accept(mn);
-
-			int parallelCount = (int)Utils.instructionStream(mn).filter(Experiment::isParallel).count();
-			if(parallelCount > 0) {
-				result.inc("parallelSkip", parallelCount);
-				return;
-			}
-
-			int pipelines = countPipelines(mn);
-			result.inc("pipelines", pipelines);
-
-			System.out.format("Analyse %s.%s\n", owner, mn.name);
-			String beforeOptimisation = Decompile.run(mn);
-			//System.out.println(beforeOptimisation);
-			try {
-				ClassNodeCache.push();  // Start a new cache
-
-				//preprocessStreamConstructors(mn);
-				new LambdaPreprocessor(mn).preprocess();
-				new InlineAndAllocateTransformer(owner, mn, oracle, false).transform();
-				new LocalVariableCleanup(owner, mn).run();
-				SlidingWindowOptimizer.run(mn);
-				new LambdaPreprocessor(mn).postprocess();
-
-				CheckMethodAdapter cma = new CheckMethodAdapter(mn.access, mn.name, mn.desc, null, new HashMap<>());
-				cma.version = V1_8;
-				mn.accept(cma);
-
-				result.inc("methodsOptimised", 1);
-
-				int opt = pipelines - Integer.min(countPipelines(mn), pipelines);
-				result.inc("pipelinesOptimised", opt);
-
-				if(opt < pipelines) {
-					int concat = (int)Utils.instructionStream(orig)
-							.filter(insn -> insn instanceof MethodInsnNode && ((MethodInsnNode) insn).name.equals("concat"))
-							.count();
-
-					result.inc("failConcat", Integer.min(pipelines - opt, concat));
-
-					int sorted = (int)Utils.instructionStream(orig)
-							.filter(insn -> insn instanceof MethodInsnNode && ((MethodInsnNode) insn).name.equals("sorted"))
-							.count();
-
-					result.inc("failSorted", Integer.min(pipelines - opt - concat, sorted));
-				}
-
-				//String afterOptimisation = Decompile.run(mn);
-				//System.out.println("Optimised: " + beforeOptimisation.equals(afterOptimisation));
-				//System.out.println(afterOptimisation);
-
-			} catch(Exception exc) {
-				System.err.println("Analysis failed!");
-				String message = exc.getMessage();
-				if(isClassNotFound(exc)) {
-					result.inc("missingClasses", pipelines);
-					System.err.println(message);
-				} else {
-					if(message.contains("Value in invalid state for pointsTo lookup")) result.inc("failBranching", pipelines);
-					else if(message.contains("values escape") || message.contains("We lost?")) result.inc("failEscape", pipelines);
-					else if(message.contains("Unable to resolve call") || message.contains("Overapproximation of call with reachable cells")) {
-					    if(!(exc instanceof AnalyzerException)) throw new IllegalArgumentException();
-
-						AnalyzerException aexc = (AnalyzerException) exc;
-						if (isStreamConstructor(aexc.node)) result.inc("failPhase0", pipelines);
-						else if(!(aexc.node instanceof MethodInsnNode))
-							throw new IllegalArgumentException();
-						else {
-							MethodInsnNode minsn = (MethodInsnNode) aexc.node;
-							Set<Type> ancestors = Utils.getAncestors(minsn.owner);
-							if(ancestors.contains(Type.getObjectType("java/util/stream/Sink")) && beforeOptimisation.contains("toArray"))
-								result.inc("failToArray", pipelines);
-							else if(beforeOptimisation.contains("concat"))
-								result.inc("failConcat", pipelines);
-							else if(ancestors.contains(Type.getObjectType("java/util/Spliterator")))
-								result.inc(beforeOptimisation.contains("flatMap")? "failFlatMap" : "failBranching", pipelines);
-							else if(minsn.owner.equals("java/util/stream/Stream") && minsn.name.equals("close") && beforeOptimisation.contains("flatMap"))
-								result.inc("failFlatMap", pipelines);
-							else {
-								result.inc(message.contains("Overapproximation")? "failOverapproximate" : "failResolveCall", pipelines);
-								resolveStat.add(minsn.owner + "." + minsn.name);
-							}
-						}
-					} else if(message.contains("Infinite recursion?"))
-						result.inc(beforeOptimisation.contains("LongStream.range")? "failLongStream" : "failInfiniteRecursion", pipelines);
-					else
-						exc.printStackTrace();
-				}
-			} finally {
-				ClassNodeCache.pop();
-			}
-		});
+		ForkJoinPool pool = new ForkJoinPool(parallelism);
+		try {
+			pool.submit(() -> methodsWithPipelines.parallelStream()
+					.map(pr -> optimise(pr.getFirst(), pr.getSecond(), oracle, cache))
+					.collect(Collectors.toList()))
+					.get().forEach(result::add);
+		} catch(InterruptedException exc) {
+			throw new RuntimeException(exc);
+		} catch(ExecutionException exc) {
+			if(exc.getCause() instanceof RuntimeException) throw (RuntimeException) exc.getCause();
+			throw new RuntimeException(exc.getCause());
+		} finally {
+			pool.shutdown();
+		}
 
 		Counter<String> stats = null;
 		if(delegateOracle instanceof WALAOracle) stats = ((WALAOracle) delegateOracle).queryStats;
 		else if(delegateOracle instanceof SPARKOracle) stats = ((SPARKOracle) delegateOracle).queryResults;
+		else if(delegateOracle instanceof RTAOracle) stats = ((RTAOracle) delegateOracle).queryStats;
 
 		if(stats != null) {
 			System.out.println("Query stats: " + stats);
 			queryStats.add(stats);
 		}
 
+		if(queryOracle instanceof TypeQueryIndex) {
+			System.out.println("Type query index: " + ((TypeQueryIndex) queryOracle).stats);
+			((TypeQueryIndex) queryOracle).save();
+		}
+
+		if(cache != null) System.out.println("Transform cache: " + cache.stats);
+
 		return result;
 	}
 
@@ -465,20 +553,34 @@ public class Experiment {
 						.collect(Collectors.joining(":"));
 				return new SPARKOracle(classPath, entryPoints, args.length > 1? args[1] : "");
 			};
+		else if(args[0].equals("rta"))
+			oracleFactory = (jarFiles, classPathFolders, entryPoints, projectClasses) -> new RTAOracle(entryPoints);
 		else
 			throw new IllegalArgumentException("Unknown oracle type: " + args[0]);
 
 
-		Result res;
+		List<Path> filesl;
 		try(Stream<Path> files = Files.list(rq2dir)) {
-			List<Path> filesl = files.collect(Collectors.toList());
-			res = filesl.stream().map(path -> process(path, oracleFactory)).peek(System.out::println).reduce(new Result(), (acc, r) -> {
+			filesl = files.sorted().collect(Collectors.toList());
+		}
+
+		String workerDir = System.getProperty(Coordinator.WORKER_PROPERTY);
+		if(workerDir != null) {
+			Coordinator.work(Paths.get(workerDir), filesl, path -> process(path, oracleFactory, String.join(" ", args)), queryStats);
+			return;
+		}
+
+		Result res;
+		int workers = Integer.getInteger("streamliner.workers", 1);
+		if(workers > 1)
+			res = Coordinator.run(filesl, workers, args, queryStats);
+		else
+			res = filesl.stream().map(path -> process(path, oracleFactory, String.join(" ", args))).peek(System.out::println).reduce(new Result(), (acc, r) -> {
 				acc.add(r);
 				acc.inc("progress", 1);
 				System.out.format("Progress: %d/%d\n", acc.get("progress"), filesl.size());
 				return acc;
 			});
-		}
 
 		System.out.println("Final result: " + res);
 		System.out.println(queryStats);
@@ -496,6 +598,8 @@ public class Experiment {
 				res.get("failSorted") + res.get("failLongStream") + res.get("failFlatMap"));
 		tallied += pprint.apply("Escaping pipeline object", res.get("failEscape"));
 		tallied += pprint.apply("Infinite recursion", res.get("failInfiniteRecursion"));
+		tallied += pprint.apply("Analysis budget exceeded", res.get("failBudget"));
+		tallied += pprint.apply("Optimised method too large", res.get("failMethodSize"));
 
 		pprint.apply("Other", res.get("pipelines") - tallied);
 
@@ -0,0 +1,87 @@
+package dk.casa.streamliner.asm.RQ2;
+
+import dk.casa.streamliner.utils.Counter;
+import org.objectweb.asm.Handle;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.InvokeDynamicInsnNode;
+import org.objectweb.asm.tree.MethodInsnNode;
+import org.objectweb.asm.tree.MethodNode;
+
+import java.util.*;
+
+import static org.objectweb.asm.Opcodes.INVOKESTATIC;
+
+/**
+ *  The stream sources, operators and terminal operations that are used in a method,
+ *  which are found in a single pass over its instructions.
+ *  Methods that are referenced by method handles (for instance Stream::concat) are counted as used,
+ *  but not as called.
+ */
+final class PipelineFeatures {
+	private final Set<String> sources = new TreeSet<>(), operators = new TreeSet<>(), terminals = new TreeSet<>();
+	private final Counter<String> calls = new Counter<>();
+	private final Set<String> references = new HashSet<>();
+	private int constructors = 0, consumers = 0, parallel = 0;
+
+	private PipelineFeatures() {}
+
+	private static String describe(MethodInsnNode minsn) {
+		return minsn.owner.substring(minsn.owner.lastIndexOf('/') + 1) + "." + minsn.name;
+	}
+
+	static PipelineFeatures of(MethodNode mn) {
+		PipelineFeatures res = new PipelineFeatures();
+		for(AbstractInsnNode insn : mn.instructions) {
+			if(insn instanceof InvokeDynamicInsnNode) {
+				for(Object arg : ((InvokeDynamicInsnNode) insn).bsmArgs)
+					if(arg instanceof Handle) res.references.add(((Handle) arg).getName());
+				continue;
+			}
+
+			if(!(insn instanceof MethodInsnNode)) continue;
+			MethodInsnNode minsn = (MethodInsnNode) insn;
+			res.calls.add(minsn.name);
+
+			if(Experiment.isParallel(minsn)) res.parallel++;
+			if(Experiment.isStreamConstructor(minsn)) {
+				res.constructors++;
+				res.sources.add(describe(minsn));
+			} else if(Experiment.isStreamConsumer(minsn)) {
+				res.consumers++;
+				res.terminals.add(describe(minsn));
+			} else if(minsn.owner.startsWith("java/util/stream/") && minsn.getOpcode() != INVOKESTATIC)
+				res.operators.add(describe(minsn));
+		}
+
+		return res;
+	}
+
+	/** The number of pipelines is approximated by the number of sources or terminal operations, whichever is smaller */
+	int getPipelines() {
+		return Integer.min(constructors, consumers);
+	}
+
+	int getParallel() {
+		return parallel;
+	}
+
+	/** Returns the number of calls to methods with the given name */
+	int getCalls(String name) {
+		return calls.getOrDefault(name, 0);
+	}
+
+	/** Returns true if a method with the given name is called or referenced */
+	boolean uses(String name) {
+		return calls.containsKey(name) || references.contains(name);
+	}
+
+	/** Returns true if a source is created by the given method, for instance LongStream.range */
+	boolean hasSource(String name) {
+		return sources.contains(name);
+	}
+
+	@Override
+	public String toString() {
+		return "sources=" + sources + " operators=" + operators + " terminals=" + terminals;
+	}
+}
@@ -0,0 +1,203 @@
+package dk.casa.streamliner.asm;
+
+import dk.casa.streamliner.asm.analysis.inter.oracles.StreamLibraryOracle;
+import dk.casa.streamliner.utils.Counter;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.MethodNode;
+
+import java.lang.instrument.ClassFileTransformer;
+import java.lang.instrument.Instrumentation;
+import java.lang.instrument.UnmodifiableClassException;
+import java.security.ProtectionDomain;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.objectweb.asm.Opcodes.ASM7;
+
+/** Java agent that optimises the stream pipelines of classes as they are loaded.
+ *
+ *  Usage: java -javaagent:streamliner.jar[=threads=N,queue=N,timeout=MS,verbose] ...
+ *  The dependencies of streamliner (ASM, commons) must be on the classpath.
+ *
+ *  Classes are optimised by a bounded pool of workers. Class loading waits at most timeout
+ *  milliseconds for the optimisation, after which the class is loaded unchanged and later
+ *  retransformed when the optimisation finishes. Classes are also loaded unchanged when
+ *  the queue of the workers is full.
+ *
+ *  Type queries are answered by the StreamLibraryOracle since the loaded classes are not known
+ *  in advance. Classes are read with the ClassNodeCache, so only classes that are visible to
+ *  the system class loader can be optimised.
+ */
+public class StreamlinerAgent implements ClassFileTransformer {
+	private static final List<String> excludedPackages = Arrays.asList("java/", "javax/", "jdk/", "sun/", "com/sun/",
+			"dk/casa/streamliner/asm/", "org/objectweb/asm/", "org/apache/commons/");
+
+	private final Instrumentation instrumentation;
+	private final ExecutorService workers;
+	private final long timeout;
+
+	// Optimised classes by class loader, which are returned again when the classes are retransformed
+	private final Map<ClassLoader, Map<String, byte[]>> optimised = Collections.synchronizedMap(new WeakHashMap<>());
+
+	public final Counter<String> stats = new Counter<>(Arrays.asList("classesWithPipelines", "classesOptimised",
+			"methodsOptimised", "parallelSkip", "failed", "tooLarge", "exceedsInlineLimit", "rejected", "timeout", "retransformed"));
+
+	private static class Worker extends Thread {
+		private static final AtomicInteger counter = new AtomicInteger();
+
+		Worker(Runnable runnable) {
+			super(runnable, "streamliner-worker-" + counter.getAndIncrement());
+			setDaemon(true);
+		}
+	}
+
+	public StreamlinerAgent(Instrumentation instrumentation, int threads, int queueSize, long timeout) {
+		this.instrumentation = instrumentation;
+		this.timeout = timeout;
+		this.workers = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<>(queueSize), Worker::new);
+	}
+
+	public static void premain(String args, Instrumentation inst) {
+		Map<String, String> options = new HashMap<>();
+		if(args != null)
+			for(String option : args.split(",")) {
+				String[] pair = option.split("=", 2);
+				options.put(pair[0], pair.length > 1 ? pair[1] : "true");
+			}
+
+		StreamlinerAgent agent = new StreamlinerAgent(inst,
+				Integer.parseInt(options.getOrDefault("threads", String.valueOf(Runtime.getRuntime().availableProcessors()))),
+				Integer.parseInt(options.getOrDefault("queue", "256")),
+				Long.parseLong(options.getOrDefault("timeout", "100")));
+
+		inst.addTransformer(agent, inst.isRetransformClassesSupported());
+		if(options.containsKey("verbose"))
+			Runtime.getRuntime().addShutdownHook(new Thread(() -> System.err.println("Streamliner agent: " + agent.stats)));
+	}
+
+	public static void agentmain(String args, Instrumentation inst) {
+		premain(args, inst);
+	}
+
+	@Override
+	public byte[] transform(ClassLoader loader, String className, Class<?> classBeingRedefined,
+	                        ProtectionDomain protectionDomain, byte[] classfileBuffer) {
+		// Classes loaded by the bootstrap class loader and classes used by the agent itself are not optimised
+		if(loader == null || className == null || excludedPackages.stream().anyMatch(className::startsWith))
+			return null;
+
+		if(classBeingRedefined != null) {
+			Map<String, byte[]> classes = optimised.get(loader);
+			return classes == null ? null : classes.get(className);
+		}
+
+		if(Thread.currentThread() instanceof Worker || !mayContainPipeline(classfileBuffer)) return null;
+		inc("classesWithPipelines");
+
+		Future<byte[]> result;
+		try {
+			result = workers.submit(() -> optimise(classfileBuffer));
+		} catch(RejectedExecutionException exc) {
+			inc("rejected");
+			return null;
+		}
+
+		try {
+			byte[] bytes = result.get(timeout, TimeUnit.MILLISECONDS);
+			if(bytes != null) optimised.computeIfAbsent(loader, k -> new ConcurrentHashMap<>()).put(className, bytes);
+			return bytes;
+		} catch(TimeoutException exc) {
+			inc("timeout");
+			// The class has not been defined yet, so it is retransformed by a worker once it is
+			workers.execute(() -> retransformLater(loader, className, result));
+		} catch(InterruptedException exc) {
+			Thread.currentThread().interrupt();
+		} catch(ExecutionException exc) {
+			inc("failed");
+		} catch(RejectedExecutionException ignored) {
+			// The optimisation of the class is abandoned
+		}
+
+		return null;
+	}
+
+	private void retransformLater(ClassLoader loader, String className, Future<byte[]> result) {
+		try {
+			byte[] bytes = result.get();
+			if(bytes == null || !instrumentation.isRetransformClassesSupported()) return;
+
+			optimised.computeIfAbsent(loader, k -> new ConcurrentHashMap<>()).put(className, bytes);
+			instrumentation.retransformClasses(Class.forName(className.replace('/', '.'), false, loader));
+			inc("retransformed");
+		} catch(InterruptedException exc) {
+			Thread.currentThread().interrupt();
+		} catch(ExecutionException | ClassNotFoundException | UnmodifiableClassException | LinkageError exc) {
+			inc("failed");
+		}
+	}
+
+	/** Cheap test of whether the class calls methods in the stream library */
+	private static boolean mayContainPipeline(byte[] classfileBuffer) {
+		ClassReader cr = new ClassReader(classfileBuffer);
+		char[] buffer = new char[cr.getMaxStringLength()];
+		for(int i = 1; i < cr.getItemCount(); i++) {
+			int offset = cr.getItem(i);
+			// Constant pool entries of CONSTANT_Class
+			if(offset > 0 && classfileBuffer[offset - 1] == 7 && cr.readUTF8(offset, buffer).startsWith("java/util/stream/"))
+				return true;
+		}
+		return false;
+	}
+
+	/** Returns the bytes of the optimised class or null if no methods were optimised */
+	private byte[] optimise(byte[] classfileBuffer) {
+		ClassNode cn = readClass(classfileBuffer);
+
+		Map<String, MethodNode> methods = new HashMap<>();
+		StreamLibraryOracle oracle = new StreamLibraryOracle();
+		for(MethodNode mn : cn.methods) {
+			if(!OptimizeJar.hasPipeline(mn)) continue;
+			/* The class is only put in the session of the method, since classes that are put outside of a session
+			   are kept for the life of the JVM and classes of different class loaders can have the same name.
+			   The session modifies the class, so each method gets its own copy. */
+			MethodNode res = OptimizeJar.optimise(cn.name, mn, readClass(classfileBuffer), oracle, stats);
+			if(res != null) methods.put(mn.name + mn.desc, res);
+		}
+
+		if(methods.isEmpty()) return null;
+
+		// The optimised methods replace the original methods while the rest of the class is copied
+		ClassWriter cw = new OptimizeJar.CacheClassWriter();
+		new ClassReader(classfileBuffer).accept(new ClassVisitor(ASM7, cw) {
+			@Override
+			public MethodVisitor visitMethod(int access, String name, String descriptor, String signature, String[] exceptions) {
+				MethodNode mn = methods.get(name + descriptor);
+				if(mn == null) return super.visitMethod(access, name, descriptor, signature, exceptions);
+
+				mn.accept(cv);
+				return null;
+			}
+		}, 0);
+
+		inc("classesOptimised");
+		return cw.toByteArray();
+	}
+
+	private static ClassNode readClass(byte[] classfileBuffer) {
+		ClassNode cn = new ClassNode();
+		new ClassReader(classfileBuffer).accept(cn, ClassReader.EXPAND_FRAMES);
+		return cn;
+	}
+
+	private void inc(String key) {
+		synchronized (stats) {
+			stats.add(key);
+		}
+	}
+}
@@ -2,10 +2,13 @@ package dk.casa.streamliner.asm;
 
 import dk.casa.streamliner.asm.analysis.inter.Context;
 import dk.casa.streamliner.asm.analysis.inter.oracles.StreamLibraryOracle;
+import dk.casa.streamliner.asm.transform.CodeSize;
 import dk.casa.streamliner.asm.transform.InlineAndAllocateTransformer;
+import dk.casa.streamliner.asm.transform.JumpThreading;
 import dk.casa.streamliner.asm.transform.LambdaPreprocessor;
 import dk.casa.streamliner.asm.transform.LocalVariableCleanup;
 import dk.casa.streamliner.asm.transform.SlidingWindowOptimizer;
+import dk.casa.streamliner.asm.transform.TransformCache;
 import org.apache.commons.io.FileUtils;
 import org.objectweb.asm.*;
 import org.objectweb.asm.tree.MethodNode;
@@ -25,6 +28,7 @@ class InlineClassTransformer extends ClassVisitor {
     private String owner;
 
     private final Set<String> methodsToOptimise;
+    private final TransformCache cache = TransformCache.fromProperty("TransformASM");
 
     public InlineClassTransformer(ClassVisitor cv, Set<String> methodsToOptimise) {
         super(ASM7, cv);
@@ -52,18 +56,26 @@ class InlineClassTransformer extends ClassVisitor {
             return new MethodNode(ASM7, access, name, descriptor, signature, exceptions) {
                 @Override
                 public void visitEnd() {
+	                MethodNode original = Utils.copyMethod(this);
 	                try {
 		                System.out.println("Original size of " + name + ": " + instructions.size());
 		                LambdaPreprocessor preprocessor = new LambdaPreprocessor(this);
 		                preprocessor.preprocess();
-		                new InlineAndAllocateTransformer(owner, this, new LambdaTrackerOracle(), true).transform();
+		                if(cache != null) cache.transform(owner, this, new LambdaTrackerOracle(), true);
+		                else new InlineAndAllocateTransformer(owner, this, new LambdaTrackerOracle(), true).transform();
 		                new LocalVariableCleanup(owner, this).run();
+		                new JumpThreading(owner, this).run();
 		                preprocessor.postprocess();
 		                SlidingWindowOptimizer.run(this);
+		                CodeSize.check(original, this);
 
 		                //System.out.println(owner + "." + name + Decompile.run(this));
 	                } catch(AnalyzerException e) {
 		                throw new RuntimeException(e);
+	                } catch(CodeSize.TooLargeException e) {
+		                System.err.println(e.getMessage() + ", keeping the original");
+		                original.accept(methodVisitor);
+		                return;
 	                }
 
 	                accept(methodVisitor);
@@ -1,5 +1,6 @@
 package dk.casa.streamliner.asm;
 
+import dk.casa.streamliner.asm.analysis.inter.AnalysisSession;
 import dk.casa.streamliner.asm.comments.TraceMethodWithCommentVisitor;
 import dk.casa.streamliner.asm.transform.JavaPreprocess;
 import dk.casa.streamliner.asm.transform.LambdaPreprocessor;
@@ -88,6 +89,15 @@ public final class Utils {
 		return cn;
 	}
 
+	/** Copies the method. Visiting a method resets its labels, so copies of the same method are serialised. */
+	public static MethodNode copyMethod(MethodNode mn) {
+		MethodNode copy = new MethodNode(mn.access, mn.name, mn.desc, mn.signature, mn.exceptions.toArray(new String[0]));
+		synchronized (mn) {
+			mn.accept(copy);
+		}
+		return copy;
+	}
+
 	public static List<ClassNode> loadJarFile(File file) throws IOException {
 		List<ClassNode> classes = new ArrayList<>();
 		try(JarFile jarFile = new JarFile(file, true)) {
@@ -127,37 +137,17 @@ public final class Utils {
 		return StreamSupport.stream(Spliterators.spliterator(mn.instructions.iterator(), mn.instructions.size(), Spliterator.SIZED), false);
 	}
 
-	// TODO: Add hasAncestor method
-	// TODO: Replace usages with this method
 	public static Set<Type> getAncestors(String className) {
 		return getAncestors(Type.getObjectType(className));
 	}
 
+	/** Returns the type and all of its super types. The set is shared and may not be modified. */
 	public static Set<Type> getAncestors(Type type) {
-		Set<Type> res = new HashSet<>();
-		getAncestors(type, res);
-		return res;
+		return ClassHierarchy.getAncestors(type);
 	}
 
-	private static void getAncestors(Type type, Set<Type> res) {
-		if(!res.add(type)) return;
-
-		switch(type.getSort()) {
-			case Type.OBJECT:
-				ClassNode cn = ClassNodeCache.get(type.getInternalName());
-
-				if(cn.superName != null) getAncestors(Type.getObjectType(cn.superName), res);
-				for(String superName : cn.interfaces) getAncestors(Type.getObjectType(superName), res);
-				break;
-
-			case Type.ARRAY:
-				Stream.of("java/io/Serializable", "java/lang/Cloneable", "java/lang/Object")
-						.map(Type::getObjectType).forEach(t -> getAncestors(t, res));
-
-				getAncestors(type.getElementType()).forEach(t ->
-						getAncestors(Type.getType("[" + t.getDescriptor()), res));
-				break;
-		}
+	public static boolean hasAncestor(Type type, Type ancestor) {
+		return ClassHierarchy.hasAncestor(type, ancestor);
 	}
 
 	/** Get the fields of this class and superclasses
@@ -210,36 +200,55 @@ public final class Utils {
 	}
 
 	public static Optional<Pair<String, MethodNode>> findMethod(String fromClass, String name, String descriptor) {
-		return findMethod(fromClass, mn -> mn.name.equals(name) && mn.desc.equals(descriptor));
+		return ClassHierarchy.findMethodOwner(fromClass, name, descriptor, false)
+				.map(owner -> new Pair<>(owner, getMethod(owner, name, descriptor).get()));
 	}
 
-	/** Recursively find the implementation of a method by traversing the inheritance tree */
+	/** Recursively find the implementation of a method by traversing the inheritance tree.
+	 *  The method is preprocessed and copied, so it may be modified. */
 	public static Optional<InlineMethod> resolveMethodForInlining(String fromClass, String name, String descriptor) {
-		return findMethod(fromClass, mn -> mn.name.equals(name) && mn.desc.equals(descriptor) && (mn.access & ACC_ABSTRACT) == 0).map(pr -> {
-			MethodNode mn = pr.getSecond();
-			JavaPreprocess.preprocess(pr.getFirst(), mn);
-			new LambdaPreprocessor(mn).preprocess();
-			return new InlineMethod(mn, pr.getFirst());
-		});
+		return resolveMethodForAnalysis(fromClass, name, descriptor).map(InlineMethod::copy);
 	}
 
-	/** Roughly follows this: https://docs.oracle.com/javase/specs/jvms/se11/html/jvms-5.html#jvms-5.4.3.2 */
-	public static Optional<Pair<String, FieldNode>> resolveField(String owner, String name, String descriptor) {
-		ClassNode cls = ClassNodeCache.get(owner);
-		Optional<Pair<String, FieldNode>> res =
-				cls.fields.stream().filter(fn -> fn.name.equals(name) && fn.desc.equals(descriptor)).findAny()
-				.map(fn -> new Pair<>(owner, fn));
-		if(res.isPresent()) return res;
+	/** Like resolveMethodForInlining, but the preprocessed method is shared by all resolutions in the current
+	 *  session and may not be modified. */
+	public static Optional<InlineMethod> resolveMethodForAnalysis(String fromClass, String name, String descriptor) {
+		return ClassHierarchy.findMethodOwner(fromClass, name, descriptor, true)
+				.map(owner -> getPreprocessedMethod(owner, name, descriptor));
+	}
 
-		for (String interfaceName : cls.interfaces) {
-			res = resolveField(interfaceName, name, descriptor);
-			if(res.isPresent()) return res;
+	private static InlineMethod getPreprocessedMethod(String owner, String name, String descriptor) {
+		AnalysisSession session = AnalysisSession.current();
+		String key = owner + "." + name + descriptor;
+		ClassNode cls = ClassNodeCache.get(owner);
+		// The entry is stale if the class has been put again since the method was preprocessed
+		AnalysisSession.PreprocessedMethod entry = session.preprocessedMethods.get(key);
+		if(entry != null && entry.cls == cls) {
+			// The classes requested by the preprocessing are dependencies of every use of the method
+			session.requestedClasses.addAll(entry.dependencies);
+			return entry.method;
 		}
 
-		if(cls.superName != null)
-			return resolveField(cls.superName, name, descriptor);
+		Set<String> requested = new HashSet<>(session.requestedClasses);
+		session.clearRequestedClasses();
+		MethodNode mn = ClassNodeCache.getMutableMethod(owner, getMethod(cls, name, descriptor).get());
+		JavaPreprocess.preprocess(owner, mn);
+		new LambdaPreprocessor(mn).preprocess();
+
+		// getMutableMethod may have copied the class into the session
+		InlineMethod res = InlineMethod.shared(mn, owner);
+		Set<String> dependencies = new HashSet<>(session.requestedClasses);
+		dependencies.add(owner);
+		session.requestedClasses.addAll(requested);
+		session.preprocessedMethods.put(key, new AnalysisSession.PreprocessedMethod(ClassNodeCache.get(owner), res, dependencies));
+		return res;
+	}
 
-		return Optional.empty();
+	/** Roughly follows this: https://docs.oracle.com/javase/specs/jvms/se11/html/jvms-5.html#jvms-5.4.3.2 */
+	public static Optional<Pair<String, FieldNode>> resolveField(String owner, String name, String descriptor) {
+		return ClassHierarchy.resolveFieldOwner(owner, name, descriptor).map(fieldOwner -> new Pair<>(fieldOwner,
+				ClassNodeCache.get(fieldOwner).fields.stream()
+						.filter(fn -> fn.name.equals(name) && fn.desc.equals(descriptor)).findAny().get()));
 	}
 
 	/** Merge the frames at all return instructions in the method */
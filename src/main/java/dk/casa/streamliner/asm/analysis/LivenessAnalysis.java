@@ -13,11 +13,28 @@ import java.util.Set;
 
 import static org.objectweb.asm.Opcodes.*;
 
+/** Liveness of the locals and stack slots of a method, which are numbered as in FrameUtils.
+ *  The analysis only computes the live variables at the start of each basic block, as bit sets,
+ *  and the live variables at an instruction are derived from those of its block when they are queried.
+ *  Instructions that cannot reach an exit of the method have no live variables.
+ */
 public class LivenessAnalysis {
 	private final CFG cfg;
 	private final MethodNode mn;
 
-	private HashSet<Integer>[] result;
+	private AbstractInsnNode[] insns;
+	private Frame<?>[] frames;
+	// Number of longs in each bit set
+	private int words;
+
+	// Instructions blockStart[b] to blockStart[b + 1] - 1 form block b
+	private int[] blockOf, blockStart;
+	private boolean[] analysed;
+	private long[] blockLiveIn;
+
+	// Live variables before each instruction of the block that was derived most recently
+	private int derivedBlock = -1;
+	private long[] derived;
 
 	public LivenessAnalysis(CFG cfg) {
 		this.cfg = cfg;
@@ -25,129 +42,257 @@ public class LivenessAnalysis {
 	}
 
 	// Methods for querying analysis results
-	public HashSet<Integer> liveIn(AbstractInsnNode insn) {
+	public Set<Integer> liveIn(AbstractInsnNode insn) {
 		return liveIn(mn.instructions.indexOf(insn));
 	}
 
-	public HashSet<Integer> liveIn(int index) {
-		return result[index];
+	public Set<Integer> liveIn(int index) {
+		derive(blockOf[index]);
+		return toSet(derived, (index - blockStart[blockOf[index]]) * words);
 	}
 
-	public HashSet<Integer> liveOut(int index) {
-		HashSet<Integer> res = new HashSet<>();
-		for(int j : cfg.succ[index]) if(result[j] != null) res.addAll(result[j]);
-		return res;
+	public Set<Integer> liveOut(int index) {
+		long[] res = new long[words];
+		liveOut(index, res);
+		return toSet(res, 0);
+	}
+
+	private boolean isLiveOut(int index, int var) {
+		int block = blockOf[index];
+		if(index + 1 < blockStart[block + 1]) {
+			derive(block);
+			return get(derived, (index + 1 - blockStart[block]) * words, var);
+		}
+
+		for(int k = 0; k < cfg.getSuccessorCount(index); k++)
+			if(get(blockLiveIn, blockOf[cfg.getSuccessor(index, k)] * words, var)) return true;
+		return false;
 	}
 
 	public boolean isDeadStore(int index, int local) {
-		return !liveOut(index).contains(local);
+		return !isLiveOut(index, local);
 	}
 
 	public boolean isDeadLoad(int index, Frame<?> frame) {
 		int produced = FrameUtils.stackTop(frame) + 1;
-		return !liveOut(index).contains(produced);
+		return !isLiveOut(index, produced);
 	}
 
-	// Prepares analysis result
-	@SuppressWarnings("unchecked")
-	public HashSet<Integer>[] analyze(Frame<?>[] frames) {
-		int size = mn.instructions.size();
-		AbstractInsnNode[] insns = mn.instructions.toArray();
-		result = new HashSet[size];
+	private boolean get(long[] bits, int offset, int var) {
+		int word = var >>> 6;
+		return word < words && (bits[offset + word] & 1L << var) != 0;
+	}
 
-		// Add exit nodes
-		boolean[] queued = new boolean[size];
-		ArrayDeque<Integer> Q = new ArrayDeque<>();
+	private static void set(long[] bits, int var) {
+		bits[var >>> 6] |= 1L << var;
+	}
+
+	private static void clear(long[] bits, int var) {
+		bits[var >>> 6] &= ~(1L << var);
+	}
+
+	private Set<Integer> toSet(long[] bits, int offset) {
+		Set<Integer> res = new HashSet<>();
+		for(int var = 0; var < words * 64; var++)
+			if(get(bits, offset, var)) res.add(var);
+		return res;
+	}
+
+	/** Stores the union of the live variables at the start of the successors of the last instruction of a block in res */
+	private void liveOut(int index, long[] res) {
+		int block = blockOf[index];
+		if(index + 1 < blockStart[block + 1]) {
+			derive(block);
+			System.arraycopy(derived, (index + 1 - blockStart[block]) * words, res, 0, words);
+			return;
+		}
+
+		Arrays.fill(res, 0);
+		for(int k = 0; k < cfg.getSuccessorCount(index); k++) {
+			int offset = blockOf[cfg.getSuccessor(index, k)] * words;
+			for(int w = 0; w < words; w++) res[w] |= blockLiveIn[offset + w];
+		}
+	}
+
+	/** Computes the live variables before each instruction of the block */
+	private void derive(int block) {
+		if(block == derivedBlock) return;
+		int start = blockStart[block], end = blockStart[block + 1];
+		derived = new long[(end - start) * words];
+		derivedBlock = block;
+		if(!analysed[block]) return;
+
+		long[] live = new long[words];
+		liveOut(end - 1, live);
+		for(int i = end - 1; i >= start; i--) {
+			transfer(i, live);
+			System.arraycopy(live, 0, derived, (i - start) * words, words);
+		}
+	}
+
+	/** Computes the live variables before the instruction from the live variables after it */
+	private void transfer(int index, long[] live) {
+		AbstractInsnNode insn = insns[index];
+		// Skip labels, linenumbers and frame nodes
+		if(insn.getOpcode() < 0) return;
+
+		Frame<?> frame = frames[index];
+		int top = FrameUtils.stackTop(frame);
+
+		InstructionStackEffect.ConsProd consProd = InstructionStackEffect.computeConsProd(insn, frame);
+		int prodStart = top - consProd.consumed + 1;
+
+		// All stack slots that are assigned in this instruction are killed
+		boolean anyProducedLive = false;
+		for(int j = 0; j < consProd.produced; j++) {
+			if(get(live, 0, prodStart + j)) anyProducedLive = true;
+			clear(live, prodStart + j);
+		}
+
+		switch (insn.getOpcode()) {
+			case ALOAD:
+			case ILOAD:
+			case LLOAD:
+			case FLOAD:
+			case DLOAD:
+				// Is the produced stack slot live?
+				if (anyProducedLive) set(live, ((VarInsnNode) insn).var);
+				break;
+
+			case ASTORE:
+			case ISTORE:
+			case LSTORE:
+			case FSTORE:
+			case DSTORE:
+				int local = ((VarInsnNode) insn).var;
+				// Is the local live?
+				boolean localLive = get(live, 0, local);
+				clear(live, local);
+				if (localLive) set(live, top);
+				break;
+
+			case POP:
+			case POP2:
+				// All popped values are dead
+				for (int j = 0; j < consProd.consumed; j++) clear(live, top - j);
+				break;
+
+			default:
+				// All popped values are live
+				if(BLACKLIST[insn.getOpcode()] || anyProducedLive)
+					for (int j = 0; j < consProd.consumed; j++) set(live, top - j);
+				break;
+		}
+	}
+
+	/** Finds the instructions on a path to an exit of the method (an instruction without successors) */
+	private boolean[] findReachingExits(int size) {
+		boolean[] reached = new boolean[size];
+		int[] worklist = new int[size];
+		int n = 0;
 		for(int i = 0; i < size; i++)
-			if(cfg.succ[i].isEmpty() && !cfg.pred[i].isEmpty()) {
-				Q.add(i);
-				queued[i] = true;
+			if(cfg.getSuccessorCount(i) == 0 && cfg.getPredecessorCount(i) != 0) {
+				reached[i] = true;
+				worklist[n++] = i;
 			}
 
-		while(!Q.isEmpty()) {
-			int insnIndex = Q.remove();
-			queued[insnIndex] = false;
-			AbstractInsnNode insn = insns[insnIndex];
-			HashSet<Integer> liveOut = liveOut(insnIndex);
-
-			// Skip labels, linenumbers and frame nodes
-			if(insn.getOpcode() >= 0) {
-				// The variables assigned in this instruction
-				// For variable stores: variables, otherwise produced stack locations
-				HashSet<Integer> kill = new HashSet<>();
-
-				// The variables used in this expression
-				// For variable loads: variables, otherwise popped stack locations
-				HashSet<Integer> gen = new HashSet<>();
-
-				Frame<?> frame = frames[insnIndex];
-				int top = FrameUtils.stackTop(frame);
-
-				InstructionStackEffect.ConsProd consProd = InstructionStackEffect.computeConsProd(insn, frame);
-				int prodStart = top - consProd.consumed + 1;
-
-				// All stack slots that are assigned in this instruction should be killed
-				boolean anyProducedLive = false;
-				for (int j = 0; j < consProd.produced; j++) {
-					kill.add(prodStart + j);
-					if(liveOut.contains(prodStart + j)) anyProducedLive = true;
+		while(n > 0) {
+			int i = worklist[--n];
+			for(int k = 0; k < cfg.getPredecessorCount(i); k++) {
+				int j = cfg.getPredecessor(i, k);
+				if(!reached[j]) {
+					reached[j] = true;
+					worklist[n++] = j;
 				}
+			}
+		}
 
-				switch (insn.getOpcode()) {
-					case ALOAD:
-					case ILOAD:
-					case LLOAD:
-					case FLOAD:
-					case DLOAD:
-						// Is the produced stack slot live?
-						if (anyProducedLive) gen.add(((VarInsnNode) insn).var);
-						break;
-
-					case ASTORE:
-					case ISTORE:
-					case LSTORE:
-					case FSTORE:
-					case DSTORE:
-						int local = ((VarInsnNode) insn).var;
-						// Is the local live?
-						if (liveOut.contains(local)) gen.add(top);
-						kill.add(local);
-						break;
-
-					case POP:
-					case POP2:
-						// All popped values are dead
-						for (int j = 0; j < consProd.consumed; j++) kill.add(top - j);
-						break;
-
-					default:
-						// All popped values are live
-						if(BLACKLIST.contains(insn.getOpcode()) || anyProducedLive)
-							for (int j = 0; j < consProd.consumed; j++) gen.add(top - j);
-						break;
-				}
+		return reached;
+	}
 
-				// System.out.format("%d liveOut: %s kill: %s gen: %s\n", insnIndex, liveOut, kill, gen);
-				liveOut.removeAll(kill);
-				liveOut.addAll(gen);
+	private void computeBlocks(int size) {
+		blockOf = new int[size];
+		int[] starts = new int[size + 1];
+		int blocks = 0;
+		for(int i = 0; i < size; i++) {
+			boolean leader = i == 0 || cfg.getPredecessorCount(i) != 1 || cfg.getPredecessor(i, 0) != i - 1
+					|| cfg.getSuccessorCount(i - 1) != 1;
+			if(leader) starts[blocks++] = i;
+			blockOf[i] = blocks - 1;
+		}
+		starts[blocks] = size;
+		blockStart = Arrays.copyOf(starts, blocks + 1);
+	}
+
+	// Prepares analysis result
+	public void analyze(Frame<?>[] frames) {
+		int size = mn.instructions.size();
+		this.frames = frames;
+		insns = mn.instructions.toArray();
+		derivedBlock = -1;
+		derived = null;
+
+		int vars = 1;
+		for(Frame<?> frame : frames)
+			if(frame != null) {
+				vars = frame.getLocals() + frame.getMaxStackSize();
+				break;
+			}
+		words = (vars + 63) / 64;
+
+		computeBlocks(size);
+		int blocks = blockStart.length - 1;
+		blockLiveIn = new long[blocks * words];
+
+		// Blocks that cannot reach an exit are not analysed and have no live variables
+		boolean[] reachingExits = findReachingExits(size);
+		analysed = new boolean[blocks];
+		boolean[] queued = new boolean[blocks];
+		ArrayDeque<Integer> Q = new ArrayDeque<>();
+		for(int b = blocks - 1; b >= 0; b--)
+			if(reachingExits[blockStart[b + 1] - 1]) {
+				analysed[b] = true;
+				Q.add(b);
+				queued[b] = true;
 			}
 
-			if(!liveOut.equals(result[insnIndex])) {
-				result[insnIndex] = liveOut;
-				for(int j : cfg.pred[insnIndex]) {
-					if(!queued[j]) {
-						queued[j] = true;
-						Q.add(j);
+		long[] live = new long[words];
+		while(!Q.isEmpty()) {
+			int block = Q.remove();
+			queued[block] = false;
+
+			int start = blockStart[block], end = blockStart[block + 1];
+			Arrays.fill(live, 0);
+			for(int k = 0; k < cfg.getSuccessorCount(end - 1); k++) {
+				int offset = blockOf[cfg.getSuccessor(end - 1, k)] * words;
+				for(int w = 0; w < words; w++) live[w] |= blockLiveIn[offset + w];
+			}
+			for(int i = end - 1; i >= start; i--) transfer(i, live);
+
+			int offset = block * words;
+			boolean changed = false;
+			for(int w = 0; w < words; w++)
+				if(blockLiveIn[offset + w] != live[w]) {
+					blockLiveIn[offset + w] = live[w];
+					changed = true;
+				}
+
+			if(changed) {
+				for(int k = 0; k < cfg.getPredecessorCount(start); k++) {
+					int pred = blockOf[cfg.getPredecessor(start, k)];
+					if(!queued[pred] && analysed[pred]) {
+						queued[pred] = true;
+						Q.add(pred);
 					}
 				}
 			}
 		}
-
-		return result;
 	}
 
 	// Instructions whose parameters are always live
-	private static final Set<Integer> BLACKLIST = new HashSet<>(Arrays.asList(
+	private static final boolean[] BLACKLIST = new boolean[256];
+	static {
+		for(int opcode : new int[] {
 			PUTFIELD,
 			PUTSTATIC,
 
@@ -201,5 +346,6 @@ public class LivenessAnalysis {
 
 			MONITORENTER,
 			MONITOREXIT
-	));
+		}) BLACKLIST[opcode] = true;
+	}
 }
@@ -17,13 +17,17 @@ import static org.objectweb.asm.Opcodes.*;
 
 /** This code is mostly copied from Scala's analysis implementation
  *  https://github.com/scala/scala/blob/2.13.x/src/compiler/scala/tools/nsc/backend/jvm/analysis/AliasingAnalyzer.scala
+ *
+ *  The alias sets partition the locals and stack slots, and are stored as the smallest slot in the set of each slot.
+ *  Copying a frame is therefore an array copy, and a copy between slots usually updates a single entry.
  * */
 public class MustEqualsFrame<V extends Value> extends Frame<V> {
-	private final MustEqualsSet[] aliases;
+	private final int[] aliases;
 
 	public MustEqualsFrame(int numLocals, int numStack) {
 		super(numLocals, numStack);
-		aliases = new MustEqualsSet[numLocals + numStack];
+		aliases = new int[numLocals + numStack];
+		for(int i = 0; i < aliases.length; i++) aliases[i] = i;
 	}
 
 	public MustEqualsFrame(Frame<? extends V> frame) {
@@ -31,29 +35,66 @@ public class MustEqualsFrame<V extends Value> extends Frame<V> {
 		init(frame);
 	}
 
-	public MustEqualsSet aliasesOf(int entry) {
-		if(aliases[entry] != null) return aliases[entry];
+	/** Returns the slots that must be equal to the given slot in ascending order */
+	public int[] aliasesOf(int entry) {
+		int repr = aliases[entry], count = 0;
+		for(int i = repr; i < aliases.length; i++)
+			if(aliases[i] == repr) count++;
 
-		MustEqualsSet init = new MustEqualsSet();
-		init.add(entry);
-		aliases[entry] = init;
-		return init;
+		int[] res = new int[count];
+		for(int i = repr, k = 0; k < count; i++)
+			if(aliases[i] == repr) res[k++] = i;
+		return res;
+	}
+
+	/** Replaces the representative of the slots from the given slot onwards */
+	private void relabel(int from, int oldRepr, int newRepr) {
+		for(int i = from; i < aliases.length; i++)
+			if(aliases[i] == oldRepr) aliases[i] = newRepr;
 	}
 
 	/** a = unknown */
 	private void removeAlias(int assignee) {
-		if(aliases[assignee] != null) {
-			aliases[assignee].remove(assignee);
-			aliases[assignee] = null;
+		if(aliases[assignee] != assignee) {
+			aliases[assignee] = assignee;
+			return;
 		}
+
+		// The next slot of the set becomes the representative of the others
+		for(int i = assignee + 1; i < aliases.length; i++)
+			if(aliases[i] == assignee) {
+				relabel(i, assignee, i);
+				break;
+			}
 	}
 
 	/** b = a */
 	private void newAlias(int assignee, int source) {
+		if(assignee == source) return;
 		removeAlias(assignee);
-		MustEqualsSet sourceAliases = aliasesOf(source);
-		sourceAliases.add(assignee);
-		aliases[assignee] = sourceAliases;
+		int repr = aliases[source];
+		if(repr < assignee) aliases[assignee] = repr;
+		else relabel(repr, repr, assignee);
+	}
+
+	/** Exchanges the alias sets of the two slots */
+	private void swapAliases(int a, int b) {
+		int reprA = aliases[a], reprB = aliases[b];
+		if(reprA == reprB) return;
+
+		int newReprA = b, newReprB = a;
+		for(int i = 0; i < aliases.length; i++) {
+			if(i == a || i == b) continue;
+			if(aliases[i] == reprA) newReprA = Math.min(newReprA, i);
+			else if(aliases[i] == reprB) newReprB = Math.min(newReprB, i);
+		}
+
+		for(int i = 0; i < aliases.length; i++) {
+			if(i == a) aliases[i] = newReprB;
+			else if(i == b) aliases[i] = newReprA;
+			else if(aliases[i] == reprA) aliases[i] = newReprA;
+			else if(aliases[i] == reprB) aliases[i] = newReprB;
+		}
 	}
 
 	@Override
@@ -129,24 +170,7 @@ public class MustEqualsFrame<V extends Value> extends Frame<V> {
 				throw new IllegalArgumentException("MustEqualsFrame.execute not implemented for: " + Textifier.OPCODES[insn.getOpcode()]);
 
 			case SWAP:
-				Runnable moveNextToTop = () -> {
-					MustEqualsSet next = aliases[top - 1];
-					aliases[top] = next;
-					next.remove(top - 1);
-					next.add(top);
-				};
-
-				if(aliases[top] != null) {
-					MustEqualsSet topAliases = aliases[top];
-					if(aliases[top - 1] != null) moveNextToTop.run();
-					else aliases[top] = null;
-					aliases[top - 1] = topAliases;
-					topAliases.remove(top);
-					topAliases.add(top - 1);
-				} else if(aliases[top - 1] != null) {
-					moveNextToTop.run();
-					aliases[top - 1] = null;
-				}
+				swapAliases(top - 1, top);
 				break;
 
 			case IINC:
@@ -196,35 +220,30 @@ public class MustEqualsFrame<V extends Value> extends Frame<V> {
 		boolean valuesChanged = super.merge(frame, interpreter);
 		boolean aliasesChanged = false;
 
-		@SuppressWarnings("unchecked")
-		MustEqualsFrame<? extends V> aliasingOther = (MustEqualsFrame<V>) frame;
+		// The new alias sets are the intersections of the sets of the two frames
+		int[] otherAliases = ((MustEqualsFrame<?>) frame).aliases;
 		int numValues = getLocals() + getStackSize();
-		boolean[] knownOk = new boolean[numValues];
-		for(int i = 0; i < numValues; i++) {
-			if(knownOk[i]) continue;
-
-			MustEqualsSet thisAliases = aliases[i];
-			MustEqualsSet otherAliases = aliasingOther.aliases[i];
-			if(thisAliases != null) {
-				if(otherAliases == null) {
-					if(thisAliases.size() > 1) {
-						aliasesChanged = true;
-						removeAlias(i);
-					}
-				} else {
-					MustEqualsSet newSet = null;
-					Iterator<Integer> iterator = thisAliases.iterator();
-					while(iterator.hasNext()) {
-						int j = iterator.next();
-						if(otherAliases.contains(j)) knownOk[j] = true;
-						else {
-							aliasesChanged = true;
-							if(newSet == null) newSet = new MustEqualsSet();
-							newSet.add(j);
-							iterator.remove();
-							aliases[j] = newSet;
-						}
-					}
+		int[] head = new int[numValues], next = new int[numValues];
+		Arrays.fill(head, -1);
+		for(int i = numValues - 1; i >= 0; i--) {
+			next[i] = head[aliases[i]];
+			head[aliases[i]] = i;
+		}
+
+		// For each set of this frame, split it by the sets of the other frame
+		int[] seen = new int[numValues], first = new int[numValues];
+		Arrays.fill(seen, -1);
+		for(int repr = 0; repr < numValues; repr++) {
+			for(int i = head[repr]; i != -1; i = next[i]) {
+				int other = otherAliases[i];
+				if(seen[other] != repr) {
+					seen[other] = repr;
+					first[other] = i;
+				}
+
+				if(aliases[i] != first[other]) {
+					aliasesChanged = true;
+					aliases[i] = first[other];
 				}
 			}
 		}
@@ -236,26 +255,7 @@ public class MustEqualsFrame<V extends Value> extends Frame<V> {
 	@SuppressWarnings("unchecked")
 	public Frame<V> init(Frame<? extends V> frame) {
 		super.init(frame);
-		// Copy aliases
 		System.arraycopy(((MustEqualsFrame<V>) frame).aliases, 0, aliases, 0, aliases.length);
-		boolean[] done = new boolean[aliases.length];
-
-		for(int i = 0; i < aliases.length; i++) {
-			if(aliases[i] == null || done[i]) continue;
-
-			MustEqualsSet set = aliases[i];
-			if(set.size() == 1)
-				aliases[i] = null;
-			else {
-				MustEqualsSet newSet = new MustEqualsSet(set.size());
-				for(int j : set) {
-					newSet.add(j);
-					done[j] = true;
-					aliases[j] = newSet;
-				}
-			}
-		}
-
 		return this;
 	}
 }
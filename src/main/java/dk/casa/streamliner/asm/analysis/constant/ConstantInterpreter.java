@@ -0,0 +1,80 @@
+package dk.casa.streamliner.asm.analysis.constant;
+
+import dk.casa.streamliner.asm.analysis.FlatElement;
+import dk.casa.streamliner.asm.analysis.SizeHelper;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.IincInsnNode;
+import org.objectweb.asm.tree.analysis.AnalyzerException;
+import org.objectweb.asm.tree.analysis.Interpreter;
+
+import java.util.List;
+
+import static org.objectweb.asm.Opcodes.*;
+
+/** Propagates the values of numeric constants through the stack and the local variables */
+public class ConstantInterpreter extends Interpreter<ConstantValue> {
+	public ConstantInterpreter() {
+		super(ASM7);
+	}
+
+	@Override
+	public ConstantValue newValue(Type type) {
+		if(type == Type.VOID_TYPE) return null;
+
+		return new ConstantValue(type == null ? 1 : type.getSize());
+	}
+
+	@Override
+	public ConstantValue newOperation(AbstractInsnNode insn) throws AnalyzerException {
+		return new ConstantValue(SizeHelper.newOperation(insn), ConstantEvaluator.newOperation(insn));
+	}
+
+	@Override
+	public ConstantValue copyOperation(AbstractInsnNode insn, ConstantValue value) throws AnalyzerException {
+		return value;
+	}
+
+	@Override
+	public ConstantValue unaryOperation(AbstractInsnNode insn, ConstantValue value) throws AnalyzerException {
+		if(insn.getOpcode() == IINC) {
+			if(!value.value.isDefined()) return new ConstantValue(1);
+			return new ConstantValue(1, new FlatElement<>(value.value.value.intValue() + ((IincInsnNode) insn).incr));
+		}
+
+		return new ConstantValue(SizeHelper.unaryOperation(insn), ConstantEvaluator.unaryOperation(insn, value.value));
+	}
+
+	@Override
+	public ConstantValue binaryOperation(AbstractInsnNode insn, ConstantValue value1, ConstantValue value2) throws AnalyzerException {
+		FlatElement<Number> result;
+		try {
+			result = ConstantEvaluator.binaryOperation(insn, value1.value, value2.value);
+		} catch(ArithmeticException exc) {  // Division by zero
+			result = FlatElement.getTop();
+		}
+
+		return new ConstantValue(SizeHelper.binaryOperation(insn), result);
+	}
+
+	@Override
+	public ConstantValue ternaryOperation(AbstractInsnNode insn, ConstantValue value1, ConstantValue value2, ConstantValue value3) throws AnalyzerException {
+		return new ConstantValue(SizeHelper.ternaryOperation(insn));
+	}
+
+	@Override
+	public ConstantValue naryOperation(AbstractInsnNode insn, List<? extends ConstantValue> values) throws AnalyzerException {
+		return new ConstantValue(SizeHelper.naryOperation(insn));
+	}
+
+	@Override
+	public void returnOperation(AbstractInsnNode insn, ConstantValue value, ConstantValue expected) throws AnalyzerException {
+
+	}
+
+	@Override
+	public ConstantValue merge(ConstantValue value1, ConstantValue value2) {
+		if(value1.equals(value2)) return value1;
+		return new ConstantValue(Math.min(value1.getSize(), value2.getSize()), value1.value.merge(value2.value));
+	}
+}
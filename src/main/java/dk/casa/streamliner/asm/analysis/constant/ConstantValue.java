@@ -0,0 +1,14 @@
+package dk.casa.streamliner.asm.analysis.constant;
+
+import dk.casa.streamliner.asm.analysis.FlatElement;
+import dk.casa.streamliner.asm.analysis.GenericValue;
+
+public class ConstantValue extends GenericValue<FlatElement<Number>> {
+	public ConstantValue(int size, FlatElement<Number> value) {
+		super(size, value);
+	}
+
+	public ConstantValue(int size) {
+		this(size, FlatElement.getTop());
+	}
+}
@@ -0,0 +1,73 @@
+package dk.casa.streamliner.asm.analysis.inter;
+
+import org.objectweb.asm.tree.AbstractInsnNode;
+
+/**
+ *  Limits on the work done by one run of the interprocedural analysis.
+ *  The limits count interpreted instructions, analysed contexts and the call depth of contexts,
+ *  and bound the wall-clock time of the run. A limit of 0 means unlimited.
+ *  The default limits are read from the system properties streamliner.budget.{depth,instructions,contexts,time},
+ *  where time is in milliseconds.
+ */
+public final class AnalysisBudget {
+	public final int maxDepth;
+	public final long maxInstructions;
+	public final int maxContexts;
+	public final long maxMillis;
+
+	private long instructions;
+	private int contexts;
+	private long deadline;
+
+	public AnalysisBudget(int maxDepth, long maxInstructions, int maxContexts, long maxMillis) {
+		this.maxDepth = maxDepth;
+		this.maxInstructions = maxInstructions;
+		this.maxContexts = maxContexts;
+		this.maxMillis = maxMillis;
+		start();
+	}
+
+	public static AnalysisBudget fromProperties() {
+		return new AnalysisBudget(Integer.getInteger("streamliner.budget.depth", 100),
+				Long.getLong("streamliner.budget.instructions", 0),
+				Integer.getInteger("streamliner.budget.contexts", 0),
+				Long.getLong("streamliner.budget.time", 0));
+	}
+
+	/** Resets the counters at the start of a run */
+	void start() {
+		instructions = 0;
+		contexts = 0;
+		deadline = maxMillis > 0 ? System.nanoTime() + maxMillis * 1_000_000 : 0;
+	}
+
+	public long getInstructions() {
+		return instructions;
+	}
+
+	public int getContexts() {
+		return contexts;
+	}
+
+	void enterContext(Context context) throws AnalysisBudgetException {
+		if(maxDepth > 0 && context.getDepth() > maxDepth)
+			throw new AnalysisBudgetException(null, AnalysisBudgetException.Kind.DEPTH,
+					"Infinite recursion? Call depth exceeds " + maxDepth + " in " + context);
+
+		if(++contexts > maxContexts && maxContexts > 0)
+			throw new AnalysisBudgetException(null, AnalysisBudgetException.Kind.CONTEXTS,
+					"Analysed more than " + maxContexts + " contexts");
+	}
+
+	void step(AbstractInsnNode insn) throws AnalysisBudgetException {
+		instructions++;
+		if(maxInstructions > 0 && instructions > maxInstructions)
+			throw new AnalysisBudgetException(insn, AnalysisBudgetException.Kind.INSTRUCTIONS,
+					"Interpreted more than " + maxInstructions + " instructions");
+
+		// The clock is only read for every 1024 instructions
+		if(deadline != 0 && (instructions & 1023) == 0 && System.nanoTime() - deadline > 0)
+			throw new AnalysisBudgetException(insn, AnalysisBudgetException.Kind.TIME,
+					"Analysis took more than " + maxMillis + " ms");
+	}
+}
@@ -0,0 +1,25 @@
+package dk.casa.streamliner.asm.analysis.inter;
+
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.analysis.AnalyzerException;
+
+import java.util.Optional;
+
+/** Thrown when the analysis exceeds its AnalysisBudget */
+public class AnalysisBudgetException extends AnalyzerException {
+	public enum Kind { DEPTH, INSTRUCTIONS, CONTEXTS, TIME }
+
+	public final Kind kind;
+
+	public AnalysisBudgetException(AbstractInsnNode insn, Kind kind, String message) {
+		super(insn, "Analysis budget exceeded: " + message);
+		this.kind = kind;
+	}
+
+	/** The analyzer wraps exceptions of nested analyses, so the budget exception is found among the causes */
+	public static Optional<AnalysisBudgetException> find(Throwable exc) {
+		for(Throwable cause = exc; cause != null; cause = cause.getCause())
+			if(cause instanceof AnalysisBudgetException) return Optional.of((AnalysisBudgetException) cause);
+		return Optional.empty();
+	}
+}
@@ -0,0 +1,135 @@
+package dk.casa.streamliner.asm.analysis.inter;
+
+import dk.casa.streamliner.asm.ClassHierarchy;
+import dk.casa.streamliner.asm.InlineMethod;
+import dk.casa.streamliner.asm.analysis.inter.oracles.Oracle;
+import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.FieldInsnNode;
+
+import java.util.*;
+
+/**
+ *  Owns the state of one run of the interprocedural analysis and the classes that are
+ *  modified while a method is analysed and transformed.
+ *  Sessions are confined to the thread that opened them such that independent methods
+ *  can be optimised in parallel. Outside of an opened session a per-thread default session
+ *  is used, which shares its classes with the other threads through the ClassNodeCache.
+ */
+public final class AnalysisSession implements AutoCloseable {
+	public final Map<Context, InterFrame[]> calls = new HashMap<>();
+	public final Map<Context, Set<Integer>> analysedCalls = new HashMap<>();
+	// allocations is a map: Context -> Instruction index -> allocation index
+	public final Map<Context, Map<Integer, Integer>> allocations = new HashMap<>();
+	public final Map<String, Integer> staticAllocations = new HashMap<>();
+	public final Map<Integer, String> allocationTypes = new HashMap<>();
+	// Ids of the resolved fields of field instructions
+	final Map<FieldInsnNode, Integer> fieldIds = new IdentityHashMap<>();
+	// Memoised analyses of call contexts and the summaries that are being computed
+	final Map<Context, List<CallSummary>> summaries = new HashMap<>();
+	final Deque<CallSummary> recording = new ArrayDeque<>();
+	int summaryHits;
+
+	// Names of the classes requested from the ClassNodeCache (the dependencies of a transformation)
+	public final Set<String> requestedClasses = new HashSet<>();
+	// Entries of the class hierarchy index that depend on the classes of this session
+	public final ClassHierarchy.SessionState hierarchy = new ClassHierarchy.SessionState();
+	// Preprocessed methods returned by Utils.resolveMethodForAnalysis in the current analysis run
+	public final Map<String, PreprocessedMethod> preprocessedMethods = new HashMap<>();
+
+	/** A preprocessed method, the version of the class that it belongs to and the classes requested while preprocessing it */
+	public static final class PreprocessedMethod {
+		public final ClassNode cls;
+		public final InlineMethod method;
+		public final Set<String> dependencies;
+
+		public PreprocessedMethod(ClassNode cls, InlineMethod method, Set<String> dependencies) {
+			this.cls = cls;
+			this.method = method;
+			this.dependencies = dependencies;
+		}
+	}
+
+	Oracle oracle;
+	int allocCounter;
+	private AnalysisBudget budget = AnalysisBudget.fromProperties();
+	private int contextLimit = StackContext.getCallStringLimit();
+
+	private final Map<String, ClassNode> classes;
+	private final AnalysisSession previous;
+
+	private static final ThreadLocal<AnalysisSession> current =
+			ThreadLocal.withInitial(() -> new AnalysisSession(null, null));
+
+	private AnalysisSession(Map<String, ClassNode> classes, AnalysisSession previous) {
+		this.classes = classes;
+		this.previous = previous;
+	}
+
+	public static AnalysisSession current() {
+		return current.get();
+	}
+
+	/** Starts a new session with its own classes on the current thread */
+	public static AnalysisSession open() {
+		AnalysisSession session = new AnalysisSession(new HashMap<>(), current.get());
+		current.set(session);
+		return session;
+	}
+
+	public AnalysisBudget getBudget() {
+		return budget;
+	}
+
+	/** Sets the limits of the analysis runs in this session */
+	public void setBudget(AnalysisBudget budget) {
+		this.budget = budget;
+	}
+
+	/** Maximum number of calls in the call strings of the analysis runs in this session, or 0 if they are not limited */
+	public int getContextLimit() {
+		return contextLimit;
+	}
+
+	public void setContextLimit(int contextLimit) {
+		this.contextLimit = contextLimit;
+	}
+
+	/** Number of calls whose analysis was reused from an earlier analysis with the same inputs */
+	public int getSummaryHits() {
+		return summaryHits;
+	}
+
+	/** Starts a new set of requested classes */
+	public void clearRequestedClasses() {
+		requestedClasses.clear();
+		hierarchy.clearReported();
+	}
+
+	/** Returns the classes that are private to the session, or null if the session shares its classes */
+	public Map<String, ClassNode> getClasses() {
+		return classes;
+	}
+
+	void reset() {
+		calls.clear();
+		analysedCalls.clear();
+		allocCounter = 0;
+		allocations.clear();
+		staticAllocations.clear();
+		allocationTypes.clear();
+		fieldIds.clear();
+		summaries.clear();
+		recording.clear();
+		summaryHits = 0;
+		preprocessedMethods.clear();
+		budget.start();
+		oracle = null;
+	}
+
+	@Override
+	public void close() {
+		if(current.get() != this)
+			throw new IllegalStateException("Session is not the current session of this thread");
+		current.set(previous);
+	}
+}
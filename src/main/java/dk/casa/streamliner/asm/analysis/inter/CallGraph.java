@@ -28,7 +28,7 @@ public class CallGraph implements Dotable {
 		if(!visited.add(context)) return;
 
 		String owner = context.getOwner();
-		InterFrame[] frames = InterproceduralTypePointerAnalysis.calls.get(context);
+		InterFrame[] frames = AnalysisSession.current().calls.get(context);
 
 		{
 			List<String> attrs = new ArrayList<>();
@@ -0,0 +1,116 @@
+package dk.casa.streamliner.asm.analysis.inter;
+
+import dk.casa.streamliner.asm.Utils;
+import dk.casa.streamliner.asm.analysis.inter.oracles.Oracle;
+import dk.casa.streamliner.asm.analysis.pointer.Heap;
+import org.objectweb.asm.tree.MethodNode;
+import org.objectweb.asm.tree.analysis.AnalyzerException;
+
+import java.util.*;
+
+/**
+ *  Memoised analysis of a call context for given abstract arguments and heap.
+ *  The analysis of a context is deterministic, so when a caller reaches a call again with the same
+ *  inputs, which happens on every fixpoint iteration of a loop in the caller, the result is reused.
+ *  Without it, a call in a loop is analysed again in every fixpoint round of the loop, so the work doubles
+ *  for each level of nested loops on the call chain. With it, the work grows linearly with the nesting.
+ *  Summaries are not shared between contexts, since the allocation indices and the frames used by
+ *  the transformation are recorded per context. Equal callees at different call sites are therefore still
+ *  analysed once per call site. The work on stream pipelines already grows linearly with their length
+ *  (each map of an IntStream pipeline adds about 26 contexts), so call-site sharing would only reduce that constant.
+ *
+ *  A summary records the frames and analysed calls of every context that its analysis reached,
+ *  which are restored when it is reused such that the session ends up as if the call was analysed again.
+ */
+final class CallSummary {
+	// Number of summaries that are kept for each context
+	private static final int summariesPerContext = 4;
+
+	private final List<? extends InterValue> arguments;
+	private final Heap<InterValue> heap;
+	private InterFrame returnFrame;
+
+	private final Map<Context, InterFrame[]> frames = new HashMap<>();
+	// The calls that were reached in each context and those of them that were analysed
+	private final Map<Context, Set<Integer>> reachedCalls = new HashMap<>(), analysedCalls = new HashMap<>();
+
+	private CallSummary(Context context) {
+		this.arguments = new ArrayList<>(context.getArguments());
+		this.heap = context.getHeap();
+	}
+
+	private boolean matches(Context context) {
+		return arguments.equals(context.getArguments()) && heap.equals(context.getHeap());
+	}
+
+	InterFrame getReturnFrame() {
+		return returnFrame;
+	}
+
+	/** Analyses the call context or reuses the summary of an earlier analysis with the same inputs */
+	static CallSummary analyse(Context context, MethodNode method, Oracle oracle, InterInterpreter interpreter) throws AnalyzerException {
+		AnalysisSession session = AnalysisSession.current();
+		List<CallSummary> summaries = session.summaries.computeIfAbsent(context, c -> new LinkedList<>());
+		for(CallSummary summary : summaries) {
+			if(!summary.matches(context)) continue;
+
+			session.summaryHits++;
+			summary.replay();
+			return summary;
+		}
+
+		CallSummary summary = new CallSummary(context);
+		session.recording.push(summary);
+		try {
+			InterFrame[] result = InterproceduralTypePointerAnalysis.analyzeRecursively(context, oracle);
+			summary.returnFrame = Utils.getReturnFrame(method, result, interpreter, InterFrame::new);
+		} finally {
+			session.recording.pop();
+		}
+
+		summaries.add(0, summary);
+		if(summaries.size() > summariesPerContext) summaries.remove(summariesPerContext);
+		return summary;
+	}
+
+	private void replay() {
+		frames.forEach(CallSummary::putFrames);
+		reachedCalls.forEach((context, reached) -> {
+			Set<Integer> analysed = analysedCalls.get(context);
+			for(int insnIndex : reached) {
+				if(analysed.contains(insnIndex)) addAnalysedCall(context, insnIndex);
+				else removeAnalysedCall(context, insnIndex);
+			}
+		});
+	}
+
+	// Updates of the session that are recorded by the summaries that are being computed
+
+	static void putFrames(Context context, InterFrame[] result) {
+		AnalysisSession session = AnalysisSession.current();
+		session.calls.put(context, result);
+		for(CallSummary summary : session.recording)
+			summary.frames.put(context, result);
+	}
+
+	/** Marks the call as reached but not analysed (yet) */
+	static Set<Integer> removeAnalysedCall(Context context, int insnIndex) {
+		AnalysisSession session = AnalysisSession.current();
+		Set<Integer> calls = session.analysedCalls.computeIfAbsent(context, x -> new HashSet<>());
+		calls.remove(insnIndex);
+		for(CallSummary summary : session.recording) {
+			summary.reachedCalls.computeIfAbsent(context, x -> new HashSet<>()).add(insnIndex);
+			summary.analysedCalls.computeIfAbsent(context, x -> new HashSet<>()).remove(insnIndex);
+		}
+		return calls;
+	}
+
+	static void addAnalysedCall(Context context, int insnIndex) {
+		AnalysisSession session = AnalysisSession.current();
+		session.analysedCalls.computeIfAbsent(context, x -> new HashSet<>()).add(insnIndex);
+		for(CallSummary summary : session.recording) {
+			summary.reachedCalls.computeIfAbsent(context, x -> new HashSet<>()).add(insnIndex);
+			summary.analysedCalls.computeIfAbsent(context, x -> new HashSet<>()).add(insnIndex);
+		}
+	}
+}
@@ -1,5 +1,6 @@
 package dk.casa.streamliner.asm.analysis.inter;
 
+import dk.casa.streamliner.asm.Metrics;
 import dk.casa.streamliner.asm.analysis.inter.oracles.Oracle;
 import org.objectweb.asm.tree.MethodNode;
 import org.objectweb.asm.tree.analysis.Analyzer;
@@ -33,11 +34,21 @@ public class InterAnalyzer extends Analyzer<InterValue> {
 
 	public InterFrame[] analyze(Context context) throws AnalyzerException {
 		this.context = context;
+		AnalysisSession.current().getBudget().enterContext(context);
 		interpreter.initialiseForAnalysis(context, oracle);
 		Frame<InterValue>[] result = super.analyze(context.getOwner(), context.getMethod());
 		InterFrame[] castedResult = new InterFrame[result.length];
 		System.arraycopy(result, 0, castedResult, 0, result.length);
-		InterproceduralTypePointerAnalysis.calls.put(context, castedResult);
+		CallSummary.putFrames(context, castedResult);
+
+		if(Metrics.enabled) {
+			Metrics.count("contexts", 1);
+			Metrics.count("frames", castedResult.length);
+			int cells = 0;
+			for(InterFrame frame : castedResult)
+				if(frame != null) cells = Math.max(cells, frame.getHeap().size());
+			Metrics.peak("heapCells", cells);
+		}
 		return castedResult;
 	}
 
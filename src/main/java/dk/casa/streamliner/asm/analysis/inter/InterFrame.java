@@ -1,10 +1,13 @@
 package dk.casa.streamliner.asm.analysis.inter;
 
+import dk.casa.streamliner.asm.Metrics;
 import dk.casa.streamliner.utils.Dotable;
+import dk.casa.streamliner.utils.IntMap;
 import dk.casa.streamliner.asm.analysis.FlatElement;
 import dk.casa.streamliner.asm.analysis.InstructionStackEffect;
 import dk.casa.streamliner.asm.analysis.constant.ConstantEvaluator;
 import dk.casa.streamliner.asm.analysis.pointer.AbstractObject;
+import dk.casa.streamliner.asm.analysis.pointer.FieldIds;
 import dk.casa.streamliner.asm.analysis.pointer.Heap;
 import dk.casa.streamliner.asm.analysis.pointer.HeapFrame;
 import org.objectweb.asm.Type;
@@ -53,6 +56,7 @@ public class InterFrame extends HeapFrame<InterValue> implements Dotable {
 	@Override
 	public void execute(AbstractInsnNode insn, Interpreter<InterValue> interpreter) throws AnalyzerException {
 		InterInterpreter interp = (InterInterpreter) interpreter;
+		interp.step(insn);
 		interp.setHeap(cells);
 
 		// Record jump result information
@@ -103,11 +107,11 @@ public class InterFrame extends HeapFrame<InterValue> implements Dotable {
 		if(!isBottom && insn instanceof MethodInsnNode) {
 			Context context = interp.getContext();
 			int insnIndex = context.getMethod().instructions.indexOf(insn);
-			Set<Integer> calls = InterproceduralTypePointerAnalysis.analysedCalls.get(context);
+			Set<Integer> calls = AnalysisSession.current().analysedCalls.get(context);
 			if(context.getDepth() != 1 || calls == null || !calls.contains(insnIndex)) return;
 
 			Set<InterValue> roots = new HashSet<>();
-			InterproceduralTypePointerAnalysis.staticAllocations.entrySet().stream()
+			AnalysisSession.current().staticAllocations.entrySet().stream()
 					.map(entry -> new InterValue(new TypeElement(true, Type.getObjectType(entry.getKey())), new PointerElement(entry.getValue())))
 					.forEach(roots::add);
 
@@ -120,8 +124,8 @@ public class InterFrame extends HeapFrame<InterValue> implements Dotable {
 			Set<Integer> reachable = interp.reachableSubgraph(roots);
 			if(reachable.size() == cells.size()) return;
 
-			System.err.println("Reclaiming " + (cells.size() - reachable.size()) + " abstract objects");
-			cells.keySet().retainAll(reachable);
+			Metrics.count("reclaimedCells", cells.size() - reachable.size());
+			cells.retainAll(reachable);
 		}
 	}
 
@@ -148,20 +152,24 @@ public class InterFrame extends HeapFrame<InterValue> implements Dotable {
 		// Missing cells can never be referred to after an ordinary frame merge.
 		// The pointer value can only exist in one of the branches, and thus the resulting
 		// pointer becomes top - removing all direct pointers to the missing cell.
-		for(int index : cells.keySet()) {
-			AbstractObject<InterValue> obj = cells.getCell(index),
-			                           other = otherHeap.getCell(index);
-			if(other != null) cellsChanged |= obj.merge(other, interpreter);
+		// Frames that were copied from each other without modifications share their cells
+		if(cells.sharesCellsWith(otherHeap)) return cells.mergeEscaped(otherHeap);
+
+		IntMap<AbstractObject<InterValue>> cellMap = cells.cellMap();
+		for(int slot = cellMap.next(-1); slot >= 0; slot = cellMap.next(slot)) {
+			AbstractObject<InterValue> other = otherHeap.getCell(cellMap.keyAt(slot));
+			if(other != null) cellsChanged |= cells.mergeCell(cellMap.keyAt(slot), other, interpreter);
 		}
 
-		for(Map.Entry<Integer, AbstractObject<InterValue>> entry : otherHeap.entrySet()) {
-			int index = entry.getKey();
-			if(!cells.containsKey(index)) cells.allocate(index, new AbstractObject<>(entry.getValue()));
+		IntMap<AbstractObject<InterValue>> otherCells = otherHeap.cellMap();
+		for(int slot = otherCells.next(-1); slot >= 0; slot = otherCells.next(slot)) {
+			int index = otherCells.keyAt(slot);
+			if(!cells.containsKey(index)) cells.share(index, otherHeap);
 		}
 
 
 		// Add all escaping cells from other heap
-		escapedChanged = cells.getEscaped().addAll(otherHeap.getEscaped());
+		escapedChanged = cells.mergeEscaped(otherHeap);
 		/*
 		// We only have to record the frame as changed if a cell that exists
 		// in both frames becomes escaped in the other.
@@ -197,12 +205,14 @@ public class InterFrame extends HeapFrame<InterValue> implements Dotable {
 		builder.append(String.format("label=\"%s\";\n\n", label));
 
 		for(int i : cells.keySet()) {
-			builder.append(i).append(String.format(" [label=\"%s\n%s\"]\n", i, InterproceduralTypePointerAnalysis.allocationTypes.get(i)));
-			for(Map.Entry<String, InterValue> e : cells.getCell(i).entrySet()) {
-				InterValue v = e.getValue();
-				String nodeName = String.format("\"%s_%s\"", i, e.getKey());
-				builder.append(nodeName).append(String.format(" [label=\"%s\", shape=rectangle]\n", e.getValue()));
-				builder.append(i).append(" -> ").append(nodeName).append(String.format(" [label=\"%s\"]\n", e.getKey()));
+			builder.append(i).append(String.format(" [label=\"%s\n%s\"]\n", i, AnalysisSession.current().allocationTypes.get(i)));
+			IntMap<InterValue> fields = cells.getCell(i).fieldMap();
+			for(int slot = fields.next(-1); slot >= 0; slot = fields.next(slot)) {
+				InterValue v = fields.valueAt(slot);
+				String fieldName = FieldIds.getName(fields.keyAt(slot));
+				String nodeName = String.format("\"%s_%s\"", i, fieldName);
+				builder.append(nodeName).append(String.format(" [label=\"%s\", shape=rectangle]\n", v));
+				builder.append(i).append(" -> ").append(nodeName).append(String.format(" [label=\"%s\"]\n", fieldName));
 
 				try {
 					int j = v.pointsTo();
@@ -6,7 +6,10 @@ import dk.casa.streamliner.asm.analysis.FlatElement;
 import dk.casa.streamliner.asm.analysis.constant.ConstantEvaluator;
 import dk.casa.streamliner.asm.analysis.inter.oracles.Oracle;
 import dk.casa.streamliner.asm.analysis.pointer.AbstractObject;
+import dk.casa.streamliner.asm.analysis.pointer.FieldIds;
 import dk.casa.streamliner.asm.analysis.pointer.Heap;
+import dk.casa.streamliner.utils.IntMap;
+import dk.casa.streamliner.utils.IntSet;
 import org.apache.commons.math3.util.Pair;
 import org.objectweb.asm.Type;
 import org.objectweb.asm.tree.*;
@@ -25,6 +28,7 @@ import static org.objectweb.asm.Opcodes.*;
 public class InterInterpreter extends Interpreter<InterValue> {
 	private Context context;
 	private Oracle oracle;
+	private AnalysisBudget budget;
 
 	private Heap<InterValue> heap;
 	private final List<InterValue> paddedArguments = new ArrayList<>();
@@ -55,9 +59,16 @@ public class InterInterpreter extends Interpreter<InterValue> {
 	}
 
 	public Context getContext() { return context; }
+
+	/** Counts the instruction against the analysis budget */
+	void step(AbstractInsnNode insn) throws AnalyzerException {
+		if(budget != null) budget.step(insn);
+	}
+
 	public void initialiseForAnalysis(Context context, Oracle oracle) {
 		this.context = context;
 		this.oracle = oracle;
+		this.budget = AnalysisSession.current().getBudget();
 
 		// Compute the list of locals corresponding to the arguments
 		MethodNode mn = context.getMethod();
@@ -92,6 +103,18 @@ public class InterInterpreter extends Interpreter<InterValue> {
 		return getFieldName(owner, fn.name, fn.desc);
 	}
 
+	/** Returns the id of the resolved field name, which is memoised per instruction for the analysis */
+	public static int getFieldId(FieldInsnNode finsn) {
+		Map<FieldInsnNode, Integer> fieldIds = AnalysisSession.current().fieldIds;
+		Integer id = fieldIds.get(finsn);
+		if(id == null) {
+			Pair<String, FieldNode> res = Utils.resolveField(finsn.owner, finsn.name, finsn.desc).get();
+			id = FieldIds.get(res.getFirst(), res.getSecond().name);
+			fieldIds.put(finsn, id);
+		}
+		return id;
+	}
+
 	@Override
 	public InterValue newValue(Type type) {
 		if(type == Type.VOID_TYPE) return null;
@@ -112,7 +135,7 @@ public class InterInterpreter extends Interpreter<InterValue> {
 				return false;
 		}
 
-		return !Utils.getAncestors(Type.getObjectType(insn.desc)).contains(Type.getObjectType("java/lang/Throwable"));
+		return !Utils.hasAncestor(Type.getObjectType(insn.desc), Type.getObjectType("java/lang/Throwable"));
 	}
 
 	@Override
@@ -163,7 +186,7 @@ public class InterInterpreter extends Interpreter<InterValue> {
 						default: throw new RuntimeException("Unexpected field sort: " + type.getSort());
 					}
 
-					obj.setField(getFieldName(pair.getFirst(), fn), new InterValue(new TypeElement(false, type), ptr, constant));
+					obj.setField(FieldIds.get(pair.getFirst(), fn.name), new InterValue(new TypeElement(false, type), ptr, constant));
 				}
 
 				return new InterValue(new TypeElement(true, objectType), new PointerElement(allocIndex));
@@ -172,9 +195,9 @@ public class InterInterpreter extends Interpreter<InterValue> {
 				FieldInsnNode finsn = (FieldInsnNode) insn;
 				Type ftype = Type.getType(finsn.desc);
 
-				Integer sallocIndex = InterproceduralTypePointerAnalysis.staticAllocations.get(finsn.owner);
+				Integer sallocIndex = AnalysisSession.current().staticAllocations.get(finsn.owner);
 				if(sallocIndex != null)
-					return heap.getField(sallocIndex, getFieldName(finsn), topValue(Type.getType(finsn.desc)));
+					return heap.getField(sallocIndex, getFieldId(finsn), topValue(Type.getType(finsn.desc)));
 
 				return new InterValue(new TypeElement(false, ftype), PointerElement.uTOP);
 
@@ -221,7 +244,7 @@ public class InterInterpreter extends Interpreter<InterValue> {
 		switch(insn.getOpcode()) {
 			case GETFIELD:
 				finsn = (FieldInsnNode) insn;
-				String fieldName = getFieldName(finsn);
+				int fieldId = getFieldId(finsn);
 				Type ftype = Type.getType(finsn.desc);
 
 				if(value.pointer == PointerElement.NULL)
@@ -232,30 +255,30 @@ public class InterInterpreter extends Interpreter<InterValue> {
 					InterValue rv = null;
 					for (int allocIndex : reachableFromValue(value)) {
 						AbstractObject<InterValue> obj = heap.getCell(allocIndex);
-						if(obj.hasField(fieldName)) {
-							if(rv == null) rv = obj.getField(fieldName);
-							else rv = rv.merge(obj.getField(fieldName));
+						if(obj.hasField(fieldId)) {
+							if(rv == null) rv = obj.getField(fieldId);
+							else rv = rv.merge(obj.getField(fieldId));
 						}
 					}
 					return rv;
 				}
 
-				return heap.getField(value.pointsTo(), fieldName, topValue(ftype));
+				return heap.getField(value.pointsTo(), fieldId, topValue(ftype));
 
 			case PUTSTATIC:
 				finsn = (FieldInsnNode) insn;
 				valueEscapes(value);
 
-				Integer sallocIndex = InterproceduralTypePointerAnalysis.staticAllocations.get(finsn.owner);
+				Integer sallocIndex = AnalysisSession.current().staticAllocations.get(finsn.owner);
 				if(sallocIndex != null)
-					heap.setField(sallocIndex, getFieldName(finsn), value);
+					heap.setField(sallocIndex, getFieldId(finsn), value);
 
 				return null;
 
 			case CHECKCAST:
 				Type to = Type.getObjectType(((TypeInsnNode) insn).desc);
 				// Specialize type if possible
-				if(!Utils.getAncestors(value.type.getType()).contains(to))
+				if(!Utils.hasAncestor(value.type.getType(), to))
 					return new InterValue(new TypeElement(false, to), value.pointer, value.constant);
 				return value;
 
@@ -311,15 +334,15 @@ public class InterInterpreter extends Interpreter<InterValue> {
 			case PUTFIELD: {
 				FieldInsnNode finsn = (FieldInsnNode) insn;
 				PointerElement ptr = value1.pointer;
-				String fieldName = getFieldName(finsn);
+				int fieldId = getFieldId(finsn);
 
 				if(ptr == PointerElement.NULL)
 					throw new RuntimeException("TODO");
 				else if(ptr == PointerElement.iTOP) {
 					for (int allocIndex : heap.keySet()) {
 						AbstractObject<InterValue> obj = heap.getCell(allocIndex);
-						if(obj.hasField(fieldName))
-							obj.setField(fieldName, merge(obj.getField(fieldName), value2));
+						if(obj.hasField(fieldId))
+							heap.setField(allocIndex, fieldId, merge(obj.getField(fieldId), value2));
 					}
 
 					// valueEscapes(value2);
@@ -327,7 +350,7 @@ public class InterInterpreter extends Interpreter<InterValue> {
 					if(value2.type.maybePointer() && value2.pointer.maybeInteresting())
 						throw new RuntimeException("We lost?");
 				} else
-					heap.setField(ptr.pointsTo(), fieldName, value2);
+					heap.setField(ptr.pointsTo(), fieldId, value2);
 
 				return null; // unused
 			}
@@ -386,8 +409,13 @@ public class InterInterpreter extends Interpreter<InterValue> {
 		} else if(!modifiedFields.isEmpty()) {
 			for (int allocIndex : reachable) {
 				AbstractObject<InterValue> obj = heap.getCell(allocIndex);
-				for (String field : modifiedFields)
-					if (obj.hasField(field)) obj.setField(field, merge(obj.getField(field), newValue(null)));
+				for (String field : modifiedFields) {
+					int fieldId = FieldIds.get(field);
+					if (obj.hasField(fieldId)) {
+						heap.setField(allocIndex, fieldId, merge(obj.getField(fieldId), newValue(null)));
+						obj = heap.getCell(allocIndex);
+					}
+				}
 			}
 		}
 
@@ -428,10 +456,9 @@ public class InterInterpreter extends Interpreter<InterValue> {
 			throw new RuntimeException("InvokeDynamic unsupported!");
 		}
 
-		Set<Integer> calls = InterproceduralTypePointerAnalysis.analysedCalls.computeIfAbsent(context, x -> new HashSet<>());
 		MethodInsnNode minsn = (MethodInsnNode) insn;
 		int insnIndex = context.getMethod().instructions.indexOf(minsn);
-		calls.remove(insnIndex); // We can have analyzed a call earlier that we will not be able to now
+		CallSummary.removeAnalysedCall(context, insnIndex); // We can have analyzed a call earlier that we will not be able to now
 
 		// We can be forced to analyse a method if a tracked value escapes into it
 		// otherwise we ask the oracle if we should analyse the method.
@@ -460,10 +487,8 @@ public class InterInterpreter extends Interpreter<InterValue> {
 
 		//System.out.println(String.join("", Collections.nCopies(context.getDepth(), " ")) + im.owner + "." + im.mth.name);
 		Context callContext = context.newContext(im.owner, im.mth, insnIndex, new Heap<>(heap), lvalues);
-		InterFrame[] frames = InterproceduralTypePointerAnalysis.analyzeRecursively(callContext, oracle);
-		calls.add(insnIndex);
-
-		InterFrame returnFrame = Utils.getReturnFrame(im.mth, frames, this, InterFrame::new);
+		InterFrame returnFrame = CallSummary.analyse(callContext, im.mth, oracle, this).getReturnFrame();
+		CallSummary.addAnalysedCall(context, insnIndex);
 		Type returnType = Type.getReturnType(minsn.desc);
 
 		if(returnFrame == null) { // Can only return via. exception
@@ -497,17 +522,17 @@ public class InterInterpreter extends Interpreter<InterValue> {
 	}
 
 	Set<Integer> reachableSubgraph(Collection<? extends InterValue> roots) {
-		Set<Integer> reachable = roots.stream()
-				.filter(root -> root.type.maybePointer())
-				.flatMap(v -> reachableFromValue(v).stream())
-				.collect(Collectors.toSet());
+		IntSet reachable = new IntSet();
+		for (InterValue root : roots)
+			if (root.type.maybePointer()) reachable.addAll(reachableFromValue(root));
 
 		Queue<Integer> Q = new ArrayDeque<>(reachable);
 		while(!Q.isEmpty()) {
 			int i = Q.remove();
 
-			for (Map.Entry<String, InterValue> entry : heap.getCell(i).entrySet()) {
-				InterValue value = entry.getValue();
+			IntMap<InterValue> fields = heap.getCell(i).fieldMap();
+			for (int slot = fields.next(-1); slot >= 0; slot = fields.next(slot)) {
+				InterValue value = fields.valueAt(slot);
 				TypeElement type = value.type;
 				if (!type.maybePointer()) continue;
 
@@ -527,7 +552,7 @@ public class InterInterpreter extends Interpreter<InterValue> {
 			TypeElement type = value.type;
 
 			Predicate<String> matchpred = type.isPrecise() ? type.getType().getInternalName()::equals :
-					s -> Utils.getAncestors(Type.getObjectType(s)).contains(type.getType());
+					s -> Utils.hasAncestor(Type.getObjectType(s), type.getType());
 
 			return heap.keySet().stream()
 					.filter(i -> matchpred.test(heap.getCell(i).getName()))
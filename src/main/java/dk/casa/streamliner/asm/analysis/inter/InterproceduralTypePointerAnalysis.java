@@ -6,6 +6,7 @@ import dk.casa.streamliner.asm.analysis.inter.oracles.ExhaustiveOracle;
 import dk.casa.streamliner.asm.analysis.inter.oracles.Oracle;
 import dk.casa.streamliner.asm.analysis.inter.oracles.TypeQueryOracle;
 import dk.casa.streamliner.asm.analysis.pointer.AbstractObject;
+import dk.casa.streamliner.asm.analysis.pointer.FieldIds;
 import dk.casa.streamliner.asm.analysis.pointer.Heap;
 import dk.casa.streamliner.asm.transform.JavaPreprocess;
 import dk.casa.streamliner.asm.transform.LambdaPreprocessor;
@@ -26,32 +27,17 @@ import static dk.casa.streamliner.utils.Utils.isJava8;
 import static org.objectweb.asm.Opcodes.*;
 
 public class InterproceduralTypePointerAnalysis {
-	public static final Map<Context, InterFrame[]> calls = new HashMap<>();
-	public static final Map<Context, Set<Integer>> analysedCalls = new HashMap<>();
-	// allocations is a map: Context -> Instruction index -> allocation index
-	public static final Map<Context, Map<Integer, Integer>> allocations = new HashMap<>();
-	public static final Map<String, Integer> staticAllocations = new HashMap<>();
-	public static final Map<Integer, String> allocationTypes = new HashMap<>();
-
-	private static Oracle oracle;
-	private static int allocCounter;
 	public static void reset() {
-		calls.clear();
-		analysedCalls.clear();
-		allocCounter = 0;
-		allocations.clear();
-		staticAllocations.clear();
-		allocationTypes.clear();
-		oracle = null;
+		AnalysisSession.current().reset();
 	}
 
 	public static Context startAnalysis(String owner, MethodNode mn, Oracle oracle) throws AnalyzerException {
 		reset();
 
-		InterproceduralTypePointerAnalysis.oracle = oracle;
+		AnalysisSession.current().oracle = oracle;
 
 		// Prep heap and argument list
-		Heap<InterValue> heap = getInitialStaticHeap(Arrays.asList(
+		Heap<InterValue> heap = StaticHeapSnapshot.get(() -> getInitialStaticHeap(Arrays.asList(
 				"java/util/stream/StreamOpFlag$Type",
 				"java/util/stream/StreamOpFlag",
 				"java/util/stream/MatchOps$MatchKind",
@@ -65,7 +51,7 @@ public class InterproceduralTypePointerAnalysis {
 					"java/util/stream/FindOps$FindSink$OfLong",
 					"java/util/stream/FindOps$FindSink$OfDouble",
 					"java/util/stream/WhileOps")
-		);
+		));
 		List<InterValue> args = new ArrayList<>();
 		// Add 'this' argument if not static
 		if((mn.access & ACC_STATIC) == 0) {
@@ -81,7 +67,7 @@ public class InterproceduralTypePointerAnalysis {
 		Set<Integer> origEscape = new HashSet<>(heap.getEscaped());
 
 		//Context initialContext = new HeapContext(owner, mn, heap, args);
-		Context initialContext = new StackContext(owner, mn, heap, args);
+		Context initialContext = new StackContext(owner, mn, heap, args, AnalysisSession.current().getContextLimit());
 		InterFrame[] frames = analyzeRecursively(initialContext, oracle);
 		AbstractInsnNode[] insns = mn.instructions.toArray();
 
@@ -112,8 +98,6 @@ public class InterproceduralTypePointerAnalysis {
 	}
 
 	static InterFrame[] analyzeRecursively(Context c, Oracle oracle) throws AnalyzerException {
-		if(c.getDepth() > 100) throw new RuntimeException("Infinite recursion?");
-
 		InterInterpreter interpreter = new InterInterpreter();
 		InterAnalyzer analyzer = new InterAnalyzer(interpreter, oracle);
 		return analyzer.analyze(c);
@@ -121,17 +105,19 @@ public class InterproceduralTypePointerAnalysis {
 
 	static int putAllocation(Context context, AbstractInsnNode insn, String name) {
 		int instructionIndex = context.getMethod().instructions.indexOf(insn);
-		return allocations.computeIfAbsent(context, c -> new HashMap<>()).computeIfAbsent(instructionIndex, i -> {
-			allocationTypes.put(allocCounter, name);
-			return allocCounter++;
+		AnalysisSession session = AnalysisSession.current();
+		return session.allocations.computeIfAbsent(context, c -> new HashMap<>()).computeIfAbsent(instructionIndex, i -> {
+			session.allocationTypes.put(session.allocCounter, name);
+			return session.allocCounter++;
 		});
 	}
 
 	public static int getAllocationIndex(Context context, int instructionIndex) {
-		return allocations.get(context).get(instructionIndex);
+		return AnalysisSession.current().allocations.get(context).get(instructionIndex);
 	}
 
 	public static void debug() {
+		Map<Context, InterFrame[]> calls = AnalysisSession.current().calls;
 		System.out.println("Calls: " + calls.size());
 
 		calls.entrySet().stream().sorted(Comparator.comparing(e -> e.getKey().getOwner())).forEachOrdered(e -> {
@@ -148,8 +134,9 @@ public class InterproceduralTypePointerAnalysis {
 		});
 	}
 
+	/** Resolves the target of the call. The method of the result is shared and must be copied before it is modified. */
 	public static InlineMethod resolveCall(MethodInsnNode mn, List<InterValue> values, Heap<InterValue> heap, Context context) throws AnalyzerException {
-		return resolveCall(mn, values, heap, context, oracle);
+		return resolveCall(mn, values, heap, context, AnalysisSession.current().oracle);
 	}
 
 	public static InlineMethod resolveCall(MethodInsnNode mn, List<InterValue> values, Heap<InterValue> heap, Context context, TypeQueryOracle oracle) throws AnalyzerException {
@@ -158,7 +145,7 @@ public class InterproceduralTypePointerAnalysis {
 			if(!mn.name.equals("clone") || !Type.getType(mn.desc).equals(Type.getMethodType(Type.getObjectType("java/lang/Object"))))
 				throw new RuntimeException("What?");
 
-			return new InlineMethod(new MethodNode(ACC_PUBLIC | ACC_NATIVE, mn.name, mn.desc, null, null),
+			return InlineMethod.shared(new MethodNode(ACC_PUBLIC | ACC_NATIVE, mn.name, mn.desc, null, null),
 					mn.owner);
 		}
 
@@ -182,9 +169,11 @@ public class InterproceduralTypePointerAnalysis {
 
 							fromClass = mn.owner;
 						else {
-							fromClass = oracle.queryType(context, mn, thisValue).map(Type::getInternalName)
+							long start = Metrics.start();
+							Optional<Type> queried = oracle.queryType(context, mn, thisValue);
+							Metrics.sampleSince("oracleQueryMicros", start);
+							fromClass = queried.map(Type::getInternalName)
 									.orElseThrow(() -> new PrecisionLossException(mn, "Runtime type of 'this' is unknown"));
-
 						}
 					}
 
@@ -192,17 +181,17 @@ public class InterproceduralTypePointerAnalysis {
 												 thisValue.pointer, thisValue.constant));
 				}
 
-				InlineMethod resolvedMethod = Utils.resolveMethodForInlining(fromClass, mn.name, mn.desc).get();
+				InlineMethod resolvedMethod = Utils.resolveMethodForAnalysis(fromClass, mn.name, mn.desc).get();
 
 				String name = resolvedMethod.mth.name;
 				// We have a special model for java.util.stream.AbstractPipeline.wrapSink and copyIntoWithCancel
 				if(resolvedMethod.owner.equals("java/util/stream/AbstractPipeline")) {
 					if(name.equals("wrapSink")) {
 						int depth = getPipelineDepth(thisValue, heap);
-						resolvedMethod = new InlineMethod(JavaPreprocess.getWrapSinkModel(depth), resolvedMethod.owner);
+						resolvedMethod = InlineMethod.shared(JavaPreprocess.getWrapSinkModel(depth), resolvedMethod.owner);
 					} else if(name.equals("copyIntoWithCancel")) {
 						int depth = getPipelineDepth(thisValue, heap);
-						resolvedMethod = new InlineMethod(JavaPreprocess.getCopyIntoWithCancelModel(depth), resolvedMethod.owner);
+						resolvedMethod = InlineMethod.shared(JavaPreprocess.getCopyIntoWithCancelModel(depth), resolvedMethod.owner);
 					}
 				}
 
@@ -210,7 +199,7 @@ public class InterproceduralTypePointerAnalysis {
 
 			case INVOKESTATIC:
 			case INVOKESPECIAL:
-				return Utils.resolveMethodForInlining(mn.owner, mn.name, mn.desc).get();
+				return Utils.resolveMethodForAnalysis(mn.owner, mn.name, mn.desc).get();
 
 			default:
 				throw new RuntimeException("Resolve of " + Textifier.OPCODES[mn.getOpcode()] + " not supported.");
@@ -240,12 +229,13 @@ public class InterproceduralTypePointerAnalysis {
 	private static Heap<InterValue> getInitialStaticHeap(Collection<String> dynamicClasses, Collection<String> staticClasses) {
 		Heap<InterValue> res = new Heap<>();
 		IdentityHashMap<Object, Integer> seen = new IdentityHashMap<>();
+		AnalysisSession session = AnalysisSession.current();
 
-		int firstAlloc = allocCounter;
+		int firstAlloc = session.allocCounter;
 
 		Function<String, AbstractObject<InterValue>> initClass = (String clsName) -> {
-			int allocIndex = allocCounter++;
-			staticAllocations.put(clsName, allocIndex);
+			int allocIndex = session.allocCounter++;
+			session.staticAllocations.put(clsName, allocIndex);
 			AbstractObject<InterValue> staticObj = new AbstractObject<>(clsName, true);
 			res.allocate(allocIndex, staticObj);
 			return staticObj;
@@ -261,7 +251,7 @@ public class InterproceduralTypePointerAnalysis {
 					if(Modifier.isFinal(modifiers) && Modifier.isStatic(modifiers)) {
 						field.setAccessible(true);
 						Object value = field.get(null);
-						staticObj.setField(clsName + "." + field.getName(), traceHeap(field.getType(), value, res, seen));
+						staticObj.setField(FieldIds.get(clsName, field.getName()), traceHeap(field.getType(), value, res, seen));
 					}
 				}
 			}
@@ -272,6 +262,7 @@ public class InterproceduralTypePointerAnalysis {
 				ClassNode cn = ClassNodeCache.get(clsName);
 				MethodNode clinit = Utils.getMethod(cn, "<clinit>", Type.getMethodDescriptor(Type.VOID_TYPE))
 										.orElseThrow(() -> new RuntimeException("Missing static initializer method"));
+				clinit = ClassNodeCache.getMutableMethod(clsName, clinit);
 				new LambdaPreprocessor(clinit).preprocess();
 
 				Context context = new StackContext(clsName, clinit, res, Collections.emptyList());
@@ -281,17 +272,17 @@ public class InterproceduralTypePointerAnalysis {
 
 			}
 
-			res.addEscape(IntStream.range(firstAlloc, allocCounter).boxed().collect(Collectors.toList()));
+			res.addEscape(IntStream.range(firstAlloc, session.allocCounter).boxed().collect(Collectors.toList()));
 
 			// Sanitize final fields (TODO: Measure impact on RQ2)
 			// TODO: Use uTOP?
 			InterInterpreter interpreter = new InterInterpreter();
-			res.entrySet().stream().map(Map.Entry::getValue)
-					.forEach(obj -> obj.getFields().forEach(fe -> {
-						FieldNode fn = fe.getSecond();
-						if(!Modifier.isFinal(fn.access))
-							obj.setField(fe.getFirst() + "." + fn.name, interpreter.topValue(Type.getType(fn.desc)));
-					}));
+			for(int allocIndex : res.keySet())
+				for(Pair<String, FieldNode> fe : res.getCell(allocIndex).getFields()) {
+					FieldNode fn = fe.getSecond();
+					if(!Modifier.isFinal(fn.access))
+						res.setField(allocIndex, FieldIds.get(fe.getFirst(), fn.name), interpreter.topValue(Type.getType(fn.desc)));
+				}
 
 			/*
 			// Get rid of objects that are not directly reachable from the static objects
@@ -334,7 +325,7 @@ public class InterproceduralTypePointerAnalysis {
 			Class<?> actualType = value.getClass();
 			String clsName = actualType.getName().replace('.', '/');
 
-			allocIndex = allocCounter++;
+			allocIndex = AnalysisSession.current().allocCounter++;
 			seen.put(value, allocIndex);
 			AbstractObject<InterValue> obj = heap.allocate(allocIndex, clsName);
 
@@ -346,9 +337,9 @@ public class InterproceduralTypePointerAnalysis {
 					try {
 						Field field = fieldOwner.getDeclaredField(fn.name);
 						field.setAccessible(true);
-						obj.setField(fieldCls + "." + fn.name, traceHeap(field.getType(), field.get(fieldOwner.cast(value)), heap, seen));
+						obj.setField(FieldIds.get(fieldCls, fn.name), traceHeap(field.getType(), field.get(fieldOwner.cast(value)), heap, seen));
 					} catch (NoSuchFieldException nsf) {
-						obj.setField(fieldCls + "." + fn.name, new InterValue(new TypeElement(false, TypeElement.TOP), PointerElement.uTOP));
+						obj.setField(FieldIds.get(fieldCls, fn.name), new InterValue(new TypeElement(false, TypeElement.TOP), PointerElement.uTOP));
 					}
 				}
 
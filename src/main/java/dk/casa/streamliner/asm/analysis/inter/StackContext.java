@@ -3,60 +3,135 @@ package dk.casa.streamliner.asm.analysis.inter;
 import dk.casa.streamliner.asm.analysis.pointer.Heap;
 import org.objectweb.asm.tree.MethodNode;
 
-import java.util.Collections;
-import java.util.LinkedList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 
+/** Context that is identified by its call string.
+ *
+ *  Call strings are interned, parent-linked nodes with cached hashes, so extending a context is O(1)
+ *  and contexts from the same analysis are equal exactly when their call strings are the same node.
+ *  Contexts of different analyses (with separately created initial contexts) are compared element-wise.
+ *
+ *  The call strings can be limited to the k most recent calls with the streamliner.context.limit
+ *  property, which makes contexts that only differ in older calls equal. The depth of a context
+ *  is always its full call depth. By default the call strings are not limited.
+ */
 public class StackContext implements Context {
-	private static class StackElement {
+	private static final int callStringLimit = Integer.getInteger("streamliner.context.limit", 0);
+
+	private static final class CallString {
 		private final Integer callIndex;
-		private final String owner;
-		private final MethodNode method;
+		private final String owner, name, desc;
+		private final CallString parent;
+		private final int length, hash;
+
+		// Interned extensions of this call string
+		private final Map<CallString, CallString> children = new HashMap<>();
+		// The call strings with the same roots, which are only needed when they are limited
+		private final Map<CallString, CallString> roots;
+		private CallString withoutOldest;
 
-		StackElement(Integer callIndex, String owner, MethodNode method) {
+		private CallString(Integer callIndex, String owner, String name, String desc, CallString parent, Map<CallString, CallString> roots) {
 			this.callIndex = callIndex;
 			this.owner = owner;
-			this.method = method;
+			this.name = name;
+			this.desc = desc;
+			this.parent = parent;
+			this.roots = roots;
+			this.length = parent == null ? 1 : parent.length + 1;
+			this.hash = (callIndex == null ? 0 : callIndex) + 3 * owner.hashCode() + 17 * (name.hashCode() + desc.hashCode())
+					+ 31 * (parent == null ? 0 : parent.hash);
 		}
 
-		@Override
-		public int hashCode() {
-			return (callIndex == null ? 0 : callIndex) + 3 * owner.hashCode()
-					+ 17 * (method.name.hashCode() + method.desc.hashCode());
+		static CallString root(String owner, MethodNode method) {
+			Map<CallString, CallString> roots = new HashMap<>();
+			CallString root = new CallString(null, owner, method.name, method.desc, null, roots);
+			roots.put(root, root);
+			return root;
+		}
+
+		/** Returns the interned call string of the call appended to prefix */
+		private CallString intern(Integer callIndex, String owner, String name, String desc, CallString prefix) {
+			CallString key = new CallString(callIndex, owner, name, desc, prefix, roots);
+			return (prefix == null ? roots : prefix.children).computeIfAbsent(key, k -> k);
+		}
+
+		/** Returns the call string with the call appended, keeping at most limit calls if limit is positive */
+		CallString push(Integer callIndex, String owner, MethodNode method, int limit) {
+			CallString prefix = limit > 0 && length >= limit ? suffix(limit - 1) : this;
+			return intern(callIndex, owner, method.name, method.desc, prefix);
+		}
+
+		/** Returns the call string of the n most recent calls, or null if n is 0 */
+		private CallString suffix(int n) {
+			if(n == 0) return null;
+			if(n == length) return this;
+			if(n < length - 1) return intern(callIndex, owner, name, desc, parent.suffix(n - 1));
+
+			if(withoutOldest == null) withoutOldest = intern(callIndex, owner, name, desc, parent.suffix(n - 1));
+			return withoutOldest;
+		}
+
+		private boolean sameCall(CallString other) {
+			return Objects.equals(callIndex, other.callIndex) && owner.equals(other.owner)
+					&& name.equals(other.name) && desc.equals(other.desc);
 		}
 
 		@Override
-		public boolean equals(Object o) {
-			if(o == this) return true;
-			if(!(o instanceof StackElement)) return false;
-			StackElement so = (StackElement) o;
-			return (Objects.equals(callIndex, so.callIndex))
-					&& owner.equals(so.owner)
-					&& method.name.equals(so.method.name)
-					&& method.desc.equals(so.method.desc);
+		public int hashCode() {
+			return hash;
 		}
 
 		@Override
-		public String toString() {
-			return String.format("%d %s.%s", callIndex, owner, method.name);
+		public boolean equals(Object o) {
+			if(this == o) return true;
+			if(!(o instanceof CallString)) return false;
+
+			CallString a = this, b = (CallString) o;
+			// Interned parents are compared by identity, which ends the loop after one step within an analysis
+			while(a != b) {
+				if(a == null || b == null || a.hash != b.hash || a.length != b.length || !a.sameCall(b)) return false;
+				a = a.parent;
+				b = b.parent;
+			}
+			return true;
 		}
 	}
 
 	private final Heap<InterValue> heap;
 	private final List<? extends InterValue> arguments;
-	private final LinkedList<StackElement> callStack;
+	private final String owner;
+	private final MethodNode method;
+	private final CallString callString;
+	private final int depth, limit;
 	private final Context parent;
 
-	private StackContext(Heap<InterValue> heap, List<? extends InterValue> arguments, LinkedList<StackElement> callStack, Context parent) {
+	private StackContext(Heap<InterValue> heap, List<? extends InterValue> arguments, String owner, MethodNode method,
+	                     CallString callString, int depth, int limit, Context parent) {
 		this.heap = heap;
 		this.arguments = arguments;
-		this.callStack = callStack;
+		this.owner = owner;
+		this.method = method;
+		this.callString = callString;
+		this.depth = depth;
+		this.limit = limit;
 		this.parent = parent;
 	}
 
 	public StackContext(String owner, MethodNode mn, Heap<InterValue> heap, List<? extends InterValue> arguments) {
-		this(heap, arguments, new LinkedList<>(Collections.singleton(new StackElement(null, owner, mn))), null);
+		this(owner, mn, heap, arguments, callStringLimit);
+	}
+
+	/** Initial context whose call strings keep at most limit calls, or are not limited if limit is 0 */
+	public StackContext(String owner, MethodNode mn, Heap<InterValue> heap, List<? extends InterValue> arguments, int limit) {
+		this(heap, arguments, owner, mn, CallString.root(owner, mn), 1, limit, null);
+	}
+
+	/** Maximum number of calls in the call strings, or 0 if they are not limited */
+	public static int getCallStringLimit() {
+		return callStringLimit;
 	}
 
 	@Override
@@ -66,12 +141,12 @@ public class StackContext implements Context {
 
 	@Override
 	public String getOwner() {
-		return Objects.requireNonNull(callStack.peek()).owner;
+		return owner;
 	}
 
 	@Override
 	public MethodNode getMethod() {
-		return Objects.requireNonNull(callStack.peek()).method;
+		return method;
 	}
 
 	@Override
@@ -86,30 +161,29 @@ public class StackContext implements Context {
 
 	@Override
 	public int getDepth() {
-		return callStack.size();
+		return depth;
 	}
 
 	@Override
 	public Context newContext(String owner, MethodNode method, Integer insnIndex, Heap<InterValue> heap, List<? extends InterValue> arguments) {
-		LinkedList<StackElement> newStack = new LinkedList<>(callStack);
-		newStack.addFirst(new StackElement(insnIndex, owner, method));
-		return new StackContext(heap, arguments, newStack, this);
+		CallString newCallString = callString.push(insnIndex, owner, method, limit);
+		return new StackContext(heap, arguments, owner, method, newCallString, depth + 1, limit, this);
 	}
 
 	@Override
 	public int hashCode() {
-		return callStack.hashCode();
+		return callString.hash;
 	}
 
 	@Override
 	public boolean equals(Object o) {
 		if(this == o) return true;
 		if(!(o instanceof StackContext)) return false;
-		return callStack.equals(((StackContext) o).callStack);
+		return callString.equals(((StackContext) o).callString);
 	}
 
 	@Override
 	public String toString() {
-		return String.format("[%d] %s %s", callStack.size(), getOwner(), getMethod().name);
+		return String.format("[%d] %s %s", depth, owner, method.name);
 	}
 }
@@ -0,0 +1,100 @@
+package dk.casa.streamliner.asm.analysis.inter;
+
+import dk.casa.streamliner.asm.ClassNodeCache;
+import dk.casa.streamliner.asm.analysis.pointer.Heap;
+import org.objectweb.asm.tree.ClassNode;
+
+import java.util.*;
+import java.util.function.Supplier;
+
+/**
+ *  Snapshot of the initial static heap and the state of the session that it refers to.
+ *  Computing the heap reflects on the stream library and analyses static initialisers, which is the
+ *  same for every analysis, so it is computed once and the heap is shared (copy-on-write) with each analysis.
+ *
+ *  The snapshot is recomputed when one of the classes that it was computed from is replaced in the
+ *  ClassNodeCache. The lambda models that are allocated in the heap are put in the session when the
+ *  snapshot is used, since the models of the session that computed it are not visible in other sessions.
+ */
+final class StaticHeapSnapshot {
+	private static volatile StaticHeapSnapshot snapshot;
+
+	private final Heap<InterValue> heap;
+	private final int allocCounter;
+	private final Map<String, Integer> staticAllocations;
+	private final Map<Integer, String> allocationTypes;
+	// Shared versions of the classes that were requested while computing the heap
+	private final Map<String, ClassNode> dependencies = new HashMap<>();
+	private final List<ClassNode> models = new ArrayList<>();
+
+	private StaticHeapSnapshot(Heap<InterValue> heap, AnalysisSession session, Set<String> requestedClasses) {
+		this.heap = heap;
+		this.allocCounter = session.allocCounter;
+		this.staticAllocations = new HashMap<>(session.staticAllocations);
+		this.allocationTypes = new HashMap<>(session.allocationTypes);
+
+		for(String name : requestedClasses) {
+			ClassNode cn = ClassNodeCache.tryGetShared(name);
+			if(cn != null) dependencies.put(name, cn);
+		}
+
+		for(int i : heap.keySet()) {
+			String name = heap.getCell(i).getName();
+			if(name.contains("LambdaModel$")) models.add(copy(ClassNodeCache.get(name)));
+		}
+	}
+
+	private boolean isValid() {
+		for(Map.Entry<String, ClassNode> entry : dependencies.entrySet())
+			if(ClassNodeCache.tryGetShared(entry.getKey()) != entry.getValue()) return false;
+		return true;
+	}
+
+	/** Returns the initial static heap for a new analysis in the current session, which must have been reset */
+	static Heap<InterValue> get(Supplier<Heap<InterValue>> compute) {
+		AnalysisSession session = AnalysisSession.current();
+		StaticHeapSnapshot current = snapshot;
+		if(current == null || !current.isValid()) {
+			Set<String> requested = new HashSet<>(session.requestedClasses);
+			session.clearRequestedClasses();
+			// The clinits are analysed once for all methods, so they are not charged to the budget of this one
+			AnalysisBudget budget = session.getBudget();
+			session.setBudget(new AnalysisBudget(budget.maxDepth, 0, 0, 0));
+			Heap<InterValue> heap;
+			try {
+				heap = compute.get();
+			} finally {
+				session.setBudget(budget);
+				budget.start();
+			}
+			snapshot = new StaticHeapSnapshot(heap, session, session.requestedClasses);
+			session.requestedClasses.addAll(requested);
+			return new Heap<>(heap);
+		}
+
+		current.restore(session);
+		return new Heap<>(current.heap);
+	}
+
+	private void restore(AnalysisSession session) {
+		session.allocCounter = allocCounter;
+		session.staticAllocations.putAll(staticAllocations);
+		session.allocationTypes.putAll(allocationTypes);
+		session.requestedClasses.addAll(dependencies.keySet());
+
+		for(ClassNode model : models) {
+			try {
+				ClassNodeCache.tryGet(model.name);
+			} catch(ClassNotFoundException exc) {
+				ClassNodeCache.put(model.name, copy(model));
+			}
+		}
+	}
+
+	/** The methods of the models are modified when they are analysed, so the snapshot and each session have their own copy */
+	private static ClassNode copy(ClassNode cn) {
+		ClassNode res = new ClassNode();
+		cn.accept(res);
+		return res;
+	}
+}
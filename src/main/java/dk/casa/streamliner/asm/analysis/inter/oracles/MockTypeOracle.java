@@ -17,7 +17,7 @@ public class MockTypeOracle implements TypeQueryOracle {
 	public Optional<Type> queryType(Context context, MethodInsnNode minsn, InterValue receiver) {
 		Type ownerT = Type.getObjectType(minsn.owner);
 		Type receiverT = receiver.type.getType();
-		if(receiverT.equals(ownerT) || Utils.getAncestors(receiverT).contains(ownerT))
+		if(receiverT.equals(ownerT) || Utils.hasAncestor(receiverT, ownerT))
 			ownerT = receiverT;
 
 		if(minsn.name.equals("stream")) {
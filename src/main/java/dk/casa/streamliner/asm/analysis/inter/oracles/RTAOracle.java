@@ -0,0 +1,506 @@
+package dk.casa.streamliner.asm.analysis.inter.oracles;
+
+import dk.casa.streamliner.asm.ClassHierarchy;
+import dk.casa.streamliner.asm.ClassNodeCache;
+import dk.casa.streamliner.asm.Utils;
+import dk.casa.streamliner.asm.analysis.MethodIdentifier;
+import dk.casa.streamliner.asm.analysis.inter.AnalysisSession;
+import dk.casa.streamliner.asm.analysis.inter.Context;
+import dk.casa.streamliner.asm.analysis.inter.InterValue;
+import dk.casa.streamliner.utils.Counter;
+import org.objectweb.asm.Handle;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.tree.*;
+import org.objectweb.asm.tree.analysis.Analyzer;
+import org.objectweb.asm.tree.analysis.AnalyzerException;
+import org.objectweb.asm.tree.analysis.Frame;
+import org.objectweb.asm.tree.analysis.SourceInterpreter;
+import org.objectweb.asm.tree.analysis.SourceValue;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+import static org.objectweb.asm.Opcodes.*;
+
+/**
+ *  Type query oracle based on Rapid Type Analysis of the classes in the ClassNodeCache.
+ *
+ *  The receiver of a call is first traced back to its allocation sites through locals, casts, the return
+ *  values of calls with a single target and the arguments of the calls in the RTA call graph that pass it
+ *  as a parameter. If it is only allocated with one type, that type is the answer. Otherwise the answer is the only class that is a subtype of the receiver
+ *  type and instantiated in a method that is reachable from the entry points.
+ *
+ *  Classes that are instantiated by the JVM, through reflection or in native code are not seen by the
+ *  analysis, and neither are methods of classes that cannot be loaded.
+ */
+public class RTAOracle implements TypeQueryOracle {
+	// Number of nested calls and callers that are followed when tracing allocation sites
+	private static final int maxCallDepth = 2;
+	// Parameters of methods with more call sites than this are not traced
+	private static final int maxCallSites = 32;
+
+	private boolean initialised = false;
+	private final List<MethodIdentifier> entryPoints;
+
+	public final Counter<String> queryStats = new Counter<>(Arrays.asList(
+			"total", "allocation", "singleton", "multiple", "zero", "lambda"
+	));
+
+	private final Set<MethodIdentifier> reachable = new HashSet<>();
+	private final Deque<MethodIdentifier> worklist = new ArrayDeque<>();
+	private final Set<String> instantiated = new HashSet<>();
+	// Instantiated classes indexed by their super types
+	private final Map<String, Set<String>> instantiatedSubtypes = new HashMap<>();
+	// Name + descriptor of the virtual calls in reachable methods indexed by the owner of the call
+	private final Map<String, Set<String>> virtualCalls = new HashMap<>();
+	// Interfaces that are implemented by lambdas in reachable methods
+	private final Set<String> lambdaTypes = new HashSet<>();
+
+	private static final class CallSite {
+		final MethodIdentifier caller;
+		final MethodInsnNode insn;
+
+		CallSite(MethodIdentifier caller, MethodInsnNode insn) {
+			this.caller = caller;
+			this.insn = insn;
+		}
+	}
+
+	// Calls in reachable methods indexed by the name + descriptor of the called method
+	private final Map<String, List<CallSite>> callSites = new HashMap<>();
+	// Methods that are also called from outside of the reachable methods, such as entry points and lambdas
+	private final Set<MethodIdentifier> externallyCalled = new HashSet<>();
+
+	// Traced allocation types for each remaining call depth, which are empty if they are unknown
+	private final List<Map<String, Optional<Set<String>>>> tracedTypes = new ArrayList<>();
+
+	public RTAOracle(Collection<MethodIdentifier> entryPoints) {
+		this.entryPoints = new ArrayList<>(entryPoints);
+		for(int i = 0; i < maxCallDepth; i++) tracedTypes.add(new HashMap<>());
+	}
+
+	private void init() {
+		initialised = true;
+		long start = System.nanoTime();
+
+		// The classes that the analysis reads are not dependencies of the current transformation
+		try(AnalysisSession ignored = AnalysisSession.open()) {
+			for(MethodIdentifier entryPoint : entryPoints) {
+				try {
+					ClassNode cn = ClassNodeCache.tryGet(entryPoint.owner);
+					Optional<MethodNode> mn = Utils.getMethod(cn, entryPoint.name, entryPoint.desc);
+					// Test methods are called on instances that are created by the test framework
+					if(mn.isPresent() && (mn.get().access & ACC_STATIC) == 0) instantiate(entryPoint.owner);
+				} catch(ClassNotFoundException exc) {
+					continue;
+				}
+
+				addReachable(entryPoint);
+				externallyCalled.add(entryPoint);
+			}
+
+			while(!worklist.isEmpty()) visit(worklist.pop());
+		}
+
+		entryPoints.clear();
+		System.out.format("Computed RTA call graph with %d methods and %d instantiated classes in %dms\n",
+				reachable.size(), instantiated.size(), TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+	}
+
+	private void addReachable(MethodIdentifier method) {
+		if(reachable.add(method)) worklist.push(method);
+	}
+
+	private void addStaticInitialiser(String owner) {
+		addReachable(new MethodIdentifier(owner, "<clinit>", "()V"));
+	}
+
+	private void addImplementation(String cls, String owner, String nameAndDesc) {
+		int split = nameAndDesc.indexOf('(');
+		String name = nameAndDesc.substring(0, split), desc = nameAndDesc.substring(split);
+		try {
+			ClassHierarchy.findMethodOwner(cls, name, desc, true)
+					.ifPresent(implOwner -> addReachable(new MethodIdentifier(implOwner, name, desc)));
+		} catch(RuntimeException exc) {
+			// Part of the hierarchy of cls is missing
+		}
+	}
+
+	private void instantiate(String cls) {
+		if(!instantiated.add(cls)) return;
+		addStaticInitialiser(cls);
+
+		Set<Type> ancestors;
+		try {
+			ancestors = ClassHierarchy.getAncestors(Type.getObjectType(cls));
+		} catch(RuntimeException exc) {
+			return;
+		}
+
+		for(Type ancestor : ancestors) {
+			String name = ancestor.getInternalName();
+			instantiatedSubtypes.computeIfAbsent(name, k -> new HashSet<>()).add(cls);
+			for(String call : virtualCalls.getOrDefault(name, Collections.emptySet()))
+				addImplementation(cls, name, call);
+		}
+	}
+
+	private void addVirtualCall(String owner, String name, String desc) {
+		if(owner.startsWith("[")) return; // Methods of arrays are the methods of Object
+		if(!virtualCalls.computeIfAbsent(owner, k -> new HashSet<>()).add(name + desc)) return;
+
+		for(String cls : instantiatedSubtypes.getOrDefault(owner, Collections.emptySet()))
+			addImplementation(cls, owner, name + desc);
+	}
+
+	private void addCallSite(MethodIdentifier caller, MethodInsnNode minsn) {
+		callSites.computeIfAbsent(minsn.name + minsn.desc, k -> new ArrayList<>()).add(new CallSite(caller, minsn));
+	}
+
+	private void visit(MethodIdentifier method) {
+		MethodNode mn;
+		try {
+			Optional<MethodNode> res = Utils.getMethod(ClassNodeCache.tryGet(method.owner), method.name, method.desc);
+			if(!res.isPresent()) return;
+			mn = res.get();
+		} catch(ClassNotFoundException exc) {
+			return;
+		}
+
+		for(AbstractInsnNode insn : mn.instructions) {
+			switch(insn.getOpcode()) {
+				case NEW:
+					instantiate(((TypeInsnNode) insn).desc);
+					break;
+
+				case GETSTATIC:
+				case PUTSTATIC:
+					addStaticInitialiser(((FieldInsnNode) insn).owner);
+					break;
+
+				case INVOKESTATIC:
+				case INVOKESPECIAL: {
+					MethodInsnNode minsn = (MethodInsnNode) insn;
+					addCallSite(method, minsn);
+					if(minsn.getOpcode() == INVOKESTATIC) addStaticInitialiser(minsn.owner);
+					resolveStatic(minsn).ifPresent(owner -> addReachable(new MethodIdentifier(owner, minsn.name, minsn.desc)));
+					break;
+				}
+
+				case INVOKEVIRTUAL:
+				case INVOKEINTERFACE: {
+					MethodInsnNode minsn = (MethodInsnNode) insn;
+					addCallSite(method, minsn);
+					addVirtualCall(minsn.owner, minsn.name, minsn.desc);
+					break;
+				}
+
+				case INVOKEDYNAMIC: {
+					InvokeDynamicInsnNode idyn = (InvokeDynamicInsnNode) insn;
+					if(!idyn.bsm.getOwner().equals("java/lang/invoke/LambdaMetafactory")) break;
+
+					lambdaTypes.add(Type.getReturnType(idyn.desc).getInternalName());
+					Handle impl = (Handle) idyn.bsmArgs[1];
+					if(impl.getTag() == H_NEWINVOKESPECIAL) instantiate(impl.getOwner());
+					MethodIdentifier target = new MethodIdentifier(impl.getOwner(), impl.getName(), impl.getDesc());
+					addReachable(target);
+					externallyCalled.add(target);
+					break;
+				}
+			}
+		}
+	}
+
+	/** Returns the owner of the target of a static or special call */
+	private static Optional<String> resolveStatic(MethodInsnNode minsn) {
+		try {
+			return ClassHierarchy.findMethodOwner(minsn.owner, minsn.name, minsn.desc, minsn.getOpcode() != INVOKESTATIC);
+		} catch(RuntimeException exc) {
+			return Optional.empty();
+		}
+	}
+
+	/** Returns the instantiated classes that are subtypes of type, or null if lambdas may also be subtypes */
+	private Set<String> getInstantiatedSubtypes(Type type) {
+		for(String lambdaType : lambdaTypes)
+			if(Utils.hasAncestor(Type.getObjectType(lambdaType), type)) return null;
+
+		return instantiatedSubtypes.getOrDefault(type.getInternalName(), Collections.emptySet());
+	}
+
+	/** Returns the owner of the only method that the call can reach */
+	private Optional<String> resolveTarget(MethodInsnNode minsn) {
+		switch(minsn.getOpcode()) {
+			case INVOKESTATIC:
+			case INVOKESPECIAL:
+				return resolveStatic(minsn);
+
+			case INVOKEVIRTUAL:
+			case INVOKEINTERFACE:
+				if(minsn.owner.startsWith("[")) return Optional.empty();
+				Set<String> classes = getInstantiatedSubtypes(Type.getObjectType(minsn.owner));
+				if(classes == null) return Optional.empty();
+
+				Set<String> owners = new HashSet<>();
+				for(String cls : classes) {
+					try {
+						ClassHierarchy.findMethodOwner(cls, minsn.name, minsn.desc, true).ifPresent(owners::add);
+					} catch(RuntimeException exc) {
+						return Optional.empty();
+					}
+				}
+				return owners.size() == 1 ? Optional.of(owners.iterator().next()) : Optional.empty();
+
+			default:
+				return Optional.empty();
+		}
+	}
+
+	/** Source frames of a method, where the parameters have sources that are not instructions of the method */
+	private static final class SourceAnalysis extends SourceInterpreter {
+		final MethodIdentifier method;
+		final MethodNode mn;
+		final Map<AbstractInsnNode, Integer> parameters = new HashMap<>();
+		Frame<SourceValue>[] frames;
+
+		SourceAnalysis(MethodIdentifier method, MethodNode mn) {
+			super(ASM9);
+			this.method = method;
+			this.mn = mn;
+		}
+
+		@Override
+		public SourceValue newParameterValue(boolean isInstanceMethod, int local, Type type) {
+			// The values of parameters would otherwise have no sources, which are lost when they are merged
+			AbstractInsnNode marker = new VarInsnNode(type.getOpcode(ILOAD), local);
+			parameters.put(marker, local);
+			return new SourceValue(type.getSize(), marker);
+		}
+
+		Frame<SourceValue> getFrame(AbstractInsnNode insn) {
+			return frames[mn.instructions.indexOf(insn)];
+		}
+
+		/** Returns the index of the parameter in the operands of a call to the method */
+		int getOperandIndex(int local) {
+			int index = 0, slot = 0;
+			if((mn.access & ACC_STATIC) == 0) {
+				if(local == 0) return 0;
+				index = slot = 1;
+			}
+
+			for(Type arg : Type.getArgumentTypes(mn.desc)) {
+				if(slot == local) return index;
+				slot += arg.getSize();
+				index++;
+			}
+			throw new IllegalArgumentException("Local " + local + " is not a parameter");
+		}
+
+		static SourceAnalysis analyse(MethodIdentifier method, MethodNode mn) {
+			SourceAnalysis res = new SourceAnalysis(method, mn);
+			try {
+				res.frames = new Analyzer<>(res).analyze(method.owner, mn);
+			} catch(AnalyzerException exc) {
+				return null;
+			}
+			return res;
+		}
+
+		/** Analyses the shared version of the method such that the result does not depend on the current session */
+		static SourceAnalysis analyseShared(MethodIdentifier method) {
+			ClassNode cn = ClassNodeCache.tryGetShared(method.owner);
+			if(cn == null) return null;
+
+			Optional<MethodNode> mn = Utils.getMethod(cn, method.name, method.desc);
+			if(!mn.isPresent() || (mn.get().access & (ACC_ABSTRACT | ACC_NATIVE)) != 0) return null;
+			return analyse(method, mn.get());
+		}
+	}
+
+	/** Adds the types that the value may be allocated with to res. Returns false if it may come from elsewhere. */
+	private boolean traceAllocations(SourceAnalysis analysis, SourceValue value, int depth,
+	                                 Set<AbstractInsnNode> visited, Set<String> res) {
+		// Uninitialised locals have no sources
+		if(value.insns.isEmpty()) return false;
+
+		for(AbstractInsnNode insn : value.insns) {
+			if(!visited.add(insn)) continue;
+
+			Integer parameter = analysis.parameters.get(insn);
+			if(parameter != null) {
+				if(depth == 0) return false;
+				Set<String> passed = getTracedTypes(analysis.method, analysis.getOperandIndex(parameter), depth - 1);
+				if(passed == null) return false;
+				res.addAll(passed);
+				continue;
+			}
+
+			Frame<SourceValue> frame = analysis.getFrame(insn);
+			switch(insn.getOpcode()) {
+				case NEW:
+					res.add(((TypeInsnNode) insn).desc);
+					break;
+
+				case ACONST_NULL:
+					break;
+
+				case ALOAD:
+					if(!traceAllocations(analysis, frame.getLocal(((VarInsnNode) insn).var), depth, visited, res))
+						return false;
+					break;
+
+				case ASTORE:
+				case DUP:
+				case CHECKCAST:
+					if(!traceAllocations(analysis, frame.getStack(frame.getStackSize() - 1), depth, visited, res))
+						return false;
+					break;
+
+				case INVOKEVIRTUAL:
+				case INVOKEINTERFACE:
+				case INVOKESTATIC:
+				case INVOKESPECIAL: {
+					if(depth == 0) return false;
+					MethodInsnNode minsn = (MethodInsnNode) insn;
+					Optional<String> target = resolveTarget(minsn);
+					if(!target.isPresent()) return false;
+
+					Set<String> returned = getTracedTypes(new MethodIdentifier(target.get(), minsn.name, minsn.desc), -1, depth - 1);
+					if(returned == null) return false;
+					res.addAll(returned);
+					break;
+				}
+
+				default:
+					return false;
+			}
+		}
+
+		return true;
+	}
+
+	/** Returns the allocated types of the values that are returned by the method if operand is -1,
+	 *  or otherwise of the values that are passed as the operand in calls to the method. */
+	private Set<String> getTracedTypes(MethodIdentifier method, int operand, int depth) {
+		Map<String, Optional<Set<String>>> cache = tracedTypes.get(depth);
+		String key = method.owner + "." + method.name + method.desc + "#" + operand;
+		Optional<Set<String>> cached = cache.get(key);
+		if(cached != null) return cached.orElse(null);
+
+		// Recursive calls are unknown
+		cache.put(key, Optional.empty());
+		Set<String> res = operand == -1 ? computeReturnedTypes(method, depth) : computePassedTypes(method, operand, depth);
+		cache.put(key, Optional.ofNullable(res));
+		return res;
+	}
+
+	private Set<String> computeReturnedTypes(MethodIdentifier method, int depth) {
+		SourceAnalysis analysis = SourceAnalysis.analyseShared(method);
+		if(analysis == null) return null;
+
+		Set<String> res = new HashSet<>();
+		Set<AbstractInsnNode> visited = new HashSet<>();
+		for(AbstractInsnNode insn : analysis.mn.instructions) {
+			if(insn.getOpcode() != ARETURN) continue;
+			Frame<SourceValue> frame = analysis.getFrame(insn);
+			if(frame == null) continue;
+
+			if(!traceAllocations(analysis, frame.getStack(frame.getStackSize() - 1), depth, visited, res))
+				return null;
+		}
+		return res;
+	}
+
+	private Set<String> computePassedTypes(MethodIdentifier method, int operand, int depth) {
+		if(externallyCalled.contains(method)) return null;
+
+		List<CallSite> callers = new ArrayList<>();
+		for(CallSite site : callSites.getOrDefault(method.name + method.desc, Collections.emptyList())) {
+			if(!mayCall(site.insn, method)) continue;
+			if(callers.size() == maxCallSites) return null;
+			callers.add(site);
+		}
+
+		Set<String> res = new HashSet<>();
+		for(CallSite site : callers) {
+			SourceAnalysis analysis = SourceAnalysis.analyseShared(site.caller);
+			if(analysis == null) return null;
+			Frame<SourceValue> frame = analysis.getFrame(site.insn);
+			if(frame == null) continue;
+
+			int operands = Type.getArgumentTypes(site.insn.desc).length + (site.insn.getOpcode() == INVOKESTATIC ? 0 : 1);
+			SourceValue value = frame.getStack(frame.getStackSize() - operands + operand);
+			if(!traceAllocations(analysis, value, depth, new HashSet<>(), res)) return null;
+		}
+		return res;
+	}
+
+	/** Returns true if the call may reach the method */
+	private boolean mayCall(MethodInsnNode site, MethodIdentifier method) {
+		switch(site.getOpcode()) {
+			case INVOKESTATIC:
+			case INVOKESPECIAL:
+				return resolveStatic(site).map(method.owner::equals).orElse(false);
+
+			default:
+				if(site.owner.startsWith("[")) return method.owner.equals("java/lang/Object");
+				for(String cls : instantiatedSubtypes.getOrDefault(site.owner, Collections.emptySet())) {
+					try {
+						if(ClassHierarchy.findMethodOwner(cls, site.name, site.desc, true).map(method.owner::equals).orElse(false))
+							return true;
+					} catch(RuntimeException exc) {
+						return true;
+					}
+				}
+				return false;
+		}
+	}
+
+	/** Returns the types that the receiver of the call is allocated with, or null if it is unknown */
+	private Set<String> getReceiverAllocations(Context context, MethodInsnNode minsn) {
+		MethodNode mn = context.getMethod();
+		SourceAnalysis analysis = SourceAnalysis.analyse(new MethodIdentifier(context.getOwner(), mn.name, mn.desc), mn);
+		if(analysis == null) return null;
+
+		Frame<SourceValue> frame = analysis.getFrame(minsn);
+		if(frame == null) return null;
+
+		SourceValue receiver = frame.getStack(frame.getStackSize() - 1 - Type.getArgumentTypes(minsn.desc).length);
+		Set<String> res = new HashSet<>();
+		return traceAllocations(analysis, receiver, maxCallDepth, new HashSet<>(), res) ? res : null;
+	}
+
+	@Override
+	public Optional<Type> queryType(Context context, MethodInsnNode minsn, InterValue receiver) {
+		if(!initialised) init();
+		queryStats.add("total");
+
+		Set<String> allocations = getReceiverAllocations(context, minsn);
+		if(allocations != null && allocations.size() == 1) {
+			queryStats.add("allocation");
+			return Optional.of(Type.getObjectType(allocations.iterator().next()));
+		}
+
+		Type type = Type.getObjectType(minsn.owner);
+		Type receiverType = receiver.type.getType();
+		if(receiverType.getSort() == Type.OBJECT && Utils.hasAncestor(receiverType, type)) type = receiverType;
+
+		Set<String> classes = getInstantiatedSubtypes(type);
+		if(classes == null) {
+			queryStats.add("lambda");
+			return Optional.empty();
+		}
+
+		if(classes.isEmpty()) {
+			queryStats.add("zero");
+			return Optional.empty();
+		} else if(classes.size() > 1) {
+			queryStats.add("multiple");
+			return Optional.empty();
+		}
+
+		queryStats.add("singleton");
+		return Optional.of(Type.getObjectType(classes.iterator().next()));
+	}
+}
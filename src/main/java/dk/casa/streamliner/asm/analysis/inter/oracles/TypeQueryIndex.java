@@ -0,0 +1,129 @@
+package dk.casa.streamliner.asm.analysis.inter.oracles;
+
+import dk.casa.streamliner.asm.analysis.inter.Context;
+import dk.casa.streamliner.asm.analysis.inter.InterValue;
+import dk.casa.streamliner.asm.transform.TransformCache;
+import dk.casa.streamliner.utils.Counter;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.tree.*;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ *  Persistent index of the answers of a type query oracle.
+ *  Answers are keyed by the method, the call, its line and the type of the receiver, so the delegate is only
+ *  queried (and initialised) for calls that are not in the index. The whole-program oracles only use the call site,
+ *  but RTAOracle narrows the answer by the type of the receiver, which can differ between contexts.
+ *  The index file should be specific to the analysed project and the delegate, since it is not invalidated.
+ *
+ *  The index is enabled by setting the system property streamliner.typeindex to a directory.
+ */
+public class TypeQueryIndex implements TypeQueryOracle {
+	private static final int FORMAT = 2;
+
+	private final Path file;
+	private final TypeQueryOracle delegate;
+	private final Map<String, Optional<Type>> answers = new HashMap<>();
+	private boolean changed = false;
+
+	public final Counter<String> stats = new Counter<>(Arrays.asList("hit", "miss"));
+
+	public TypeQueryIndex(Path file, TypeQueryOracle delegate) {
+		this.file = file;
+		this.delegate = delegate;
+		if(Files.exists(file)) load();
+	}
+
+	/** Returns an index of the delegate in the directory given by the streamliner.typeindex property,
+	 *  or the delegate itself if it is not set.
+	 * @param configuration Description of the analysed project and the delegate.
+	 */
+	public static TypeQueryOracle fromProperty(String configuration, TypeQueryOracle delegate) {
+		String dir = System.getProperty("streamliner.typeindex");
+		if(dir == null || delegate == null) return delegate;
+		return new TypeQueryIndex(Paths.get(dir).resolve(TransformCache.hash(configuration)), delegate);
+	}
+
+	private void load() {
+		try(DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+			if(in.readInt() != FORMAT) return;
+			int size = in.readInt();
+			for(int i = 0; i < size; i++) {
+				String key = in.readUTF();
+				answers.put(key, in.readBoolean() ? Optional.of(Type.getObjectType(in.readUTF())) : Optional.empty());
+			}
+		} catch(IOException exc) {
+			System.err.println("Unable to read type query index " + file + ": " + exc);
+			answers.clear();
+		}
+	}
+
+	/** Writes the answers to the index file if there are new answers */
+	public synchronized void save() {
+		if(!changed) return;
+
+		Path tmp = null;
+		try {
+			Path directory = file.toAbsolutePath().getParent();
+			Files.createDirectories(directory);
+			tmp = Files.createTempFile(directory, "index", ".tmp");
+			try(DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+				out.writeInt(FORMAT);
+				out.writeInt(answers.size());
+				for(Map.Entry<String, Optional<Type>> entry : new TreeMap<>(answers).entrySet()) {
+					out.writeUTF(entry.getKey());
+					out.writeBoolean(entry.getValue().isPresent());
+					if(entry.getValue().isPresent()) out.writeUTF(entry.getValue().get().getInternalName());
+				}
+			}
+			Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			changed = false;
+		} catch(IOException exc) {
+			System.err.println("Unable to write type query index " + file + ": " + exc);
+			try {
+				if(tmp != null) Files.deleteIfExists(tmp);
+			} catch(IOException ignored) {}
+		}
+	}
+
+	/** Identifies the call by the method that contains it, its line, its position among the calls with the same target
+	 *  and the type of the receiver */
+	private static String getKey(Context context, MethodInsnNode minsn, InterValue receiver) {
+		MethodNode mn = context.getMethod();
+		int line = -1, position = 0;
+		for(AbstractInsnNode insn = minsn.getPrevious(); insn != null; insn = insn.getPrevious()) {
+			if(insn instanceof LineNumberNode && line == -1) line = ((LineNumberNode) insn).line;
+			if(insn instanceof MethodInsnNode) {
+				MethodInsnNode other = (MethodInsnNode) insn;
+				if(other.owner.equals(minsn.owner) && other.name.equals(minsn.name) && other.desc.equals(minsn.desc))
+					position++;
+			}
+		}
+
+		return String.join(" ", context.getOwner() + "." + mn.name + mn.desc,
+				minsn.owner + "." + minsn.name + minsn.desc, String.valueOf(position), String.valueOf(line),
+				receiver.type.getType().getDescriptor());
+	}
+
+	@Override
+	public synchronized Optional<Type> queryType(Context context, MethodInsnNode minsn, InterValue receiver) {
+		// The names of lambda models differ between runs
+		if(context.getOwner().contains("LambdaModel$") || minsn.owner.contains("LambdaModel$"))
+			return delegate.queryType(context, minsn, receiver);
+
+		String key = getKey(context, minsn, receiver);
+		Optional<Type> answer = answers.get(key);
+		if(answer != null) {
+			stats.add("hit");
+			return answer;
+		}
+
+		stats.add("miss");
+		answer = delegate.queryType(context, minsn, receiver);
+		answers.put(key, answer);
+		changed = true;
+		return answer;
+	}
+}
@@ -35,8 +35,8 @@ import com.ibm.wala.util.CancelException;
 import com.ibm.wala.util.collections.Pair;
 import com.ibm.wala.util.config.AnalysisScopeReader;
 import com.ibm.wala.util.debug.UnimplementedError;
-import com.ibm.wala.util.perf.Stopwatch;
 import com.ibm.wala.util.strings.Atom;
+import dk.casa.streamliner.asm.Metrics;
 import dk.casa.streamliner.asm.analysis.MethodIdentifier;
 import dk.casa.streamliner.asm.analysis.inter.Context;
 import dk.casa.streamliner.asm.analysis.inter.InterValue;
@@ -166,8 +166,7 @@ public class WALAOracle implements TypeQueryOracle {
 		MethodNode mn = context.getMethod();
 
 		queryStats.add("total");
-		System.out.format("Starting WALA query in %s.%s for receiver of call to %s.%s%s\n",
-				context.getOwner(), mn.name, minsn.owner, minsn.name, minsn.desc);
+		Metrics.count("walaQueries", 1);
 
 		IClass cls = lookupClass(context.getOwner());
 		IMethod method = cls.getMethod(new Selector(Atom.findOrCreateUnicodeAtom(mn.name), Descriptor.findOrCreateUTF8(mn.desc)));
@@ -224,11 +223,9 @@ public class WALAOracle implements TypeQueryOracle {
 
 		PointerKey pk = heapModel.getPointerKeyForLocal(node, invoke.getUse(0));
 		Pair<DemandRefinementPointsTo.PointsToResult, Collection<InstanceKey>> res;
-		Stopwatch stopwatch = new Stopwatch();
+		long start = Metrics.start();
 		try {
-		    stopwatch.start();
 			res = drpt.getPointsTo(pk, k -> true);
-			stopwatch.stop();
 		} catch(AssertionError exc) {
 			System.err.println(exc);
 			queryStats.add("AssertionError");
@@ -244,7 +241,8 @@ public class WALAOracle implements TypeQueryOracle {
 		}
 
 		queryStats.add(res.fst.toString());
-		System.out.format("Points to query finished with %s in %.2fs\n", res.fst, (float)stopwatch.getElapsedMillis()/1000.f);
+		Metrics.sampleSince("walaPointsToMicros", start);
+		Metrics.count("walaPointsTo" + res.fst, 1);
 
 		if(res.fst != DemandRefinementPointsTo.PointsToResult.SUCCESS)
 			return Optional.empty();
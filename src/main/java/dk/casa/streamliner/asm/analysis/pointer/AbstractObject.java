@@ -1,29 +1,31 @@
 package dk.casa.streamliner.asm.analysis.pointer;
 
 import dk.casa.streamliner.asm.Utils;
+import dk.casa.streamliner.utils.IntMap;
 import org.apache.commons.math3.util.Pair;
 import org.objectweb.asm.Type;
 import org.objectweb.asm.tree.FieldNode;
 import org.objectweb.asm.tree.analysis.Interpreter;
 import org.objectweb.asm.tree.analysis.Value;
 
-import java.util.Collections;
-import java.util.HashMap;
-import java.util.Map;
 import java.util.Set;
-import java.util.function.Function;
 
 import static org.objectweb.asm.Opcodes.ACC_STATIC;
 
+/** Abstract object with fields keyed by their ids in FieldIds.
+ *  Objects are shared between heaps when heaps are copied. Shared objects must not be modified,
+ *  so fields should be written through the heap, which copies a shared object on the first write.
+ */
 public class AbstractObject<V extends AbstractPointer & Value> {
 	private final String className;
 	private final boolean isStatic;
-	private final Map<String, V> fields;
+	private final IntMap<V> fields;
+	boolean shared;
 
 	public AbstractObject(String className, boolean isStatic) {
 		this.className = className;
 		this.isStatic = isStatic;
-		this.fields = new HashMap<>();
+		this.fields = new IntMap<>();
 	}
 
 	public AbstractObject(String className) {
@@ -33,56 +35,90 @@ public class AbstractObject<V extends AbstractPointer & Value> {
 	public AbstractObject(AbstractObject<V> obj) {
 		this.className = obj.className;
 		this.isStatic = obj.isStatic;
-		this.fields = new HashMap<>(obj.fields);
+		this.fields = new IntMap<>(obj.fields);
 	}
 
 	public String getName() {
 		return className;
 	}
 
+	public boolean hasField(int fieldId) {
+		return fields.containsKey(fieldId);
+	}
+
 	public boolean hasField(String fieldName) {
-		return fields.containsKey(fieldName);
+		return hasField(FieldIds.get(fieldName));
+	}
+
+	public V getField(int fieldId) {
+		return fields.get(fieldId);
 	}
 
 	public V getField(String fieldName) {
-		return fields.get(fieldName);
+		return getField(FieldIds.get(fieldName));
+	}
+
+	public void setField(int fieldId, V value) {
+		checkUnshared();
+		fields.put(fieldId, value);
 	}
 
 	public void setField(String fieldName, V value) {
-		fields.put(fieldName, value);
+		setField(FieldIds.get(fieldName), value);
 	}
 
-	public Set<Map.Entry<String, V>> entrySet() {
-		return Collections.unmodifiableSet(fields.entrySet());
+	/** The fields of the object, see IntMap for how to iterate them */
+	public IntMap<V> fieldMap() {
+		return fields;
 	}
 
 	public Set<Pair<String, FieldNode>> getFields() {
 		return Utils.getFields(className, fn -> (fn.access & ACC_STATIC) == (isStatic ? ACC_STATIC : 0));
 	}
 
-	public final boolean toTop(Interpreter<V> interpreter) {
-		return merge(interpreter, pair -> interpreter.newValue(Type.getType(pair.getSecond().desc)));
-	}
-
-	public final boolean merge(AbstractObject<V> cell, Interpreter<V> interpreter) {
-		return merge(interpreter, pair -> cell.getField(pair.getFirst() + "." + pair.getSecond().name));
+	private void checkUnshared() {
+		if(shared) throw new IllegalStateException("Shared abstract objects cannot be modified");
 	}
 
-	private boolean merge(Interpreter<V> interpreter, Function<Pair<String, FieldNode>, V> valueProvider) {
+	public final boolean toTop(Interpreter<V> interpreter) {
+		checkUnshared();
 		boolean changed = false;
 		for(Pair<String, FieldNode> pair : getFields()) {
 			FieldNode fn = pair.getSecond();
-			String fieldName = pair.getFirst() + "." + fn.name;
-			V oldValue = fields.get(fieldName);
-			V newValue = interpreter.merge(oldValue, valueProvider.apply(pair));
+			int fieldId = FieldIds.get(pair.getFirst(), fn.name);
+			V oldValue = fields.get(fieldId);
+			V newValue = interpreter.merge(oldValue, interpreter.newValue(Type.getType(fn.desc)));
 			if(!oldValue.equals(newValue)) {
-				setField(fieldName, newValue);
+				setField(fieldId, newValue);
 				changed = true;
 			}
 		}
 		return changed;
 	}
 
+	public final boolean merge(AbstractObject<V> cell, Interpreter<V> interpreter) {
+		checkUnshared();
+		return merged(cell, interpreter, false) != null;
+	}
+
+	/** Merges the fields of cell into the fields of this object, or into a copy if copy is true.
+	 *  Returns the merged object, or null if no fields changed. */
+	AbstractObject<V> merged(AbstractObject<V> cell, Interpreter<V> interpreter, boolean copy) {
+		if(cell == this) return null;
+
+		AbstractObject<V> res = null;
+		for(int slot = fields.next(-1); slot >= 0; slot = fields.next(slot)) {
+			V oldValue = fields.valueAt(slot);
+			V newValue = interpreter.merge(oldValue, cell.getField(fields.keyAt(slot)));
+			if(oldValue.equals(newValue)) continue;
+
+			if(res == null) res = copy ? new AbstractObject<>(this) : this;
+			// Replacing the value of an existing key does not move the slots
+			res.fields.put(fields.keyAt(slot), newValue);
+		}
+		return res;
+	}
+
 	@Override
 	public int hashCode() {
 		return fields.hashCode();
@@ -93,4 +129,14 @@ public class AbstractObject<V extends AbstractPointer & Value> {
 		return this == o ||
 				(o instanceof AbstractObject && fields.equals(((AbstractObject) o).fields));
 	}
+
+	@Override
+	public String toString() {
+		StringBuilder builder = new StringBuilder("{");
+		for(int slot = fields.next(-1); slot >= 0; slot = fields.next(slot)) {
+			if(builder.length() > 1) builder.append(", ");
+			builder.append(FieldIds.getName(fields.keyAt(slot))).append('=').append(fields.valueAt(slot));
+		}
+		return builder.append('}').toString();
+	}
 }
@@ -0,0 +1,46 @@
+package dk.casa.streamliner.asm.analysis.pointer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/** Interns field names as ints such that abstract objects do not have to hash and compare strings.
+ *  The ids are shared by all threads and are never reclaimed. */
+public final class FieldIds {
+	private static final Map<String, Integer> ids = new ConcurrentHashMap<>();
+	// owner -> name -> id, which avoids building the qualified name on lookups
+	private static final Map<String, Map<String, Integer>> qualifiedIds = new ConcurrentHashMap<>();
+	private static final List<String> names = new ArrayList<>();
+
+	private FieldIds() {}
+
+	public static int get(String fieldName) {
+		Integer id = ids.get(fieldName);
+		if(id != null) return id;
+
+		synchronized (names) {
+			return ids.computeIfAbsent(fieldName, k -> {
+				names.add(k);
+				return names.size() - 1;
+			});
+		}
+	}
+
+	/** Returns the id of the field name owner.name */
+	public static int get(String owner, String name) {
+		Map<String, Integer> byName = qualifiedIds.computeIfAbsent(owner, k -> new ConcurrentHashMap<>());
+		Integer id = byName.get(name);
+		if(id != null) return id;
+
+		id = get(owner + "." + name);
+		byName.put(name, id);
+		return id;
+	}
+
+	public static String getName(int id) {
+		synchronized (names) {
+			return names.get(id);
+		}
+	}
+}
@@ -1,16 +1,30 @@
 package dk.casa.streamliner.asm.analysis.pointer;
 
+import dk.casa.streamliner.utils.IntMap;
+import dk.casa.streamliner.utils.IntSet;
+import org.objectweb.asm.tree.analysis.Interpreter;
 import org.objectweb.asm.tree.analysis.Value;
 
 import java.util.*;
 
+/** Abstract heap from allocation indices to abstract objects.
+ *  Copies of a heap share the map of cells and the escaped set until one of the heaps is modified.
+ *  The abstract objects remain shared after that, and are copied when they are first written.
+ */
 public class Heap<V extends AbstractPointer & Value> {
-	private final Map<Integer, AbstractObject<V>> cells;
-	private final Set<Integer> escaped;
+	// Empty heaps share these until they are modified
+	private static final IntMap<?> emptyCells = new IntMap<>();
+	private static final IntSet emptyEscaped = new IntSet();
 
+	private IntMap<AbstractObject<V>> cells;
+	private IntSet escaped;
+	// Whether the map of cells and the escaped set are exclusive to this heap
+	private boolean ownsCells, ownsEscaped;
+
+	@SuppressWarnings("unchecked")
 	public Heap() {
-		cells = new HashMap<>();
-		escaped = new HashSet<>();
+		cells = (IntMap<AbstractObject<V>>) emptyCells;
+		escaped = emptyEscaped;
 	}
 
 	public Heap(Heap<V> other) {
@@ -25,60 +39,132 @@ public class Heap<V extends AbstractPointer & Value> {
 
 	// Heap operations
 
+	/** Returns the cell for reading. Use getMutableCell or the field operations of the heap to modify it. */
 	public AbstractObject<V> getCell(int i) {
 		return cells.get(i);
 	}
 
+	private IntMap<AbstractObject<V>> ownCells() {
+		if(!ownsCells) {
+			cells = new IntMap<>(cells);
+			// The objects are still referenced by the heaps that share the old map
+			for(int slot = cells.next(-1); slot >= 0; slot = cells.next(slot))
+				cells.valueAt(slot).shared = true;
+			ownsCells = true;
+		}
+		return cells;
+	}
+
+	private IntSet ownEscaped() {
+		if(!ownsEscaped) {
+			escaped = new IntSet(escaped);
+			ownsEscaped = true;
+		}
+		return escaped;
+	}
+
+	/** Returns the cell for modification, which is copied first if it is shared with other heaps */
+	public AbstractObject<V> getMutableCell(int i) {
+		AbstractObject<V> obj = cells.get(i);
+		if(obj == null || ownsCells && !obj.shared) return obj;
+
+		obj = new AbstractObject<>(obj);
+		ownCells().put(i, obj);
+		return obj;
+	}
+
 	public AbstractObject<V> allocate(int allocIndex, String name) {
 		AbstractObject<V> obj = new AbstractObject<>(name);
-		cells.put(allocIndex, obj);
+		ownCells().put(allocIndex, obj);
 		return obj;
 	}
 
 	public void allocate(int allocIndex, AbstractObject<V> obj) {
-		cells.put(allocIndex, obj);
+		ownCells().put(allocIndex, obj);
+	}
+
+	/** Adds the cell of the other heap to this heap without copying it */
+	public void share(int allocIndex, Heap<V> other) {
+		AbstractObject<V> obj = other.cells.get(allocIndex);
+		obj.shared = true;
+		ownCells().put(allocIndex, obj);
+	}
+
+	/** Merges the cell of the other heap into the cell of this heap. Returns true if the cell changed. */
+	public boolean mergeCell(int allocIndex, AbstractObject<V> other, Interpreter<V> interpreter) {
+		AbstractObject<V> obj = cells.get(allocIndex);
+		AbstractObject<V> merged = obj.merged(other, interpreter, !ownsCells || obj.shared);
+		if(merged == null) return false;
+
+		if(merged != obj) ownCells().put(allocIndex, merged);
+		return true;
+	}
+
+	/** Adds the escaped cells of the other heap. Returns true if any cells were added. */
+	public boolean mergeEscaped(Heap<V> other) {
+		if(escaped == other.escaped || escaped.containsAll(other.escaped)) return false;
+		return ownEscaped().addAll(other.escaped);
+	}
+
+	public V getField(int i, int fieldId, V defaultValue) {
+		AbstractObject<V> obj = cells.get(i);
+		if(obj == null) return defaultValue;
+		return obj.getField(fieldId);
 	}
 
 	public V getField(int i, String fieldName, V defaultValue) {
-		if(!containsKey(i)) return defaultValue;
-		return getCell(i).getField(fieldName);
+		return getField(i, FieldIds.get(fieldName), defaultValue);
+	}
+
+	public void setField(int i, int fieldId, V value) {
+		getMutableCell(i).setField(fieldId, value);
 	}
 
 	public void setField(int i, String fieldName, V value) {
-		getCell(i).setField(fieldName, value);
+		setField(i, FieldIds.get(fieldName), value);
 	}
 
 	public boolean addEscape(Collection<Integer> escaping) {
-		return escaped.addAll(escaping);
+		if(escaped.containsAll(escaping)) return false;
+		return ownEscaped().addAll(escaping);
 	}
 
+	/** Returns the escaped set, which may be modified by the caller */
 	public Set<Integer> getEscaped() {
-		return escaped;
+		return ownEscaped();
 	}
 
+	/** Makes the other heap a copy of this heap. The heaps share their structure until one of them is modified. */
 	public void copyTo(Heap<V> newHeap) {
-		newHeap.clear();
-		for(Map.Entry<Integer, AbstractObject<V>> e : cells.entrySet())
-			newHeap.cells.put(e.getKey(), new AbstractObject<V>(e.getValue()));
+		if(newHeap == this) return;
 
-		newHeap.escaped.addAll(escaped);
+		newHeap.cells = cells;
+		newHeap.escaped = escaped;
+		newHeap.ownsCells = newHeap.ownsEscaped = false;
+		ownsCells = ownsEscaped = false;
 	}
 
-	// Other operations that go directly through cells
+	/** Returns true if the heaps share their map of cells, in which case their cells are equal */
+	public boolean sharesCellsWith(Heap<V> other) {
+		return cells == other.cells;
+	}
 
-	private void clear() {
-		cells.clear();
-		escaped.clear();
+	/** Removes the cells that are not in the set */
+	public void retainAll(Set<Integer> indices) {
+		ownCells().retainAll(indices instanceof IntSet ? (IntSet) indices : new IntSet(indices));
 	}
 
+	// Other operations that go directly through cells
+
 	public int size() { return cells.size(); }
 
 	public Set<Integer> keySet() {
 		return cells.keySet();
 	}
 
-	public Set<Map.Entry<Integer, AbstractObject<V>>> entrySet() {
-		return Collections.unmodifiableSet(cells.entrySet());
+	/** The cells of the heap for reading, see IntMap for how to iterate them */
+	public IntMap<AbstractObject<V>> cellMap() {
+		return cells;
 	}
 
 	public boolean containsKey(int i) {
@@ -94,6 +180,7 @@ public class Heap<V extends AbstractPointer & Value> {
 	public boolean equals(Object o) {
 		if(!(o instanceof Heap)) return false;
 		Heap oh = (Heap) o;
+		if(cells == oh.cells && escaped == oh.escaped) return true;
 		return cells.equals(oh.cells) && escaped.equals(oh.escaped);
 	}
 }
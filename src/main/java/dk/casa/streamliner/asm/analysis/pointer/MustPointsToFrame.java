@@ -1,12 +1,12 @@
 package dk.casa.streamliner.asm.analysis.pointer;
 
+import dk.casa.streamliner.utils.IntMap;
 import org.objectweb.asm.tree.AbstractInsnNode;
 import org.objectweb.asm.tree.FieldInsnNode;
 import org.objectweb.asm.tree.analysis.AnalyzerException;
 import org.objectweb.asm.tree.analysis.Frame;
 import org.objectweb.asm.tree.analysis.Interpreter;
 
-import java.util.Map;
 import java.util.Set;
 
 import static org.objectweb.asm.Opcodes.GETFIELD;
@@ -63,15 +63,18 @@ public class MustPointsToFrame extends HeapFrame<MustPointsToValue> {
 		for(int i : indices) {
 			if(!otherHeap.containsKey(i)) {
 				cellsChanged = true;
-				cells.getCell(i).toTop(interpreter);
+				cells.getMutableCell(i).toTop(interpreter);
 			} else {
-				for(Map.Entry<String, MustPointsToValue> entry : cells.getCell(i).entrySet()) {
-					String field = entry.getKey();
-					MustPointsToValue oldValue = entry.getValue();
+				IntMap<MustPointsToValue> fields = cells.getCell(i).fieldMap();
+				for(int slot = fields.next(-1); slot >= 0; slot = fields.next(slot)) {
+					int field = fields.keyAt(slot);
+					MustPointsToValue oldValue = fields.valueAt(slot);
 					MustPointsToValue newValue = interpreter.merge(oldValue, otherHeap.getField(i, field, interpreter.newValue(null)));
 					if(!oldValue.equals(newValue)) {
 						cellsChanged = true;
 						cells.setField(i, field, newValue);
+						// The cell may have been copied by the write
+						fields = cells.getCell(i).fieldMap();
 					}
 				}
 			}
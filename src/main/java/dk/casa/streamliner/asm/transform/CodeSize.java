@@ -0,0 +1,64 @@
+package dk.casa.streamliner.asm.transform;
+
+import dk.casa.streamliner.asm.Metrics;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.tree.MethodNode;
+
+import static org.objectweb.asm.Opcodes.ASM7;
+
+/** The size of the bytecode of methods compared to the limits of HotSpot's JIT compilers.
+ *  HotSpot does not compile methods above HugeMethodLimit (8000 bytes) and does not inline methods
+ *  above FreqInlineSize (325 bytes) at hot call sites. The limits can be changed with the system properties
+ *  streamliner.hugeMethodLimit and streamliner.inlineLimit.
+ */
+public final class CodeSize {
+	public static final int hugeMethodLimit = Integer.getInteger("streamliner.hugeMethodLimit", 8000);
+	public static final int inlineLimit = Integer.getInteger("streamliner.inlineLimit", 325);
+
+	private CodeSize() {}
+
+	/** Thrown when an optimised method is too large to be compiled by the JIT */
+	public static class TooLargeException extends RuntimeException {
+		public final int size;
+
+		public TooLargeException(MethodNode mn, int size) {
+			super(String.format("Optimised method %s%s has %d bytes of code, which is above the limit of %d", mn.name, mn.desc, size, hugeMethodLimit));
+			this.size = size;
+		}
+	}
+
+	/** Returns the number of bytes of the code of the method */
+	public static int of(MethodNode mn) {
+		if(mn.instructions.size() == 0) return 0;
+
+		ClassWriter cw = new ClassWriter(0);
+		Label end = new Label();
+		mn.accept(new MethodVisitor(ASM7, cw.visitMethod(mn.access, mn.name, mn.desc, null, null)) {
+			// The frames are not part of the code
+			@Override
+			public void visitFrame(int type, int numLocal, Object[] local, int numStack, Object[] stack) {}
+
+			@Override
+			public void visitMaxs(int maxStack, int maxLocals) {
+				visitLabel(end);
+				super.visitMaxs(maxStack, maxLocals);
+			}
+		});
+
+		return end.getOffset();
+	}
+
+	/** Checks that the optimised method can still be compiled and returns true if it
+	 *  can no longer be inlined, although the original method could be. */
+	public static boolean check(MethodNode orig, MethodNode optimised) {
+		int size = of(optimised);
+		Metrics.peak("codeSize", size);
+		if(size > hugeMethodLimit) throw new TooLargeException(optimised, size);
+
+		boolean exceedsInlineLimit = size > inlineLimit && of(orig) <= inlineLimit;
+		if(exceedsInlineLimit) Metrics.count("exceedsInlineLimit", 1);
+		return exceedsInlineLimit;
+	}
+}
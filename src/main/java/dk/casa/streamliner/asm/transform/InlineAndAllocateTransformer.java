@@ -3,6 +3,7 @@ package dk.casa.streamliner.asm.transform;
 import dk.casa.streamliner.NotImplementedException;
 import dk.casa.streamliner.asm.ClassNodeCache;
 import dk.casa.streamliner.asm.InlineMethod;
+import dk.casa.streamliner.asm.Metrics;
 import dk.casa.streamliner.asm.Utils;
 import dk.casa.streamliner.asm.analysis.FlatElement;
 import dk.casa.streamliner.asm.analysis.InstructionStackEffect;
@@ -57,7 +58,7 @@ public class InlineAndAllocateTransformer {
 				InterValue thisValue = ctxt.getArguments().get(0);
 
 				// Field access happens inside spliterator method
-				return Utils.getAncestors(thisValue.type.getType()).contains(Type.getObjectType("java/util/Spliterator"))
+				return Utils.hasAncestor(thisValue.type.getType(), Type.getObjectType("java/util/Spliterator"))
 						// Accessed field is in the same nest as the spliterator
 						&& getNestHost(finsn.owner).equals(getNestHost(ctxt.getOwner()));
 			};
@@ -77,12 +78,23 @@ public class InlineAndAllocateTransformer {
 	}
 
 	public void transform() throws AnalyzerException {
-		Context initialContext = InterproceduralTypePointerAnalysis.startAnalysis(owner, method, oracle);
+		// Limited call strings merge the contexts of different call chains, whose frames and allocations overwrite each other
+		if(AnalysisSession.current().getContextLimit() > 0)
+			throw new IllegalStateException("Methods cannot be transformed with limited call strings (streamliner.context.limit)");
+
+		Context initialContext;
+		try(Metrics.Timer t = Metrics.time(Metrics.Phase.ANALYSIS, method)) {
+			initialContext = InterproceduralTypePointerAnalysis.startAnalysis(owner, method, oracle);
+		}
+		AnalysisSession session = AnalysisSession.current();
+		Metrics.count("interpretedInstructions", session.getBudget().getInstructions());
+		Metrics.count("summaryHits", session.getSummaryHits());
+
 		Map<Integer, Integer> idMap = IntStream.range(0, method.maxLocals).boxed()
 				.collect(Collectors.toMap(Function.identity(), Function.identity()));
 
 		// Fetch escaped set
-		InterFrame[] frames = InterproceduralTypePointerAnalysis.calls.get(initialContext);
+		InterFrame[] frames = session.calls.get(initialContext);
 		InterFrame retFrame = Utils.getReturnFrame(method, frames, new InterInterpreter(), InterFrame::new);
 		if(retFrame == null) throw new RuntimeException("No return instruction in method");
 
@@ -92,13 +104,17 @@ public class InlineAndAllocateTransformer {
 				.filter(i -> method.instructions.get(i).getOpcode() == ATHROW)
 				.forEach(i -> escapedSet.addAll(frames[i].getHeap().getEscaped()));
 
-		preAnalysis.run(initialContext, escapedSet);
+		try(Metrics.Timer t = Metrics.time(Metrics.Phase.PRE_TRANSFORM_ANALYSIS, method)) {
+			preAnalysis.run(initialContext, escapedSet);
+		}
 
-		System.err.println("Locals before transform: " + method.maxLocals);
-		recursiveTransform(initialContext, idMap, null, 0);
+		Metrics.count("localsBeforeInlining", method.maxLocals);
+		try(Metrics.Timer t = Metrics.time(Metrics.Phase.INLINING, method)) {
+			recursiveTransform(initialContext, idMap, null, 0);
 
-		method.instructions.insert(methodStart);
-		method.instructions.add(methodEnd);
+			method.instructions.insert(methodStart);
+			method.instructions.add(methodEnd);
+		}
 
 		InterproceduralTypePointerAnalysis.reset();
 	}
@@ -194,7 +210,7 @@ public class InlineAndAllocateTransformer {
 	                                LabelNode endLabel, int initialStackHeight) throws AnalyzerException {
 
 		MethodNode mth = context.getMethod();
-		InterFrame[] frames = InterproceduralTypePointerAnalysis.calls.get(context);
+		InterFrame[] frames = AnalysisSession.current().calls.get(context);
 		InsnList instructions = mth.instructions;
 
 		if(instructions.size() != frames.length)
@@ -306,13 +322,13 @@ public class InlineAndAllocateTransformer {
 					int varOpcode = Type.getType(finsn.desc).getOpcode(get ? ILOAD : ISTORE);
 
 					// We can load a constant if it is known
-					InterValue fieldValue = cell.getField(InterInterpreter.getFieldName(finsn));
+					InterValue fieldValue = cell.getField(InterInterpreter.getFieldId(finsn));
 					if(get && fieldValue.constant.isDefined()) {
 						instructions.insertBefore(insn, new InsnNode(POP));
 						instructions.set(insn, loadConstant(varOpcode, fieldValue.constant.value));
 					} else if(get && finsn.owner.equals("java/util/stream/FindOps$FindOp") && finsn.name.equals("emptyValue")) {
 						// Transform illegal accesses to FindOp.emptyValue into the corresponding static Optional constructor
-						TypeElement typ = cell.getField(InterInterpreter.getFieldName(finsn)).type;
+						TypeElement typ = cell.getField(InterInterpreter.getFieldId(finsn)).type;
 						String optionName = typ.getType().getInternalName();
 						instructions.insertBefore(insn, new InsnNode(POP));
 						instructions.set(insn, new MethodInsnNode(INVOKESTATIC, optionName, "empty", Type.getMethodDescriptor(Type.getObjectType(optionName)), false));
@@ -464,18 +480,21 @@ public class InlineAndAllocateTransformer {
 	private void performInlining(Context context, MethodInsnNode minsn, int insnIndex, InsnList instructions,
 	                             InterFrame frame, int initialStackHeight) throws AnalyzerException {
 
-		Set<Integer> calls = InterproceduralTypePointerAnalysis.analysedCalls.get(context);
+		Set<Integer> calls = AnalysisSession.current().analysedCalls.get(context);
 		if(calls == null || !calls.contains(insnIndex)) return;
 
 		List<InterValue> argumentValues = Utils.getArgumentValues(minsn, frame);
 		InlineMethod itarget = InterproceduralTypePointerAnalysis.resolveCall(minsn, argumentValues, frame.getHeap(), context);
+		Context callContext = context.newContext(itarget.owner, itarget.mth, insnIndex, frame.getHeap(), argumentValues);
 
-		MethodNode target = itarget.mth;
-		Context callContext = context.newContext(itarget.owner, target, insnIndex, frame.getHeap(), argumentValues);
-
-		if((target.access & ACC_NATIVE) != 0 || !preAnalysis.canInline(callContext))
+		if((itarget.mth.access & ACC_NATIVE) != 0 || !preAnalysis.canInline(callContext))
 			return; // bail on native functions
 
+		// The resolved method is shared with the analysis, so the inlined instructions are taken from a copy
+		itarget = itarget.copy();
+		MethodNode target = itarget.mth;
+		callContext = context.newContext(itarget.owner, target, insnIndex, frame.getHeap(), argumentValues);
+
 		List<Type> args = new ArrayList<>(Arrays.asList(Type.getArgumentTypes(target.desc)));
 		if(minsn.getOpcode() != INVOKESTATIC) {
 			InterValue thisValue = argumentValues.get(0);
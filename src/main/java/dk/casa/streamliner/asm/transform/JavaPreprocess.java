@@ -7,12 +7,13 @@ import org.objectweb.asm.tree.*;
 import org.objectweb.asm.util.CheckMethodAdapter;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 import static dk.casa.streamliner.utils.Utils.isJava8;
 import static org.objectweb.asm.Opcodes.*;
 
 public class JavaPreprocess {
-	private static final Set<MethodNode> preprocessed = Collections.newSetFromMap(new WeakHashMap<>());
+	private static final Set<MethodNode> preprocessed = Collections.synchronizedSet(Collections.newSetFromMap(new WeakHashMap<>()));
 	private static final Type objectType = Type.getObjectType("java/lang/Object");
 
 	public static void preprocess(String owner, MethodNode mn) {
@@ -102,7 +103,7 @@ public class JavaPreprocess {
 
 	// TODO: Refactor common parts of methods?
 	// Map from pipeline depth to generated method
-	private static final Map<Integer, MethodNode> wrapSinkModels = new HashMap<>();
+	private static final Map<Integer, MethodNode> wrapSinkModels = new ConcurrentHashMap<>();
 
 	public static MethodNode getWrapSinkModel(int depth) {
 		if(wrapSinkModels.containsKey(depth))
@@ -169,7 +170,7 @@ public class JavaPreprocess {
 		return mn;
 	}
 
-	private static final Map<Integer, MethodNode> copyIntoWithCancelModels = new HashMap<>();
+	private static final Map<Integer, MethodNode> copyIntoWithCancelModels = new ConcurrentHashMap<>();
 
 	public static MethodNode getCopyIntoWithCancelModel(int depth) {
 		if(copyIntoWithCancelModels.containsKey(depth))
@@ -0,0 +1,213 @@
+package dk.casa.streamliner.asm.transform;
+
+import dk.casa.streamliner.asm.analysis.FrameUtils;
+import dk.casa.streamliner.asm.analysis.constant.ConstantEvaluator;
+import dk.casa.streamliner.asm.analysis.constant.ConstantInterpreter;
+import dk.casa.streamliner.asm.analysis.constant.ConstantValue;
+import org.objectweb.asm.tree.*;
+import org.objectweb.asm.tree.analysis.Analyzer;
+import org.objectweb.asm.tree.analysis.AnalyzerException;
+import org.objectweb.asm.tree.analysis.Frame;
+
+import java.util.*;
+
+import static org.objectweb.asm.Opcodes.*;
+
+/**
+ *  Threads jumps through conditional branches whose outcome is known on the incoming edge.
+ *
+ *  After inlining, the loops of pull-based pipelines test flags that are set just before jumping back
+ *  to the loop header (e.g. the result of tryAdvance), and loop conditions are materialised as
+ *  ICONST_1/ICONST_0 before they are tested. C2 only recognises a loop as a counted loop when the
+ *  header compares the induction variable directly, so every edge on which the tested value is a constant
+ *  is sent straight to the outcome of the branch. The flags are then no longer tested in the loop header,
+ *  and the stores to them are removed by a second run of the cleanup.
+ */
+public class JumpThreading {
+	// Each round threads the edges into a branch, a chain of branches needs a round for each branch
+	private static final int maxRounds = 8;
+
+	private final String owner;
+	private final MethodNode mn;
+
+	public JumpThreading(String owner, MethodNode mn) {
+		this.owner = owner;
+		this.mn = mn;
+	}
+
+	public void run() throws AnalyzerException {
+		boolean modified = false;
+		for(int round = 0; round < maxRounds && thread(); round++)
+			modified = true;
+
+		if(modified) new LocalVariableCleanup(owner, mn).run();
+	}
+
+	private static boolean isBranch(AbstractInsnNode insn) {
+		return insn.getOpcode() >= IFEQ && insn.getOpcode() <= IFLE;
+	}
+
+	private static boolean fallsThrough(AbstractInsnNode insn) {
+		int opcode = insn.getOpcode();
+		return opcode != GOTO && opcode != JSR && opcode != RET && opcode != ATHROW && opcode != TABLESWITCH
+				&& opcode != LOOKUPSWITCH && (opcode < IRETURN || opcode > RETURN);
+	}
+
+	/** Skips line numbers and frames, but not labels */
+	private static AbstractInsnNode previous(AbstractInsnNode insn) {
+		do insn = insn.getPrevious();
+		while(insn instanceof LineNumberNode || insn instanceof FrameNode);
+		return insn;
+	}
+
+	private LabelNode labelAfter(AbstractInsnNode insn) {
+		if(insn.getNext() instanceof LabelNode) return (LabelNode) insn.getNext();
+		LabelNode label = new LabelNode();
+		mn.instructions.insert(insn, label);
+		return label;
+	}
+
+	/** Returns the first instruction after the labels, line numbers and frames at the label */
+	private static AbstractInsnNode first(LabelNode label) {
+		AbstractInsnNode insn = label;
+		while(insn != null && insn.getOpcode() < 0) insn = insn.getNext();
+		return insn;
+	}
+
+	/** Lets jumps to GOTOs go directly to the target of the GOTO, and copies GOTOs that are reached by falling through a label */
+	private boolean collapseJumps() {
+		boolean modified = false;
+		for(AbstractInsnNode insn : mn.instructions.toArray()) {
+			if(!(insn instanceof JumpInsnNode) || insn.getOpcode() == JSR) continue;
+			JumpInsnNode jmp = (JumpInsnNode) insn;
+
+			Set<AbstractInsnNode> visited = new HashSet<>();
+			LabelNode target = jmp.label;
+			for(AbstractInsnNode next = first(target); next != null && next.getOpcode() == GOTO && next != jmp && visited.add(next); next = first(target))
+				target = ((JumpInsnNode) next).label;
+
+			if(target != jmp.label) {
+				jmp.label = target;
+				modified = true;
+			}
+
+			if(jmp.getOpcode() == GOTO) {
+				AbstractInsnNode prev = previous(jmp);
+				if(!(prev instanceof LabelNode)) continue;
+				while(prev instanceof LabelNode) prev = previous(prev);
+				if(prev != null && fallsThrough(prev)) {
+					mn.instructions.insert(prev, new JumpInsnNode(GOTO, jmp.label));
+					modified = true;
+				}
+			}
+		}
+
+		return modified;
+	}
+
+	/** Returns the outcome of the branch if the value is a constant */
+	private static Optional<Boolean> outcome(JumpInsnNode branch, ConstantValue value) {
+		return ConstantEvaluator.branchOperation(branch, Collections.singletonList(value.value));
+	}
+
+	private boolean thread() throws AnalyzerException {
+		boolean collapsed = collapseJumps();
+
+		Analyzer<ConstantValue> analyzer = new Analyzer<>(new ConstantInterpreter());
+		Frame<ConstantValue>[] frames = analyzer.analyze(owner, mn);
+		AbstractInsnNode[] insns = mn.instructions.toArray();
+
+		Map<AbstractInsnNode, Integer> index = new HashMap<>();
+		Map<LabelNode, List<JumpInsnNode>> jumps = new HashMap<>();
+		for(int i = 0; i < insns.length; i++) {
+			index.put(insns[i], i);
+			if(insns[i] instanceof JumpInsnNode && frames[i] != null)
+				jumps.computeIfAbsent(((JumpInsnNode) insns[i]).label, l -> new ArrayList<>()).add((JumpInsnNode) insns[i]);
+		}
+
+		// Instructions that were removed in this round
+		Set<AbstractInsnNode> removed = new HashSet<>();
+		boolean threaded = false;
+		for(int i = 0; i < insns.length; i++) {
+			if(frames[i] == null || !isBranch(insns[i])) continue;
+			JumpInsnNode branch = (JumpInsnNode) insns[i];
+
+			// The branch is decided on all paths
+			Optional<Boolean> taken = outcome(branch, FrameUtils.getStackTop(frames[i]));
+			if(taken.isPresent()) {
+				mn.instructions.insertBefore(branch, new InsnNode(POP));
+				if(taken.get()) mn.instructions.set(branch, new JumpInsnNode(GOTO, branch.label));
+				else mn.instructions.remove(branch);
+				removed.add(branch);
+				continue;
+			}
+
+			// The tested value is either loaded from a local variable right before the branch or pushed by the predecessors
+			AbstractInsnNode head = branch;
+			int local = -1;
+			AbstractInsnNode prev = previous(branch);
+			if(prev != null && prev.getOpcode() == ILOAD) {
+				head = prev;
+				local = ((VarInsnNode) prev).var;
+			}
+
+			List<LabelNode> entries = new ArrayList<>();
+			for(prev = previous(head); prev instanceof LabelNode; prev = previous(prev))
+				entries.add((LabelNode) prev);
+
+			// The instruction that falls through to the head comes first, it can also jump to one of the entries
+			List<AbstractInsnNode> predecessors = new ArrayList<>();
+			boolean fallThrough = prev != null && fallsThrough(prev);
+			if(fallThrough) predecessors.add(prev);
+			for(LabelNode entry : entries)
+				predecessors.addAll(jumps.getOrDefault(entry, Collections.emptyList()));
+
+			for(int p = 0; p < predecessors.size(); p++) {
+				AbstractInsnNode pred = predecessors.get(p);
+				boolean viaJump = p > 0 || !fallThrough;
+				Integer j = index.get(pred);
+				if(j == null || frames[j] == null || removed.contains(pred)) continue;
+
+				// The value of the local variable after the predecessor, or the constant pushed by it
+				AbstractInsnNode push = null;
+				ConstantValue value;
+				if(local >= 0) {
+					Frame<ConstantValue> after = new Frame<>(frames[j]);
+					after.execute(pred, new ConstantInterpreter());
+					value = after.getLocal(local);
+				} else {
+					push = pred.getOpcode() == GOTO ? previous(pred) : pred;
+					Integer k = push == null ? null : index.get(push);
+					if(k == null || frames[k] == null || removed.contains(push) || !ConstantEvaluator.newOperation(push).isDefined()) continue;
+					value = new ConstantValue(1, ConstantEvaluator.newOperation(push));
+				}
+
+				taken = outcome(branch, value);
+				if(!taken.isPresent()) continue;
+				LabelNode target = taken.get() ? branch.label : labelAfter(branch);
+				if(entries.contains(target)) continue;  // Loops forever
+
+				if(pred == push) mn.instructions.set(push, new JumpInsnNode(GOTO, target));
+				else {
+					if(push != null) mn.instructions.remove(push);
+					// Only the edge that was analysed is moved, a conditional jump keeps its other edge
+					if(viaJump) ((JumpInsnNode) pred).label = target;
+					else mn.instructions.insert(pred, new JumpInsnNode(GOTO, target));
+				}
+				if(push != null) removed.add(push);
+				threaded = true;
+			}
+		}
+
+		if(threaded || !removed.isEmpty()) {
+			// Run analysis for reachability and remove dead instructions
+			frames = analyzer.analyze(owner, mn);
+			insns = mn.instructions.toArray();
+			for(int i = 0; i < insns.length; i++)
+				if(frames[i] == null && insns[i].getOpcode() >= 0)
+					mn.instructions.remove(insns[i]);
+		}
+
+		return collapsed || threaded || !removed.isEmpty();
+	}
+}
@@ -16,6 +16,7 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.IntFunction;
 import java.util.stream.Stream;
 
@@ -23,12 +24,12 @@ import static java.lang.invoke.LambdaMetafactory.*;
 import static org.objectweb.asm.Opcodes.*;
 
 public class LambdaPreprocessor {
-	private static int freshCounter = 0;
+	private static final AtomicInteger freshCounter = new AtomicInteger();
 	private final MethodNode method;
 
 	// Used to replace non-inlined lambdas with their original InvokeDynamic instruction
 	// TODO: WeakHashMap with strings as keys is not ideal
-	public static final Map<String, InvokeDynamicInsnNode> models = new WeakHashMap<>();
+	public static final Map<String, InvokeDynamicInsnNode> models = Collections.synchronizedMap(new WeakHashMap<>());
 
 	public static final boolean storeClasses = false;
 	public static final List<Pair<String, byte[]>> classes = new ArrayList<>();
@@ -86,7 +87,7 @@ public class LambdaPreprocessor {
 		cn.access = ACC_PUBLIC | ACC_SYNTHETIC | ACC_SUPER;
 		cn.outerClass = targetOwner;
 		cn.nestHostClass = targetOwner;
-		cn.name = String.format("%sLambdaModel$%s", modelOwner, freshCounter++);
+		cn.name = String.format("%sLambdaModel$%s", modelOwner, freshCounter.getAndIncrement());
 		cn.superName = "java/lang/Object";
 		cn.interfaces.add(interfaceType.getInternalName());
 
@@ -148,7 +149,7 @@ public class LambdaPreprocessor {
 		int maxFieldSize = 0;
 		for(int i = 0, local = 1; i < fieldTypes.length; i++) {
 			Type ft = fieldTypes[i];
-			FieldNode fn = new FieldNode(ACC_PRIVATE | ACC_FINAL, String.format("field$%s", freshCounter++), ft.getDescriptor(), null, null);
+			FieldNode fn = new FieldNode(ACC_PRIVATE | ACC_FINAL, String.format("field$%s", freshCounter.getAndIncrement()), ft.getDescriptor(), null, null);
 			cn.fields.add(fn);
 
 			Utils.addInstructions(constructor.instructions,
@@ -266,8 +267,18 @@ public class LambdaPreprocessor {
 
 
 		method.instructions.set(insn, new MethodInsnNode(INVOKESTATIC, cn.name, staticConstructor.name, staticConstructor.desc, false));
+		registerModel(cn, insn);
+	}
+
+	/** Registers the model of the invokedynamic insn such that it can be analysed and postprocessed */
+	static void registerModel(ClassNode cn, InvokeDynamicInsnNode insn) {
 		models.put(cn.name, insn);
-		ClassNodeCache.putBack(cn.name, cn);
+		ClassNodeCache.put(cn.name, cn);
+	}
+
+	/** Returns an unused name for a model with the same outer class as the given model */
+	static String freshModelName(String model) {
+		return model.substring(0, model.lastIndexOf('$') + 1) + freshCounter.getAndIncrement();
 	}
 
 	/** Returns the maximum stack size required to hold from or to */
@@ -394,7 +405,7 @@ public class LambdaPreprocessor {
 	}
 
 	private void cast(InsnList insns, Type from, Type to) {
-		if (!Utils.getAncestors(from).contains(to))
+		if (!Utils.hasAncestor(from, to))
 			insns.add(new TypeInsnNode(CHECKCAST, to.getInternalName()));
 	}
 }
@@ -1,5 +1,6 @@
 package dk.casa.streamliner.asm.transform;
 
+import dk.casa.streamliner.asm.Metrics;
 import dk.casa.streamliner.asm.Utils;
 import dk.casa.streamliner.asm.analysis.LivenessAnalysis;
 import dk.casa.streamliner.asm.analysis.alias.MustEqualsAnalyzer;
@@ -17,6 +18,13 @@ import java.util.*;
 import static org.objectweb.asm.Opcodes.*;
 
 public class LocalVariableCleanup {
+    /** The must-equals analysis keeps a frame of all locals and stack slots for each instruction. Methods with more than
+     *  cleanupSize instructions and more slots in total than this limit (the system property streamliner.cleanupLimit)
+     *  only get the linear cleanup. */
+    public static final long cleanupLimit = Long.getLong("streamliner.cleanupLimit", 4_000_000);
+    /** Methods of at most this many instructions are always cleaned up */
+    public static final int cleanupSize = 20000;
+
     private final String owner;
     private final MethodNode mn;
 
@@ -126,7 +134,7 @@ public class LocalVariableCleanup {
             }
         }
 
-        System.err.format("Reduced number of locals from %s to %s\n", mn.maxLocals, localsSize);
+        Metrics.count("localsRemoved", mn.maxLocals - localsSize);
         mn.localVariables = newLocals;
         mn.maxLocals = localsSize;
 
@@ -179,92 +187,96 @@ public class LocalVariableCleanup {
         /* We run the SlidingWindow optimizer for good measure. The remapping introduces some POP instructions that should be possible to remove. */
         SlidingWindowOptimizer.run(mn);
 
-        if(mn.instructions.size() <= 20000) {
-            // Clean up duplicated local variables with a must-equals analysis
-            MustEqualsAnalyzer<NullnessValue> a = new MustEqualsAnalyzer<>(new NullnessInterpreter());
-            a.analyze(owner, mn);
-            List<AbstractInsnNode> insns = Arrays.asList(mn.instructions.toArray());
-
-            LivenessAnalysis livenessAnalyzer = new LivenessAnalysis(a.getCFG());
-            livenessAnalyzer.analyze(a.getFrames());
-
-            // Transform reads to representative reads and compute readSet
-            readSet.clear();
-            for (int i = 0; i < insns.size(); i++) {
-                AbstractInsnNode insn = insns.get(i);
-                MustEqualsFrame<NullnessValue> f = a.getFrame(i);
-                if (f == null) continue;
-
-                if (insn instanceof VarInsnNode) {
-                    VarInsnNode v = (VarInsnNode) insn;
-                    if (Utils.isLoad(v.getOpcode())) {
-                        NullnessValue loc = f.getLocal(v.var);
-
-                        AbstractInsnNode newInsn;
-                        if (loc.isNull())
-                            newInsn = new InsnNode(ACONST_NULL);
-                        else if (livenessAnalyzer.isDeadLoad(i, f))
-                            newInsn = deadLoad(v);
-                        else {
-                            // Try to find an alias we have already read from
-                            int repr = v.var;
-                            for (int alias : f.aliasesOf(v.var))
-                                if (readSet.contains(alias)) {
-                                    repr = alias;
-                                    break;
-                                }
-
-                            newInsn = new VarInsnNode(v.getOpcode(), repr);
-                            readSet.add(repr);
-                        }
+        if(mn.instructions.size() > cleanupSize && (long) mn.instructions.size() * (mn.maxLocals + mn.maxStack) > cleanupLimit) {
+            Metrics.count("cleanupSkipped", 1);
+            return;
+        }
 
-                        mn.instructions.set(insn, newInsn);
-                    }
-                } else if (insn instanceof IincInsnNode)
-                    readSet.add(((IincInsnNode) insn).var);
-            }
+        // Clean up duplicated local variables with a must-equals analysis
+        MustEqualsAnalyzer<NullnessValue> a = new MustEqualsAnalyzer<>(new NullnessInterpreter());
+        a.analyze(owner, mn);
+        List<AbstractInsnNode> insns = Arrays.asList(mn.instructions.toArray());
+
+        LivenessAnalysis livenessAnalyzer = new LivenessAnalysis(a.getCFG());
+        livenessAnalyzer.analyze(a.getFrames());
+
+        // Transform reads to representative reads and compute readSet
+        readSet.clear();
+        for (int i = 0; i < insns.size(); i++) {
+            AbstractInsnNode insn = insns.get(i);
+            MustEqualsFrame<NullnessValue> f = a.getFrame(i);
+            if (f == null) continue;
+
+            if (insn instanceof VarInsnNode) {
+                VarInsnNode v = (VarInsnNode) insn;
+                if (Utils.isLoad(v.getOpcode())) {
+                    NullnessValue loc = f.getLocal(v.var);
+
+                    AbstractInsnNode newInsn;
+                    if (loc.isNull())
+                        newInsn = new InsnNode(ACONST_NULL);
+                    else if (livenessAnalyzer.isDeadLoad(i, f))
+                        newInsn = deadLoad(v);
+                    else {
+                        // Try to find an alias we have already read from
+                        int repr = v.var;
+                        for (int alias : f.aliasesOf(v.var))
+                            if (readSet.contains(alias)) {
+                                repr = alias;
+                                break;
+                            }
 
-            // System.err.println(String.format("Readset: %s (%s < %s)", readSet, readSet.size(), mn.maxLocals));
-            remapLocals(readSet, requiredSizes);
+                        newInsn = new VarInsnNode(v.getOpcode(), repr);
+                        readSet.add(repr);
+                    }
 
-            // TODO: Currently the analysis is only used for reachability so we could just replace it with any other analysis
-            Analyzer<BasicValue> as = new Analyzer<>(new BasicInterpreter());
-            as.analyze(owner, mn);
-            Frame<?>[] sourceFrames = as.getFrames();
+                    mn.instructions.set(insn, newInsn);
+                }
+            } else if (insn instanceof IincInsnNode)
+                readSet.add(((IincInsnNode) insn).var);
+        }
 
-            livenessAnalyzer.analyze(sourceFrames); // Reanalyze with new locals
+        // System.err.println(String.format("Readset: %s (%s < %s)", readSet, readSet.size(), mn.maxLocals));
+        remapLocals(readSet, requiredSizes);
 
-            insns = Arrays.asList(mn.instructions.toArray());
-            for (int i = 0; i < insns.size(); i++) {
-                AbstractInsnNode insn = insns.get(i);
-                if (insn == null)
-                    continue;
-                else if (insn instanceof FrameNode) // Remove frames as they do not match our locals anymore - they must be recomputed
-                    mn.instructions.remove(insn);
-                else if (sourceFrames[i] == null) {
-                    if (insn.getOpcode() >= 0)
-                        mn.instructions.remove(insn); // unreachable
-                    continue;
-                }
+        // TODO: Currently the analysis is only used for reachability so we could just replace it with any other analysis
+        Analyzer<BasicValue> as = new Analyzer<>(new BasicInterpreter());
+        as.analyze(owner, mn);
+        Frame<?>[] sourceFrames = as.getFrames();
+
+        livenessAnalyzer.analyze(sourceFrames); // Reanalyze with new locals
+
+        insns = Arrays.asList(mn.instructions.toArray());
+        for (int i = 0; i < insns.size(); i++) {
+            AbstractInsnNode insn = insns.get(i);
+            if (insn == null)
+                continue;
+            else if (insn instanceof FrameNode) // Remove frames as they do not match our locals anymore - they must be recomputed
+                mn.instructions.remove(insn);
+            else if (sourceFrames[i] == null) {
+                if (insn.getOpcode() >= 0)
+                    mn.instructions.remove(insn); // unreachable
+                continue;
+            }
 
-                if (insn instanceof VarInsnNode) {
-                    VarInsnNode v = (VarInsnNode) insn;
-                    int opcode = v.getOpcode();
+            if (insn instanceof VarInsnNode) {
+                VarInsnNode v = (VarInsnNode) insn;
+                int opcode = v.getOpcode();
 
-                    if (Utils.isLoad(opcode)) {
-                        if (livenessAnalyzer.isDeadLoad(i, sourceFrames[i]))
-                            mn.instructions.set(v, deadLoad(v));
-                    } else if (opcode != RET && livenessAnalyzer.isDeadStore(i, v.var)) {
-                        int popCode = (opcode == LSTORE || opcode == DSTORE) ? POP2 : POP;
-                        mn.instructions.set(insn, new InsnNode(popCode));
-                    }
-                } else if (insn instanceof IincInsnNode) {
-                    if(livenessAnalyzer.isDeadStore(i, ((IincInsnNode) insn).var))
-                        mn.instructions.remove(insn);
+                if (Utils.isLoad(opcode)) {
+                    if (livenessAnalyzer.isDeadLoad(i, sourceFrames[i]))
+                        mn.instructions.set(v, deadLoad(v));
+                } else if (opcode != RET && livenessAnalyzer.isDeadStore(i, v.var)) {
+                    int popCode = (opcode == LSTORE || opcode == DSTORE) ? POP2 : POP;
+                    mn.instructions.set(insn, new InsnNode(popCode));
                 }
+            } else if (insn instanceof IincInsnNode) {
+                if(livenessAnalyzer.isDeadStore(i, ((IincInsnNode) insn).var))
+                    mn.instructions.remove(insn);
             }
+        }
 
-            // TODO: With liveness information we can also eliminate redundant store-load pairs if the variable is not live after the load
+        // TODO: With liveness information we can also eliminate redundant store-load pairs if the variable is not live after the load
 
         new SignTransformation(owner, mn).run();
 
@@ -274,94 +286,92 @@ public class LocalVariableCleanup {
         while (changed) {
             changed = false;
 
-                ListIterator<AbstractInsnNode> it = mn.instructions.iterator();
-                while (it.hasNext()) {
-                    AbstractInsnNode insn = it.next();
-
-                    if (insn instanceof LabelNode) {
-                        LabelNode l1 = (LabelNode) insn;
-                        while (it.hasNext()) {
-                            insn = it.next();
-                            if (insn instanceof LabelNode) {
-                                changed = true;
-                                it.remove();
-                                replaceLabel((LabelNode) insn, l1);
-                            } else {
-                                it.previous();
-                                break;
-                            }
+            ListIterator<AbstractInsnNode> it = mn.instructions.iterator();
+            while (it.hasNext()) {
+                AbstractInsnNode insn = it.next();
+
+                if (insn instanceof LabelNode) {
+                    LabelNode l1 = (LabelNode) insn;
+                    while (it.hasNext()) {
+                        insn = it.next();
+                        if (insn instanceof LabelNode) {
+                            changed = true;
+                            it.remove();
+                            replaceLabel((LabelNode) insn, l1);
+                        } else {
+                            it.previous();
+                            break;
                         }
-                    } else if (insn instanceof LineNumberNode) {
-                        LineNumberNode l1 = (LineNumberNode) insn;
-                        LabelNode lab = l1.start;
-                        while (it.hasNext()) {
-                            insn = it.next();
-                            if (insn instanceof LabelNode) {
-                                changed = true;
-                                it.remove();
-                                replaceLabel((LabelNode) insn, lab);
-                            } else if (insn instanceof LineNumberNode) {
-                                changed = true;
-                                it.remove();
-                            } else {
-                                it.previous();
-                                break;
-                            }
+                    }
+                } else if (insn instanceof LineNumberNode) {
+                    LineNumberNode l1 = (LineNumberNode) insn;
+                    LabelNode lab = l1.start;
+                    while (it.hasNext()) {
+                        insn = it.next();
+                        if (insn instanceof LabelNode) {
+                            changed = true;
+                            it.remove();
+                            replaceLabel((LabelNode) insn, lab);
+                        } else if (insn instanceof LineNumberNode) {
+                            changed = true;
+                            it.remove();
+                        } else {
+                            it.previous();
+                            break;
                         }
-                    } else if (insn.getOpcode() == GOTO) {
-                        // Remove GOTOs that jump to the next
-                        // TODO: Replace with implementation that can handle series of GOTOs
-                        JumpInsnNode jinsn = (JumpInsnNode) insn;
-                        AbstractInsnNode next = jinsn.getNext();
-                        while (next != null && next.getOpcode() < 0) {
-                            if (jinsn.label.equals(next)) {
-                                changed = true;
-                                it.remove();
-                                break;
-                            }
-
-                            next = next.getNext();
+                    }
+                } else if (insn.getOpcode() == GOTO) {
+                    // Remove GOTOs that jump to the next
+                    // TODO: Replace with implementation that can handle series of GOTOs
+                    JumpInsnNode jinsn = (JumpInsnNode) insn;
+                    AbstractInsnNode next = jinsn.getNext();
+                    while (next != null && next.getOpcode() < 0) {
+                        if (jinsn.label.equals(next)) {
+                            changed = true;
+                            it.remove();
+                            break;
                         }
+
+                        next = next.getNext();
                     }
                 }
             }
+        }
 
-            // Remove all labels that are not targeted by jumps or localvariables
-            Set<LabelNode> targets = new HashSet<>();
-            for(LocalVariableNode lvn : mn.localVariables) {
-                targets.add(lvn.start);
-                targets.add(lvn.end);
-            }
+        // Remove all labels that are not targeted by jumps or localvariables
+        Set<LabelNode> targets = new HashSet<>();
+        for(LocalVariableNode lvn : mn.localVariables) {
+            targets.add(lvn.start);
+            targets.add(lvn.end);
+        }
 
-            for(TryCatchBlockNode tcbn : mn.tryCatchBlocks) {
-                targets.add(tcbn.start);
-                targets.add(tcbn.end);
-                targets.add(tcbn.handler);
-            }
+        for(TryCatchBlockNode tcbn : mn.tryCatchBlocks) {
+            targets.add(tcbn.start);
+            targets.add(tcbn.end);
+            targets.add(tcbn.handler);
+        }
 
-            LabelNode currentLabel = null;
-            for(AbstractInsnNode insn : mn.instructions) {
-                if(insn instanceof JumpInsnNode)
-                    targets.add(((JumpInsnNode) insn).label);
-                else if(insn instanceof FrameNode) {
-                    if (currentLabel != null) targets.add(currentLabel);
-                } else if(insn instanceof LabelNode)
-                    currentLabel = (LabelNode) insn;
-                else if(insn instanceof TableSwitchInsnNode) {
-                    TableSwitchInsnNode tinsn = (TableSwitchInsnNode) insn;
-                    if (tinsn.dflt != null) targets.add(tinsn.dflt);
-                    targets.addAll(tinsn.labels);
-                } else if(insn instanceof LookupSwitchInsnNode) {
-                    LookupSwitchInsnNode linsn = (LookupSwitchInsnNode) insn;
-                    if(linsn.dflt != null) targets.add(linsn.dflt);
-                    targets.addAll(linsn.labels);
-                }
+        LabelNode currentLabel = null;
+        for(AbstractInsnNode insn : mn.instructions) {
+            if(insn instanceof JumpInsnNode)
+                targets.add(((JumpInsnNode) insn).label);
+            else if(insn instanceof FrameNode) {
+                if (currentLabel != null) targets.add(currentLabel);
+            } else if(insn instanceof LabelNode)
+                currentLabel = (LabelNode) insn;
+            else if(insn instanceof TableSwitchInsnNode) {
+                TableSwitchInsnNode tinsn = (TableSwitchInsnNode) insn;
+                if (tinsn.dflt != null) targets.add(tinsn.dflt);
+                targets.addAll(tinsn.labels);
+            } else if(insn instanceof LookupSwitchInsnNode) {
+                LookupSwitchInsnNode linsn = (LookupSwitchInsnNode) insn;
+                if(linsn.dflt != null) targets.add(linsn.dflt);
+                targets.addAll(linsn.labels);
             }
+        }
 
-            Utils.removeInstructionsIf(mn, insn -> (insn instanceof LabelNode && !targets.contains(insn))
-                    || (insn instanceof LineNumberNode && !targets.contains(((LineNumberNode) insn).start)));
+        Utils.removeInstructionsIf(mn, insn -> (insn instanceof LabelNode && !targets.contains(insn))
+                || (insn instanceof LineNumberNode && !targets.contains(((LineNumberNode) insn).start)));
 
-        } else
-            System.err.println("Skipping additional cleanup as the method is too big.");
     }
 }
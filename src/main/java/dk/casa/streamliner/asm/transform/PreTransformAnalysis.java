@@ -138,7 +138,7 @@ public class PreTransformAnalysis implements Dotable {
 
 		@Override
 		public String toString() {
-			return String.format("Site %d\n(new %s)", index, InterproceduralTypePointerAnalysis.allocationTypes.getOrDefault(index, "unknown"));
+			return String.format("Site %d\n(new %s)", index, AnalysisSession.current().allocationTypes.getOrDefault(index, "unknown"));
 		}
 	}
 
@@ -220,8 +220,8 @@ public class PreTransformAnalysis implements Dotable {
 		BanNode node = new BanNode(type);
 		if(!edges.containsKey(node)) {
 			Predicate<Type> prevent = type.isPrecise() ? (typ -> typ.equals(type.getType())) :
-					(typ -> Utils.getAncestors(typ).contains(type.getType()));
-			for (Map.Entry<Integer, String> entry : InterproceduralTypePointerAnalysis.allocationTypes.entrySet()) {
+					(typ -> Utils.hasAncestor(typ, type.getType()));
+			for (Map.Entry<Integer, String> entry : AnalysisSession.current().allocationTypes.entrySet()) {
 				Type allocType = Type.getObjectType(entry.getValue().replace(".", "/"));
 				if (prevent.test(allocType))
 					addEdge(node, new AllocNode(entry.getKey()));
@@ -245,20 +245,20 @@ public class PreTransformAnalysis implements Dotable {
 
 		if(ptr != null && (finsn.getOpcode() == GETFIELD || finsn.getOpcode() == GETSTATIC)) {
 			// Check if field is constant
-			if(ptr.isValid() && frame.getHeap().getCell(ptr.pointsTo()).getField(InterInterpreter.getFieldName(finsn)).constant.isDefined())
+			if(ptr.isValid() && frame.getHeap().getCell(ptr.pointsTo()).getField(InterInterpreter.getFieldId(finsn)).constant.isDefined())
 				return false;
 
 			// TODO: In this case the GETFIELD instruction is dead
 			return (!finsn.owner.equals("java/util/stream/FindOps$FindOp") ||
 					(!finsn.name.equals("sinkSupplier") && !finsn.name.equals("emptyValue"))) &&
 					(!finsn.owner.contains("Unmodifiable") || !ptr.isValid() ||  // Collector characteristics
-							InterproceduralTypePointerAnalysis.allocationTypes.containsKey(ptr.pointsTo()));
+							AnalysisSession.current().allocationTypes.containsKey(ptr.pointsTo()));
 		}
 		return true;
 	}
 
 	private void stackAllocPreAnalysis(Context context) throws AnalyzerException {
-		InterFrame[] frames = InterproceduralTypePointerAnalysis.calls.get(context);
+		InterFrame[] frames = AnalysisSession.current().calls.get(context);
 
 		AbstractInsnNode[] insns = context.getMethod().instructions.toArray();
 		for(int i = 0; i < insns.length; i++) {
@@ -270,7 +270,7 @@ public class PreTransformAnalysis implements Dotable {
 			if (insn instanceof MethodInsnNode) {
 				MethodInsnNode minsn = (MethodInsnNode) insn;
 				List<InterValue> argumentValues = Utils.getArgumentValues(minsn, frame);
-				Set<Integer> calls = InterproceduralTypePointerAnalysis.analysedCalls.get(context);
+				Set<Integer> calls = AnalysisSession.current().analysedCalls.get(context);
 				boolean hasAnalysisResult = calls != null && calls.contains(i);
 
 				// If this method is not accessible from owner, then this method must be inlined if we inline parent
@@ -372,7 +372,7 @@ public class PreTransformAnalysis implements Dotable {
 							finsn.owner.equals("java/util/stream/Collectors"))
 						continue;
 
-					Integer idx = InterproceduralTypePointerAnalysis.staticAllocations.get(finsn.owner);
+					Integer idx = AnalysisSession.current().staticAllocations.get(finsn.owner);
 					InterValue value = idx == null ? null : new InterValue(new TypeElement(false, TypeElement.TOP), new PointerElement(idx));
 					// Cannot inline method if field access is not safe
 					if(unsafeFieldAccess(finsn, value, frame))
@@ -1,195 +1,295 @@
 package dk.casa.streamliner.asm.transform;
 
 
+import dk.casa.streamliner.asm.Metrics;
 import dk.casa.streamliner.asm.analysis.InstructionStackEffect;
+import dk.casa.streamliner.utils.Counter;
 import org.objectweb.asm.Type;
 import org.objectweb.asm.tree.*;
 import org.objectweb.asm.util.Textifier;
 
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.List;
+import java.util.*;
+import java.util.function.Predicate;
 
 import static org.objectweb.asm.Opcodes.*;
 
-// Simple implementation of a sliding window optimizer
+/** Simple implementation of a sliding window optimizer.
+ *  The rewrites are declared as rules over windows of consecutive instructions, and the instructions they reason about
+ *  are declared by their stack effects. After a rewrite the scan backs up to the first window that overlaps the rewritten
+ *  instructions, so chains of rewrites are done in a single scan, and the number of jumps to each label is kept up to date.
+ *  The method is scanned again if anything changed, since a few rules look beyond their window.
+ */
 // TODO: Allow making optimizations over labels that are not jump targets (debug info)
 public class SlidingWindowOptimizer {
-	@FunctionalInterface
-	private interface Pattern {
-		int apply(MethodNode mn, AbstractInsnNode[] insns, int[] preds, int startIndex);
+	/** The sizes of the operands of an instruction, from the top of the stack, and the size of its result */
+	private static final class Effect {
+		final int[] operands;
+		final int consumed, result;
+
+		Effect(int[] operands, int result) {
+			this.operands = operands;
+			this.consumed = Arrays.stream(operands).sum();
+			this.result = result;
+		}
+
+		/** Parses effects such as "22->1", where the operands are listed from the bottom of the stack */
+		static Effect parse(String effect) {
+			int arrow = effect.indexOf("->");
+			int[] operands = new int[arrow];
+			for(int i = 0; i < arrow; i++) operands[arrow - 1 - i] = effect.charAt(i) - '0';
+			String result = effect.substring(arrow + 2);
+			return new Effect(operands, result.isEmpty() ? 0 : Integer.parseInt(result));
+		}
 	}
 
-	private static boolean isClass1Producer(AbstractInsnNode insn) {
-		switch(insn.getOpcode()) {
-			case ACONST_NULL:
-			case ILOAD:
-			case FLOAD:
-			case ALOAD:
-			case ICONST_M1:
-			case ICONST_0:
-			case ICONST_1:
-			case ICONST_2:
-			case ICONST_3:
-			case ICONST_4:
-			case ICONST_5:
-			case BIPUSH:
-			case SIPUSH:
-				return true;
+	private static final Effect PUSH1 = Effect.parse("->1"), PUSH2 = Effect.parse("->2"), GET1 = Effect.parse("1->1");
+
+	/** Instructions without side effects, which can be removed if their result is not used */
+	private static final Effect[] pureInstructions = new Effect[256];
+	private static final Map<String, Effect> pureMethods = new HashMap<>();
+
+	/** Instructions with side effects that only consume values */
+	private static final Effect[] consumers = new Effect[256];
+
+	private static void declare(Effect[] table, String effect, int... opcodes) {
+		Effect e = Effect.parse(effect);
+		for(int opcode : opcodes) table[opcode] = e;
+	}
+
+	private static void declareMethod(int opcode, String owner, String name, String desc) {
+		Type type = Type.getMethodType(desc);
+		StringBuilder effect = new StringBuilder(opcode == INVOKESTATIC ? "" : "1");
+		for(Type arg : type.getArgumentTypes()) effect.append(arg.getSize());
+		effect.append("->").append(type.getReturnType().getSize());
+		pureMethods.put(opcode + owner + "." + name + desc, Effect.parse(effect.toString()));
+	}
+
+	static {
+		declare(pureInstructions, "->1", ACONST_NULL, ILOAD, FLOAD, ALOAD, BIPUSH, SIPUSH,
+				ICONST_M1, ICONST_0, ICONST_1, ICONST_2, ICONST_3, ICONST_4, ICONST_5);
+		declare(pureInstructions, "->2", LCONST_0, LCONST_1, DCONST_0, DCONST_1, LLOAD, DLOAD);
+		declare(pureInstructions, "1->1", INSTANCEOF, CHECKCAST, ANEWARRAY, NEWARRAY, ARRAYLENGTH);
+		declare(pureInstructions, "1->2", DUP, I2L, I2D, F2L, F2D);
+		declare(pureInstructions, "2->2", L2D, D2L);
+		declare(pureInstructions, "11->1", IALOAD, BALOAD, SALOAD, CALOAD, FALOAD, AALOAD,
+				IADD, ISUB, IMUL, IDIV, IOR, IXOR, IAND, ISHR, IUSHR, ISHL);
+		declare(pureInstructions, "21->2", LSHL, LSHR, LUSHR);
+		declare(pureInstructions, "22->1", LCMP);
+		declare(pureInstructions, "22->2", LADD, LSUB, LMUL, LDIV, LREM, LOR, LXOR, LAND, DADD, DSUB, DMUL, DDIV, DREM);
+
+		// We have to be careful to only include pure functions here since we might remove the call instruction later
+		declareMethod(INVOKESTATIC, "java/lang/Integer", "valueOf", "(I)Ljava/lang/Integer;");
+		declareMethod(INVOKEVIRTUAL, "java/util/stream/StreamOpFlag", "isKnown", "(I)Z");
+
+		declare(consumers, "1->", ISTORE, FSTORE, ASTORE, POP);
+		declare(consumers, "2->", LSTORE, DSTORE);
+	}
 
+	/** Returns the effect of an instruction without side effects or null */
+	private static Effect pureEffect(AbstractInsnNode insn) {
+		int opcode = insn.getOpcode();
+		switch(opcode) {
 			case LDC:
 				Object cst = ((LdcInsnNode) insn).cst;
-				return !(cst instanceof Long) && !(cst instanceof Double);
+				return cst instanceof Long || cst instanceof Double ? PUSH2 : PUSH1;
 
 			case GETSTATIC:
-				return Type.getType(((FieldInsnNode) insn).desc).getSize() == 1;
+				return Type.getType(((FieldInsnNode) insn).desc).getSize() == 2 ? PUSH2 : PUSH1;
+
+			case GETFIELD:
+				return Type.getType(((FieldInsnNode) insn).desc).getSize() == 2 ? null : GET1;
+
+			case INVOKESTATIC:
+			case INVOKEVIRTUAL:
+				MethodInsnNode minsn = (MethodInsnNode) insn;
+				return pureMethods.get(opcode + minsn.owner + "." + minsn.name + minsn.desc);
 		}
 
-		return false;
+		return opcode >= 0 ? pureInstructions[opcode] : null;
 	}
 
-	private static boolean isClass1Consumer(AbstractInsnNode insn) {
-		switch (insn.getOpcode()) {
-			case ISTORE:
-			case FSTORE:
-			case ASTORE:
-			case POP:
-				return true;
+	// Matchers of the instructions in a window
 
-		}
+	private static Predicate<AbstractInsnNode> op(int opcode) {
+		return insn -> insn.getOpcode() == opcode;
+	}
 
-		return false;
+	private static Predicate<AbstractInsnNode> pure() {
+		return insn -> pureEffect(insn) != null;
 	}
 
-	private static boolean isClass1ConsumerProducer(AbstractInsnNode insn) {
-		switch (insn.getOpcode()) {
-			case INSTANCEOF:
-			case CHECKCAST:
+	/** Matches pure instructions that push a value of the given size without consuming any */
+	private static Predicate<AbstractInsnNode> push(int size) {
+		return insn -> {
+			Effect effect = pureEffect(insn);
+			return effect != null && effect.operands.length == 0 && effect.result == size;
+		};
+	}
 
-			case ANEWARRAY:
-			case NEWARRAY:
-			case ARRAYLENGTH:
-				return true;
+	private static Predicate<AbstractInsnNode> result(int size) {
+		return insn -> {
+			Effect effect = pureEffect(insn);
+			return effect != null && effect.result == size;
+		};
+	}
 
-			case GETFIELD:
-				return Type.getType(((FieldInsnNode) insn).desc).getSize() == 1;
+	private static Predicate<AbstractInsnNode> any() {
+		return insn -> true;
+	}
 
-			case INVOKESTATIC:
-				// We have to be careful to only include pure functions here
-				// since we might remove the call instruction later
-				MethodInsnNode minsn = (MethodInsnNode) insn;
-				return minsn.owner.equals("java/lang/Integer") && minsn.name.equals("valueOf")
-						&& minsn.desc.equals("(I)Ljava/lang/Integer;");
-		}
+	@FunctionalInterface
+	private interface Rewrite {
+		/** Rewrites the matched window and returns true, or returns false without changing anything */
+		boolean apply(SlidingWindowOptimizer opt, AbstractInsnNode[] window);
+	}
 
-		return false;
+	private static final class Rule {
+		final Predicate<AbstractInsnNode>[] window;
+		final Rewrite rewrite;
+
+		@SafeVarargs
+		Rule(Rewrite rewrite, Predicate<AbstractInsnNode>... window) {
+			this.window = window;
+			this.rewrite = rewrite;
+		}
 	}
 
-	private static boolean isDoubleClass1ConsumerProducer(AbstractInsnNode insn) {
-		switch (insn.getOpcode()) {
-			case IALOAD:
-			case BALOAD:
-			case SALOAD:
-			case CALOAD:
-			case FALOAD:
-			case AALOAD:
-
-			case IADD:
-			case ISUB:
-			case IMUL:
-			case IDIV:
-			case IOR:
-			case IXOR:
-			case IAND:
-			case ISHR:
-			case IUSHR:
-			case ISHL:
+	private static final Rule[] rules = {
+			// NOP ->
+			new Rule((opt, w) -> {
+				opt.remove(w[0]);
 				return true;
+			}, op(NOP)),
 
-			case INVOKEVIRTUAL:
-				MethodInsnNode minsn = (MethodInsnNode) insn;
-				return minsn.owner.equals("java/util/stream/StreamOpFlag") &&
-						minsn.name.equals("isKnown") && minsn.desc.equals("(I)Z");
-		}
+			// DUP, POP ->
+			new Rule((opt, w) -> {
+				opt.remove(w[0]);
+				opt.remove(w[1]);
+				return true;
+			}, op(DUP), op(POP)),
 
-		return false;
-	}
+			// DUP2, POP2 ->
+			new Rule((opt, w) -> {
+				opt.remove(w[0]);
+				opt.remove(w[1]);
+				return true;
+			}, op(DUP2), op(POP2)),
 
-	private static boolean isClass2Producer(AbstractInsnNode insn) {
-		switch (insn.getOpcode()) {
-			case LCONST_0:
-			case LCONST_1:
-			case DCONST_0:
-			case DCONST_1:
+			// ILOAD, POP -> | ARRAYLENGTH, POP -> POP | IAND, POP -> POP, POP | I2L, POP2 -> POP | LSHL, POP2 -> POP, POP2
+			new Rule((opt, w) -> {
+				Effect effect = pureEffect(w[0]);
+				if(effect.result != (w[1].getOpcode() == POP2 ? 2 : 1)) return false;
 
-			case LLOAD:
-			case DLOAD:
+				for(int size : effect.operands) opt.insertBefore(w[0], new InsnNode(size == 2 ? POP2 : POP));
+				opt.remove(w[0]);
+				opt.remove(w[1]);
 				return true;
+			}, pure(), insn -> insn.getOpcode() == POP || insn.getOpcode() == POP2),
 
-			case LDC:
-				Object cst = ((LdcInsnNode) insn).cst;
-				return (cst instanceof Long) || (cst instanceof Double);
+			// ILOAD, POP2 -> ILOAD, POP, POP
+			new Rule((opt, w) -> {
+				opt.insertBefore(w[1], new InsnNode(POP));
+				opt.set(w[1], new InsnNode(POP));
+				return true;
+			}, result(1), op(POP2)),
 
-			case GETSTATIC:
-				return Type.getType(((FieldInsnNode) insn).desc).getSize() == 2;
-		}
+			// NULL, ILOAD, DUP_X1 -> ILOAD, NULL, ILOAD
+			new Rule((opt, w) -> {
+				// Empty map is fine since we don't clone labels
+				opt.insertBefore(w[0], w[1].clone(new HashMap<>()));
+				opt.remove(w[2]);
+				return true;
+			}, push(1), push(1), op(DUP_X1)),
 
-		return false;
-	}
+			// DUP_X1, POP -> SWAP
+			new Rule((opt, w) -> {
+				opt.set(w[0], new InsnNode(SWAP));
+				opt.remove(w[1]);
+				return true;
+			}, op(DUP_X1), op(POP)),
 
-	private static boolean isClass2Consumer(AbstractInsnNode insn) {
-		switch(insn.getOpcode()) {
-			case LSTORE:
-			case DSTORE:
+			// ILOAD, ALOAD, SWAP -> ALOAD, ILOAD
+			new Rule((opt, w) -> {
+				opt.remove(w[1]);
+				opt.insertBefore(w[0], w[1]);
+				opt.remove(w[2]);
 				return true;
-		}
+			}, push(1), push(1), op(SWAP)),
 
-		return false;
-	}
+			// ILOAD i, ICONST_1, IADD, ISTORE i -> IINC i 1
+			new Rule((opt, w) -> {
+				VarInsnNode v1 = (VarInsnNode) w[0], v2 = (VarInsnNode) w[3];
+				if(v1.var != v2.var) return false;
 
-	private static boolean isClass1ConsumerClass2Producer(AbstractInsnNode insn) {
-		switch(insn.getOpcode()) {
-			case I2L:
-			case I2D:
-			case F2L:
-			case F2D:
+				for(int i = 0; i < 3; i++) opt.remove(w[i]);
+				opt.set(v2, new IincInsnNode(v2.var, 1));
 				return true;
-		}
+			}, op(ILOAD), op(ICONST_1), op(IADD), op(ISTORE)),
 
-		return false;
-	}
+			// DUP2_X1, LSTORE i, POP -> LSTORE i, POP, LLOAD i
+			new Rule((opt, w) -> {
+				VarInsnNode store = (VarInsnNode) w[1];
+				boolean wide = store.getOpcode() == LSTORE || store.getOpcode() == DSTORE;
+				if(wide != (w[0].getOpcode() == DUP2_X1)) return false;
 
-	private static boolean isClass2ConsumerProducer(AbstractInsnNode insn) {
-		switch (insn.getOpcode()) {
-			case L2D:
-			case D2L:
+				opt.remove(w[0]);
+				opt.insert(w[2], new VarInsnNode(store.getOpcode() - ISTORE + ILOAD, store.var));
 				return true;
-		}
+			}, insn -> insn.getOpcode() == DUP_X1 || insn.getOpcode() == DUP2_X1,
+					insn -> insn.getOpcode() >= ISTORE && insn.getOpcode() <= ASTORE, op(POP)),
+
+			// ILOAD, ISTORE, POP -> ILOAD, POP, ISTORE
+			new Rule((opt, w) -> opt.movePop(w[0]), op(POP)),
+
+			// GOTO L0, L0 ->
+			new Rule((opt, w) -> {
+				for(AbstractInsnNode next = w[0].getNext(); next != null && next.getOpcode() < 0; next = next.getNext())
+					if(next == ((JumpInsnNode) w[0]).label) {
+						opt.remove(w[0]);
+						return true;
+					}
 
-		return false;
-	}
+				return false;
+			}, op(GOTO)),
 
-	private static boolean isDoubleClass2ConsumerProducer(AbstractInsnNode insn) {
-		switch (insn.getOpcode()) {
-			case LADD:
-			case LSUB:
-			case LMUL:
-			case LDIV:
-			case LREM:
-			case LOR:
-			case LXOR:
-			case LAND:
-
-			case DADD:
-			case DSUB:
-			case DMUL:
-			case DDIV:
-			case DREM:
+			// CNDJMP L0, GOTO L1, L0 -> !CNDJMP L1, L0
+			new Rule((opt, w) -> {
+				JumpInsnNode cndjmp = (JumpInsnNode) w[0];
+				if(w[2] != cndjmp.label) return false;
+
+				opt.retarget(cndjmp, oppositeBranch(cndjmp), ((JumpInsnNode) w[1]).label);
+				opt.remove(w[1]);
 				return true;
-		}
+			}, insn -> insn instanceof JumpInsnNode && insn.getOpcode() != GOTO && insn.getOpcode() != JSR,
+					op(GOTO), any()),
 
-		return false;
-	}
+			// TODO: Can be made more general if needed
+			// CNDJMP L0, ICONST 1, GOTO L1, L0, ICONST 0, L1, IFNE L2 -> CNDJMP L2
+			new Rule((opt, w) -> {
+				JumpInsnNode cndjmp = (JumpInsnNode) w[0];
+				LabelNode L0 = cndjmp.label, L1 = ((JumpInsnNode) w[2]).label;
+				if(w[3] != L0 || w[5] != L1) return false;
+
+				// Make sure that other code does not jump to L0 or L1
+				if(opt.predecessors(L0) != 1 || opt.predecessors(L1) != 2) return false;
+
+				opt.retarget(cndjmp, oppositeBranch(cndjmp), ((JumpInsnNode) w[6]).label);
+				for(int i = 1; i <= 6; i++) opt.remove(w[i]);
+				return true;
+			}, insn -> insn instanceof JumpInsnNode && insn.getOpcode() != GOTO && insn.getOpcode() != JSR,
+					op(ICONST_1), op(GOTO), any(), op(ICONST_0), any(), op(IFNE)),
+
+			// ICONST 1, ..., IFNE L0 -> GOTO L0
+			new Rule((opt, w) -> {
+				AbstractInsnNode next = findNextInstruction(w[0]);
+				if(next == null || next.getOpcode() != IFNE) return false;
+
+				opt.set(w[0], new JumpInsnNode(GOTO, ((JumpInsnNode) next).label));
+				return true;
+			}, op(ICONST_1))
+	};
+
+	private static final int maxWindow = Arrays.stream(rules).mapToInt(rule -> rule.window.length).max().getAsInt();
 
 	private static int oppositeBranch(JumpInsnNode insn) {
 		switch (insn.getOpcode()) {
@@ -222,401 +322,189 @@ public class SlidingWindowOptimizer {
 	}
 
 	/** Find the next instruction that is executed after insn.
-	 	Jumps over labels and line numbers and through GOTOs. */
+	 	Jumps over labels and line numbers and through GOTOs. Returns null if there is none or the GOTOs loop. */
 	private static AbstractInsnNode findNextInstruction(AbstractInsnNode insn) {
+		Set<AbstractInsnNode> visited = new HashSet<>();
 		AbstractInsnNode next = insn.getNext();
-		if(next.getOpcode() < 0) return findNextInstruction(next);
-		else if(next.getOpcode() == GOTO) return findNextInstruction(((JumpInsnNode) next).label);
+		while(next != null && (next.getOpcode() < 0 || next.getOpcode() == GOTO)) {
+			if(next.getOpcode() == GOTO) {
+				if(!visited.add(next)) return null;
+				next = ((JumpInsnNode) next).label;
+			}
+			next = next.getNext();
+		}
 		return next;
 	}
 
-	private static final Pattern[] patterns = {
-			(mn, insns, preds, startIndex) -> {
-				if(insns[startIndex].getOpcode() == NOP) {
-					mn.instructions.remove(insns[startIndex]);
-					return 1;
-				} else
-					return 0;
-			},
-			(mn, insns, preds, startIndex) -> {
-				if(insns.length < startIndex + 2) return 0;
-				AbstractInsnNode insn1 = insns[startIndex];
-				AbstractInsnNode insn2 = insns[startIndex + 1];
-
-				// ILOAD, POP | LLOAD, POP2 | DUP, POP
-				if((isClass1Producer(insn1) && insn2.getOpcode() == POP)
-					|| (isClass2Producer(insn1) && insn2.getOpcode() == POP2)
-					|| (insn1.getOpcode() == DUP && insn2.getOpcode() == POP)
-					|| (insn1.getOpcode() == DUP2 && insn2.getOpcode() == POP2)) {
-					mn.instructions.remove(insn1);
-					mn.instructions.remove(insn2);
-					return 2;
-				}
-
-				return 0;
-			},
-			(mn, insns, preds, startIndex) -> {
-				if(insns.length < startIndex + 2) return 0;
-
-				// ARRAYLENGTH, POP -> POP
-				int popCode = insns[startIndex + 1].getOpcode();
-				if((popCode == POP && isClass1ConsumerProducer(insns[startIndex]))
-					|| (popCode == POP2 && isClass2ConsumerProducer(insns[startIndex]))) {
-
-					mn.instructions.remove(insns[startIndex]);
-					return 2;
-				}
-
-				return 0;
-			},
-			(mn, insns, preds, startIndex) -> {
-				if(insns.length < startIndex + 3) return 0;
-
-				// BIPUSH/CHECKCAST, BIPUSH, POP2 -> BIPUSH/CHECKCAST, POP
-				if((isClass1ConsumerProducer(insns[startIndex]) || isClass1Producer(insns[startIndex]))
-					&& isClass1Producer(insns[startIndex + 1])
-					&& insns[startIndex + 2].getOpcode() == POP2) {
-
-					mn.instructions.remove(insns[startIndex + 2]);
-					mn.instructions.set(insns[startIndex + 1], new InsnNode(POP));
-					return 3;
-				}
-
-				return 0;
-			},
-			(mn, insns, preds, startIndex) -> {
-				if(insns.length < startIndex + 2) return 0;
+	private final MethodNode mn;
 
-				// LCMP, POP -> POP2, POP2
-				if(insns[startIndex].getOpcode() == LCMP
-					&& insns[startIndex + 1].getOpcode() == POP) {
+	// The number of jumps, switches, local variables and try-catch blocks that refer to each label
+	private final Counter<LabelNode> references = new Counter<>();
 
-					mn.instructions.set(insns[startIndex], new InsnNode(POP2));
-					mn.instructions.set(insns[startIndex + 1], new InsnNode(POP2));
-					return 2;
-				}
-
-				return 0;
-			},
-			(mn, insns, preds, startIndex) -> {
-				if(insns.length < startIndex + 2) return 0;
-
-				// I2L, POP2 -> POP
-				if(isClass1ConsumerClass2Producer(insns[startIndex])
-					&& insns[startIndex + 1].getOpcode() == POP2) {
-
-					mn.instructions.set(insns[startIndex], new InsnNode(POP));
-					mn.instructions.remove(insns[startIndex + 1]);
-					return 2;
-				}
+	// The instruction before the instructions that were changed by the last rewrite
+	private AbstractInsnNode changedAfter;
 
-				return 0;
-			},
-			(mn, insns, preds, startIndex) -> {
-				if(insns.length < startIndex + 2) return 0;
+	private SlidingWindowOptimizer(MethodNode mn) {
+		this.mn = mn;
 
-				// IAND, POP -> POP, POP
-				int popCode = insns[startIndex + 1].getOpcode();
-				if((popCode == POP && isDoubleClass1ConsumerProducer(insns[startIndex]))
-					|| (popCode == POP2 && isDoubleClass2ConsumerProducer(insns[startIndex]))) {
-
-					mn.instructions.set(insns[startIndex], new InsnNode(popCode));
-					return 2;
-				}
-
-				return 0;
-			},
-			(mn, insns, preds, startIndex) -> {
-				if(insns.length < startIndex + 2) return 0;
-
-				// ILOAD, POP2 -> ILOAD, POP, POP
-				if(insns[startIndex + 1].getOpcode() != POP2) return 0;
-				AbstractInsnNode insn = insns[startIndex];
-				if(isClass1Producer(insn) || isDoubleClass1ConsumerProducer(insn)
-					|| isClass1ConsumerProducer(insn)) {
-
-					mn.instructions.insertBefore(insns[startIndex + 1], new InsnNode(POP));
-					mn.instructions.set(insns[startIndex + 1], new InsnNode(POP));
-					return 2;
-				}
-
-				return 0;
-			},
-			(mn, insns, preds, startIndex) -> {
-				if(insns.length < startIndex + 2) return 0;
-
-				// LSHL, POP2 -> POP, POP2
-				int op1 = insns[startIndex].getOpcode();
-				if(insns[startIndex + 1].getOpcode() == POP2 &&
-						(op1 == LSHL || op1 == LSHR || op1 == LUSHR)) {
-
-					mn.instructions.set(insns[startIndex], new InsnNode(POP));
-					return 2;
-				}
-
-				return 0;
-			},
-			(mn, insns, preds, startIndex) -> {
-				if(insns.length < startIndex + 3) return 0;
-
-				// NULL, ILOAD, DUP_X1 -> ILOAD, NULL, ILOAD
-				if(isClass1Producer(insns[startIndex])
-						&& isClass1Producer(insns[startIndex + 1])
-						&& insns[startIndex + 2].getOpcode() == DUP_X1) {
+		// TODO: LineNumberNodes should also be handled.
+		//  Maybe we can just get rid of them?
+		for(AbstractInsnNode insn : mn.instructions) reference(insn, 1);
 
-					// Empty map is fine since we don't clone labels
-					mn.instructions.insertBefore(insns[startIndex], insns[startIndex + 1].clone(new HashMap<>()));
-					mn.instructions.remove(insns[startIndex + 2]);
+		// Add some fake predecessors for labels that are referred to by local variables etc.
+		for(LocalVariableNode lvn : mn.localVariables) {
+			references.add(lvn.start);
+			references.add(lvn.end);
+		}
 
-					return 3;
-				}
+		for(TryCatchBlockNode tcbn : mn.tryCatchBlocks) {
+			references.add(tcbn.start);
+			references.add(tcbn.end);
+			references.add(tcbn.handler);
+		}
+	}
 
-				return 0;
-			},
-			(mn, insns, preds, startIndex) -> {
-				if(insns.length < startIndex + 2) return 0;
+	private void reference(AbstractInsnNode insn, int count) {
+		if(insn instanceof JumpInsnNode)
+			references.inc(((JumpInsnNode) insn).label, count);
+		else if(insn instanceof TableSwitchInsnNode) {
+			TableSwitchInsnNode tinsn = (TableSwitchInsnNode) insn;
+			references.inc(tinsn.dflt, count);
+			for(LabelNode lbl : tinsn.labels) references.inc(lbl, count);
+		} else if(insn instanceof LookupSwitchInsnNode) {
+			LookupSwitchInsnNode linsn = (LookupSwitchInsnNode) insn;
+			references.inc(linsn.dflt, count);
+			for(LabelNode lbl : linsn.labels) references.inc(lbl, count);
+		}
+	}
 
-				// DUP_X1, POP -> SWAP
-				if(insns[startIndex].getOpcode() == DUP_X1
-					&& insns[startIndex + 1].getOpcode() == POP) {
+	/** The number of references to the label and whether the previous instruction falls through to it */
+	private int predecessors(LabelNode label) {
+		AbstractInsnNode prev = label.getPrevious();
+		int opcode = prev == null ? GOTO : prev.getOpcode();
+		boolean fallsThrough = opcode != GOTO && opcode != ATHROW && (opcode < IRETURN || opcode > RETURN);
+		return references.get(label) + (fallsThrough ? 1 : 0);
+	}
 
-					mn.instructions.set(insns[startIndex], new InsnNode(SWAP));
-					mn.instructions.remove(insns[startIndex + 1]);
-					return 2;
-				}
+	// The rewrites change the instructions through these methods
 
-				return 0;
-			},
-			(mn, insns, preds, startIndex) -> {
-				if(insns.length < startIndex + 3) return 0;
+	private void remove(AbstractInsnNode insn) {
+		reference(insn, -1);
+		if(insn == changedAfter) changedAfter = insn.getPrevious();
+		mn.instructions.remove(insn);
+	}
 
-				// ILOAD, ALOAD, SWAP -> ALOAD, ILOAD
-				if(isClass1Producer(insns[startIndex])
-						&& isClass1Producer(insns[startIndex + 1])
-					    && insns[startIndex + 2].getOpcode() == SWAP) {
+	private void set(AbstractInsnNode insn, AbstractInsnNode replacement) {
+		reference(insn, -1);
+		reference(replacement, 1);
+		if(insn == changedAfter) changedAfter = replacement;
+		mn.instructions.set(insn, replacement);
+	}
 
-					mn.instructions.remove(insns[startIndex + 1]);
-					mn.instructions.insertBefore(insns[startIndex], insns[startIndex + 1]);
-					mn.instructions.remove(insns[startIndex + 2]);
-					return 3;
-				}
+	private void insertBefore(AbstractInsnNode location, AbstractInsnNode insn) {
+		reference(insn, 1);
+		mn.instructions.insertBefore(location, insn);
+	}
 
-				return 0;
-			},
-			(mn, insns, preds, startIndex) -> {
-				if(insns.length < startIndex + 4) return 0;
-
-				// ILOAD i, ICONST_1, IADD, ISTORE i
-				if(insns[startIndex].getOpcode() == ILOAD
-				    && insns[startIndex+1].getOpcode() == ICONST_1
-					&& insns[startIndex+2].getOpcode() == IADD
-					&& insns[startIndex+3].getOpcode() == ISTORE) {
-
-					VarInsnNode v1 = (VarInsnNode) insns[startIndex];
-					VarInsnNode v2 = (VarInsnNode) insns[startIndex+3];
-					if(v1.var == v2.var) {
-						for (int i = startIndex; i < startIndex + 3; i++)
-							mn.instructions.remove(insns[i]);
-						mn.instructions.set(v2, new IincInsnNode(v2.var, 1));
-						return 4;
-					}
-				}
+	private void insert(AbstractInsnNode location, AbstractInsnNode insn) {
+		reference(insn, 1);
+		mn.instructions.insert(location, insn);
+	}
 
-				return 0;
-			},
-			(mn, insns, preds, startIndex) -> {
-				AbstractInsnNode cur = insns[startIndex];
-				if(cur.getOpcode() != POP) return 0;
-
-				int requiredSize = 1;
-				AbstractInsnNode prev = cur.getPrevious();
-				List<AbstractInsnNode> swaps = new ArrayList<>();
-				while(prev != null) {
-					if(isClass1Consumer(prev))
-						requiredSize++;
-					else if(isClass1Producer(prev))
-						requiredSize--;
-					else if(isClass2Consumer(prev))
-						requiredSize += 2;
-					else if(isClass2Producer(prev))
-						requiredSize -= 2;
-					else if(isClass1ConsumerProducer(prev)) {
-						requiredSize--;
-						if(requiredSize != 0)
-							requiredSize++;
-					} else if(isDoubleClass1ConsumerProducer(prev)) {
-						requiredSize--;
-						if (requiredSize != 0)
-							requiredSize += 2;
-					} else if(isDoubleClass2ConsumerProducer(prev)) {
-						requiredSize -= 2;
-						if(requiredSize != 0)
-							requiredSize += 4;
-					} else if(prev.getOpcode() == DUP) {
-						requiredSize -= 2;
-						if (requiredSize != 0)
-							requiredSize++;
-					} else if(prev.getOpcode() == SWAP) {
-						if(requiredSize <= 2){
-							swaps.add(prev);
-							if(requiredSize == 1)
-								requiredSize = 2;
-							else
-								requiredSize = 1;
-						}
-					} else if(isClass1ConsumerClass2Producer(prev)) {
-						requiredSize -= 2;
-						if(requiredSize != 0)
-							requiredSize++;
-					} else if(prev.getOpcode() == IINC) {}
-					else if(prev instanceof MethodInsnNode || prev instanceof InvokeDynamicInsnNode) {
-						InstructionStackEffect.ConsProd cp = InstructionStackEffect.invokeConsProd(prev, true);
-						requiredSize -= cp.produced;
-						if(requiredSize == 0) return 0;  // If we pop the result of the method then don't do anything
-						requiredSize += cp.consumed;
-					} else
-						return 0;
-
-					if(requiredSize == 0) {
-						mn.instructions.remove(cur);
-						mn.instructions.insert(prev, cur);
-						swaps.forEach(mn.instructions::remove);
-						return 1;
-					} else if(requiredSize < 0)
-						return 0;
-
-					prev = prev.getPrevious();
-				}
+	private void retarget(JumpInsnNode insn, int opcode, LabelNode label) {
+		reference(insn, -1);
+		insn.setOpcode(opcode);
+		insn.label = label;
+		reference(insn, 1);
+	}
 
-				return 0;
-			},
-			(mn, insns, preds, startIndex) -> {
-				if(insns.length < startIndex + 7) return 0;
-
-				// TODO: Can be made more general if needed
-				// CNDJMP L0, ICONST 1, GOTO L1, L0, ICONST 0, L1, IFNE L2 ->
-				// CNDJMP L2
-				if(!(insns[startIndex] instanceof JumpInsnNode)) return 0;
-				JumpInsnNode cndjmp = (JumpInsnNode) insns[startIndex];
-				LabelNode L0 = cndjmp.label;
-				if(insns[startIndex+1].getOpcode() == ICONST_1
-					&& insns[startIndex+2].getOpcode() == GOTO
-					&& insns[startIndex+3].equals(L0)
-					&& insns[startIndex+4].getOpcode() == ICONST_0
-					&& insns[startIndex+6].getOpcode() == IFNE) {
-
-					LabelNode L1 = ((JumpInsnNode) insns[startIndex+2]).label;
-					if(!L1.equals(insns[startIndex+5])) return 0;
-
-					// Make sure that other code does not jump to L0 or L1
-					if(preds[startIndex+3] == 1 && preds[startIndex+5] == 2) {
-						cndjmp.setOpcode(oppositeBranch(cndjmp));
-						cndjmp.label = ((JumpInsnNode) insns[startIndex+6]).label;
-
-						for (int i = startIndex + 1; i <= startIndex + 6; i++)
-							mn.instructions.remove(insns[i]);
-
-						return 7;
-					}
+	/** Moves a POP up to the instruction that produces the popped value */
+	private boolean movePop(AbstractInsnNode cur) {
+		int requiredSize = 1;
+		AbstractInsnNode prev = cur.getPrevious();
+		List<AbstractInsnNode> swaps = new ArrayList<>();
+		while(prev != null) {
+			Effect effect = pureEffect(prev);
+			if(effect == null && prev.getOpcode() >= 0) effect = consumers[prev.getOpcode()];
+
+			if(effect != null) {
+				requiredSize -= effect.result;
+				if(requiredSize != 0)
+					requiredSize += effect.consumed;
+			} else if(prev.getOpcode() == SWAP) {
+				if(requiredSize <= 2){
+					swaps.add(prev);
+					if(requiredSize == 1)
+						requiredSize = 2;
+					else
+						requiredSize = 1;
 				}
+			} else if(prev.getOpcode() == IINC) {}
+			else if(prev instanceof MethodInsnNode || prev instanceof InvokeDynamicInsnNode) {
+				InstructionStackEffect.ConsProd cp = InstructionStackEffect.invokeConsProd(prev, true);
+				requiredSize -= cp.produced;
+				if(requiredSize == 0) return false;  // If we pop the result of the method then don't do anything
+				requiredSize += cp.consumed;
+			} else
+				return false;
+
+			if(requiredSize == 0) {
+				changedAfter = prev.getPrevious();
+				remove(cur);
+				insert(prev, cur);
+				swaps.forEach(this::remove);
+				return true;
+			} else if(requiredSize < 0)
+				return false;
 
-				return 0;
-			},
-			(mn, insns, preds, startIndex) -> {
-				AbstractInsnNode curr = insns[startIndex];
-				if(curr.getOpcode() != ICONST_1) return 0;
-
-				// ICONST 1, ..., IFNE L0 -> GOTO L0
-				AbstractInsnNode next = findNextInstruction(curr);
-				if(next.getOpcode() != IFNE) return 0;
-
-				mn.instructions.set(curr, new JumpInsnNode(GOTO, ((JumpInsnNode) next).label));
-				return 1;
-			}
-			/*
-			(mn, insns, startIndex) -> {
-				if(insns.length < startIndex + 3) return 0;
-
-				// NULL, ILOAD, DUP_X1 -> ILOAD, NULL, ILOAD
-				if(isClass1Producer(insns[startIndex])
-					&& isClass1Producer(insns[startIndex + 1])
-					&& insns[startIndex + 2].getOpcode() == DUP_X1) {
+			prev = prev.getPrevious();
+		}
 
-					// Empty map is fine since we don't clone labels
-					mn.instructions.insertBefore(insns[startIndex], insns[startIndex + 1].clone(new HashMap<>()));
-					mn.instructions.remove(insns[startIndex + 2]);
+		return false;
+	}
 
-					return 3;
-				}
+	/** Applies the first rule that matches the window starting at the instruction and returns true if any did */
+	private boolean rewrite(AbstractInsnNode insn) {
+		AbstractInsnNode[] window = new AbstractInsnNode[maxWindow];
+		int length = 0;
+		for(AbstractInsnNode cur = insn; cur != null && length < maxWindow; cur = cur.getNext())
+			window[length++] = cur;
 
-				return 0;
-			}*/
-	};
+		for(Rule rule : rules) {
+			if(rule.window.length > length) continue;
 
-	private static int[] computePredecessors(MethodNode mn, AbstractInsnNode[] insns) {
-		int N = insns.length;
-		int[] predecessors = new int[N];
+			boolean matches = true;
+			for(int i = 0; i < rule.window.length && matches; i++)
+				matches = rule.window[i].test(window[i]);
 
-		// TODO: LineNumberNodes should also be handled.
-		//  Maybe we can just get rid of them?
-		for (int i = 0; i < N; i++) {
-			AbstractInsnNode insn = insns[i];
-			int opcode = insn.getOpcode();
-			if(opcode != GOTO && opcode != ATHROW && (opcode < IRETURN || opcode > RETURN) && i+1 < N)
-				predecessors[i+1]++;
-
-			if(insn instanceof JumpInsnNode)
-				predecessors[mn.instructions.indexOf(((JumpInsnNode) insn).label)]++;
-			else if(insn instanceof TableSwitchInsnNode) {
-				TableSwitchInsnNode tinsn = (TableSwitchInsnNode) insn;
-				predecessors[mn.instructions.indexOf(tinsn.dflt)]++;
-				for(LabelNode lbl : tinsn.labels) predecessors[mn.instructions.indexOf(lbl)]++;
-			} else if(insn instanceof LookupSwitchInsnNode) {
-				LookupSwitchInsnNode linsn = (LookupSwitchInsnNode) insn;
-				predecessors[mn.instructions.indexOf(linsn.dflt)]++;
-				for(LabelNode lbl : linsn.labels) predecessors[mn.instructions.indexOf(lbl)]++;
-			}
+			changedAfter = insn.getPrevious();
+			if(matches && rule.rewrite.apply(this, window)) return true;
 		}
 
-		// Add some fake predecessors for labels that are referred to by local variables etc.
-		for(LocalVariableNode lvn : mn.localVariables) {
-			predecessors[mn.instructions.indexOf(lvn.start)]++;
-			predecessors[mn.instructions.indexOf(lvn.end)]++;
-		}
-
-		for(TryCatchBlockNode tcbn : mn.tryCatchBlocks) {
-			predecessors[mn.instructions.indexOf(tcbn.start)]++;
-			predecessors[mn.instructions.indexOf(tcbn.end)]++;
-			predecessors[mn.instructions.indexOf(tcbn.handler)]++;
-		}
-
-		return predecessors;
+		return false;
 	}
 
 	public static void run(MethodNode mn) {
 		int originalSize = mn.instructions.size();
 
+		SlidingWindowOptimizer opt = new SlidingWindowOptimizer(mn);
 		for(boolean changed = true; changed; ) {
 			changed = false;
-			AbstractInsnNode[] insns = mn.instructions.toArray();
-			int[] predecessors = computePredecessors(mn, insns);
-			for(int i = 0; i < insns.length; ) {
-				boolean anyApplied = false;
-				for(Pattern pat : patterns) {
-					int jump = pat.apply(mn, insns, predecessors, i);
-					if(jump != 0) {
-						i += jump;
-						anyApplied = true;
-						break;
-					}
+			AbstractInsnNode insn = mn.instructions.getFirst();
+			while(insn != null) {
+				if(!opt.rewrite(insn)) {
+					insn = insn.getNext();
+					continue;
 				}
 
-				if(anyApplied) changed = true;
-				else i++;
+				// Back up to the first window that includes a changed instruction
+				changed = true;
+				insn = opt.changedAfter;
+				for(int i = 1; i < maxWindow && insn != null; i++) insn = insn.getPrevious();
+				if(insn == null) insn = mn.instructions.getFirst();
 			}
 		}
 
-		System.out.println(String.format("Reduced %s size from %d to %d instructions",
-				mn.name, originalSize, mn.instructions.size()));
+		Metrics.count("peepholeRemovedInstructions", originalSize - mn.instructions.size());
 	}
 }
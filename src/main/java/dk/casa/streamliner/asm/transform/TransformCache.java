@@ -0,0 +1,397 @@
+package dk.casa.streamliner.asm.transform;
+
+import dk.casa.streamliner.asm.ClassNodeCache;
+import dk.casa.streamliner.asm.Utils;
+import dk.casa.streamliner.asm.analysis.inter.AnalysisBudgetException;
+import dk.casa.streamliner.asm.analysis.inter.AnalysisSession;
+import dk.casa.streamliner.asm.analysis.inter.oracles.Oracle;
+import dk.casa.streamliner.utils.Counter;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.commons.ClassRemapper;
+import org.objectweb.asm.commons.Remapper;
+import org.objectweb.asm.commons.SimpleRemapper;
+import org.objectweb.asm.tree.*;
+import org.objectweb.asm.tree.analysis.AnalyzerException;
+
+import java.io.*;
+import java.math.BigInteger;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.objectweb.asm.Opcodes.*;
+
+/**
+ *  Persistent cache of the outcome of InlineAndAllocateTransformer.transform.
+ *  Entries are keyed by the method, the configuration of the oracle and the implementation of
+ *  the optimiser. Each entry records the hashes of the classes that were requested from the
+ *  ClassNodeCache during the transformation and is only used if they are unchanged.
+ *  Lambda models that are referenced by a cached result are stored with it and renamed
+ *  when the result is replayed, since their names are only unique within a run.
+ *
+ *  The cache is enabled by setting the system property streamliner.cache to a directory.
+ */
+public class TransformCache {
+	private static final int FORMAT = 1;
+	private static final byte SUCCESS = 0, ANALYZER_FAILURE = 1, CLASS_NOT_FOUND = 2, FAILURE = 3;
+
+	private final Path directory;
+	private final String configuration;
+
+	public final Counter<String> stats = new Counter<>(Arrays.asList("hit", "miss", "invalidated", "notStored"));
+
+	private static String implementationHash;
+
+	/**
+	 * @param directory Directory containing the cache entries.
+	 * @param configuration Description of everything besides the method and the classes it depends on
+	 *                      that influences the oracle (e.g. the analysed project for whole-program oracles).
+	 */
+	public TransformCache(Path directory, String configuration) {
+		this.directory = directory;
+		this.configuration = configuration;
+	}
+
+	/** Returns a cache in the directory given by the streamliner.cache property or null if it is not set */
+	public static TransformCache fromProperty(String configuration) {
+		String dir = System.getProperty("streamliner.cache");
+		return dir == null ? null : new TransformCache(Paths.get(dir), configuration);
+	}
+
+	/** Has the same effect on method as InlineAndAllocateTransformer.transform, but the outcome is
+	 *  fetched from the cache if it is present. Failures are rethrown as equivalent exceptions. */
+	public void transform(String owner, MethodNode method, Oracle oracle, boolean verifyTransformable) throws AnalyzerException {
+		Path entry = directory.resolve(hash(String.join("\n", getImplementationHash(), configuration,
+				oracle.getClass().getName(), String.valueOf(verifyTransformable),
+				String.valueOf(AnalysisSession.current().getContextLimit()), owner, hashMethod(owner, method))));
+
+		if(Files.exists(entry)) {
+			try {
+				if(replay(entry, method)) {
+					inc("hit");
+					return;
+				}
+				inc("invalidated");
+			} catch(IOException exc) {
+				System.err.println("Unable to read cache entry " + entry + ": " + exc);
+			}
+		} else
+			inc("miss");
+
+		AnalysisSession.current().clearRequestedClasses();
+		Set<String> dependencies = AnalysisSession.current().requestedClasses;
+		try {
+			new InlineAndAllocateTransformer(owner, method, oracle, verifyTransformable).transform();
+		} catch(AnalyzerException exc) {
+			storeFailure(entry, dependencies, exc);
+			throw exc;
+		} catch(RuntimeException exc) {
+			storeFailure(entry, dependencies, exc);
+			throw exc;
+		}
+
+		byte[] result;
+		try {
+			result = serialiseResult(owner, method);
+		} catch(ClassNotFoundException exc) { // A model is no longer available
+			inc("notStored");
+			return;
+		}
+
+		store(entry, dependencies, out -> {
+			out.writeByte(SUCCESS);
+			out.write(result);
+		});
+	}
+
+	private void storeFailure(Path entry, Set<String> dependencies, Exception exc) {
+		// Exceeding the analysis budget depends on the budget and the machine rather than the method
+		if(AnalysisBudgetException.find(exc).isPresent()) {
+			inc("notStored");
+			return;
+		}
+
+		store(entry, dependencies, out -> writeFailure(out, exc));
+	}
+
+	private void inc(String key) {
+		synchronized (stats) {
+			stats.add(key);
+		}
+	}
+
+	@FunctionalInterface
+	private interface Writer {
+		void write(DataOutputStream out) throws IOException;
+	}
+
+	private void store(Path entry, Set<String> dependencies, Writer outcome) {
+		// Lambda models are stored with the result and are derived from the classes that contain the lambdas
+		Map<String, String> hashes = new TreeMap<>();
+		for(String name : dependencies) {
+			if(isModel(name)) continue;
+			String hash = hashClass(name);
+			if(hash == null) {
+				inc("notStored");
+				return;
+			}
+			hashes.put(name, hash);
+		}
+
+		Path tmp = null;
+		try {
+			Files.createDirectories(directory);
+			tmp = Files.createTempFile(directory, "entry", ".tmp");
+			try(DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+				out.writeInt(FORMAT);
+				out.writeInt(hashes.size());
+				for(Map.Entry<String, String> dependency : hashes.entrySet()) {
+					out.writeUTF(dependency.getKey());
+					out.writeUTF(dependency.getValue());
+				}
+				outcome.write(out);
+			}
+			Files.move(tmp, entry, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch(IOException exc) {
+			System.err.println("Unable to write cache entry " + entry + ": " + exc);
+			try {
+				if(tmp != null) Files.deleteIfExists(tmp);
+			} catch(IOException ignored) {}
+		}
+	}
+
+	/** Returns false if the entry is outdated */
+	private static boolean replay(Path entry, MethodNode method) throws IOException, AnalyzerException {
+		try(DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(entry)))) {
+			if(in.readInt() != FORMAT) return false;
+			int dependencies = in.readInt();
+			for(int i = 0; i < dependencies; i++) {
+				String name = in.readUTF();
+				if(!in.readUTF().equals(hashClass(name))) return false;  // Also if the class cannot be hashed
+			}
+
+			byte kind = in.readByte();
+			if(kind == SUCCESS) {
+				replayResult(in, method);
+				return true;
+			}
+
+			String message = in.readUTF();
+			switch(kind) {
+				case ANALYZER_FAILURE:
+					AbstractInsnNode node = null;
+					if(in.readBoolean())
+						node = new MethodInsnNode(in.readInt(), in.readUTF(), in.readUTF(), in.readUTF(), in.readBoolean());
+					throw new AnalyzerException(node, message);
+
+				case CLASS_NOT_FOUND:
+					throw new RuntimeException(message, new IOException("Class not found"));
+
+				case FAILURE:
+					throw new RuntimeException(message);
+
+				default:
+					throw new IOException("Unknown outcome: " + kind);
+			}
+		}
+	}
+
+	private static void writeFailure(DataOutputStream out, Exception exc) throws IOException {
+		Throwable cause = exc;
+		while(cause.getCause() != null) cause = cause.getCause();
+		boolean classNotFound = cause instanceof IOException && "Class not found".equals(cause.getMessage());
+
+		out.writeByte(classNotFound ? CLASS_NOT_FOUND : exc instanceof AnalyzerException ? ANALYZER_FAILURE : FAILURE);
+		out.writeUTF(String.valueOf(exc.getMessage()));
+		if(!classNotFound && exc instanceof AnalyzerException) {
+			AbstractInsnNode node = ((AnalyzerException) exc).node;
+			out.writeBoolean(node instanceof MethodInsnNode);
+			if(node instanceof MethodInsnNode) {
+				MethodInsnNode minsn = (MethodInsnNode) node;
+				out.writeInt(minsn.getOpcode());
+				out.writeUTF(minsn.owner);
+				out.writeUTF(minsn.name);
+				out.writeUTF(minsn.desc);
+				out.writeBoolean(minsn.itf);
+			}
+		}
+	}
+
+	private static void replaceBody(MethodNode target, MethodNode source) {
+		target.instructions.clear();
+		target.instructions.add(source.instructions);
+		target.tryCatchBlocks = source.tryCatchBlocks;
+		target.localVariables = source.localVariables;
+		target.visibleLocalVariableAnnotations = source.visibleLocalVariableAnnotations;
+		target.invisibleLocalVariableAnnotations = source.invisibleLocalVariableAnnotations;
+		target.maxStack = source.maxStack;
+		target.maxLocals = source.maxLocals;
+	}
+
+	/** Writes the lambda models referenced by the method followed by a class containing the method.
+	 *  The class also contains a method with the invokedynamic instruction of each model. */
+	private static byte[] serialiseResult(String owner, MethodNode method) throws ClassNotFoundException {
+		ClassNode holder = holder(owner, Utils.copyMethod(method));
+		ModelCollector collector = new ModelCollector();
+		holder.accept(new ClassRemapper(new ClassNode(), collector));
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try(DataOutputStream out = new DataOutputStream(bytes)) {
+			out.writeInt(collector.models.size());
+			for(String model : collector.models) {
+				InvokeDynamicInsnNode insn = LambdaPreprocessor.models.get(model);
+				if(insn == null) throw new ClassNotFoundException(model);
+
+				MethodNode indy = new MethodNode(ACC_PUBLIC | ACC_STATIC, "model$" + holder.methods.size(), "()V", null, null);
+				indy.instructions.add(insn.clone(null));
+				holder.methods.add(indy);
+
+				out.writeUTF(model);
+				writeBytes(out, toBytes(ClassNodeCache.tryGet(model)));
+			}
+			writeBytes(out, toBytes(holder));
+		} catch(IOException exc) {
+			throw new UncheckedIOException(exc);
+		}
+
+		return bytes.toByteArray();
+	}
+
+	private static void replayResult(DataInputStream in, MethodNode method) throws IOException {
+		int count = in.readInt();
+		Map<String, String> renaming = new HashMap<>();
+		List<byte[]> models = new ArrayList<>();
+		for(int i = 0; i < count; i++) {
+			String model = in.readUTF();
+			renaming.put(model, LambdaPreprocessor.freshModelName(model));
+			models.add(readBytes(in));
+		}
+
+		SimpleRemapper remapper = new SimpleRemapper(renaming);
+		ClassNode holder = fromBytes(readBytes(in), remapper);
+		for(int i = 0; i < count; i++) {
+			InvokeDynamicInsnNode insn = (InvokeDynamicInsnNode) Utils.instructionStream(holder.methods.get(i + 1))
+					.filter(n -> n instanceof InvokeDynamicInsnNode).findFirst()
+					.orElseThrow(() -> new IOException("Missing invokedynamic of model"));
+			LambdaPreprocessor.registerModel(fromBytes(models.get(i), remapper), insn);
+		}
+
+		replaceBody(method, holder.methods.get(0));
+	}
+
+	/** Collects the lambda models that are referenced by a class */
+	private static class ModelCollector extends Remapper {
+		final Set<String> models = new TreeSet<>();
+
+		@Override
+		public String map(String internalName) {
+			if(isModel(internalName)) models.add(internalName);
+			return internalName;
+		}
+	}
+
+	private static boolean isModel(String name) {
+		return name.contains("LambdaModel$");
+	}
+
+	private static ClassNode holder(String owner, MethodNode method) {
+		ClassNode cn = new ClassNode();
+		cn.version = V1_8;
+		cn.access = ACC_PUBLIC;
+		cn.name = owner;
+		cn.superName = "java/lang/Object";
+		cn.methods.add(method);
+		return cn;
+	}
+
+	private static byte[] toBytes(ClassNode cn) {
+		ClassWriter cw = new ClassWriter(0);
+		cn.accept(cw);
+		return cw.toByteArray();
+	}
+
+	private static ClassNode fromBytes(byte[] bytes, Remapper remapper) {
+		ClassNode cn = new ClassNode();
+		new ClassReader(bytes).accept(new ClassRemapper(cn, remapper), 0);
+		return cn;
+	}
+
+	private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	private static byte[] readBytes(DataInputStream in) throws IOException {
+		byte[] bytes = new byte[in.readInt()];
+		in.readFully(bytes);
+		return bytes;
+	}
+
+	/** Hashes the method where lambda models are replaced by their invokedynamic such that it does not depend on their names */
+	private static String hashMethod(String owner, MethodNode method) {
+		MethodNode copy = Utils.copyMethod(method);
+		new LambdaPreprocessor(copy).postprocess();
+		return hash(toBytes(holder(owner, copy)));
+	}
+
+	/** Returns the hash of the version of the class that is used by the session or null if it does not exist */
+	private static String hashClass(String name) {
+		ClassNode cn = ClassNodeCache.tryGetUnmodified(name);
+		return cn == null ? null : hashClass(cn);
+	}
+
+	/** Returns a hash of the current contents of a class. Classes can be modified in place outside of a session,
+	 *  so the hash is computed on every call. */
+	public static String hashClass(ClassNode cn) {
+		ClassWriter cw = new ClassWriter(0);
+		cw.visit(cn.version, cn.access, cn.name, cn.signature, cn.superName, cn.interfaces.toArray(new String[0]));
+		if(cn.nestHostClass != null) cw.visitNestHost(cn.nestHostClass);
+		for(FieldNode fn : cn.fields) fn.accept(cw);
+		// Visiting a method resets its labels, so it must not happen concurrently with copying
+		for(MethodNode mn : cn.methods) synchronized (mn) {
+			mn.accept(cw);
+		}
+		cw.visitEnd();
+
+		return hash(cw.toByteArray());
+	}
+
+	/** Hash of the classes of the optimiser itself, such that changes to it invalidate the cache */
+	private static synchronized String getImplementationHash() {
+		if(implementationHash != null) return implementationHash;
+
+		try {
+			Path location = Paths.get(TransformCache.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+			MessageDigest md = MessageDigest.getInstance("SHA-256");
+			if(Files.isDirectory(location)) {
+				try(Stream<Path> files = Files.walk(location.resolve("dk/casa/streamliner/asm"))) {
+					for(Path file : files.filter(p -> p.toString().endsWith(".class")).sorted().collect(Collectors.toList()))
+						md.update(Files.readAllBytes(file));
+				}
+			} else
+				md.update(Files.readAllBytes(location));
+
+			return implementationHash = new BigInteger(1, md.digest()).toString(16);
+		} catch(IOException | URISyntaxException | NoSuchAlgorithmException exc) {
+			throw new RuntimeException(exc);
+		}
+	}
+
+	public static String hash(String s) {
+		return hash(s.getBytes(StandardCharsets.UTF_8));
+	}
+
+	private static String hash(byte[] bytes) {
+		try {
+			return new BigInteger(1, MessageDigest.getInstance("SHA-256").digest(bytes)).toString(16);
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+	}
+}
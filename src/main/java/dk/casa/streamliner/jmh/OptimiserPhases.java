@@ -0,0 +1,153 @@
+package dk.casa.streamliner.jmh;
+
+import dk.casa.streamliner.asm.ClassNodeCache;
+import dk.casa.streamliner.asm.RQ2.Experiment;
+import dk.casa.streamliner.asm.Utils;
+import dk.casa.streamliner.asm.analysis.inter.AnalysisSession;
+import dk.casa.streamliner.asm.analysis.inter.InterproceduralTypePointerAnalysis;
+import dk.casa.streamliner.asm.analysis.inter.oracles.StreamLibraryOracle;
+import dk.casa.streamliner.asm.transform.InlineAndAllocateTransformer;
+import dk.casa.streamliner.asm.transform.JumpThreading;
+import dk.casa.streamliner.asm.transform.LambdaPreprocessor;
+import dk.casa.streamliner.asm.transform.LocalVariableCleanup;
+import dk.casa.streamliner.asm.transform.SlidingWindowOptimizer;
+import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.MethodNode;
+import org.objectweb.asm.tree.analysis.AnalyzerException;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/** Benchmarks of the optimiser itself on the methods with stream pipelines in a set of classes.
+ *
+ *  Each benchmark runs the phases of the optimiser up to and including the phase it is named after,
+ *  starting from a fresh copy of every method in a fresh analysis session, so the cost of a phase is
+ *  the difference to the benchmark of the previous phase. (The transformation runs the analysis itself.)
+ *  Methods that cannot be optimised are left out such that all benchmarks process the same methods.
+ *
+ *  Run with: misc/jmh.sh dk.casa.streamliner.jmh.OptimiserPhases -prof gc
+ *  to also measure the allocation rate of each phase.
+ */
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@BenchmarkMode(Mode.AverageTime)
+@State(Scope.Thread)
+@Fork(value = 1, jvmArgs = {"-Xss512m"})
+public class OptimiserPhases {
+	private static final Map<String, List<String>> sources = new HashMap<>();
+	static {
+		List<String> winterbe = new ArrayList<>(Arrays.asList("Optional1", "Optional2"));
+		for(int i = 1; i <= 13; i++) winterbe.add("Streams" + i);
+		sources.put("winterbe", prefix("dk/casa/streamliner/other/winterbe/", winterbe));
+		sources.put("examples", prefix("dk/casa/streamliner/other/examples/", Arrays.asList("Employee", "EmployeeTest",
+				"FirefoxBinary", "GraalVMConsolidateArgs", "Java8TutorialLambda3", "SumRange")));
+		sources.put("jmh", prefix("dk/casa/streamliner/jmh/", Arrays.asList("TestStream", "TestBaseline")));
+	}
+
+	private static List<String> prefix(String pkg, List<String> classes) {
+		List<String> res = new ArrayList<>();
+		for(String cls : classes) res.add(pkg + cls);
+		return res;
+	}
+
+	private enum Phase { PREPROCESS, ANALYSIS, TRANSFORM, CLEANUP, SLIDING_WINDOW }
+
+	private static class Method {
+		final String owner;
+		final MethodNode mn;
+
+		Method(String owner, MethodNode mn) {
+			this.owner = owner;
+			this.mn = mn;
+		}
+	}
+
+	@Param({"winterbe", "examples", "jmh"})
+	public String source;
+
+	private final List<Method> methods = new ArrayList<>();
+
+	@Setup
+	public void setUp() {
+		int skipped = 0;
+		for(String cls : sources.get(source)) {
+			ClassNode cn = ClassNodeCache.get(cls);
+			for(MethodNode mn : cn.methods) {
+				if(!Utils.instructionStream(mn).anyMatch(Experiment::isStreamConstructor)
+						|| !Utils.instructionStream(mn).anyMatch(Experiment::isStreamConsumer)
+						|| Utils.instructionStream(mn).anyMatch(Experiment::isParallel))
+					continue;
+
+				Method method = new Method(cn.name, mn);
+				try {
+					run(method, Phase.SLIDING_WINDOW);
+					methods.add(method);
+				} catch(AnalyzerException | RuntimeException exc) {
+					skipped++;
+				}
+			}
+		}
+
+		System.out.format("%nOptimiserPhases(%s): %d methods, %d skipped%n", source, methods.size(), skipped);
+	}
+
+	private static MethodNode run(Method method, Phase last) throws AnalyzerException {
+		MethodNode mn = Utils.copyMethod(method.mn);
+		try(AnalysisSession ignored = AnalysisSession.open()) {
+			new LambdaPreprocessor(mn).preprocess();
+			if(last == Phase.PREPROCESS) return mn;
+
+			if(last == Phase.ANALYSIS) {
+				InterproceduralTypePointerAnalysis.startAnalysis(method.owner, mn, new StreamLibraryOracle());
+				return mn;
+			}
+
+			new InlineAndAllocateTransformer(method.owner, mn, new StreamLibraryOracle(), false).transform();
+			if(last == Phase.TRANSFORM) return mn;
+
+			new LocalVariableCleanup(method.owner, mn).run();
+			new JumpThreading(method.owner, mn).run();
+			if(last == Phase.CLEANUP) return mn;
+
+			SlidingWindowOptimizer.run(mn);
+			return mn;
+		}
+	}
+
+	private void runAll(Phase last, Blackhole bh) throws AnalyzerException {
+		for(Method method : methods)
+			bh.consume(run(method, last));
+	}
+
+	@Benchmark
+	public void copy(Blackhole bh) {
+		for(Method method : methods)
+			bh.consume(Utils.copyMethod(method.mn));
+	}
+
+	@Benchmark
+	public void preprocess(Blackhole bh) throws AnalyzerException {
+		runAll(Phase.PREPROCESS, bh);
+	}
+
+	@Benchmark
+	public void analysis(Blackhole bh) throws AnalyzerException {
+		runAll(Phase.ANALYSIS, bh);
+	}
+
+	@Benchmark
+	public void transform(Blackhole bh) throws AnalyzerException {
+		runAll(Phase.TRANSFORM, bh);
+	}
+
+	@Benchmark
+	public void cleanup(Blackhole bh) throws AnalyzerException {
+		runAll(Phase.CLEANUP, bh);
+	}
+
+	@Benchmark
+	public void slidingWindow(Blackhole bh) throws AnalyzerException {
+		runAll(Phase.SLIDING_WINDOW, bh);
+	}
+}
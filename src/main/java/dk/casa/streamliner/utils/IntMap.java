@@ -0,0 +1,243 @@
+package dk.casa.streamliner.utils;
+
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/** Open addressing hash map from int keys to values without boxing of the keys.
+ *  Integer.MIN_VALUE cannot be used as a key.
+ *
+ *  The entries are iterated by slot:
+ *  for(int slot = map.next(-1); slot >= 0; slot = map.next(slot)) ... map.keyAt(slot) ... map.valueAt(slot)
+ *  Values of existing keys may be replaced while iterating, but keys may not be added or removed.
+ */
+public class IntMap<V> {
+    private static final int FREE = Integer.MIN_VALUE;
+
+    private int[] keys;
+    private Object[] values;
+    private int size;
+
+    public IntMap() {
+        this(4);
+    }
+
+    public IntMap(int expectedSize) {
+        int capacity = 4;
+        while(capacity < expectedSize * 2) capacity <<= 1;
+        allocate(capacity);
+    }
+
+    public IntMap(IntMap<? extends V> other) {
+        keys = other.keys.clone();
+        values = other.values.clone();
+        size = other.size;
+    }
+
+    private void allocate(int capacity) {
+        keys = new int[capacity];
+        Arrays.fill(keys, FREE);
+        values = new Object[capacity];
+    }
+
+    private static int hash(int key) {
+        int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    /** Returns the slot of the key or the free slot where it should be inserted */
+    private int find(int key) {
+        int mask = keys.length - 1;
+        int slot = hash(key) & mask;
+        while(keys[slot] != FREE && keys[slot] != key)
+            slot = (slot + 1) & mask;
+        return slot;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public boolean containsKey(int key) {
+        return keys[find(key)] == key;
+    }
+
+    @SuppressWarnings("unchecked")
+    public V get(int key) {
+        int slot = find(key);
+        return keys[slot] == key ? (V) values[slot] : null;
+    }
+
+    @SuppressWarnings("unchecked")
+    public V put(int key, V value) {
+        if(key == FREE) throw new IllegalArgumentException("Invalid key: " + key);
+
+        int slot = find(key);
+        if(keys[slot] == key) {
+            V old = (V) values[slot];
+            values[slot] = value;
+            return old;
+        }
+
+        keys[slot] = key;
+        values[slot] = value;
+        if(++size * 2 > keys.length) rehash(keys.length * 2);
+        return null;
+    }
+
+    @SuppressWarnings("unchecked")
+    public V remove(int key) {
+        int slot = find(key);
+        if(keys[slot] != key) return null;
+
+        V old = (V) values[slot];
+        deleteSlot(slot);
+        return old;
+    }
+
+    /** Removes the entry in the slot and moves the following entries back to keep the probe sequences intact */
+    private void deleteSlot(int slot) {
+        int mask = keys.length - 1;
+        int hole = slot;
+        for(int i = (slot + 1) & mask; keys[i] != FREE; i = (i + 1) & mask) {
+            int home = hash(keys[i]) & mask;
+            // Move the entry if its home slot is not cyclically in (hole, i]
+            if(((i - home) & mask) >= ((i - hole) & mask)) {
+                keys[hole] = keys[i];
+                values[hole] = values[i];
+                hole = i;
+            }
+        }
+
+        keys[hole] = FREE;
+        values[hole] = null;
+        size--;
+    }
+
+    /** Removes all entries whose keys are not in the set. Returns true if any entries were removed. */
+    public boolean retainAll(IntSet retain) {
+        int[] remove = new int[size];
+        int n = 0;
+        for(int slot = next(-1); slot >= 0; slot = next(slot))
+            if(!retain.contains(keys[slot])) remove[n++] = keys[slot];
+
+        for(int i = 0; i < n; i++) remove(remove[i]);
+        return n > 0;
+    }
+
+    public void clear() {
+        Arrays.fill(keys, FREE);
+        Arrays.fill(values, null);
+        size = 0;
+    }
+
+    private void rehash(int capacity) {
+        int[] oldKeys = keys;
+        Object[] oldValues = values;
+        allocate(capacity);
+        for(int i = 0; i < oldKeys.length; i++) {
+            if(oldKeys[i] == FREE) continue;
+            int slot = find(oldKeys[i]);
+            keys[slot] = oldKeys[i];
+            values[slot] = oldValues[i];
+        }
+    }
+
+    // Iteration by slot
+
+    /** Returns the first occupied slot after the given slot, or -1 if there are none */
+    public int next(int slot) {
+        for(int i = slot + 1; i < keys.length; i++)
+            if(keys[i] != FREE) return i;
+        return -1;
+    }
+
+    public int keyAt(int slot) {
+        return keys[slot];
+    }
+
+    @SuppressWarnings("unchecked")
+    public V valueAt(int slot) {
+        return (V) values[slot];
+    }
+
+    public void setValueAt(int slot, V value) {
+        values[slot] = value;
+    }
+
+    /** Read-only view of the keys */
+    public Set<Integer> keySet() {
+        return new AbstractSet<Integer>() {
+            @Override
+            public Iterator<Integer> iterator() {
+                return new Iterator<Integer>() {
+                    private int slot = IntMap.this.next(-1);
+
+                    @Override
+                    public boolean hasNext() {
+                        return slot >= 0;
+                    }
+
+                    @Override
+                    public Integer next() {
+                        if(slot < 0) throw new NoSuchElementException();
+                        int key = keys[slot];
+                        slot = IntMap.this.next(slot);
+                        return key;
+                    }
+                };
+            }
+
+            @Override
+            public boolean contains(Object o) {
+                return o instanceof Integer && containsKey((Integer) o);
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+        };
+    }
+
+    @Override
+    public int hashCode() {
+        int h = 0;
+        for(int slot = next(-1); slot >= 0; slot = next(slot))
+            h += keys[slot] ^ (values[slot] == null ? 0 : values[slot].hashCode());
+        return h;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if(this == o) return true;
+        if(!(o instanceof IntMap)) return false;
+
+        IntMap<?> other = (IntMap<?>) o;
+        if(size != other.size) return false;
+        for(int slot = next(-1); slot >= 0; slot = next(slot)) {
+            int otherSlot = other.find(keys[slot]);
+            if(other.keys[otherSlot] != keys[slot]) return false;
+
+            Object value = values[slot], otherValue = other.values[otherSlot];
+            if(value == null ? otherValue != null : !value.equals(otherValue)) return false;
+        }
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder("{");
+        for(int slot = next(-1); slot >= 0; slot = next(slot)) {
+            if(builder.length() > 1) builder.append(", ");
+            builder.append(keys[slot]).append('=').append(values[slot]);
+        }
+        return builder.append('}').toString();
+    }
+}
@@ -0,0 +1,146 @@
+package dk.casa.streamliner.utils;
+
+import java.util.AbstractSet;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/** Set of small non-negative ints stored as a bit set.
+ *  Bulk operations with other IntSets work on the words of the bit sets. */
+public class IntSet extends AbstractSet<Integer> {
+    private final BitSet bits;
+
+    public IntSet() {
+        bits = new BitSet();
+    }
+
+    public IntSet(IntSet other) {
+        bits = (BitSet) other.bits.clone();
+    }
+
+    public IntSet(Collection<Integer> elements) {
+        this();
+        addAll(elements);
+    }
+
+    public boolean contains(int i) {
+        return i >= 0 && bits.get(i);
+    }
+
+    public boolean add(int i) {
+        if(bits.get(i)) return false;
+        bits.set(i);
+        return true;
+    }
+
+    public boolean remove(int i) {
+        if(!contains(i)) return false;
+        bits.clear(i);
+        return true;
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        return o instanceof Integer && contains((int) (Integer) o);
+    }
+
+    @Override
+    public boolean add(Integer i) {
+        return add((int) i);
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        return o instanceof Integer && remove((int) (Integer) o);
+    }
+
+    @Override
+    public boolean addAll(Collection<? extends Integer> c) {
+        if(!(c instanceof IntSet)) return super.addAll(c);
+
+        BitSet other = ((IntSet) c).bits;
+        // Only modify the bits if the other set has elements that are not in this set
+        BitSet missing = (BitSet) other.clone();
+        missing.andNot(bits);
+        if(missing.isEmpty()) return false;
+        bits.or(missing);
+        return true;
+    }
+
+    @Override
+    public boolean removeAll(Collection<?> c) {
+        if(!(c instanceof IntSet)) return super.removeAll(c);
+
+        BitSet other = ((IntSet) c).bits;
+        if(!bits.intersects(other)) return false;
+        bits.andNot(other);
+        return true;
+    }
+
+    @Override
+    public boolean containsAll(Collection<?> c) {
+        if(!(c instanceof IntSet)) return super.containsAll(c);
+
+        BitSet missing = (BitSet) ((IntSet) c).bits.clone();
+        missing.andNot(bits);
+        return missing.isEmpty();
+    }
+
+    @Override
+    public void clear() {
+        bits.clear();
+    }
+
+    @Override
+    public int size() {
+        return bits.cardinality();
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return bits.isEmpty();
+    }
+
+    @Override
+    public Iterator<Integer> iterator() {
+        return new Iterator<Integer>() {
+            private int next = bits.nextSetBit(0), last = -1;
+
+            @Override
+            public boolean hasNext() {
+                return next >= 0;
+            }
+
+            @Override
+            public Integer next() {
+                if(next < 0) throw new NoSuchElementException();
+                last = next;
+                next = bits.nextSetBit(next + 1);
+                return last;
+            }
+
+            @Override
+            public void remove() {
+                if(last < 0) throw new IllegalStateException();
+                bits.clear(last);
+                last = -1;
+            }
+        };
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if(o instanceof IntSet) return bits.equals(((IntSet) o).bits);
+        return super.equals(o);
+    }
+
+    @Override
+    public int hashCode() {
+        // Same as the hash code of any other set of integers
+        int h = 0;
+        for(int i = bits.nextSetBit(0); i >= 0; i = bits.nextSetBit(i + 1))
+            h += i;
+        return h;
+    }
+}
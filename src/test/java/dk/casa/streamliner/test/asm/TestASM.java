@@ -9,6 +9,7 @@ import dk.casa.streamliner.asm.analysis.inter.oracles.ExhaustiveOracle;
 import dk.casa.streamliner.asm.analysis.inter.oracles.Oracle;
 import dk.casa.streamliner.asm.analysis.inter.oracles.StreamLibraryOracle;
 import dk.casa.streamliner.asm.transform.InlineAndAllocateTransformer;
+import dk.casa.streamliner.asm.transform.JumpThreading;
 import dk.casa.streamliner.asm.transform.LambdaPreprocessor;
 import dk.casa.streamliner.asm.transform.LocalVariableCleanup;
 import dk.casa.streamliner.asm.transform.SlidingWindowOptimizer;
@@ -61,11 +62,11 @@ public abstract class TestASM {
 		try {
 			Context initialContext = InterproceduralTypePointerAnalysis.startAnalysis(owner, mn, oracle);
 
-			for (Map.Entry<Context, InterFrame[]> e : InterproceduralTypePointerAnalysis.calls.entrySet()) {
+			for (Map.Entry<Context, InterFrame[]> e : AnalysisSession.current().calls.entrySet()) {
 				assertEquals(e.getKey().getMethod().instructions.size(), e.getValue().length);
 			}
 
-			return InterproceduralTypePointerAnalysis.calls.get(initialContext);
+			return AnalysisSession.current().calls.get(initialContext);
 		} catch(AnalyzerException exc) { throw new RuntimeException(exc); }
 	}
 
@@ -94,6 +95,7 @@ public abstract class TestASM {
 	protected static void fullTransform(String owner, MethodNode mn, Oracle oracle) throws AnalyzerException {
 		new InlineAndAllocateTransformer(owner, mn, oracle, true).transform();
 		new LocalVariableCleanup(owner, mn).run();
+		new JumpThreading(owner, mn).run();
 		SlidingWindowOptimizer.run(mn);
 		new LambdaPreprocessor(mn).postprocess();
 	}
@@ -0,0 +1,197 @@
+package dk.casa.streamliner.test.asm;
+
+import dk.casa.streamliner.asm.ClassNodeCache;
+import dk.casa.streamliner.asm.InlineMethod;
+import dk.casa.streamliner.asm.JarClassIndex;
+import dk.casa.streamliner.asm.Utils;
+import dk.casa.streamliner.asm.analysis.inter.AnalysisSession;
+import dk.casa.streamliner.asm.analysis.inter.InterproceduralTypePointerAnalysis;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.MethodNode;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+import java.util.zip.CRC32;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TestClassNodeCache {
+	private static final String intStream = "java/util/stream/IntStream";
+	private static final String rangeDesc = "(II)Ljava/util/stream/IntStream;";
+	private static final String collectors = "java/util/stream/Collectors";
+	private static final String toListDesc = "()Ljava/util/stream/Collector;";
+
+	@AfterEach
+	void clearCache() {
+		ClassNodeCache.clear();
+	}
+
+	@Test
+	void sharedClassesAreNotModifiedInSession() {
+		ClassNode shared = ClassNodeCache.get(intStream);
+		MethodNode sharedRange = Utils.getMethod(shared, "range", rangeDesc).get();
+		int size = sharedRange.instructions.size();
+
+		try(AnalysisSession ignored = AnalysisSession.open()) {
+			InlineMethod im = Utils.resolveMethodForInlining(intStream, "range", rangeDesc).get();
+			// JavaPreprocess inserts a jump in IntStream.range
+			assertEquals(size + 1, im.mth.instructions.size());
+
+			ClassNode local = ClassNodeCache.get(intStream);
+			assertNotSame(shared, local);
+			assertNotSame(sharedRange, Utils.getMethod(local, "range", rangeDesc).get());
+			// Methods that have not been modified are still shared
+			assertSame(Utils.getMethod(shared, "of", "(I)Ljava/util/stream/IntStream;").get(),
+					Utils.getMethod(local, "of", "(I)Ljava/util/stream/IntStream;").get());
+		}
+
+		assertSame(shared, ClassNodeCache.get(intStream));
+		assertEquals(size, sharedRange.instructions.size());
+	}
+
+	@Test
+	void preprocessedMethodsKeepTheirDependencies() {
+		try(AnalysisSession session = AnalysisSession.open()) {
+			session.clearRequestedClasses();
+			InlineMethod im = Utils.resolveMethodForAnalysis(collectors, "toList", toListDesc).get();
+			Set<String> dependencies = new HashSet<>(session.requestedClasses);
+
+			// The cached method reports the classes that were requested when it was preprocessed
+			session.clearRequestedClasses();
+			assertSame(im, Utils.resolveMethodForAnalysis(collectors, "toList", toListDesc).get());
+			assertEquals(dependencies, session.requestedClasses);
+
+			// The cache only lives for one analysis run
+			InterproceduralTypePointerAnalysis.reset();
+			assertTrue(session.preprocessedMethods.isEmpty());
+		}
+	}
+
+	@Test
+	void classesPutInSessionAreDiscarded() {
+		ClassNode cn = new ClassNode();
+		cn.name = "SessionClass";
+
+		try(AnalysisSession ignored = AnalysisSession.open()) {
+			assertTrue(ClassNodeCache.put(cn.name, cn));
+			assertSame(cn, ClassNodeCache.get(cn.name));
+		}
+
+		assertThrows(ClassNotFoundException.class, () -> ClassNodeCache.tryGet(cn.name));
+	}
+
+	@Test
+	void clearAddedKeepsLoadedClasses() {
+		ClassNode loaded = ClassNodeCache.get(intStream);
+		ClassNode cn = new ClassNode();
+		cn.name = "AddedClass";
+		ClassNodeCache.put(cn.name, cn);
+
+		ClassNodeCache.clearAdded();
+		assertSame(loaded, ClassNodeCache.get(intStream));
+		assertThrows(ClassNotFoundException.class, () -> ClassNodeCache.tryGet(cn.name));
+	}
+
+	private static ClassNode makeClass(String name, String superName, String... interfaces) {
+		ClassNode cn = new ClassNode();
+		cn.name = name;
+		cn.superName = superName;
+		cn.interfaces = Arrays.asList(interfaces);
+		return cn;
+	}
+
+	@Test
+	void hierarchyOfSessionClassesIsNotShared() {
+		Type cls = Type.getObjectType("SessionClass");
+		Type runnable = Type.getObjectType("java/lang/Runnable");
+
+		try(AnalysisSession ignored = AnalysisSession.open()) {
+			ClassNodeCache.put(cls.getInternalName(), makeClass(cls.getInternalName(), "java/lang/Object", runnable.getInternalName()));
+			assertTrue(Utils.hasAncestor(cls, runnable));
+			assertTrue(Utils.getAncestors(Type.getType("[" + cls.getDescriptor())).contains(Type.getType("[" + runnable.getDescriptor())));
+		}
+
+		try(AnalysisSession ignored = AnalysisSession.open()) {
+			ClassNodeCache.put(cls.getInternalName(), makeClass(cls.getInternalName(), "java/lang/Object"));
+			assertFalse(Utils.hasAncestor(cls, runnable));
+			assertTrue(Utils.hasAncestor(cls, Type.getObjectType("java/lang/Object")));
+		}
+	}
+
+	@Test
+	void hierarchyIsUpdatedWhenClassIsReplaced() {
+		Type cls = Type.getObjectType("AddedClass");
+		Type runnable = Type.getObjectType("java/lang/Runnable");
+
+		ClassNodeCache.put(cls.getInternalName(), makeClass(cls.getInternalName(), "java/lang/Object"));
+		assertFalse(Utils.hasAncestor(cls, runnable));
+
+		ClassNodeCache.put(cls.getInternalName(), makeClass(cls.getInternalName(), "java/lang/Object", runnable.getInternalName()));
+		assertTrue(Utils.hasAncestor(cls, runnable));
+		assertEquals(new HashSet<>(Arrays.asList(cls, runnable, Type.getObjectType("java/lang/Object"))), Utils.getAncestors(cls));
+	}
+
+	private static File writeJar(File file, boolean compressed, ClassNode... classes) throws IOException {
+		try(JarOutputStream out = new JarOutputStream(new FileOutputStream(file))) {
+			for(ClassNode cn : classes) {
+				cn.version = Opcodes.V1_8;
+				ClassWriter cw = new ClassWriter(0);
+				cn.accept(cw);
+				byte[] bytes = cw.toByteArray();
+
+				JarEntry entry = new JarEntry(cn.name + ".class");
+				if(!compressed) {
+					CRC32 crc = new CRC32();
+					crc.update(bytes);
+					entry.setMethod(JarEntry.STORED);
+					entry.setSize(bytes.length);
+					entry.setCrc(crc.getValue());
+				}
+				out.putNextEntry(entry);
+				out.write(bytes);
+				out.closeEntry();
+			}
+		}
+		return file;
+	}
+
+	@Test
+	void librariesAreLoadedWhenRequested() throws IOException {
+		Path dir = Files.createTempDirectory("libraries");
+		File first = writeJar(dir.resolve("first.jar").toFile(), true,
+				makeClass("lib/A", "java/lang/Object"), makeClass("lib/B", "lib/A"));
+		File second = writeJar(dir.resolve("second.jar").toFile(), false,
+				makeClass("lib/B", "java/lang/Object", "java/lang/Runnable"));
+
+		JarClassIndex index = new JarClassIndex(Arrays.asList(first, second));
+		assertEquals(2, index.size());
+		assertTrue(index.getHeaders().stream().allMatch(index::isHeader));
+		assertEquals(Opcodes.V1_8, index.getHeaders().get(0).version);
+
+		ClassNodeCache.putLibraries(index);
+		// The class of the last jar file is used
+		assertEquals(Arrays.asList("java/lang/Runnable"), ClassNodeCache.get("lib/B").interfaces);
+		assertSame(ClassNodeCache.get("lib/A"), ClassNodeCache.get("lib/A"));
+		assertTrue(Utils.hasAncestor(Type.getObjectType("lib/B"), Type.getObjectType("java/lang/Runnable")));
+
+		ClassNodeCache.clearAdded();
+		assertThrows(ClassNotFoundException.class, () -> ClassNodeCache.tryGet("lib/A"));
+
+		first.delete();
+		second.delete();
+		dir.toFile().delete();
+	}
+}
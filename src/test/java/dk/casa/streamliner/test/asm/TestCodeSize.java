@@ -0,0 +1,52 @@
+package dk.casa.streamliner.test.asm;
+
+import dk.casa.streamliner.asm.transform.CodeSize;
+import org.junit.jupiter.api.Test;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.tree.InsnNode;
+import org.objectweb.asm.tree.MethodNode;
+import org.objectweb.asm.tree.VarInsnNode;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.objectweb.asm.Opcodes.*;
+
+public class TestCodeSize extends TestASM {
+
+	private static int increment(int a) {
+		return a + 1;
+	}
+
+	/** A method that loads and pops a local the given number of times, which takes 3 bytes each */
+	private static MethodNode loads(int n) {
+		MethodNode mn = new MethodNode(ACC_PRIVATE | ACC_STATIC, "loads", Type.getMethodDescriptor(Type.VOID_TYPE), null, null);
+		for(int i = 0; i < n; i++) {
+			mn.instructions.add(new VarInsnNode(ILOAD, 4));
+			mn.instructions.add(new InsnNode(POP));
+		}
+		mn.instructions.add(new InsnNode(RETURN));
+		mn.maxLocals = 5;
+		mn.maxStack = 1;
+		return mn;
+	}
+
+	@Test
+	public void testSize() {
+		// ILOAD_0, ICONST_1, IADD, IRETURN
+		assertEquals(4, CodeSize.of(getMethodNode(asmName, "increment")));
+		assertEquals(3 * 100 + 1, CodeSize.of(loads(100)));
+	}
+
+	@Test
+	public void testInlineLimit() {
+		MethodNode orig = getMethodNode(asmName, "increment");
+		assertFalse(CodeSize.check(orig, loads(100)));
+		assertTrue(CodeSize.check(orig, loads(1000)));
+	}
+
+	@Test
+	public void testHugeMethod() {
+		MethodNode orig = getMethodNode(asmName, "increment");
+		CodeSize.TooLargeException exc = assertThrows(CodeSize.TooLargeException.class, () -> CodeSize.check(orig, loads(3000)));
+		assertEquals(9001, exc.size);
+	}
+}
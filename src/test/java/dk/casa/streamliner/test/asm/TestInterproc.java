@@ -170,7 +170,7 @@ public class TestInterproc extends TestASM {
 	}
 
 	private static Map<Integer, Integer> getAllocationsIn(MethodNode mn) {
-		return InterproceduralTypePointerAnalysis.allocations.entrySet().stream()
+		return AnalysisSession.current().allocations.entrySet().stream()
 				.filter(e -> e.getKey().getMethod().equals(mn))
 				.findAny().orElseThrow(NoSuchElementException::new).getValue();
 	}
@@ -212,7 +212,7 @@ public class TestInterproc extends TestASM {
 
 		InterFrame[] frames = analyzeMethod(owner, mn);
 
-		assertEquals(1, InterproceduralTypePointerAnalysis.allocations.size());
+		assertEquals(1, AnalysisSession.current().allocations.size());
 		InterFrame returnFrame = Utils.getReturnFrame(mn, frames, new InterInterpreter(), InterFrame::new);
 		Set<Integer> escaped = returnFrame.getHeap().getEscaped();
 		assertEquals(1, escaped.size());
@@ -421,6 +421,108 @@ public class TestInterproc extends TestASM {
 		analyzeMethod("dk/casa/streamliner/test/asm/TestInterproc", "getClassName");
 	}
 
+	private static int square(int x) {
+		return x * x;
+	}
+
+	private static int constantCallInLoop(int n) {
+		int s = 0;
+		for(int i = 0; i < n; i++) s += square(3);
+		return s;
+	}
+
+	@Test
+	public void testCallSummaryReuse() {
+		// The call is reached again with the same arguments when s changes
+		analyzeMethod(asmName, "constantCallInLoop");
+		assertTrue(AnalysisSession.current().getSummaryHits() > 0);
+	}
+
+	private static int nestedCallInLoop(int n) {
+		int s = 0;
+		for(int i = 0; i < n; i++) s += constantCallInLoop(3);
+		return s;
+	}
+
+	private static int twiceNestedCallInLoop(int n) {
+		int s = 0;
+		for(int i = 0; i < n; i++) s += nestedCallInLoop(3);
+		return s;
+	}
+
+	@Test
+	public void testCallSummaryNesting() {
+		// Without the summaries each loop would analyse its callee again in every round, doubling the work per level
+		String[] methods = { "constantCallInLoop", "nestedCallInLoop", "twiceNestedCallInLoop" };
+		long[] instructions = new long[methods.length];
+		for(int i = 0; i < methods.length; i++) {
+			analyzeMethod(asmName, methods[i]);
+			AnalysisBudget budget = AnalysisSession.current().getBudget();
+			assertEquals(i + 2, budget.getContexts());
+			instructions[i] = budget.getInstructions();
+		}
+
+		assertEquals(instructions[1] - instructions[0], instructions[2] - instructions[1]);
+	}
+
+	@Test
+	public void testInstructionBudget() {
+		AnalysisSession.current().setBudget(new AnalysisBudget(100, 10, 0, 0));
+		try {
+			RuntimeException exc = assertThrows(RuntimeException.class, () -> analyzeMethod(asmName, "constantCallInLoop"));
+			assertEquals(AnalysisBudgetException.Kind.INSTRUCTIONS, AnalysisBudgetException.find(exc).get().kind);
+		} finally {
+			AnalysisSession.current().setBudget(AnalysisBudget.fromProperties());
+		}
+	}
+
+	private static int leaf(int x) {
+		return x + 1;
+	}
+
+	private static int shared(int x) {
+		return leaf(x);
+	}
+
+	private static int viaFirst(int x) {
+		return shared(x);
+	}
+
+	// Calls shared at the same instruction index as viaFirst
+	private static int viaSecond(int x) {
+		return shared(x) - 1;
+	}
+
+	private static int twoChains(int x) {
+		return viaFirst(x) + viaSecond(x);
+	}
+
+	private static long countContexts(String method) {
+		return AnalysisSession.current().calls.keySet().stream().filter(c -> c.getMethod().name.equals(method)).count();
+	}
+
+	@Test
+	public void testContextLimit() {
+		analyzeMethod(asmName, "twoChains");
+		assertEquals(2, countContexts("leaf"));
+
+		AnalysisSession.current().setContextLimit(2);
+		try {
+			// The calls of leaf from shared collapse into one context
+			analyzeMethod(asmName, "twoChains");
+			assertEquals(1, countContexts("leaf"));
+			assertEquals(2, countContexts("shared"));
+
+			// The frames of the collapsed context belong to one of the chains, so the method must not be transformed
+			MethodNode mn = getMethodNode(asmName, "twoChains");
+			int size = mn.instructions.size();
+			assertThrows(IllegalStateException.class, () -> fullTransform(asmName, mn));
+			assertEquals(size, mn.instructions.size());
+		} finally {
+			AnalysisSession.current().setContextLimit(StackContext.getCallStringLimit());
+		}
+	}
+
 	// Cases
 
 	@Test
@@ -0,0 +1,93 @@
+package dk.casa.streamliner.test.asm;
+
+import dk.casa.streamliner.asm.Utils;
+import dk.casa.streamliner.asm.transform.JumpThreading;
+import dk.casa.streamliner.asm.transform.LocalVariableCleanup;
+import dk.casa.streamliner.asm.transform.SlidingWindowOptimizer;
+import org.junit.jupiter.api.Test;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.tree.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.objectweb.asm.Opcodes.*;
+
+public class TestJumpThreading extends TestASM {
+
+	/** The shape of an inlined pull-based loop, where tryAdvance sets a flag that is tested by the loop header */
+	private static int countEven(int[] a) {
+		int i = 0, count = 0;
+		boolean found = true;
+		while(found) {
+			found = false;
+			while(i < a.length) {
+				if(a[i++] % 2 == 0) {
+					found = true;
+					break;
+				}
+			}
+			if(found) count++;
+		}
+		return count;
+	}
+
+	private static boolean testsBoolean(MethodNode mn) {
+		return Utils.instructionStream(mn).anyMatch(insn -> (insn.getOpcode() == IFEQ || insn.getOpcode() == IFNE)
+				&& insn.getPrevious().getOpcode() == ILOAD);
+	}
+
+	@Test
+	public void testFlag() throws Exception {
+		MethodNode mn = getMethodNode(asmName, "countEven");
+		assertTrue(testsBoolean(mn));
+
+		new LocalVariableCleanup(asmName, mn).run();
+		new JumpThreading(asmName, mn).run();
+		SlidingWindowOptimizer.run(mn);
+		checkMethod(asmName, mn);
+		Utils.printMethod(mn);
+
+		assertFalse(testsBoolean(mn));
+		assertEquals(3, executeMethod(getClassWithReplacedMethod(asmName, mn), mn, null, (Object) new int[]{1, 2, 3, 4, 6}).getFirst());
+		assertEquals(0, executeMethod(getClassWithReplacedMethod(asmName, mn), mn, null, (Object) new int[0]).getFirst());
+	}
+
+	/** Replaced by the same code where the test of f is reached by falling through the test of x */
+	private static int fallThrough(int x) {
+		boolean f = true;
+		if(x == 0) f = false;
+		return f ? 1 : 0;
+	}
+
+	@Test
+	public void testFallThroughBranch() throws Exception {
+		MethodNode mn = new MethodNode(ACC_PRIVATE | ACC_STATIC, "fallThrough", Type.getMethodDescriptor(Type.INT_TYPE, Type.INT_TYPE), null, null);
+		LabelNode head = new LabelNode(), zero = new LabelNode(), clear = new LabelNode();
+		Utils.addInstructions(mn.instructions,
+				new InsnNode(ICONST_1),
+				new VarInsnNode(ISTORE, 1),
+				new VarInsnNode(ILOAD, 0),
+				new JumpInsnNode(IFEQ, clear),
+				head,
+				new VarInsnNode(ILOAD, 1),
+				new JumpInsnNode(IFEQ, zero),
+				new InsnNode(ICONST_1),
+				new InsnNode(IRETURN),
+				zero,
+				new InsnNode(ICONST_0),
+				new InsnNode(IRETURN),
+				clear,
+				new InsnNode(ICONST_0),
+				new VarInsnNode(ISTORE, 1),
+				new JumpInsnNode(GOTO, head));
+
+		mn.maxLocals = 2;
+		mn.maxStack = 1;
+
+		new JumpThreading(asmName, mn).run();
+		SlidingWindowOptimizer.run(mn);
+		checkMethod(asmName, mn);
+
+		assertEquals(0, executeMethod(getClassWithReplacedMethod(asmName, mn), mn, null, 0).getFirst());
+		assertEquals(1, executeMethod(getClassWithReplacedMethod(asmName, mn), mn, null, 1).getFirst());
+	}
+}
@@ -14,6 +14,7 @@ import org.objectweb.asm.tree.analysis.Frame;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashSet;
+import java.util.Set;
 
 import static org.junit.jupiter.api.Assertions.*;
 import static org.objectweb.asm.Opcodes.*;
@@ -21,14 +22,19 @@ import static org.objectweb.asm.Opcodes.*;
 public class TestLivenessAnalysis {
 	private LivenessAnalysis analysis;
 
-	private HashSet<Integer>[] doAnalysis(MethodNode mn) throws AnalyzerException {
+	@SuppressWarnings("unchecked")
+	private Set<Integer>[] doAnalysis(MethodNode mn) throws AnalyzerException {
 		MustEqualsAnalyzer<BasicValue> analyzer = new MustEqualsAnalyzer<>(new BasicInterpreter());
 		Frame<BasicValue>[] frames = analyzer.analyze("java/lang/Object", mn);
 		analysis = new LivenessAnalysis(analyzer.getCFG());
-		return analysis.analyze(frames);
+		analysis.analyze(frames);
+
+		Set<Integer>[] res = new Set[mn.instructions.size()];
+		Arrays.setAll(res, analysis::liveIn);
+		return res;
 	}
 
-	private void printResult(HashSet<Integer>[] res, MethodNode mn) {
+	private void printResult(Set<Integer>[] res, MethodNode mn) {
 		for (int i = 0; i < mn.instructions.size(); i++) {
 			System.out.println(i + ": " + Utils.toString(mn.instructions.get(i)) + " Live in: " + res[i]);
 		}
@@ -45,7 +51,7 @@ public class TestLivenessAnalysis {
 	public void testIconstReturn() throws AnalyzerException {
 		MethodNode mn = createMethod(ACC_STATIC, Type.getMethodDescriptor(Type.INT_TYPE), 1);
 		Utils.addInstructions(mn.instructions, new InsnNode(ICONST_0), new InsnNode(IRETURN));
-		HashSet<Integer>[] res = doAnalysis(mn);
+		Set<Integer>[] res = doAnalysis(mn);
 		printResult(res, mn);
 
 		assertEquals(res[1], Collections.singleton(0));
@@ -57,7 +63,7 @@ public class TestLivenessAnalysis {
 		Utils.addInstructions(mn.instructions,
 				new InsnNode(ICONST_1), new InsnNode(ICONST_2),
 				new InsnNode(IADD), new InsnNode(IRETURN));
-		HashSet<Integer>[] res = doAnalysis(mn);
+		Set<Integer>[] res = doAnalysis(mn);
 		printResult(res, mn);
 
 		assertEquals(res[2], new HashSet<>(Arrays.asList(0, 1)));
@@ -71,7 +77,7 @@ public class TestLivenessAnalysis {
 		Utils.addInstructions(mn.instructions, new IntInsnNode(BIPUSH, 8),
 				new VarInsnNode(ISTORE, 0), new VarInsnNode(ILOAD, 0),
 				new InsnNode(IRETURN));
-		HashSet<Integer>[] res = doAnalysis(mn);
+		Set<Integer>[] res = doAnalysis(mn);
 		printResult(res, mn);
 
 		assertEquals(res[1], Collections.singleton(1));
@@ -86,7 +92,7 @@ public class TestLivenessAnalysis {
 				new InsnNode(ICONST_1), new InsnNode(ICONST_2),
 				new InsnNode(IADD), new InsnNode(POP),
 				new InsnNode(RETURN));
-		HashSet<Integer>[] res = doAnalysis(mn);
+		Set<Integer>[] res = doAnalysis(mn);
 		printResult(res, mn);
 
 		assertEquals(res[2], new HashSet<>(), "Since the result of ADD is popped both stack values should be dead.");
@@ -101,7 +107,7 @@ public class TestLivenessAnalysis {
 				new InsnNode(ICONST_1), new InsnNode(ICONST_2),
 				new InsnNode(IADD), new InsnNode(POP),
 				new VarInsnNode(ILOAD, 0), new InsnNode(IRETURN));
-		HashSet<Integer>[] res = doAnalysis(mn);
+		Set<Integer>[] res = doAnalysis(mn);
 		printResult(res, mn);
 
 		assertEquals(res[6], Collections.singleton(0), "Only the local is live");
@@ -117,7 +123,7 @@ public class TestLivenessAnalysis {
 				new InsnNode(ICONST_2), new VarInsnNode(ISTORE, 0),
 				new VarInsnNode(ILOAD, 0), new InsnNode(DUP), new InsnNode(POP2),
 				new InsnNode(IRETURN));
-		HashSet<Integer>[] res = doAnalysis(mn);
+		Set<Integer>[] res = doAnalysis(mn);
 		printResult(res, mn);
 
 		assertEquals(res[6], Collections.singleton(2), "Only the stack slot is live");
@@ -137,7 +143,7 @@ public class TestLivenessAnalysis {
 				new JumpInsnNode(IFGT, loop),
 				new InsnNode(RETURN));
 
-		HashSet<Integer>[] res = doAnalysis(mn);
+		Set<Integer>[] res = doAnalysis(mn);
 		printResult(res, mn);
 	}
 }
@@ -10,6 +10,7 @@ import org.objectweb.asm.tree.analysis.AnalyzerException;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.objectweb.asm.Opcodes.*;
 
 public class TestLocalVariableCleanup extends TestASM {
@@ -160,4 +161,73 @@ public class TestLocalVariableCleanup extends TestASM {
 		Utils.printMethod(mn);
 		assertFalse(Utils.instructionStream(mn).anyMatch(insn -> insn instanceof IincInsnNode));
 	}
+
+	@Test
+	public void testLargeMethod() throws AnalyzerException {
+		// acc += copy of the parameter, repeated many times but with few locals, so the frames stay below the limit
+		MethodNode mn = new MethodNode(ACC_PRIVATE | ACC_STATIC, "largeMethod", Type.getMethodDescriptor(Type.INT_TYPE, Type.INT_TYPE), null, null);
+		Utils.addInstructions(mn.instructions, new InsnNode(ICONST_0), new VarInsnNode(ISTORE, 2));
+		for(int i = 0; i < 5000; i++)
+			Utils.addInstructions(mn.instructions,
+					new VarInsnNode(ILOAD, 0),
+					new VarInsnNode(ISTORE, 1),
+					new VarInsnNode(ILOAD, 2),
+					new VarInsnNode(ILOAD, 1),
+					new InsnNode(IADD),
+					new VarInsnNode(ISTORE, 2));
+		Utils.addInstructions(mn.instructions, new VarInsnNode(ILOAD, 2), new InsnNode(IRETURN));
+
+		mn.maxLocals = 3;
+		mn.maxStack = 2;
+
+		new LocalVariableCleanup(asmName, mn).run();
+		SlidingWindowOptimizer.run(mn);
+		checkMethod(asmName, mn);
+
+		// The copy is replaced by the parameter
+		assertEquals(2, mn.maxLocals);
+	}
+
+	/** n copies of the parameter that are summed, with n + 1 locals and 4n + 2 instructions */
+	private static MethodNode manyCopies(int n) {
+		MethodNode mn = new MethodNode(ACC_PRIVATE | ACC_STATIC, "manyLocals", Type.getMethodDescriptor(Type.INT_TYPE, Type.INT_TYPE), null, null);
+		for(int i = 1; i <= n; i++)
+			Utils.addInstructions(mn.instructions, new VarInsnNode(ILOAD, 0), new VarInsnNode(ISTORE, i));
+		mn.instructions.add(new InsnNode(ICONST_0));
+		for(int i = 1; i <= n; i++)
+			Utils.addInstructions(mn.instructions, new VarInsnNode(ILOAD, i), new InsnNode(IADD));
+		mn.instructions.add(new InsnNode(IRETURN));
+
+		mn.maxLocals = n + 1;
+		mn.maxStack = 2;
+		return mn;
+	}
+
+	@Test
+	public void testCleanupLimit() throws AnalyzerException {
+		// Above both the size and the limit
+		int n = Math.max(LocalVariableCleanup.cleanupSize / 4, (int) Math.sqrt(LocalVariableCleanup.cleanupLimit / 4.0)) + 1;
+		MethodNode mn = manyCopies(n);
+
+		new LocalVariableCleanup(asmName, mn).run();
+		SlidingWindowOptimizer.run(mn);
+		checkMethod(asmName, mn);
+
+		// The copies are only removed by the must-equals analysis, which is skipped
+		assertEquals(n + 1, mn.maxLocals);
+	}
+
+	@Test
+	public void testCleanupBelowSize() throws AnalyzerException {
+		// Above the limit, but small enough to always be cleaned up
+		int n = LocalVariableCleanup.cleanupSize / 8;
+		MethodNode mn = manyCopies(n);
+		assertTrue((long) mn.instructions.size() * (mn.maxLocals + mn.maxStack) > LocalVariableCleanup.cleanupLimit);
+
+		new LocalVariableCleanup(asmName, mn).run();
+		SlidingWindowOptimizer.run(mn);
+		checkMethod(asmName, mn);
+
+		assertTrue(mn.maxLocals <= 2, "maxLocals: " + mn.maxLocals);
+	}
 }
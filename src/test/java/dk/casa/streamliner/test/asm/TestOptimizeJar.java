@@ -0,0 +1,135 @@
+package dk.casa.streamliner.test.asm;
+
+import dk.casa.streamliner.asm.ClassNodeCache;
+import dk.casa.streamliner.asm.OptimizeJar;
+import dk.casa.streamliner.asm.Utils;
+import dk.casa.streamliner.asm.transform.CodeSize;
+import dk.casa.streamliner.utils.Counter;
+import org.apache.commons.io.IOUtils;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.tree.*;
+
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.stream.IntStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.objectweb.asm.Opcodes.*;
+
+public class TestOptimizeJar {
+	public static class Example {
+		public static int sink;
+
+		public static int sum() {
+			return IntStream.range(0, 10).sum();
+		}
+	}
+
+	private static final String exampleName = Example.class.getName().replace('.', '/');
+
+	@BeforeEach
+	void resetCache() {
+		// Other tests may have transformed the classes of the stream library in the cache
+		ClassNodeCache.clear();
+	}
+
+	@AfterEach
+	void clearCache() {
+		ClassNodeCache.clearAdded();
+	}
+
+	private Path exampleClassFile(Path input) throws Exception {
+		Path classFile = input.resolve(exampleName + ".class");
+		Files.createDirectories(classFile.getParent());
+		try(InputStream is = getClass().getClassLoader().getResourceAsStream(exampleName + ".class")) {
+			Files.copy(is, classFile);
+		}
+		return classFile;
+	}
+
+	/** A copy of sum that first stores to sink the given number of times, which takes 4 bytes each */
+	private static MethodNode padded(MethodNode sum, String name, int stores) {
+		MethodNode mn = Utils.copyMethod(sum);
+		mn.name = name;
+		InsnList padding = new InsnList();
+		for(int i = 0; i < stores; i++) {
+			padding.add(new InsnNode(ICONST_0));
+			padding.add(new FieldInsnNode(PUTSTATIC, exampleName, "sink", "I"));
+		}
+		mn.instructions.insert(padding);
+		return mn;
+	}
+
+	@Test
+	public void testOptimiseDirectory() throws Exception {
+		Path input = Files.createTempDirectory("streamliner-input");
+		exampleClassFile(input);
+
+		Path output = input.resolve("optimised.jar");
+		Counter<String> stats = OptimizeJar.run(input, output, Collections.emptyList());
+		assertEquals(1, (int) stats.get("methodsOptimised"));
+
+		byte[] bytes;
+		try(ZipFile jar = new ZipFile(output.toFile())) {
+			ZipEntry entry = jar.getEntry(exampleName + ".class");
+			assertNotNull(entry);
+			bytes = IOUtils.toByteArray(jar.getInputStream(entry));
+		}
+
+		ClassNode cn = new ClassNode();
+		new ClassReader(bytes).accept(cn, 0);
+		MethodNode sum = Utils.getMethod(cn, "sum", "()I").get();
+		assertFalse(Utils.instructionStream(sum).anyMatch(insn ->
+				insn instanceof MethodInsnNode && ((MethodInsnNode) insn).owner.startsWith("java/util/stream")));
+
+		Class<?> cls = new ClassLoader(getClass().getClassLoader()) {
+			Class<?> define() {
+				return defineClass(Example.class.getName(), bytes, 0, bytes.length);
+			}
+		}.define();
+		assertEquals(45, cls.getMethod("sum").invoke(null));
+	}
+
+	@Test
+	public void testCodeSize() throws Exception {
+		Path input = Files.createTempDirectory("streamliner-input");
+		Path classFile = exampleClassFile(input);
+
+		ClassNode cn = new ClassNode();
+		new ClassReader(Files.readAllBytes(classFile)).accept(cn, 0);
+		MethodNode sum = Utils.getMethod(cn, "sum", "()I").get();
+
+		// The original is just below the inline limit and grows beyond it when the pipeline is inlined
+		MethodNode grows = padded(sum, "grows", (CodeSize.inlineLimit - CodeSize.of(sum)) / 4);
+		assertTrue(CodeSize.of(grows) <= CodeSize.inlineLimit);
+		cn.methods.add(grows);
+		cn.methods.add(padded(sum, "huge", CodeSize.hugeMethodLimit / 4));
+
+		ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+		cn.accept(cw);
+		Files.write(classFile, cw.toByteArray());
+
+		Path output = input.resolve("optimised.jar");
+		Counter<String> stats = OptimizeJar.run(input, output, Collections.emptyList());
+		assertEquals(2, (int) stats.get("methodsOptimised"));
+		assertEquals(1, (int) stats.get("exceedsInlineLimit"));
+		assertEquals(1, (int) stats.get("tooLarge"));
+		assertEquals(0, (int) stats.get("failed"));
+
+		// The method that became too large is kept unchanged
+		try(ZipFile jar = new ZipFile(output.toFile())) {
+			cn = new ClassNode();
+			new ClassReader(IOUtils.toByteArray(jar.getInputStream(jar.getEntry(exampleName + ".class")))).accept(cn, 0);
+		}
+		assertTrue(Utils.instructionStream(Utils.getMethod(cn, "huge", "()I").get()).anyMatch(insn ->
+				insn instanceof MethodInsnNode && ((MethodInsnNode) insn).owner.startsWith("java/util/stream")));
+	}
+}
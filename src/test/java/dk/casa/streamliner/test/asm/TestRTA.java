@@ -0,0 +1,116 @@
+package dk.casa.streamliner.test.asm;
+
+import dk.casa.streamliner.asm.analysis.MethodIdentifier;
+import dk.casa.streamliner.asm.analysis.inter.Context;
+import dk.casa.streamliner.asm.analysis.inter.InterValue;
+import dk.casa.streamliner.asm.analysis.inter.TypeElement;
+import dk.casa.streamliner.asm.analysis.inter.oracles.RTAOracle;
+import dk.casa.streamliner.asm.analysis.inter.oracles.StreamLibraryOracle;
+import dk.casa.streamliner.asm.analysis.inter.oracles.TypeQueryIndex;
+import dk.casa.streamliner.asm.analysis.inter.oracles.TypeQueryOracle;
+import org.junit.jupiter.api.Test;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.tree.MethodInsnNode;
+import org.objectweb.asm.tree.MethodNode;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TestRTA extends TestASM {
+
+	public static void entrypoint() {
+		List<String> strings = new ArrayList<>();
+		interestingMethod(strings);
+		allocatedInCallee();
+	}
+
+	private static void interestingMethod(List<String> strings) {
+		strings.stream().count();
+	}
+
+	private static void allocatedInCallee() {
+		List<String> strings = Arrays.asList("a", "b");
+		strings.stream().count();
+	}
+
+	private static class TestOracle extends StreamLibraryOracle {
+		public int calls = 0;
+		public Optional<Type> res;
+		private final TypeQueryOracle tOracle;
+
+		public TestOracle(TypeQueryOracle tOracle) {
+			this.tOracle = tOracle;
+		}
+
+		@Override
+		public Optional<Type> queryType(Context context, MethodInsnNode minsn, InterValue receiver) {
+			calls++;
+			return res = tOracle.queryType(context, minsn, receiver);
+		}
+	}
+
+	private RTAOracle newOracle() {
+		return new RTAOracle(Collections.singletonList(new MethodIdentifier(asmName, "entrypoint", "()V")));
+	}
+
+	private TestOracle analyse(String name, TypeQueryOracle typeOracle) {
+		TestOracle oracle = new TestOracle(typeOracle);
+		MethodNode mn = getMethodNode(asmName, name);
+		analyzeMethod(asmName, mn, oracle);
+		return oracle;
+	}
+
+	@Test
+	public void testReceiverOfParameter() {
+		TestOracle oracle = analyse("interestingMethod", newOracle());
+		assertEquals(1, oracle.calls);
+		assertEquals(Optional.of(Type.getObjectType("java/util/ArrayList")), oracle.res);
+	}
+
+	@Test
+	public void testReceiverAllocatedInCallee() {
+		RTAOracle rta = newOracle();
+		TestOracle oracle = analyse("allocatedInCallee", rta);
+		assertEquals(1, oracle.calls);
+		assertEquals(Optional.of(Type.getObjectType("java/util/Arrays$ArrayList")), oracle.res);
+		assertEquals(1, (int) rta.queryStats.get("allocation"));
+	}
+
+	@Test
+	public void testIndexedAnswers() throws IOException {
+		Path file = Files.createTempDirectory("streamliner-index").resolve("index");
+		TypeQueryIndex index = new TypeQueryIndex(file, newOracle());
+		analyse("interestingMethod", index);
+		assertEquals(1, (int) index.stats.get("miss"));
+		index.save();
+
+		// The delegate is not queried for answers in the index
+		TypeQueryIndex loaded = new TypeQueryIndex(file, (context, minsn, receiver) -> { throw new AssertionError(); });
+		TestOracle oracle = analyse("interestingMethod", loaded);
+		assertEquals(1, (int) loaded.stats.get("hit"));
+		assertEquals(Optional.of(Type.getObjectType("java/util/ArrayList")), oracle.res);
+	}
+
+	/** Queries the oracle as if the receiver was only known to be a Collection */
+	private static TypeQueryOracle widened(TypeQueryOracle oracle) {
+		TypeElement collection = new TypeElement(false, Type.getObjectType("java/util/Collection"));
+		return (context, minsn, receiver) -> oracle.queryType(context, minsn, new InterValue(collection, receiver.pointer));
+	}
+
+	@Test
+	public void testIndexedReceiverType() throws IOException {
+		Path file = Files.createTempDirectory("streamliner-index").resolve("index");
+		TypeQueryIndex index = new TypeQueryIndex(file, newOracle());
+		analyse("interestingMethod", index);
+
+		// The same call with another receiver type is not answered by the index
+		TestOracle oracle = analyse("interestingMethod", widened(index));
+		assertEquals(2, (int) index.stats.get("miss"));
+		assertEquals(0, (int) index.stats.get("hit"));
+		assertEquals(analyse("interestingMethod", widened(newOracle())).res, oracle.res);
+	}
+}
@@ -144,4 +144,18 @@ public class TestSlidingWindowOptimizer extends TestASM implements Opcodes {
 		assertEquals(ICONST_2, mn.instructions.getFirst().getOpcode());
 		assertEquals(ICONST_1, mn.instructions.getFirst().getNext().getOpcode());
 	}
+
+	@Test
+	public void nestedPops() {
+		// Every value is popped after the values that are pushed after it
+		int n = 5000;
+		AbstractInsnNode[] insns = new AbstractInsnNode[3 * n];
+		for(int i = 0; i < n; i++) {
+			insns[2 * i] = new VarInsnNode(ILOAD, 0);
+			insns[2 * i + 1] = new InsnNode(I2L);
+			insns[2 * n + i] = new InsnNode(POP2);
+		}
+
+		test(2 * n, 1, 1, Type.getMethodDescriptor(Type.VOID_TYPE, Type.INT_TYPE), insns);
+	}
 }
@@ -0,0 +1,91 @@
+package dk.casa.streamliner.test.asm;
+
+import dk.casa.streamliner.asm.analysis.inter.Context;
+import dk.casa.streamliner.asm.analysis.inter.StackContext;
+import org.junit.jupiter.api.Test;
+import org.objectweb.asm.tree.MethodNode;
+
+import java.util.Collections;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.objectweb.asm.Opcodes.ACC_STATIC;
+
+public class TestStackContext {
+	private static final MethodNode main = new MethodNode(ACC_STATIC, "main", "()V", null, null);
+	private static final MethodNode foo = new MethodNode(ACC_STATIC, "foo", "()V", null, null);
+	private static final MethodNode bar = new MethodNode(ACC_STATIC, "bar", "()V", null, null);
+
+	private static Context call(Context context, MethodNode method, int insnIndex) {
+		return context.newContext("A", method, insnIndex, null, Collections.emptyList());
+	}
+
+	@Test
+	void sameCallStringsAreEqual() {
+		Context root = new StackContext("A", main, null, Collections.emptyList());
+		Context c1 = call(call(root, foo, 1), bar, 2);
+		Context c2 = call(call(root, foo, 1), bar, 2);
+		assertEquals(c1, c2);
+		assertEquals(c1.hashCode(), c2.hashCode());
+		assertEquals(3, c1.getDepth());
+		assertSame(bar, c1.getMethod());
+		assertSame(root, c1.getParent().getParent());
+
+		assertNotEquals(c1, call(call(root, foo, 1), bar, 3));
+		assertNotEquals(c1, call(call(root, bar, 1), bar, 2));
+		assertNotEquals(c1, call(root, bar, 2));
+	}
+
+	@Test
+	void contextsOfDifferentAnalysesAreEqual() {
+		Context c1 = call(new StackContext("A", main, null, Collections.emptyList()), foo, 1);
+		Context c2 = call(new StackContext("A", main, null, Collections.emptyList()), foo, 1);
+		assertEquals(c1, c2);
+		assertEquals(c1.hashCode(), c2.hashCode());
+
+		Context c3 = call(new StackContext("B", main, null, Collections.emptyList()), foo, 1);
+		assertNotEquals(c1, c3);
+	}
+
+	@Test
+	void methodOfContextIsTheCalledMethod() {
+		Context root = new StackContext("A", main, null, Collections.emptyList());
+		MethodNode copy = new MethodNode(ACC_STATIC, "foo", "()V", null, null);
+		Context c1 = call(root, foo, 1), c2 = call(root, copy, 1);
+		assertEquals(c1, c2);
+		assertSame(copy, c2.getMethod());
+	}
+
+	@Test
+	void limitedCallStringsOnlyKeepRecentCalls() {
+		Context root = new StackContext("A", main, null, Collections.emptyList(), 2);
+		Context c1 = call(call(call(root, foo, 1), foo, 2), bar, 3);
+		Context c2 = call(call(call(root, bar, 1), foo, 2), bar, 3);
+		assertEquals(c1, c2);
+		assertEquals(c1.hashCode(), c2.hashCode());
+		assertEquals(4, c1.getDepth());
+		assertSame(root, c1.getParent().getParent().getParent());
+
+		// The context keeps the limit after the oldest call has been dropped
+		assertEquals(call(c1, foo, 4), call(c2, foo, 4));
+		assertEquals(5, call(c1, foo, 4).getDepth());
+
+		assertNotEquals(c1, call(call(call(root, foo, 1), bar, 2), bar, 3));
+		assertNotEquals(c1, call(call(call(root, foo, 1), foo, 2), bar, 4));
+		assertNotEquals(c1, call(call(root, foo, 2), foo, 3));
+	}
+
+	@Test
+	void initialMethodCountsTowardsTheLimit() {
+		Context root = new StackContext("A", main, null, Collections.emptyList(), 2);
+		Context c1 = call(call(root, foo, 1), bar, 2);
+		Context c2 = call(call(call(root, bar, 5), foo, 1), bar, 2);
+		assertEquals(c1, c2);
+		assertEquals(3, c1.getDepth());
+		assertEquals(4, c2.getDepth());
+
+		assertNotEquals(call(root, foo, 1), call(call(root, bar, 5), foo, 1));
+
+		Context other = new StackContext("A", main, null, Collections.emptyList(), 2);
+		assertEquals(c2, call(call(call(other, foo, 5), foo, 1), bar, 2));
+	}
+}
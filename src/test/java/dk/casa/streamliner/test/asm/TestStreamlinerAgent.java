@@ -0,0 +1,90 @@
+package dk.casa.streamliner.test.asm;
+
+import dk.casa.streamliner.asm.ClassNodeCache;
+import dk.casa.streamliner.asm.StreamlinerAgent;
+import org.apache.commons.io.IOUtils;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.commons.ClassRemapper;
+import org.objectweb.asm.commons.SimpleRemapper;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TestStreamlinerAgent {
+	public static class Example {
+		public static int sum() {
+			return IntStream.range(0, 10).sum();
+		}
+	}
+
+	public static class NoStreams {
+		public static int sum() {
+			return 45;
+		}
+	}
+
+	@BeforeEach
+	void resetCache() {
+		// Other tests may have transformed the classes of the stream library in the cache
+		ClassNodeCache.clear();
+	}
+
+	@AfterEach
+	void clearCache() {
+		ClassNodeCache.clearAdded();
+	}
+
+	private static byte[] getBytes(Class<?> cls) throws IOException {
+		try(InputStream is = cls.getClassLoader().getResourceAsStream(cls.getName().replace('.', '/') + ".class")) {
+			return IOUtils.toByteArray(is);
+		}
+	}
+
+	private static byte[] transform(StreamlinerAgent agent, Class<?> cls) throws Exception {
+		return agent.transform(TestStreamlinerAgent.class.getClassLoader(), cls.getName().replace('.', '/'),
+				null, null, getBytes(cls));
+	}
+
+	@Test
+	public void testTransform() throws Exception {
+		StreamlinerAgent agent = new StreamlinerAgent(null, 1, 4, 60000);
+		byte[] bytes = transform(agent, Example.class);
+		assertNotNull(bytes);
+		assertEquals(1, (int) agent.stats.get("methodsOptimised"));
+
+		Class<?> cls = new ClassLoader(getClass().getClassLoader()) {
+			Class<?> define() {
+				return defineClass(Example.class.getName(), bytes, 0, bytes.length);
+			}
+		}.define();
+		assertEquals(45, cls.getMethod("sum").invoke(null));
+	}
+
+	@Test
+	public void testClassIsNotShared() throws Exception {
+		// A copy of Example that is not on the class path, as for a class of another class loader
+		String name = "dk/casa/streamliner/test/asm/TestStreamlinerAgent$Defined";
+		ClassWriter cw = new ClassWriter(0);
+		new ClassReader(getBytes(Example.class)).accept(new ClassRemapper(cw,
+				new SimpleRemapper(Example.class.getName().replace('.', '/'), name)), 0);
+
+		StreamlinerAgent agent = new StreamlinerAgent(null, 1, 4, 60000);
+		assertNotNull(agent.transform(getClass().getClassLoader(), name, null, null, cw.toByteArray()));
+		assertEquals(1, (int) agent.stats.get("methodsOptimised"));
+		assertNull(ClassNodeCache.tryGetShared(name));
+	}
+
+	@Test
+	public void testSkipClassesWithoutStreams() throws Exception {
+		StreamlinerAgent agent = new StreamlinerAgent(null, 1, 4, 60000);
+		assertNull(transform(agent, NoStreams.class));
+		assertEquals(0, (int) agent.stats.get("classesWithPipelines"));
+	}
+}
@@ -0,0 +1,89 @@
+package dk.casa.streamliner.test.asm;
+
+import dk.casa.streamliner.asm.ClassNodeCache;
+import dk.casa.streamliner.asm.Utils;
+import dk.casa.streamliner.asm.analysis.inter.oracles.StreamLibraryOracle;
+import dk.casa.streamliner.asm.transform.LambdaPreprocessor;
+import dk.casa.streamliner.asm.transform.LocalVariableCleanup;
+import dk.casa.streamliner.asm.transform.SlidingWindowOptimizer;
+import dk.casa.streamliner.asm.transform.TransformCache;
+import org.junit.jupiter.api.Test;
+import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.FieldNode;
+import org.objectweb.asm.tree.MethodNode;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.objectweb.asm.Opcodes.ACC_STATIC;
+
+public class TestTransformCache extends TestASM {
+	private static int sumOfRange() {
+		return IntStream.range(0, 10).sum();
+	}
+
+	private MethodNode transform(TransformCache cache) throws Exception {
+		MethodNode mn = getMethodNode(asmName, "sumOfRange");
+		cache.transform(asmName, mn, new StreamLibraryOracle(), true);
+		checkMethod(asmName, mn);
+		return mn;
+	}
+
+	private static String opcodes(MethodNode mn) {
+		// Unused labels are not preserved
+		return Utils.instructionStream(mn).filter(insn -> insn.getOpcode() >= 0)
+				.map(insn -> String.valueOf(insn.getOpcode())).collect(Collectors.joining(" "));
+	}
+
+	@Test
+	public void testReplay() throws Exception {
+		Path dir = Files.createTempDirectory("streamliner-cache");
+		TransformCache cache = new TransformCache(dir, "test");
+
+		MethodNode first = transform(cache);
+		assertEquals(1, (int) cache.stats.get("miss"));
+		assertEquals(0, (int) cache.stats.get("hit"));
+
+		MethodNode second = transform(cache);
+		assertEquals(1, (int) cache.stats.get("hit"));
+		assertEquals(opcodes(first), opcodes(second));
+
+		// The lambda models of the replayed result are renamed and must still be usable by the rest of the pipeline
+		new LocalVariableCleanup(asmName, second).run();
+		SlidingWindowOptimizer.run(second);
+		new LambdaPreprocessor(second).postprocess();
+		checkMethod(asmName, second);
+		assertEquals(45, executeMethod(getClassWithReplacedMethod(asmName, second), second, null).getFirst());
+
+		// A different configuration does not share entries
+		transform(new TransformCache(dir, "other"));
+		assertEquals(1, (int) cache.stats.get("hit"));
+	}
+
+	@Test
+	public void testModifiedDependency() throws Exception {
+		TransformCache cache = new TransformCache(Files.createTempDirectory("streamliner-cache"), "test");
+		transform(cache);
+
+		// Classes can be modified in place outside of a session, which must invalidate the entries that depend on them
+		ClassNode cn = ClassNodeCache.get("java/util/stream/IntStream");
+		FieldNode field = new FieldNode(ACC_STATIC, "added", "I", null, null);
+		cn.fields.add(field);
+		try {
+			transform(cache);
+		} finally {
+			cn.fields.remove(field);
+		}
+		assertEquals(1, (int) cache.stats.get("invalidated"));
+		assertEquals(0, (int) cache.stats.get("hit"));
+
+		// The entry was stored again for the modified class
+		transform(cache);
+		assertEquals(2, (int) cache.stats.get("invalidated"));
+		transform(cache);
+		assertEquals(1, (int) cache.stats.get("hit"));
+	}
+}